@@ -0,0 +1,130 @@
+package com.github.jmatss.torc.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates bencoded data with the sizes of real-world torrents and tracker
+ * responses. A fixed seed is used so that every run measures the same data.
+ */
+public class BenchmarkData {
+    public static final int SHA1_HASH_LENGTH = 20;
+    public static final byte[] PEER_ID = "-UT3500-benchmarking".getBytes(StandardCharsets.UTF_8);
+
+    private static final long SEED = 0x746f7263L;
+
+    private BenchmarkData() {}
+
+    /**
+     * Creates a multi-file .torrent with the given amount of pieces spread
+     * evenly over the given amount of files.
+     *
+     * @param amountOfPieces the amount of pieces (20 bytes of "pieces" per piece).
+     * @param amountOfFiles  the amount of files in the "files" list.
+     * @param pieceLength    the length of a piece in bytes.
+     * @return the bencoded metainfo.
+     */
+    public static byte[] torrent(int amountOfPieces, int amountOfFiles, int pieceLength) {
+        var random = new Random(SEED);
+        long totalLength = (long) amountOfPieces * pieceLength;
+
+        var out = new Writer();
+        out.raw("d");
+        out.string("announce").string("http://tracker.example.com:6969/announce");
+        out.string("comment").string("Generated by torc benchmarks");
+        out.string("created by").string("torc");
+        out.string("creation date").number(1577836800L);
+        out.string("info").raw("d");
+        out.string("files").raw("l");
+        for (int i = 0; i < amountOfFiles; i++) {
+            long length = totalLength / amountOfFiles + (i == amountOfFiles - 1 ? totalLength % amountOfFiles : 0);
+            out.raw("d");
+            out.string("length").number(length);
+            out.string("path").raw("l").string("directory " + (i % 10)).string("file " + i + ".data").raw("e");
+            out.raw("e");
+        }
+        out.raw("e");
+        out.string("name").string("benchmark");
+        out.string("piece length").number(pieceLength);
+        out.string("pieces").bytes(randomBytes(random, amountOfPieces * SHA1_HASH_LENGTH));
+        out.raw("e");
+        out.raw("e");
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates a tracker response with the given amount of peers.
+     *
+     * @param amountOfPeers the amount of peers in the response.
+     * @param compact       true for the binary model, false for the dictionary model.
+     * @return the bencoded tracker response.
+     */
+    public static byte[] trackerResponse(int amountOfPeers, boolean compact) {
+        var random = new Random(SEED);
+
+        var out = new Writer();
+        out.raw("d");
+        out.string("complete").number(amountOfPeers / 2);
+        out.string("failure reason").string("");
+        out.string("incomplete").number(amountOfPeers - amountOfPeers / 2);
+        out.string("interval").number(1800);
+        if (compact) {
+            out.string("peers").bytes(randomBytes(random, amountOfPeers * 6));
+        } else {
+            out.string("peers").raw("l");
+            for (int i = 0; i < amountOfPeers; i++) {
+                String ip = "10." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+                out.raw("d");
+                out.string("ip").string(ip);
+                out.string("peer id").bytes(randomBytes(random, SHA1_HASH_LENGTH));
+                out.string("port").number(1024 + random.nextInt(60000));
+                out.raw("e");
+            }
+            out.raw("e");
+        }
+        out.string("tracker id").string("benchmark");
+        out.raw("e");
+        return out.toByteArray();
+    }
+
+    public static byte[] randomBytes(int length) {
+        return randomBytes(new Random(SEED), length);
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    // Minimal bencode writer so that the data can be generated without
+    // depending on the encoder that is being benchmarked.
+    private static class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private Writer raw(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            this.out.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        private Writer bytes(byte[] bytes) {
+            this.raw(bytes.length + ":");
+            this.out.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        private Writer string(String s) {
+            return this.bytes(s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private Writer number(long number) {
+            return this.raw("i" + number + "e");
+        }
+
+        private byte[] toByteArray() {
+            return this.out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.jmatss.torc.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmarks jar. Accepts the same arguments as the
+ * regular JMH main class, but always adds the GC profiler so that the
+ * allocation rate (gc.alloc.rate.norm) is reported for every benchmark.
+ *
+ * Example:
+ *     java -jar target/benchmarks.jar Bencode -rf json -rff before.json
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        var commandLineOptions = new CommandLineOptions(args);
+        var options = new OptionsBuilder()
+                .parent(commandLineOptions)
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.jmatss.torc.benchmarks;
+
+import com.github.jmatss.torc.bencode.Bencode;
+import com.github.jmatss.torc.bencode.BencodeData;
+import com.github.jmatss.torc.bencode.BencodeEvent;
+import com.github.jmatss.torc.bencode.BencodeException;
+import com.github.jmatss.torc.bencode.BencodeReader;
+import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.bittorrent.Tracker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding and encoding of .torrent files and tracker responses.
+ *
+ * The torrent parameters corresponds to a small torrent (64 MiB with 256 KiB
+ * pieces) and a large one (4 GiB with 256 KiB pieces, 320 KiB "pieces" field),
+ * either single-file or with 200 files.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BencodeBenchmark {
+    private static final OutputStream NULL_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+
+    @State(Scope.Benchmark)
+    public static class TorrentState {
+        @Param({"256", "16384"})
+        public int amountOfPieces;
+
+        @Param({"1", "200"})
+        public int amountOfFiles;
+
+        private byte[] torrent;
+        private BencodeData<Object> decoded;
+
+        @Setup
+        public void setUp() throws IOException, BencodeException {
+            this.torrent = BenchmarkData.torrent(this.amountOfPieces, this.amountOfFiles, 1 << 18);
+            this.decoded = Bencode.decode(ByteBuffer.wrap(this.torrent));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class TrackerState {
+        @Param({"50", "1000"})
+        public int amountOfPeers;
+
+        @Param({"true", "false"})
+        public boolean compact;
+
+        private byte[] response;
+        private Tracker tracker;
+
+        @Setup
+        public void setUp() throws IOException, BencodeException, NoSuchAlgorithmException {
+            this.response = BenchmarkData.trackerResponse(this.amountOfPeers, this.compact);
+            byte[] torrentBytes = BenchmarkData.torrent(1, 1, 1 << 18);
+            var torrent = new Torrent(ByteBuffer.wrap(torrentBytes), BenchmarkData.PEER_ID);
+            this.tracker = new Tracker(torrent.getFiles(), torrent.getInfoHash(), BenchmarkData.PEER_ID);
+        }
+    }
+
+    @Benchmark
+    public BencodeData<Object> decodeTorrent(TorrentState state) throws IOException, BencodeException {
+        return Bencode.decode(ByteBuffer.wrap(state.torrent));
+    }
+
+    // Only tokenizes the torrent, used as a baseline for the decoders.
+    @Benchmark
+    public int skipTorrent(TorrentState state) throws IOException, BencodeException {
+        var reader = new BencodeReader(state.torrent);
+        reader.expect(BencodeEvent.START_DICT);
+        reader.skip();
+        return reader.getPosition();
+    }
+
+    @Benchmark
+    public Torrent createTorrent(TorrentState state) throws IOException, BencodeException, NoSuchAlgorithmException {
+        return new Torrent(ByteBuffer.wrap(state.torrent), BenchmarkData.PEER_ID);
+    }
+
+    @Benchmark
+    public byte[] encodeTorrent(TorrentState state) throws BencodeException {
+        return Bencode.encode(state.decoded);
+    }
+
+    @Benchmark
+    public void encodeTorrentToStream(TorrentState state) throws BencodeException, IOException {
+        Bencode.encode(state.decoded, NULL_STREAM);
+    }
+
+    @Benchmark
+    public BencodeData<Object> decodeTrackerResponse(TrackerState state) throws IOException, BencodeException {
+        return Bencode.decode(ByteBuffer.wrap(state.response));
+    }
+
+    @Benchmark
+    public Tracker updateFromTrackerResponse(TrackerState state) throws IOException, BencodeException {
+        state.tracker.updateFromResponse(new ByteArrayInputStream(state.response));
+        return state.tracker;
+    }
+}
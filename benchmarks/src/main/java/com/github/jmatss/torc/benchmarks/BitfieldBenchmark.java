@@ -0,0 +1,87 @@
+package com.github.jmatss.torc.benchmarks;
+
+import com.github.jmatss.torc.bittorrent.Bitfield;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Setting, reading and scanning a Bitfield with the amount of pieces of a
+ * small and a large torrent.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BitfieldBenchmark {
+    @Param({"256", "16384"})
+    public int amountOfPieces;
+
+    private Bitfield empty;
+    private Bitfield half;
+    private Bitfield almostFull;
+
+    @Setup
+    public void setUp() {
+        this.empty = new Bitfield(this.amountOfPieces);
+        this.half = new Bitfield(this.amountOfPieces);
+        this.almostFull = new Bitfield(this.amountOfPieces);
+        for (int i = 0; i < this.amountOfPieces; i++) {
+            if (i % 2 == 0)
+                this.half.set(i);
+            if (i != this.amountOfPieces - 1)
+                this.almostFull.set(i);
+        }
+    }
+
+    // Sets and clears every piece.
+    @Benchmark
+    public Bitfield setAndUnSetAll() {
+        for (int i = 0; i < this.amountOfPieces; i++)
+            this.empty.set(i);
+        for (int i = 0; i < this.amountOfPieces; i++)
+            this.empty.unSet(i);
+        return this.empty;
+    }
+
+    // Counts the set pieces by checking every piece.
+    @Benchmark
+    public int isSetAll() {
+        int count = 0;
+        for (int i = 0; i < this.amountOfPieces; i++) {
+            if (this.half.isSet(i))
+                count++;
+        }
+        return count;
+    }
+
+    // Finds the only missing piece, the worst case when looking for a piece to download.
+    @Benchmark
+    public int scanForClearBit() {
+        for (int i = 0; i < this.amountOfPieces; i++) {
+            if (!this.almostFull.isSet(i))
+                return i;
+        }
+        return -1;
+    }
+
+    // Same as `isSetAll`, but with the tracked amount of set pieces.
+    @Benchmark
+    public int cardinality() {
+        return this.half.cardinality();
+    }
+
+    // Same as `scanForClearBit`, but a word at a time.
+    @Benchmark
+    public int nextClearBit() {
+        return this.almostFull.nextClearBit(0);
+    }
+
+    // Checks if a peer with `half` has a piece that `almostFull` is missing, i.e. an interest check.
+    @Benchmark
+    public boolean hasPieceNotIn() {
+        return this.half.hasPieceNotIn(this.almostFull);
+    }
+}
@@ -0,0 +1,118 @@
+package com.github.jmatss.torc.benchmarks;
+
+import com.github.jmatss.torc.bencode.BencodeException;
+import com.github.jmatss.torc.bittorrent.InfoHash;
+import com.github.jmatss.torc.bittorrent.PieceHashes;
+import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.storage.PieceHasher;
+import com.github.jmatss.torc.storage.WriteCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SHA-1 hashing: calculating the info hash of a torrent and verifying a
+ * downloaded piece against the hash found in the metainfo.
+ *
+ * The pieces are verified the same way as the WriteCache does it: the blocks
+ * are added in order to a PieceHasher and the digest is compared with
+ * PieceHashes.matches.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+    @State(Scope.Benchmark)
+    public static class InfoState {
+        private ByteBuffer infoDictionary;
+
+        @Setup
+        public void setUp() throws IOException, BencodeException, NoSuchAlgorithmException {
+            // The info dictionary of a 4 GiB torrent with 200 files (~340 KiB).
+            byte[] torrentBytes = BenchmarkData.torrent(16384, 200, 1 << 18);
+            var torrent = new Torrent(ByteBuffer.wrap(torrentBytes), BenchmarkData.PEER_ID);
+            int start = indexOf(torrentBytes, "4:infod") + "4:info".length();
+            this.infoDictionary = ByteBuffer.wrap(torrentBytes, start, torrentBytes.length - start - 1).slice();
+            if (!new InfoHash(this.infoDictionary.duplicate()).equals(torrent.getInfoHash()))
+                throw new IllegalStateException("Incorrect info dictionary extracted.");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PieceState {
+        // Common piece lengths: 16 KiB (one block), 256 KiB and 4 MiB.
+        @Param({"16384", "262144", "4194304"})
+        public int pieceLength;
+
+        private ByteBuffer piece;
+        private ByteBuffer directPiece;
+        private PieceHashes hashes;
+        private PieceHashes directHashes;
+
+        @Setup
+        public void setUp() throws NoSuchAlgorithmException {
+            byte[] bytes = BenchmarkData.randomBytes(this.pieceLength);
+            this.piece = ByteBuffer.wrap(bytes);
+            this.directPiece = ByteBuffer.allocateDirect(this.pieceLength);
+            this.directPiece.put(bytes).flip();
+
+            // The direct hashes corresponds to the "pieces" field of a memory-mapped .torrent file.
+            byte[] digest = MessageDigest.getInstance(InfoHash.HASH_ALGORITHM).digest(bytes);
+            this.hashes = PieceHashes.copyOf(ByteBuffer.wrap(digest));
+            ByteBuffer directDigest = ByteBuffer.allocateDirect(digest.length);
+            directDigest.put(digest).flip();
+            this.directHashes = PieceHashes.viewOf(directDigest);
+        }
+    }
+
+    private static int indexOf(byte[] haystack, String needle) {
+        byte[] n = needle.getBytes();
+        outer:
+        for (int i = 0; i <= haystack.length - n.length; i++) {
+            for (int j = 0; j < n.length; j++) {
+                if (haystack[i + j] != n[j])
+                    continue outer;
+            }
+            return i;
+        }
+        throw new IllegalStateException("\"" + needle + "\" not found.");
+    }
+
+    /**
+     * Hashes the piece block by block and compares the digest with the hash
+     * of the piece.
+     */
+    private static boolean verify(ByteBuffer piece, int pieceLength, PieceHashes hashes) {
+        try (var hasher = new PieceHasher(pieceLength)) {
+            ByteBuffer block = piece.duplicate();
+            for (int offset = 0; offset < pieceLength; offset += WriteCache.BLOCK_LENGTH) {
+                block.limit(Math.min(offset + WriteCache.BLOCK_LENGTH, pieceLength)).position(offset);
+                hasher.update(offset, block);
+            }
+            return hashes.matches(0, hasher.digest());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public InfoHash infoHash(InfoState state) throws NoSuchAlgorithmException {
+        return new InfoHash(state.infoDictionary.duplicate());
+    }
+
+    @Benchmark
+    public boolean verifyPiece(PieceState state) {
+        return verify(state.piece, state.pieceLength, state.hashes);
+    }
+
+    @Benchmark
+    public boolean verifyDirectPiece(PieceState state) {
+        return verify(state.directPiece, state.pieceLength, state.directHashes);
+    }
+}
@@ -2,12 +2,23 @@ package com.github.jmatss.torc;
 
 import com.github.jmatss.torc.bittorrent.InfoHash;
 import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.handler.PeerEngine;
 import com.github.jmatss.torc.handler.TorrentHandler;
+import com.github.jmatss.torc.handler.TorrentHandlerFactory;
+import com.github.jmatss.torc.storage.DiskIoService;
+import com.github.jmatss.torc.storage.ResumeData;
 import com.github.jmatss.torc.util.LockableHashMap;
 import com.github.jmatss.torc.util.com.ComMessage;
 import com.github.jmatss.torc.util.com.ComPropertyType;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
@@ -22,11 +33,19 @@ public class Controller {
     public static final Logger LOGGER = Logger.getLogger(Controller.class.getName());
     // TODO: remove this temp download root path
     private static final String DOWNLOAD_ROOT_PATH = "";
+    // Directory inside the root path where the resume data of the torrents are stored.
+    private static final String RESUME_DIRECTORY = ".resume";
 
     private final ExecutorService executor;
+    // Disk I/O is done on threads of its own, separate from `executor`.
+    private final DiskIoService diskIo;
+    // The connections to the peers of all torrents are run on the event loops of this engine.
+    private final PeerEngine peerEngine;
 
     private final String rootPath;
+    private final Path resumeDirectory;
     private final byte[] peerId;
+    private final TorrentHandlerFactory torrentHandlerFactory;
 
     // Buffers messages sent to this controller from either the View or a TorrentHandler.
     private final BlockingQueue<ComMessage> messageBuffer;
@@ -37,9 +56,22 @@ public class Controller {
     Controller(BlockingQueue<ComMessage> sendToView, BlockingQueue<ComMessage> receiver) {
         int processors = Runtime.getRuntime().availableProcessors();
         this.executor = Executors.newFixedThreadPool(processors);
+        this.diskIo = new DiskIoService();
+        try {
+            this.peerEngine = new PeerEngine();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to start the peer engine.", e);
+        }
+        try {
+            this.peerEngine.listen(new InetSocketAddress(Torrent.PORT));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to listen on port " + Torrent.PORT + ": " + e.getMessage());
+        }
 
         this.rootPath = DOWNLOAD_ROOT_PATH;
+        this.resumeDirectory = Paths.get(this.rootPath, RESUME_DIRECTORY);
         this.peerId = newPeerId();
+        this.torrentHandlerFactory = new TorrentHandlerFactory(this.diskIo, this.peerEngine);
 
         this.messageBuffer = new ArrayBlockingQueue<>(QUEUE_SIZE);
 
@@ -50,9 +82,12 @@ public class Controller {
     public List<Runnable> shutdown() {
         try (var ignored = this.torrentHandlers.lock()) {
             for (TorrentHandler handler : this.torrentHandlers.values()) {
-                //handler.shutdown();
+                handler.shutdown();
+                this.saveResumeData(handler);
             }
         }
+        this.peerEngine.close();
+        this.diskIo.close();
         // TODO: maybe return exception instead of empty list.
         if (this.executor.isShutdown())
             return Collections.emptyList();
@@ -136,9 +171,68 @@ public class Controller {
         return peerId.array();
     }
 
-    // TODO: implement logic for fetching torrent from previous session.
-    //  Currently only returns an empty HashMap.
+    /**
+     * Writes the resume data of the torrent of the given handler to the resume
+     * directory. The handler should be shut down first, the shutdown flushes
+     * the write cache through the disk I/O service so that the blocks of the
+     * partially downloaded pieces are on disk and can be saved.
+     *
+     * @param handler the handler of the torrent.
+     */
+    private void saveResumeData(TorrentHandler handler) {
+        var torrent = handler.getTorrent();
+        if (torrent.getMetainfoPath() == null)
+            return;
+
+        try {
+            var partialPieces = this.diskIo.getWriteCache().getPartialPieces(torrent.getInfoHash());
+            var resumeData = ResumeData.create(torrent, handler.getDirectory(), partialPieces);
+            resumeData.write(this.resumeDirectory.resolve(torrent.getInfoHash() + ResumeData.FILE_EXTENSION));
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Unable to save resume data of " + torrent.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates torrent handlers for all torrents from the previous session that
+     * have resume data saved in the resume directory. Torrents whose files are
+     * unchanged since the resume data was saved get their bitfields, and the
+     * blocks of their partially downloaded pieces, restored without any
+     * hashing, a recheck is queued to the handlers of the other torrents.
+     *
+     * @return the handlers of the torrents from the previous session.
+     */
     private LockableHashMap<InfoHash, TorrentHandler> fetchTorrentsFromDisk() {
-        return new LockableHashMap<>();
+        var handlers = new LockableHashMap<InfoHash, TorrentHandler>();
+        if (!Files.isDirectory(this.resumeDirectory))
+            return handlers;
+
+        String glob = "*" + ResumeData.FILE_EXTENSION;
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(this.resumeDirectory, glob)) {
+            for (Path path : paths) {
+                try {
+                    var resumeData = ResumeData.read(path);
+                    var torrent = new Torrent(resumeData.getMetainfoPath().toString(), this.peerId);
+                    boolean restored = resumeData.restore(torrent, this.diskIo.getWriteCache());
+
+                    var handler = this.torrentHandlerFactory.getTorrentHandler(
+                            torrent,
+                            resumeData.getDirectory(),
+                            this.messageBuffer
+                    );
+                    // The data on disk is verified instead of being downloaded again.
+                    if (!restored) {
+                        LOGGER.log(Level.INFO, "Files of " + torrent.getName() + " have changed, rechecking.");
+                        handler.sendMessage(ComMessage.recheck(torrent.getInfoHash()));
+                    }
+                    handlers.put(torrent.getInfoHash(), handler);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Unable to resume torrent from " + path + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Unable to read the resume directory: " + e.getMessage());
+        }
+        return handlers;
     }
 }
@@ -3,6 +3,12 @@ package com.github.jmatss.torc.bencode;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
 
 /**
@@ -14,6 +20,10 @@ import java.util.Map;
  * list       <=> List<BencodeDataObject>
  * string     <=> BencodeString (contains both the original bytes and a utf-8 string)
  * number     <=> long
+ *
+ * When decoding from a ByteBuffer, all decoded BencodeStrings are views into
+ * that buffer, so the bytes aren't copied. This also applies to memory-mapped
+ * files, see `map(Path)`.
  */
 public class Bencode {
     public static final String ENCODING = "utf-8";
@@ -28,7 +38,49 @@ public class Bencode {
      * @throws BencodeException if a invalid BencodeType is found.
      */
     public static byte[] encode(BencodeData<Object> data) throws BencodeException {
-        return BencodeEncode.encodeRecursive(data);
+        return BencodeEncode.toBytes(data);
+    }
+
+    /**
+     * Encodes the given BencodeData straight into the given OutputStream in a
+     * single pass. The OutputStream itself is not flushed.
+     *
+     * @param data         the data to be encoded.
+     * @param outputStream the stream to write the encoded data to.
+     * @throws BencodeException if a invalid BencodeType is found.
+     * @throws IOException      if unable to write to `outputStream`.
+     */
+    public static void encode(BencodeData<Object> data, OutputStream outputStream)
+    throws BencodeException, IOException {
+        BencodeEncode.encodeTo(data, outputStream);
+    }
+
+    /**
+     * Encodes the given BencodeData straight into the given WritableByteChannel
+     * in a single pass. The channel must be blocking, a non-blocking channel
+     * would have to be waited on with a selector when it is full.
+     *
+     * @param data    the data to be encoded.
+     * @param channel the blocking channel to write the encoded data to.
+     * @throws BencodeException         if a invalid BencodeType is found.
+     * @throws IOException              if unable to write to `channel`.
+     * @throws IllegalArgumentException if `channel` is a SelectableChannel in non-blocking mode.
+     */
+    public static void encode(BencodeData<Object> data, WritableByteChannel channel)
+    throws BencodeException, IOException {
+        BencodeEncode.encodeTo(data, channel);
+    }
+
+    /**
+     * Calculates the length of the given BencodeData when it is encoded
+     * without encoding it.
+     *
+     * @param data the data to calculate the encoded length of.
+     * @return the amount of bytes of the encoded data.
+     * @throws BencodeException if a invalid BencodeType is found.
+     */
+    public static long encodedLength(BencodeData<Object> data) throws BencodeException {
+        return BencodeEncode.calculateLength(data);
     }
 
     /**
@@ -59,6 +111,89 @@ public class Bencode {
         return new BencodeDecode(inputStream).getDictionary();
     }
 
+    /**
+     * Decodes the data from the given ByteBuffer. The decoded strings are views
+     * into the `buffer`, so the `buffer` must not be modified while the decoded
+     * data is in use. The position of the `buffer` will be moved to the end of
+     * the decoded data.
+     *
+     * @param buffer the data to be decoded.
+     * @return the decoded data as a BencodeData object.
+     * @throws BencodeException if a invalid BencodeType is found.
+     * @throws IOException      if "utf-8" isn't supported on this platform.
+     * @throws EOFException     if EOF reached unexpectedly.
+     */
+    public static BencodeData<Object> decode(ByteBuffer buffer)
+    throws BencodeException, IOException, EOFException {
+        return new BencodeDecode(buffer).getNext();
+    }
+
+    /**
+     * Decodes the data from the given ByteBuffer, see `decode(ByteBuffer)`.
+     * If `keepRaw` is true, every decoded dictionary also keeps a view of the
+     * exact bytes it was decoded from, see `BencodeData.getRaw()`.
+     *
+     * @param buffer  the data to be decoded.
+     * @param keepRaw true if the decoded dictionaries should keep their raw bytes.
+     * @return the decoded data as a BencodeData object.
+     * @throws BencodeException if a invalid BencodeType is found.
+     * @throws IOException      if "utf-8" isn't supported on this platform.
+     * @throws EOFException     if EOF reached unexpectedly.
+     */
+    public static BencodeData<Object> decode(ByteBuffer buffer, boolean keepRaw)
+    throws BencodeException, IOException, EOFException {
+        return new BencodeDecode(buffer, keepRaw).getNext();
+    }
+
+    /**
+     * Decodes the data from the given ByteBuffer as a map/dictionary. The decoded
+     * strings are views into the `buffer`, so the `buffer` must not be modified
+     * while the decoded data is in use.
+     *
+     * @param buffer the data to be decoded.
+     * @return the decoded data as a map.
+     * @throws BencodeException if a invalid BencodeType is found.
+     * @throws IOException      if "utf-8" isn't supported on this platform.
+     * @throws EOFException     if EOF reached unexpectedly.
+     */
+    public static Map<BencodeString, BencodeData<Object>> decodeDictionary(ByteBuffer buffer)
+    throws BencodeException, IOException, EOFException {
+        return new BencodeDecode(buffer).getDictionary();
+    }
+
+    /**
+     * Decodes the data from the given ByteBuffer as a map/dictionary, see
+     * `decodeDictionary(ByteBuffer)`. If `keepRaw` is true, every nested
+     * dictionary also keeps a view of the exact bytes it was decoded from.
+     *
+     * @param buffer  the data to be decoded.
+     * @param keepRaw true if the decoded dictionaries should keep their raw bytes.
+     * @return the decoded data as a map.
+     * @throws BencodeException if a invalid BencodeType is found.
+     * @throws IOException      if "utf-8" isn't supported on this platform.
+     * @throws EOFException     if EOF reached unexpectedly.
+     */
+    public static Map<BencodeString, BencodeData<Object>> decodeDictionary(ByteBuffer buffer, boolean keepRaw)
+    throws BencodeException, IOException, EOFException {
+        return new BencodeDecode(buffer, keepRaw).getDictionary();
+    }
+
+    /**
+     * Memory-maps the file at the given `path` as read-only. The returned buffer
+     * can be given to `decode(ByteBuffer)` to decode the file without copying
+     * its contents to the heap.
+     *
+     * @param path the file to map.
+     * @return a read-only buffer containing the contents of the file.
+     * @throws IOException if unable to open or map the file.
+     */
+    public static ByteBuffer map(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
     /**
      * Helper function to convert a byte to a character and at the same time prevent
      * sign extension.
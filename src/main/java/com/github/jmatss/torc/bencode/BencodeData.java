@@ -1,5 +1,7 @@
 package com.github.jmatss.torc.bencode;
 
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 
@@ -7,15 +9,58 @@ public class BencodeData<T> {
     private final BencodeType type;
     private final T value;
 
+    // The exact encoded bytes that this data was decoded from. Only set for
+    // dictionaries that are decoded from a buffer with `keepRaw`, null otherwise.
+    private final ByteBuffer raw;
+
     BencodeData(BencodeType bencodeType, T value) {
+        this(bencodeType, value, null);
+    }
+
+    BencodeData(BencodeType bencodeType, T value, ByteBuffer raw) {
         this.type = bencodeType;
         this.value = value;
+        this.raw = raw;
+    }
+
+    // Factories used to build data that is to be encoded, see `Bencode.encode(...)`.
+
+    public static BencodeData<Object> ofNumber(long number) {
+        return new BencodeData<>(BencodeType.NUMBER, number);
+    }
+
+    public static BencodeData<Object> ofString(BencodeString string) {
+        return new BencodeData<>(BencodeType.STRING, string);
+    }
+
+    public static BencodeData<Object> ofBytes(byte[] bytes) throws UnsupportedEncodingException {
+        return new BencodeData<>(BencodeType.STRING, new BencodeString(bytes, Bencode.ENCODING));
+    }
+
+    public static BencodeData<Object> ofList(List<BencodeData<Object>> list) {
+        return new BencodeData<>(BencodeType.LIST, list);
+    }
+
+    public static BencodeData<Object> ofDictionary(Map<BencodeString, BencodeData<Object>> dictionary) {
+        return new BencodeData<>(BencodeType.DICTIONARY, dictionary);
     }
 
     public BencodeType getType() {
         return this.type;
     }
 
+    /**
+     * Returns the exact bytes that this data was decoded from. This can be
+     * used to hash a decoded dictionary without re-encoding it, which also
+     * gives the correct result for data that isn't canonically encoded.
+     *
+     * @return a read-only view of the encoded bytes of this data, or null if
+     *         this data isn't a dictionary decoded from a buffer with `keepRaw`.
+     */
+    public ByteBuffer getRaw() {
+        return this.raw == null ? null : this.raw.duplicate();
+    }
+
     private T getValue() {
         return this.value;
     }
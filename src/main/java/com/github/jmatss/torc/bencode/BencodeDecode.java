@@ -8,16 +8,33 @@ import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
- * Class to decode bencode-encoded data.
+ * Class to decode bencode-encoded data. Builds a tree of BencodeData from the
+ * tokens returned by a BencodeReader.
  */
 class BencodeDecode extends Bencode {
     /**
-     * Contains the bytes of the contents to decode.
+     * Reads the tokens of the contents to decode. All decoded strings are
+     * views into the buffer of the reader.
      */
-    private ByteBuffer buffer;
+    private final BencodeReader reader;
+
+    // If true: every decoded dictionary keeps a view of the bytes it was decoded from.
+    private final boolean keepRaw;
+
+    /**
+     * Decodes the data between the current position and the limit of the given
+     * buffer. The position of the buffer is moved forward as data is decoded.
+     *
+     * @param buffer  the data to decode.
+     * @param keepRaw true if the decoded dictionaries should keep their raw bytes, see `BencodeData.getRaw()`.
+     */
+    protected BencodeDecode(ByteBuffer buffer, boolean keepRaw) {
+        this.reader = new BencodeReader(buffer);
+        this.keepRaw = keepRaw;
+    }
 
     protected BencodeDecode(ByteBuffer buffer) {
-        this.buffer = buffer;
+        this(buffer, false);
     }
 
     protected BencodeDecode(byte[] fileContent) {
@@ -28,36 +45,6 @@ class BencodeDecode extends Bencode {
         this(inputStream.readAllBytes());
     }
 
-    /**
-     * Used to see what type the next "structure" is (dict, list, string or integer).
-     *
-     * @return the BencodeType of the next structure.
-     * @throws EOFException     if this function is called when there are no more data to decode.
-     * @throws BencodeException if the given bencoded data has incorrect format.
-     */
-    protected BencodeType getNextType() throws EOFException, BencodeException {
-        if (!this.buffer.hasRemaining()) {
-            throw new EOFException();
-        }
-
-        int oldPosition = this.buffer.position();
-
-        byte nextTypeByte = this.buffer.get();
-        char nextTypeChar = super.byteToChar(nextTypeByte);
-
-        BencodeType nextType = BencodeType.valueOf(nextTypeChar);
-        if (nextType == null) {
-            String msg = "Incorrect format of bencoded data.";
-            msg += " Expected BencodeType, got(int): " + (int)nextTypeChar;
-            throw new BencodeException(msg);
-        }
-
-        // Reset position so that the next "read" of the buffer starts at the correct position.
-        this.buffer.position(oldPosition);
-
-        return nextType;
-    }
-
     /**
      * Gets the next bencode "structure" (dict, list, string or integer).
      *
@@ -68,142 +55,87 @@ class BencodeDecode extends Bencode {
      */
     protected BencodeData<Object> getNext()
     throws EOFException, BencodeException, UnsupportedEncodingException {
-        Object value;
-        BencodeType type = getNextType();
+        return this.getValue(this.reader.next());
+    }
 
-        switch (type) {
+    /**
+     * Returns the value starting at the token that the reader currently
+     * is positioned at.
+     *
+     * @param event the event of the current token.
+     * @return the value wrapped inside a BencodeResult.
+     * @throws EOFException                 if EOF reached unexpectedly.
+     * @throws BencodeException             if the given bencoded data has incorrect format.
+     * @throws UnsupportedEncodingException if utf-8 isn't supported.
+     */
+    private BencodeData<Object> getValue(BencodeEvent event)
+    throws EOFException, BencodeException, UnsupportedEncodingException {
+        switch (event) {
             case NUMBER:
-                value = getNumber();
-                break;
-
-            case LIST:
-                value = getList();
-                break;
-
-            case DICTIONARY:
-                value = getDictionary();
-                break;
+                return new BencodeData<>(BencodeType.NUMBER, this.reader.getNumber());
 
             case STRING:
-                value = getString();
-                break;
+                return new BencodeData<>(BencodeType.STRING, this.reader.getBencodeString());
 
-            default:
-                throw new BencodeException("Parsed incorrect BencodeType: \"" + type + "\".");
-        }
+            case START_LIST:
+                return new BencodeData<>(BencodeType.LIST, this.getList());
 
-        return new BencodeData<>(type, value);
-    }
+            case START_DICT:
+                if (!this.keepRaw)
+                    return new BencodeData<>(BencodeType.DICTIONARY, this.getDictionaryContents());
 
-    /**
-     * Returns the next bencode structure which is assumed to be a String.
-     * 
-     * @return the bencode string.
-     * @throws BencodeException             if unable to parse string length.
-     * @throws UnsupportedEncodingException if "utf-8" isn't supported on this platform.
-     */
-    private BencodeString getString() throws BencodeException, UnsupportedEncodingException {
-        StringBuilder stringLengthBuf = new StringBuilder();
-
-        // Iterate through all digits until a "string separator" is found
-        // and add all digits into the `stringLengthBuf` buffer.
-        byte currentByte = this.buffer.get();
-        char currentChar = super.byteToChar(currentByte);
-        while (currentChar != STRING_SEPARATOR) {
-            if (!Character.isDigit(currentChar)) {
-                String msg = "Received non digit character while parsing string length: ";
-                throw new BencodeException(msg + currentChar);
-            }
-
-            stringLengthBuf.append(currentChar);
-
-            currentByte = this.buffer.get();
-            currentChar = super.byteToChar(currentByte);
-        }
+                int start = this.reader.getTokenPosition();
+                var dictionary = this.getDictionaryContents();
+                var raw = this.reader.getRaw(start, this.reader.getPosition());
+                return new BencodeData<>(BencodeType.DICTIONARY, dictionary, raw);
 
-        if (stringLengthBuf.length() == 0) {
-            String msg = "Received no digits while parsing string length.";
-            throw new BencodeException(msg);
+            default:
+                throw new BencodeException("Parsed incorrect BencodeEvent: \"" + event + "\".");
         }
-
-        // Parse the `stringLength` string into a int a get that amount
-        // of bytes from `this.buffer` which contains the string that
-        // is to be parsed.
-        int stringLength = Integer.parseInt(stringLengthBuf.toString());
-        byte[] bytes = new byte[stringLength];
-        this.buffer.get(bytes);
-
-        return new BencodeString(bytes, ENCODING);
     }
 
     /**
-     * Returns the next bencode structure which is assumed to be a Number.
-     * 
-     * @return the bencode number as a long.
+     * Returns the next bencode structure which is assumed to be a dictionary.
+     *
+     * @return the bencoded dictionary as a Map sorted by its keys.
+     * @throws EOFException                 if EOF reached unexpectedly.
+     * @throws BencodeException             if badly formatted bencoding is found.
+     * @throws UnsupportedEncodingException if "utf-8" isn't supported on this platform.
      */
-    private long getNumber() {
-        StringBuilder digits = new StringBuilder();
-
-        // "Remove" the first char which is assumes to be 'i'.
-        this.buffer.get();
-
-        // Iterate through all digits and add them to the `digits` variable 
-        // that will be converted to long before returning it.
-        byte currentByte = this.buffer.get();
-        char currentChar = super.byteToChar(currentByte);
-        while (Character.isDigit(currentChar)) {
-            digits.append(currentChar);
-
-            currentByte = this.buffer.get();
-            currentChar = super.byteToChar(currentByte);
-        }
-
-        // The last iteration of the while loop would have "removed" the ending
-        // 'e', so the position of `this.buffer` is correct.
-        return Long.parseLong(digits.toString());
+    protected BencodeDictionary getDictionary()
+    throws EOFException, BencodeException, UnsupportedEncodingException {
+        this.reader.expect(BencodeEvent.START_DICT);
+        return this.getDictionaryContents();
     }
 
     /**
-     * Returns the next bencode structure which is assumed to be a SortedMap.
-     * 
-     * @return the bencoded dictionary as a Map.
+     * Returns the contents of a dictionary. The reader is assumed to be
+     * positioned at the START_DICT token of the dictionary.
+     *
+     * @return the bencoded dictionary as a Map sorted by its keys.
      * @throws EOFException                 if EOF reached unexpectedly.
      * @throws BencodeException             if badly formatted bencoding is found.
      * @throws UnsupportedEncodingException if "utf-8" isn't supported on this platform.
      */
-    protected SortedMap<BencodeString, BencodeData<Object>> getDictionary()
+    private BencodeDictionary getDictionaryContents()
     throws EOFException, BencodeException, UnsupportedEncodingException {
-        var resultMap = new TreeMap<BencodeString, BencodeData<Object>>();
-
-        // "Remove" the first char which is assumes to be 'd'.
-        this.buffer.get();
+        var resultMap = new BencodeDictionary();
 
         // Iterate through all key-value pairs in the dictionary and add to
-        // the `resultMap`. According to the bencode standard, the keys must
-        // be valid bencode strings.
-        BencodeType nextType = this.getNextType();
-        while (nextType != BencodeType.END) {
-            if (nextType != BencodeType.STRING) {
-                String msg = "Received a non String key for a dictionary: ";
-                throw new BencodeException(msg + nextType);
-            }
-
-            BencodeString key = this.getString();
+        // the `resultMap`. The reader makes sure that all keys are strings.
+        while (this.reader.next() != BencodeEvent.END) {
+            BencodeString key = this.reader.getBencodeString();
             BencodeData<Object> value = this.getNext();
             resultMap.put(key, value);
-
-            nextType = this.getNextType();
         }
 
-        // "Remove" the ending 'e'.
-        this.buffer.get();
-
         return resultMap;
     }
 
     /**
-     * Returns the next bencode structure which is assumed to be a List.
-     * 
+     * Returns the contents of a list. The reader is assumed to be positioned
+     * at the START_LIST token of the list.
+     *
      * @return the bencoded List.
      * @throws EOFException                 if EOF reached unexpectedly.
      * @throws BencodeException             if badly formatted bencoding is found.
@@ -211,23 +143,15 @@ class BencodeDecode extends Bencode {
      */
     private List<BencodeData<Object>> getList()
     throws EOFException, BencodeException, UnsupportedEncodingException {
-        // "Remove" the first char which is assumes to be 'l'.
-        this.buffer.get();
-
         var resultList = new ArrayList<BencodeData<Object>>();
 
         // Iterate through all values in the list which can be of any type.
-        BencodeType nextType = this.getNextType();
-        while (nextType != BencodeType.END) {
-            BencodeData<Object> value = this.getNext();
-            resultList.add(value);
-
-            nextType = this.getNextType();
+        BencodeEvent event = this.reader.next();
+        while (event != BencodeEvent.END) {
+            resultList.add(this.getValue(event));
+            event = this.reader.next();
         }
 
-        // "Remove" the ending 'e'.
-        this.buffer.get();
-
         return resultList;
     }
 }
@@ -0,0 +1,230 @@
+package com.github.jmatss.torc.bencode;
+
+import java.util.*;
+
+/**
+ * A compact map used for decoded bencode dictionaries. The keys and values
+ * are stored in two flat arrays sorted by key, and lookups are done with a
+ * binary search. Compared to a TreeMap, no node objects are allocated for
+ * the entries and no pointers needs to be followed during a lookup.
+ *
+ * Since the entries always are sorted, iterating over the dictionary gives
+ * the canonical bencode order and it can be encoded without sorting.
+ * Decoded dictionaries have their keys in sorted order already, so they are
+ * appended to the end of the arrays without any shifting.
+ */
+public class BencodeDictionary extends AbstractMap<BencodeString, BencodeData<Object>> {
+    public static final int DEFAULT_CAPACITY = 8;
+
+    private BencodeString[] keys;
+    private Object[] values;
+    private int size;
+
+    public BencodeDictionary(int initialCapacity) {
+        this.keys = new BencodeString[Math.max(initialCapacity, 1)];
+        this.values = new Object[Math.max(initialCapacity, 1)];
+        this.size = 0;
+    }
+
+    public BencodeDictionary() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public BencodeDictionary(Map<BencodeString, BencodeData<Object>> map) {
+        this(map.size());
+        this.putAll(map);
+    }
+
+    /**
+     * Returns the index of the given key in the `keys` array. If the key
+     * can't be found, returns (-(insertion point) - 1) in the same way as
+     * `Arrays.binarySearch`.
+     *
+     * @param key the key to search for.
+     * @return the index of the key.
+     */
+    private int indexOf(BencodeString key) {
+        // Fast path for keys that are larger than all current keys,
+        // which is the case for all keys of a canonical dictionary.
+        if (this.size > 0 && key.compareTo(this.keys[this.size - 1]) > 0) {
+            return -(this.size + 1);
+        }
+        return Arrays.binarySearch(this.keys, 0, this.size, key);
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof BencodeString && this.indexOf((BencodeString) key) >= 0;
+    }
+
+    @Override
+    public BencodeData<Object> get(Object key) {
+        if (!(key instanceof BencodeString)) {
+            return null;
+        }
+
+        int index = this.indexOf((BencodeString) key);
+        return index >= 0 ? this.valueAt(index) : null;
+    }
+
+    @Override
+    public BencodeData<Object> put(BencodeString key, BencodeData<Object> value) {
+        if (key == null) {
+            throw new NullPointerException("Key of a BencodeDictionary can't be null.");
+        }
+
+        int index = this.indexOf(key);
+        if (index >= 0) {
+            BencodeData<Object> oldValue = this.valueAt(index);
+            this.values[index] = value;
+            return oldValue;
+        }
+
+        int insertionPoint = -(index + 1);
+        if (this.size == this.keys.length) {
+            int newCapacity = this.keys.length + (this.keys.length / 2) + 1;
+            this.keys = Arrays.copyOf(this.keys, newCapacity);
+            this.values = Arrays.copyOf(this.values, newCapacity);
+        }
+
+        int amountToMove = this.size - insertionPoint;
+        if (amountToMove > 0) {
+            System.arraycopy(this.keys, insertionPoint, this.keys, insertionPoint + 1, amountToMove);
+            System.arraycopy(this.values, insertionPoint, this.values, insertionPoint + 1, amountToMove);
+        }
+
+        this.keys[insertionPoint] = key;
+        this.values[insertionPoint] = value;
+        this.size++;
+        return null;
+    }
+
+    @Override
+    public BencodeData<Object> remove(Object key) {
+        if (!(key instanceof BencodeString)) {
+            return null;
+        }
+
+        int index = this.indexOf((BencodeString) key);
+        if (index < 0) {
+            return null;
+        }
+
+        BencodeData<Object> oldValue = this.valueAt(index);
+        this.removeAt(index);
+        return oldValue;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(this.keys, 0, this.size, null);
+        Arrays.fill(this.values, 0, this.size, null);
+        this.size = 0;
+    }
+
+    @Override
+    public Set<Entry<BencodeString, BencodeData<Object>>> entrySet() {
+        return new EntrySet();
+    }
+
+    @SuppressWarnings("unchecked")
+    private BencodeData<Object> valueAt(int index) {
+        return (BencodeData<Object>) this.values[index];
+    }
+
+    private void removeAt(int index) {
+        int amountToMove = this.size - index - 1;
+        if (amountToMove > 0) {
+            System.arraycopy(this.keys, index + 1, this.keys, index, amountToMove);
+            System.arraycopy(this.values, index + 1, this.values, index, amountToMove);
+        }
+
+        this.size--;
+        this.keys[this.size] = null;
+        this.values[this.size] = null;
+    }
+
+    // View of the entries in sorted key order.
+    private class EntrySet extends AbstractSet<Entry<BencodeString, BencodeData<Object>>> {
+        @Override
+        public int size() {
+            return BencodeDictionary.this.size;
+        }
+
+        @Override
+        public Iterator<Entry<BencodeString, BencodeData<Object>>> iterator() {
+            return new Iterator<>() {
+                private int index = 0;
+                private boolean canRemove = false;
+
+                @Override
+                public boolean hasNext() {
+                    return this.index < BencodeDictionary.this.size;
+                }
+
+                @Override
+                public Entry<BencodeString, BencodeData<Object>> next() {
+                    if (!this.hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    this.canRemove = true;
+                    return new IndexEntry(this.index++);
+                }
+
+                @Override
+                public void remove() {
+                    if (!this.canRemove) {
+                        throw new IllegalStateException();
+                    }
+                    this.canRemove = false;
+                    BencodeDictionary.this.removeAt(--this.index);
+                }
+            };
+        }
+    }
+
+    // An entry that reads and writes directly to the arrays of the dictionary.
+    private class IndexEntry implements Entry<BencodeString, BencodeData<Object>> {
+        private final int index;
+
+        IndexEntry(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public BencodeString getKey() {
+            return BencodeDictionary.this.keys[this.index];
+        }
+
+        @Override
+        public BencodeData<Object> getValue() {
+            return BencodeDictionary.this.valueAt(this.index);
+        }
+
+        @Override
+        public BencodeData<Object> setValue(BencodeData<Object> value) {
+            BencodeData<Object> oldValue = this.getValue();
+            BencodeDictionary.this.values[this.index] = value;
+            return oldValue;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> other = (Entry<?, ?>) o;
+            return Objects.equals(this.getKey(), other.getKey()) && Objects.equals(this.getValue(), other.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(this.getKey()) ^ Objects.hashCode(this.getValue());
+        }
+    }
+}
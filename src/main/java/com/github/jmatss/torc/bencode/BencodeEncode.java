@@ -1,92 +1,321 @@
 package com.github.jmatss.torc.bencode;
 
-import java.util.TreeMap;
-import com.github.jmatss.torc.util.DynamicByteBuffer;
+import com.github.jmatss.torc.util.BufferPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.SortedMap;
 
 /**
  * Class to encode data into bencode.
+ *
+ * The data is encoded in a single pass into a staging buffer that is flushed
+ * to the OutputStream/WritableByteChannel whenever it gets full. The staging
+ * buffer is acquired from the shared BufferPool. Strings that
+ * are larger than the staging buffer are written directly to the target.
+ * When encoding into a byte array, the exact length is calculated first so
+ * that the result can be written straight into an array of the correct size.
  */
 class BencodeEncode extends Bencode {
+    public static final int BUFFER_SIZE = 1 << 13;
+
+    // Max amount of characters needed to format a long (19 digits + sign).
+    private static final int MAX_NUMBER_LENGTH = 20;
+
+    private final ByteBuffer buffer;
+
+    // The target that `buffer` is flushed to. Either one of them is set or
+    // none of them, in which case the `buffer` itself is the target.
+    private final OutputStream outputStream;
+    private final WritableByteChannel channel;
+
+    // Scratch space used to format numbers without allocating.
+    private final byte[] digits;
+
+    private BencodeEncode(ByteBuffer buffer, OutputStream outputStream, WritableByteChannel channel) {
+        this.buffer = buffer;
+        this.outputStream = outputStream;
+        this.channel = channel;
+        this.digits = new byte[MAX_NUMBER_LENGTH];
+    }
+
     /**
      * Encodes the given BencodeData and returns the encoded data as an array
      * of bytes.
-     * 
+     *
      * @param data the data to be encoded.
      * @return the encoded data as an array of bytes.
+     * @throws BencodeException if a invalid BencodeType is found or if the
+     *                          encoded data is too large to fit in an array.
+     */
+    protected static byte[] toBytes(BencodeData<Object> data) throws BencodeException {
+        long length = calculateLength(data);
+        if (length > Integer.MAX_VALUE) {
+            throw new BencodeException("Encoded data too large to fit in an array: " + length);
+        }
+
+        byte[] result = new byte[(int)length];
+        var encoder = new BencodeEncode(ByteBuffer.wrap(result), null, null);
+        try {
+            encoder.write(data);
+        } catch (IOException e) {
+            // Should not be possible to end up here since there are no target to flush to.
+            throw new IllegalStateException("Got IOException while encoding into an array.", e);
+        }
+
+        return result;
+    }
+
+    /**
+     * Encodes the given BencodeData into the given OutputStream. The
+     * OutputStream itself is not flushed.
+     *
+     * @param data         the data to be encoded.
+     * @param outputStream the stream to write the encoded data to.
      * @throws BencodeException if a invalid BencodeType is found.
+     * @throws IOException      if unable to write to the `outputStream`.
      */
-    protected static byte[] encodeRecursive(BencodeData<Object> data)
-    throws BencodeException {
-        DynamicByteBuffer accumulatedResult = new DynamicByteBuffer();
-        return encodeRecursive(data, accumulatedResult);
+    protected static void encodeTo(BencodeData<Object> data, OutputStream outputStream)
+    throws BencodeException, IOException {
+        try (var pooled = BufferPool.HEAP.acquire(BUFFER_SIZE)) {
+            var encoder = new BencodeEncode(pooled.buffer(), outputStream, null);
+            encoder.write(data);
+            encoder.flush();
+        }
     }
 
     /**
-     * Encodes the given BencodeData recursively and returns the encoded data
-     * as an array of bytes.
-     * 
-     * @param data the data to be encoded.
-     * @param accumulatedResult accumulates encoded data during recursion.
-     * @return the encoded data as an array of bytes.
+     * Encodes the given BencodeData into the given blocking WritableByteChannel.
+     *
+     * @param data    the data to be encoded.
+     * @param channel the blocking channel to write the encoded data to.
+     * @throws BencodeException         if a invalid BencodeType is found.
+     * @throws IOException              if unable to write to the `channel`.
+     * @throws IllegalArgumentException if `channel` is a SelectableChannel in non-blocking mode.
+     */
+    protected static void encodeTo(BencodeData<Object> data, WritableByteChannel channel)
+    throws BencodeException, IOException {
+        // The writes are repeated until everything is written, which would spin on a full non-blocking channel.
+        if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+            throw new IllegalArgumentException("Can't encode to a channel in non-blocking mode.");
+        }
+
+        // A direct buffer can be written to the channel without being copied by the JDK first.
+        try (var pooled = BufferPool.DIRECT.acquire(BUFFER_SIZE)) {
+            var encoder = new BencodeEncode(pooled.buffer(), null, channel);
+            encoder.write(data);
+            encoder.flush();
+        }
+    }
+
+    /**
+     * Calculates the amount of bytes that the given BencodeData will have
+     * when it is encoded.
+     *
+     * @param data the data to calculate the encoded length of.
+     * @return the length of the encoded data.
      * @throws BencodeException if a invalid BencodeType is found.
      */
-    private static byte[] encodeRecursive(BencodeData<Object> data, DynamicByteBuffer accumulatedResult)
-    throws BencodeException {
+    protected static long calculateLength(BencodeData<Object> data) throws BencodeException {
         switch (data.getType()) {
             case NUMBER:
-                var number = data.getNumber();
+                return 2 + numberLength(data.getNumber());
+
+            case STRING:
+                return stringLength(data.getBencodeString());
+
+            case LIST:
+                long listLength = 2;
+                for (BencodeData<Object> item : data.getList()) {
+                    listLength += calculateLength(item);
+                }
+                return listLength;
+
+            case DICTIONARY:
+                long dictionaryLength = 2;
+                for (var dictionaryEntry : data.getDictionary().entrySet()) {
+                    dictionaryLength += stringLength(dictionaryEntry.getKey());
+                    dictionaryLength += calculateLength(dictionaryEntry.getValue());
+                }
+                return dictionaryLength;
+
+            default:
+                throw new BencodeException("Parsed incorrect BencodeType.");
+        }
+    }
+
+    private static long stringLength(BencodeString benString) {
+        return numberLength(benString.length()) + 1 + benString.length();
+    }
+
+    private static int numberLength(long number) {
+        int length = number < 0 ? 2 : 1;
+        // Divide a negative value so that Long.MIN_VALUE is handled correctly.
+        long value = number < 0 ? number : -number;
+        while (value <= -10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
 
-                accumulatedResult
-                    .put((byte)BencodeType.NUMBER.getChar())
-                    .putLongBytes(number)
-                    .put((byte)BencodeType.END.getChar());
+    /**
+     * Encodes the given BencodeData recursively into `this.buffer`.
+     *
+     * @param data the data to be encoded.
+     * @throws BencodeException if a invalid BencodeType is found.
+     * @throws IOException      if unable to flush to the target.
+     */
+    private void write(BencodeData<Object> data) throws BencodeException, IOException {
+        switch (data.getType()) {
+            case NUMBER:
+                this.putByte((byte)BencodeType.NUMBER.getChar());
+                this.putNumber(data.getNumber());
+                this.putByte((byte)BencodeType.END.getChar());
                 break;
 
             case STRING:
-                var benString = data.getBencodeString();
-
-                accumulatedResult
-                    .putIntBytes(benString.getBytes().length)
-                    .put((byte)STRING_SEPARATOR)
-                    .put(benString.getBytes());
+                this.putString(data.getBencodeString());
                 break;
 
             case LIST:
-                var list = data.getList();
-
-                accumulatedResult.put((byte)BencodeType.LIST.getChar());
-                for (BencodeData<Object> item : list) {
-                    encodeRecursive(item, accumulatedResult);
+                this.putByte((byte)BencodeType.LIST.getChar());
+                for (BencodeData<Object> item : data.getList()) {
+                    this.write(item);
                 }
-                accumulatedResult.put((byte)BencodeType.END.getChar());
+                this.putByte((byte)BencodeType.END.getChar());
                 break;
 
             case DICTIONARY:
-                var dictionary = data.getDictionary();
-
-                accumulatedResult.put((byte)BencodeType.DICTIONARY.getChar());
-
-                // Create a new TreeMap just to make sure that it is sorted
-                // correctly according to the keys in the map.
-                for (var dictionaryEntry : new TreeMap<>(dictionary).entrySet()) {
-                    // Need to convert the BencodeString `keyString` to
-                    // BencodeData before calling this function again
-                    // recursively since it expects BencodeData.
-                    BencodeString keyString = dictionaryEntry.getKey();
-                    BencodeData<Object> key = new BencodeData<>(BencodeType.STRING, keyString);
-                    BencodeData<Object> value = dictionaryEntry.getValue();
-
-                    encodeRecursive(key, accumulatedResult);
-                    encodeRecursive(value, accumulatedResult);
+                this.putByte((byte)BencodeType.DICTIONARY.getChar());
+                for (var dictionaryEntry : sortedEntries(data.getDictionary())) {
+                    this.putString(dictionaryEntry.getKey());
+                    this.write(dictionaryEntry.getValue());
                 }
-
-                accumulatedResult.put((byte) BencodeType.END.getChar());
+                this.putByte((byte)BencodeType.END.getChar());
                 break;
 
             default:
                 throw new BencodeException("Parsed incorrect BencodeType.");
         }
+    }
+
+    /**
+     * Returns the entries of the dictionary sorted by their keys. If the
+     * dictionary already is sorted by the natural order of the keys, the
+     * entries are returned as is without being copied.
+     *
+     * @param dictionary the dictionary to sort.
+     * @return the sorted entries.
+     */
+    private static Iterable<Map.Entry<BencodeString, BencodeData<Object>>> sortedEntries(
+            Map<BencodeString, BencodeData<Object>> dictionary
+    ) {
+        if (dictionary instanceof BencodeDictionary) {
+            return dictionary.entrySet();
+        } else if (dictionary instanceof SortedMap && ((SortedMap<?, ?>)dictionary).comparator() == null) {
+            return dictionary.entrySet();
+        }
+
+        var entries = new ArrayList<>(dictionary.entrySet());
+        entries.sort(Map.Entry.comparingByKey());
+        return entries;
+    }
 
-        return accumulatedResult.getBytes();
+    private void putString(BencodeString benString) throws IOException {
+        int length = benString.length();
+        this.putNumber(length);
+        this.putByte((byte)STRING_SEPARATOR);
+
+        // Large strings are written directly to the target instead of being
+        // copied through `this.buffer`.
+        if (length > this.buffer.capacity() && this.hasTarget()) {
+            this.flush();
+            this.writeToTarget(benString);
+            return;
+        }
+
+        int written = 0;
+        while (written < length) {
+            if (!this.buffer.hasRemaining()) {
+                this.flush();
+            }
+            int amount = Math.min(this.buffer.remaining(), length - written);
+            benString.copyTo(this.buffer, written, amount);
+            written += amount;
+        }
+    }
+
+    // Formats the number into `this.digits` from the end and then copies the
+    // digits into `this.buffer`.
+    private void putNumber(long number) throws IOException {
+        int position = this.digits.length;
+
+        // Use a negative value so that Long.MIN_VALUE is handled correctly.
+        long value = number < 0 ? number : -number;
+        do {
+            this.digits[--position] = (byte)('0' - (value % 10));
+            value /= 10;
+        } while (value != 0);
+
+        if (number < 0) {
+            this.digits[--position] = '-';
+        }
+
+        int length = this.digits.length - position;
+        if (this.buffer.remaining() < length) {
+            this.flush();
+        }
+        this.buffer.put(this.digits, position, length);
+    }
+
+    private void putByte(byte b) throws IOException {
+        if (!this.buffer.hasRemaining()) {
+            this.flush();
+        }
+        this.buffer.put(b);
+    }
+
+    private boolean hasTarget() {
+        return this.outputStream != null || this.channel != null;
+    }
+
+    /**
+     * Writes everything in `this.buffer` to the target and clears the buffer.
+     * Does nothing if there are no target, the buffer is then the target itself.
+     *
+     * @throws IOException if unable to write to the target.
+     */
+    private void flush() throws IOException {
+        if (!this.hasTarget()) {
+            return;
+        }
+
+        this.buffer.flip();
+        if (this.channel != null) {
+            while (this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+        } else {
+            this.outputStream.write(this.buffer.array(), this.buffer.arrayOffset(), this.buffer.limit());
+        }
+        this.buffer.clear();
+    }
+
+    // Writes the bytes of the string directly to the target.
+    private void writeToTarget(BencodeString benString) throws IOException {
+        if (this.channel != null) {
+            ByteBuffer source = benString.getBuffer();
+            while (source.hasRemaining()) {
+                this.channel.write(source);
+            }
+        } else {
+            benString.writeTo(this.outputStream);
+        }
     }
 }
@@ -0,0 +1,13 @@
+package com.github.jmatss.torc.bencode;
+
+/**
+ * Represents the events returned by a BencodeReader.
+ */
+public enum BencodeEvent {
+    START_DICT,
+    START_LIST,
+    KEY,
+    STRING,
+    NUMBER,
+    END
+}
@@ -0,0 +1,34 @@
+package com.github.jmatss.torc.bencode;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of interned dictionary keys. Keys used for lookups are created
+ * once and then shared, instead of allocating and encoding a new
+ * BencodeString every time a field is looked up.
+ *
+ * Example:
+ *     private static final BencodeString ANNOUNCE = BencodeKey.of("announce");
+ */
+public class BencodeKey {
+    private static final ConcurrentMap<String, BencodeString> keys = new ConcurrentHashMap<>();
+
+    private BencodeKey() {}
+
+    /**
+     * Returns the interned BencodeString for the given key. The same
+     * BencodeString instance is returned for every call with an equal key.
+     *
+     * @param key the key as a String.
+     * @return the key as a utf-8 encoded BencodeString.
+     */
+    public static BencodeString of(String key) {
+        BencodeString benString = keys.get(key);
+        if (benString == null) {
+            benString = keys.computeIfAbsent(key, k -> new BencodeString(k, StandardCharsets.UTF_8));
+        }
+        return benString;
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.jmatss.torc.bencode;
+
+/**
+ * Limits used when decoding bencode received from untrusted sources (ex.
+ * other peers), so that a hostile peer can't make this client allocate huge
+ * strings or recurse arbitrarily deep.
+ */
+public class BencodeLimits {
+    public static final int DEFAULT_MAX_DEPTH = 32;
+    public static final int DEFAULT_MAX_STRING_LENGTH = 1 << 20;    // 1 MiB
+    public static final int DEFAULT_MAX_ELEMENTS = 1 << 16;
+
+    public static final BencodeLimits DEFAULT = new BencodeLimits(
+            DEFAULT_MAX_DEPTH,
+            DEFAULT_MAX_STRING_LENGTH,
+            DEFAULT_MAX_ELEMENTS
+    );
+
+    // Max amount of nested lists/dictionaries.
+    private final int maxDepth;
+
+    // Max amount of bytes in a single string (keys included).
+    private final int maxStringLength;
+
+    // Max amount of values (keys included) in a single decoded structure.
+    private final int maxElements;
+
+    public BencodeLimits(int maxDepth, int maxStringLength, int maxElements) {
+        if (maxDepth < 0 || maxStringLength < 0 || maxElements < 1)
+            throw new IllegalArgumentException("Limits must be positive.");
+
+        this.maxDepth = maxDepth;
+        this.maxStringLength = maxStringLength;
+        this.maxElements = maxElements;
+    }
+
+    public int getMaxDepth() {
+        return this.maxDepth;
+    }
+
+    public int getMaxStringLength() {
+        return this.maxStringLength;
+    }
+
+    public int getMaxElements() {
+        return this.maxElements;
+    }
+}
@@ -0,0 +1,302 @@
+package com.github.jmatss.torc.bencode;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Resumable decoder for bencoded data that arrives in chunks, ex. from a
+ * non-blocking socket. Every chunk is given to `feed(ByteBuffer)` as soon as
+ * it is received and the decoder continues from where the previous chunk
+ * ended, so the whole message never has to be buffered before decoding.
+ *
+ * The decoder enforces the given BencodeLimits while decoding. String lengths
+ * are checked before anything is allocated, so a hostile peer can't make this
+ * client allocate more than `maxStringLength` bytes for a single string.
+ *
+ * Example:
+ *     var decoder = new BencodePushDecoder(limits);
+ *     // Called every time that data is read from the channel.
+ *     if (decoder.feed(buffer)) {
+ *         BencodeData<Object> result = decoder.getResult();
+ *         decoder.reset();
+ *         // The bytes after the decoded value are left in `buffer`.
+ *     }
+ *
+ * Unlike BencodeDecode, the decoded strings are copies and not views into the
+ * fed buffers (since the buffers are reused between reads), and the raw bytes
+ * of dictionaries aren't available.
+ */
+public class BencodePushDecoder {
+    private enum State {
+        TYPE,           // Expecting the type of the next value or an END.
+        NUMBER,         // Reading the digits of a number.
+        STRING_LENGTH,  // Reading the digits of the length of a string.
+        STRING_BYTES,   // Reading the bytes of a string.
+        DONE            // A complete value have been decoded.
+    }
+
+    // A list/dictionary that is currently being decoded. `key` is set when
+    // a key of a dictionary has been decoded but its value hasn't.
+    private static class Container {
+        private final List<BencodeData<Object>> list;
+        private final BencodeDictionary dictionary;
+        private BencodeString key;
+
+        private Container(List<BencodeData<Object>> list, BencodeDictionary dictionary) {
+            this.list = list;
+            this.dictionary = dictionary;
+            this.key = null;
+        }
+    }
+
+    private final BencodeLimits limits;
+    private final Deque<Container> containers;
+
+    private State state;
+    private int elements;
+    private BencodeData<Object> result;
+
+    // State of the number/string that is currently being decoded.
+    private boolean negative;
+    private int amountOfDigits;
+    private long number;
+    private byte[] string;
+    private int stringPosition;
+
+    public BencodePushDecoder(BencodeLimits limits) {
+        this.limits = limits;
+        this.containers = new ArrayDeque<>();
+        this.reset();
+    }
+
+    public BencodePushDecoder() {
+        this(BencodeLimits.DEFAULT);
+    }
+
+    /**
+     * Clears the state of this decoder so that it can decode a new value.
+     */
+    public void reset() {
+        this.containers.clear();
+        this.state = State.TYPE;
+        this.elements = 0;
+        this.result = null;
+        this.string = null;
+    }
+
+    /**
+     * Decodes the bytes between the position and limit of the given buffer.
+     * Decoding stops as soon as a complete value has been decoded, any bytes
+     * after the value are left in the buffer. If the buffer runs out before
+     * the value is complete, this decoder remembers its state and continues
+     * with the next call.
+     *
+     * @param buffer the next chunk of the encoded data.
+     * @return true if a complete value have been decoded, see `getResult()`.
+     * @throws BencodeException             if the data has incorrect format or if a limit is exceeded.
+     * @throws UnsupportedEncodingException if "utf-8" isn't supported on this platform.
+     */
+    public boolean feed(ByteBuffer buffer) throws BencodeException, UnsupportedEncodingException {
+        if (this.state == State.DONE)
+            throw new IllegalStateException("Value already decoded, call reset() before feeding more data.");
+
+        while (buffer.hasRemaining()) {
+            switch (this.state) {
+                case TYPE:
+                    this.readType((char) (buffer.get() & 0xff));
+                    break;
+                case NUMBER:
+                    this.readNumber((char) (buffer.get() & 0xff));
+                    break;
+                case STRING_LENGTH:
+                    this.readStringLength((char) (buffer.get() & 0xff));
+                    break;
+                case STRING_BYTES:
+                    this.readStringBytes(buffer);
+                    break;
+                default:
+                    throw new IllegalStateException("Incorrect state: " + this.state);
+            }
+
+            if (this.state == State.DONE)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return true if a complete value have been decoded.
+     */
+    public boolean isDone() {
+        return this.state == State.DONE;
+    }
+
+    /**
+     * @return the decoded value.
+     */
+    public BencodeData<Object> getResult() {
+        if (this.state != State.DONE)
+            throw new IllegalStateException("No complete value decoded yet.");
+        return this.result;
+    }
+
+    private void readType(char c) throws BencodeException, UnsupportedEncodingException {
+        BencodeType type = BencodeType.valueOf(c);
+        if (type == null) {
+            String msg = "Incorrect format of bencoded data.";
+            msg += " Expected BencodeType, got(int): " + (int)c;
+            throw new BencodeException(msg);
+        }
+
+        if (type == BencodeType.END) {
+            this.endContainer();
+            return;
+        }
+
+        // According to the bencode standard, the keys must be valid bencode strings.
+        Container container = this.containers.peek();
+        if (container != null && container.dictionary != null && container.key == null
+                && type != BencodeType.STRING) {
+            throw new BencodeException("Received a non String key for a dictionary: " + type);
+        }
+
+        if (++this.elements > this.limits.getMaxElements())
+            throw new BencodeException("Too many elements, max: " + this.limits.getMaxElements());
+
+        switch (type) {
+            case NUMBER:
+                this.negative = false;
+                this.amountOfDigits = 0;
+                this.number = 0;
+                this.state = State.NUMBER;
+                break;
+
+            case STRING:
+                // The type character is the first digit of the length.
+                this.number = 0;
+                this.state = State.STRING_LENGTH;
+                this.readStringLength(c);
+                break;
+
+            case LIST:
+                this.push(new Container(new ArrayList<>(), null));
+                break;
+
+            case DICTIONARY:
+                this.push(new Container(null, new BencodeDictionary()));
+                break;
+
+            default:
+                throw new BencodeException("Parsed incorrect BencodeType: \"" + type + "\".");
+        }
+    }
+
+    // The number is accumulated as a negative value so that Long.MIN_VALUE can be parsed.
+    private void readNumber(char c) throws BencodeException {
+        if (c == BencodeType.END.getChar()) {
+            if (this.amountOfDigits == 0)
+                throw new BencodeException("Received no digits while parsing number.");
+            if (!this.negative && this.number == Long.MIN_VALUE)
+                throw new BencodeException("Number too large to fit in a long.");
+
+            long value = this.negative ? this.number : -this.number;
+            this.valueDecoded(new BencodeData<>(BencodeType.NUMBER, value));
+            return;
+        }
+
+        if (c == '-' && !this.negative && this.amountOfDigits == 0) {
+            this.negative = true;
+            return;
+        } else if (c < '0' || c > '9') {
+            throw new BencodeException("Received non digit character while parsing number: " + c);
+        }
+
+        int digit = c - '0';
+        if (this.number < (Long.MIN_VALUE + digit) / 10)
+            throw new BencodeException("Number too large to fit in a long.");
+        this.number = this.number * 10 - digit;
+        this.amountOfDigits++;
+    }
+
+    private void readStringLength(char c) throws BencodeException, UnsupportedEncodingException {
+        if (c == Bencode.STRING_SEPARATOR) {
+            // The length have already been checked against the limit, so this is safe to allocate.
+            this.string = new byte[(int) this.number];
+            this.stringPosition = 0;
+            this.state = State.STRING_BYTES;
+            if (this.string.length == 0)
+                this.stringDecoded();
+            return;
+        } else if (c < '0' || c > '9') {
+            throw new BencodeException("Received non digit character while parsing string length: " + c);
+        }
+
+        this.number = this.number * 10 + (c - '0');
+        if (this.number > this.limits.getMaxStringLength()) {
+            String msg = "String too long, max: " + this.limits.getMaxStringLength();
+            throw new BencodeException(msg);
+        }
+    }
+
+    private void readStringBytes(ByteBuffer buffer) throws BencodeException, UnsupportedEncodingException {
+        int amount = Math.min(buffer.remaining(), this.string.length - this.stringPosition);
+        buffer.get(this.string, this.stringPosition, amount);
+        this.stringPosition += amount;
+
+        if (this.stringPosition == this.string.length)
+            this.stringDecoded();
+    }
+
+    private void stringDecoded() throws BencodeException, UnsupportedEncodingException {
+        var benString = new BencodeString(this.string, Bencode.ENCODING);
+        this.string = null;
+        this.valueDecoded(new BencodeData<>(BencodeType.STRING, benString));
+    }
+
+    private void push(Container container) throws BencodeException {
+        if (this.containers.size() >= this.limits.getMaxDepth())
+            throw new BencodeException("Nested too deep, max depth: " + this.limits.getMaxDepth());
+        this.containers.push(container);
+        this.state = State.TYPE;
+    }
+
+    private void endContainer() throws BencodeException {
+        Container container = this.containers.poll();
+        if (container == null) {
+            throw new BencodeException("Received END outside of a list or dictionary.");
+        } else if (container.key != null) {
+            throw new BencodeException("Dictionary ended without a value for the last key.");
+        }
+
+        if (container.list != null)
+            this.valueDecoded(new BencodeData<>(BencodeType.LIST, container.list));
+        else
+            this.valueDecoded(new BencodeData<>(BencodeType.DICTIONARY, container.dictionary));
+    }
+
+    // Adds a complete value to the container that it is inside, or finishes
+    // the decoding if it isn't inside a container.
+    private void valueDecoded(BencodeData<Object> value) throws BencodeException {
+        Container container = this.containers.peek();
+        if (container == null) {
+            this.result = value;
+            this.state = State.DONE;
+            return;
+        }
+
+        if (container.list != null) {
+            container.list.add(value);
+        } else if (container.key == null) {
+            container.key = value.getBencodeString();
+        } else {
+            container.dictionary.put(container.key, value);
+            container.key = null;
+        }
+        this.state = State.TYPE;
+    }
+}
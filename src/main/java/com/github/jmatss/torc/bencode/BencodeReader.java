@@ -0,0 +1,442 @@
+package com.github.jmatss.torc.bencode;
+
+import java.io.EOFException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Cursor-style pull parser for bencoded data. Every call to `next()` moves
+ * the cursor to the next token and returns its BencodeEvent. The value of
+ * the current token can then be fetched with the getters of this class.
+ *
+ * No tree is built and no values are boxed. Strings are read as views into
+ * the buffer, so only the fields that are actually needed have to be
+ * converted into Java types. Unwanted values can be skipped with `skip()`.
+ *
+ * Example of reading a dictionary:
+ *     reader.next();                            // START_DICT
+ *     while (reader.next() != BencodeEvent.END) {
+ *         if (reader.keyEquals(INTERVAL))       // KEY
+ *             interval = reader.nextNumber();   // NUMBER
+ *         else
+ *             reader.skip();                    // skips the value of the key
+ *     }
+ */
+public class BencodeReader extends Bencode {
+    private static final int DEFAULT_MAX_DEPTH = 16;
+
+    /**
+     * Contains the bytes of the contents to read.
+     */
+    private final ByteBuffer buffer;
+
+    // Contains one entry for every open list/dictionary, `isDictionary` is true
+    // if the container is a dictionary and `expectKey` is true if the next
+    // token inside that dictionary is a key.
+    private boolean[] isDictionary;
+    private boolean[] expectKey;
+    private int depth;
+
+    private BencodeEvent event;
+    private int tokenPosition;
+    private int stringOffset;
+    private int stringLength;
+    private long number;
+
+    /**
+     * Reads the data between the current position and the limit of the given
+     * buffer. The position of the buffer is moved forward as tokens are read.
+     *
+     * @param buffer the data to read.
+     */
+    public BencodeReader(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.isDictionary = new boolean[DEFAULT_MAX_DEPTH];
+        this.expectKey = new boolean[DEFAULT_MAX_DEPTH];
+        this.depth = 0;
+        this.event = null;
+    }
+
+    public BencodeReader(byte[] content) {
+        this(ByteBuffer.wrap(content));
+    }
+
+    /**
+     * @return true if there are more data to read.
+     */
+    public boolean hasNext() {
+        return this.buffer.hasRemaining();
+    }
+
+    /**
+     * Moves the cursor to the next token.
+     *
+     * @return the BencodeEvent of the next token.
+     * @throws EOFException     if there are no more data to read.
+     * @throws BencodeException if the bencoded data has incorrect format.
+     */
+    public BencodeEvent next() throws EOFException, BencodeException {
+        if (!this.buffer.hasRemaining()) {
+            throw new EOFException();
+        }
+
+        this.tokenPosition = this.buffer.position();
+        char nextTypeChar = super.byteToChar(this.buffer.get(this.tokenPosition));
+        BencodeType nextType = BencodeType.valueOf(nextTypeChar);
+        if (nextType == null) {
+            String msg = "Incorrect format of bencoded data.";
+            msg += " Expected BencodeType, got(int): " + (int)nextTypeChar;
+            throw new BencodeException(msg);
+        }
+
+        boolean inDictionary = this.depth > 0 && this.isDictionary[this.depth - 1];
+        boolean atKey = inDictionary && this.expectKey[this.depth - 1];
+
+        if (nextType == BencodeType.END) {
+            if (this.depth == 0) {
+                throw new BencodeException("Received END outside of a list or dictionary.");
+            } else if (inDictionary && !atKey) {
+                throw new BencodeException("Dictionary ended without a value for the last key.");
+            }
+
+            this.buffer.get();
+            this.depth--;
+            this.valueRead();
+            this.event = BencodeEvent.END;
+            return this.event;
+        }
+
+        // According to the bencode standard, the keys must be valid bencode strings.
+        if (atKey) {
+            if (nextType != BencodeType.STRING) {
+                String msg = "Received a non String key for a dictionary: ";
+                throw new BencodeException(msg + nextType);
+            }
+
+            this.readString();
+            this.expectKey[this.depth - 1] = false;
+            this.event = BencodeEvent.KEY;
+            return this.event;
+        }
+
+        switch (nextType) {
+            case NUMBER:
+                this.buffer.get();
+                this.number = this.readDigits(BencodeType.END.getChar(), true);
+                this.valueRead();
+                this.event = BencodeEvent.NUMBER;
+                break;
+
+            case STRING:
+                this.readString();
+                this.valueRead();
+                this.event = BencodeEvent.STRING;
+                break;
+
+            case LIST:
+                this.buffer.get();
+                this.push(false);
+                this.event = BencodeEvent.START_LIST;
+                break;
+
+            case DICTIONARY:
+                this.buffer.get();
+                this.push(true);
+                this.event = BencodeEvent.START_DICT;
+                break;
+
+            default:
+                throw new BencodeException("Parsed incorrect BencodeType: \"" + nextType + "\".");
+        }
+
+        return this.event;
+    }
+
+    /**
+     * Skips the value of the current token. If the current token is a
+     * START_DICT or START_LIST, everything up to and including the matching
+     * END is skipped. If the current token is a KEY, the value of that key is
+     * skipped. Does nothing for the other tokens.
+     *
+     * @throws EOFException     if EOF reached unexpectedly.
+     * @throws BencodeException if the bencoded data has incorrect format.
+     */
+    public void skip() throws EOFException, BencodeException {
+        if (this.event == BencodeEvent.KEY) {
+            this.next();
+            this.skip();
+        } else if (this.event == BencodeEvent.START_DICT || this.event == BencodeEvent.START_LIST) {
+            int targetDepth = this.depth - 1;
+            while (this.depth > targetDepth) {
+                this.next();
+            }
+        }
+    }
+
+    /**
+     * Moves the cursor to the next token and returns it as a number.
+     *
+     * @return the number.
+     * @throws EOFException     if EOF reached unexpectedly.
+     * @throws BencodeException if the next token isn't a number.
+     */
+    public long nextNumber() throws EOFException, BencodeException {
+        this.expect(BencodeEvent.NUMBER);
+        return this.number;
+    }
+
+    /**
+     * Moves the cursor to the next token and returns it as a utf-8 string.
+     *
+     * @return the string.
+     * @throws EOFException                 if EOF reached unexpectedly.
+     * @throws BencodeException             if the next token isn't a string.
+     * @throws UnsupportedEncodingException if "utf-8" isn't supported on this platform.
+     */
+    public String nextString() throws EOFException, BencodeException, UnsupportedEncodingException {
+        this.expect(BencodeEvent.STRING);
+        return this.getString();
+    }
+
+    /**
+     * Moves the cursor to the next token and validates that it is of the
+     * `expectedEvent` type.
+     *
+     * @param expectedEvent the expected event of the next token.
+     * @throws EOFException     if EOF reached unexpectedly.
+     * @throws BencodeException if the next token isn't of the `expectedEvent` type.
+     */
+    public void expect(BencodeEvent expectedEvent) throws EOFException, BencodeException {
+        BencodeEvent actualEvent = this.next();
+        if (actualEvent != expectedEvent) {
+            String msg = "Bad BencodeEvent. Expected: " + expectedEvent;
+            msg += ", got: " + actualEvent;
+            throw new BencodeException(msg);
+        }
+    }
+
+    /**
+     * Compares the current KEY or STRING token with the given `key` without
+     * copying any bytes.
+     *
+     * @param key the key to compare against.
+     * @return true if the current token contains the same bytes as `key`.
+     */
+    public boolean keyEquals(BencodeString key) {
+        this.stringGuard();
+        return key.contentEquals(this.buffer, this.stringOffset, this.stringLength);
+    }
+
+    public BencodeEvent getEvent() {
+        return this.event;
+    }
+
+    /**
+     * @return the amount of lists/dictionaries that the cursor currently is inside.
+     */
+    public int getDepth() {
+        return this.depth;
+    }
+
+    /**
+     * @return the absolute position in the buffer where the current token starts.
+     */
+    public int getTokenPosition() {
+        return this.tokenPosition;
+    }
+
+    /**
+     * @return the absolute position in the buffer where the next token starts.
+     */
+    public int getPosition() {
+        return this.buffer.position();
+    }
+
+    public long getNumber() {
+        if (this.event != BencodeEvent.NUMBER)
+            throw new IllegalStateException("Current token isn't a number: " + this.event);
+        return this.number;
+    }
+
+    /**
+     * @return the amount of bytes in the current KEY or STRING token.
+     */
+    public int getStringLength() {
+        this.stringGuard();
+        return this.stringLength;
+    }
+
+    /**
+     * @return the current KEY or STRING token as a BencodeString that is a view into the buffer.
+     * @throws UnsupportedEncodingException if "utf-8" isn't supported on this platform.
+     */
+    public BencodeString getBencodeString() throws UnsupportedEncodingException {
+        this.stringGuard();
+        return new BencodeString(this.buffer, this.stringOffset, this.stringLength, ENCODING);
+    }
+
+    /**
+     * @return the current KEY or STRING token decoded as an utf-8 string.
+     * @throws UnsupportedEncodingException if "utf-8" isn't supported on this platform.
+     */
+    public String getString() throws UnsupportedEncodingException {
+        if (this.buffer.hasArray()) {
+            this.stringGuard();
+            int offset = this.buffer.arrayOffset() + this.stringOffset;
+            return new String(this.buffer.array(), offset, this.stringLength, ENCODING);
+        }
+        return new String(this.getBytes(), ENCODING);
+    }
+
+    /**
+     * @return a copy of the bytes of the current KEY or STRING token.
+     */
+    public byte[] getBytes() {
+        byte[] bytes = new byte[this.getStringLength()];
+        this.getBuffer().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return a read-only view of the bytes of the current KEY or STRING token.
+     */
+    public ByteBuffer getBuffer() {
+        this.stringGuard();
+        ByteBuffer duplicate = this.buffer.duplicate();
+        duplicate.clear();
+        duplicate.limit(this.stringOffset + this.stringLength);
+        duplicate.position(this.stringOffset);
+        return duplicate.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a read-only view of the bytes at [start, end) of the buffer.
+     * Can be used together with `getTokenPosition()` and `getPosition()` to
+     * get the exact encoded bytes of a value, ex. to hash a dictionary:
+     *     int start = reader.getTokenPosition();   // at START_DICT
+     *     reader.skip();
+     *     ByteBuffer raw = reader.getRaw(start, reader.getPosition());
+     *
+     * @param start the absolute position of the first byte.
+     * @param end   the absolute position after the last byte.
+     * @return a read-only view of the bytes.
+     */
+    public ByteBuffer getRaw(int start, int end) {
+        ByteBuffer duplicate = this.buffer.duplicate();
+        duplicate.clear();
+        duplicate.limit(end);
+        duplicate.position(start);
+        return duplicate.slice().asReadOnlyBuffer();
+    }
+
+    private void stringGuard() {
+        if (this.event != BencodeEvent.KEY && this.event != BencodeEvent.STRING)
+            throw new IllegalStateException("Current token isn't a key or string: " + this.event);
+    }
+
+    // Called when a complete value have been read. If the value is inside a
+    // dictionary, the next token of that dictionary will be a key.
+    private void valueRead() {
+        if (this.depth > 0 && this.isDictionary[this.depth - 1]) {
+            this.expectKey[this.depth - 1] = true;
+        }
+    }
+
+    private void push(boolean dictionary) {
+        if (this.depth == this.isDictionary.length) {
+            int newLength = this.isDictionary.length * 2;
+            this.isDictionary = Arrays.copyOf(this.isDictionary, newLength);
+            this.expectKey = Arrays.copyOf(this.expectKey, newLength);
+        }
+        this.isDictionary[this.depth] = dictionary;
+        this.expectKey[this.depth] = dictionary;
+        this.depth++;
+    }
+
+    /**
+     * Reads a string token and stores its position in the buffer.
+     *
+     * @throws EOFException     if EOF reached unexpectedly.
+     * @throws BencodeException if unable to parse string length.
+     */
+    private void readString() throws EOFException, BencodeException {
+        long stringLength = this.readDigits(STRING_SEPARATOR, false);
+        if (stringLength > this.buffer.remaining()) {
+            String msg = "String length larger than remaining data (" + stringLength;
+            msg += " > " + this.buffer.remaining() + ").";
+            throw new EOFException(msg);
+        }
+
+        this.stringOffset = this.buffer.position();
+        this.stringLength = (int)stringLength;
+        this.buffer.position(this.stringOffset + this.stringLength);
+    }
+
+    /**
+     * Parses digits from `this.buffer` into a long until the `terminator` is
+     * found. The `terminator` is consumed. Parsing is done directly on the
+     * bytes without creating any intermediate strings.
+     *
+     * @param terminator    the character that ends the number.
+     * @param allowNegative if a leading '-' should be allowed.
+     * @return the parsed number.
+     * @throws EOFException     if EOF reached unexpectedly.
+     * @throws BencodeException if a non digit character is found or if the number overflows.
+     */
+    private long readDigits(char terminator, boolean allowNegative)
+    throws EOFException, BencodeException {
+        char currentChar = super.byteToChar(this.nextByte());
+
+        boolean negative = false;
+        if (allowNegative && currentChar == '-') {
+            negative = true;
+            currentChar = super.byteToChar(this.nextByte());
+        }
+
+        // Accumulate the number as a negative value so that Long.MIN_VALUE can be parsed.
+        long result = 0;
+        int amountOfDigits = 0;
+        while (currentChar != terminator) {
+            if (currentChar < '0' || currentChar > '9') {
+                String msg = "Received non digit character while parsing number: ";
+                throw new BencodeException(msg + currentChar);
+            }
+
+            int digit = currentChar - '0';
+            if (result < (Long.MIN_VALUE + digit) / 10) {
+                throw new BencodeException("Number too large to fit in a long.");
+            }
+            result = result * 10 - digit;
+            amountOfDigits++;
+
+            currentChar = super.byteToChar(this.nextByte());
+        }
+
+        if (amountOfDigits == 0) {
+            String msg = "Received no digits while parsing number.";
+            throw new BencodeException(msg);
+        }
+
+        if (negative) {
+            return result;
+        } else if (result == Long.MIN_VALUE) {
+            throw new BencodeException("Number too large to fit in a long.");
+        } else {
+            return -result;
+        }
+    }
+
+    /**
+     * Returns the next byte of `this.buffer`.
+     *
+     * @return the next byte.
+     * @throws EOFException if there are no more bytes to read.
+     */
+    private byte nextByte() throws EOFException {
+        if (!this.buffer.hasRemaining()) {
+            throw new EOFException();
+        }
+        return this.buffer.get();
+    }
+}
@@ -1,32 +1,133 @@
 package com.github.jmatss.torc.bencode;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 /**
  * This class is needed since strings in a bencoded file can be either
  * UTF-8 encoded strings or binary data.
- * 
+ *
  * The UTF-8 strings will be stored as a String in java and the binary data
  * will be stored as byes.
+ *
+ * The bytes are stored as a view (offset + length) into a source buffer. When
+ * decoding, the source buffer is the buffer that is being decoded, so no bytes
+ * are copied until `getBytes()` is called.
+ *
+ * The String representation is only created when `getString()` is called,
+ * since most binary data (ex. "pieces" and "peers") is never read as text.
+ * The hash code is cached after it has been calculated once.
  */
 public class BencodeString implements Comparable<BencodeString> {
-    private final byte[] bytes;
-    private final String string;
+    // Contains the bytes of this string at [offset, offset + length).
+    // Only absolute gets are used on the `source`, so its position and limit
+    // are never modified by this class.
+    private final ByteBuffer source;
+    private final int offset;
+    private final int length;
+    private final Charset charset;
+
+    // Lazily created String representation, see `getString()`.
+    private String string;
+
+    // Lazily created copy of the bytes, see `getBytes()`.
+    private byte[] bytes;
+
+    // Cached hash code, zero if it hasn't been calculated yet.
+    private int hash;
 
     public BencodeString(byte[] bytes, String encoding) throws UnsupportedEncodingException {
+        this(ByteBuffer.wrap(bytes), 0, bytes.length, encoding);
         this.bytes = bytes;
-        this.string = new String(bytes, encoding);
     }
 
     public BencodeString(String string, String encoding) throws UnsupportedEncodingException {
-        this.bytes = string.getBytes(encoding);
+        this(string, toCharset(encoding));
+    }
+
+    public BencodeString(String string, Charset charset) {
+        this.bytes = string.getBytes(charset);
+        this.source = ByteBuffer.wrap(this.bytes);
+        this.offset = 0;
+        this.length = this.bytes.length;
+        this.charset = charset;
         this.string = string;
     }
 
+    /**
+     * Creates a BencodeString that is a view into the given `source` buffer.
+     * The bytes are not copied, so any modifications of the `source` will be
+     * visible through this BencodeString.
+     *
+     * @param source   the buffer containing the bytes of the string.
+     * @param offset   the absolute index in `source` where the string starts.
+     * @param length   the amount of bytes in the string.
+     * @param encoding the encoding used to create the String representation.
+     * @throws UnsupportedEncodingException if `encoding` isn't supported.
+     */
+    public BencodeString(ByteBuffer source, int offset, int length, String encoding)
+    throws UnsupportedEncodingException {
+        if (offset < 0 || length < 0 || offset > source.capacity() - length) {
+            String msg = "View outside of source buffer (offset: " + offset + ", length: " + length;
+            msg += ", capacity: " + source.capacity() + ").";
+            throw new IndexOutOfBoundsException(msg);
+        }
+
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
+        this.charset = toCharset(encoding);
+        this.bytes = null;
+        this.string = null;
+    }
+
+    // Validates the encoding up front so that `getString()` doesn't need to
+    // throw a checked exception when the String is created lazily.
+    private static Charset toCharset(String encoding) throws UnsupportedEncodingException {
+        if (Bencode.ENCODING.equals(encoding)) {
+            return StandardCharsets.UTF_8;
+        }
+
+        try {
+            return Charset.forName(encoding);
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedEncodingException(encoding);
+        }
+    }
+
+    // Returns a new buffer containing the bytes [offset, offset + length) of the `source`.
+    // The bytes are shared between `source` and the returned buffer.
+    private static ByteBuffer slice(ByteBuffer source, int offset, int length) {
+        ByteBuffer duplicate = source.duplicate();
+        duplicate.clear();
+        duplicate.limit(offset + length);
+        duplicate.position(offset);
+        return duplicate.slice();
+    }
+
+    private byte byteAt(int index) {
+        return this.source.get(this.offset + index);
+    }
+
     @Override
     public int compareTo(BencodeString other) {
-        return Arrays.compare(this.bytes, other.bytes);
+        if (this.source.hasArray() && other.source.hasArray()) {
+            int thisStart = this.source.arrayOffset() + this.offset;
+            int otherStart = other.source.arrayOffset() + other.offset;
+            return Arrays.compare(
+                    this.source.array(), thisStart, thisStart + this.length,
+                    other.source.array(), otherStart, otherStart + other.length
+            );
+        }
+
+        // Same ordering as `Arrays.compare`, the ByteBuffer comparison is vectorized.
+        return slice(this.source, this.offset, this.length)
+                .compareTo(slice(other.source, other.offset, other.length));
     }
 
     @Override
@@ -38,19 +139,128 @@ public class BencodeString implements Comparable<BencodeString> {
         }
 
         BencodeString other = (BencodeString) o;
-        return Arrays.equals(this.getBytes(), other.getBytes());
+        if (this.length != other.length) {
+            return false;
+        } else if (this.hash != 0 && other.hash != 0 && this.hash != other.hash) {
+            // Both hashes already calculated and they differ, no need to compare the bytes.
+            return false;
+        }
+        return this.compareTo(other) == 0;
+    }
+
+    /**
+     * Compares the bytes of this string with the bytes at [offset, offset + length)
+     * of the `other` buffer without copying any bytes.
+     *
+     * @param other  the buffer to compare against.
+     * @param offset the absolute index in `other` where the bytes start.
+     * @param length the amount of bytes to compare.
+     * @return true if the bytes are equal.
+     */
+    boolean contentEquals(ByteBuffer other, int offset, int length) {
+        if (this.length != length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (this.byteAt(i) != other.get(offset + i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies `length` bytes starting at index `from` of this string into the
+     * `destination` buffer.
+     *
+     * @param destination the buffer to copy the bytes into.
+     * @param from        the index in this string to start copying from.
+     * @param length      the amount of bytes to copy.
+     */
+    void copyTo(ByteBuffer destination, int from, int length) {
+        if (this.source.hasArray()) {
+            int start = this.source.arrayOffset() + this.offset + from;
+            destination.put(this.source.array(), start, length);
+        } else {
+            destination.put(slice(this.source, this.offset + from, length));
+        }
+    }
+
+    /**
+     * Writes the bytes of this string to the given `outputStream`.
+     *
+     * @param outputStream the stream to write to.
+     * @throws IOException if unable to write to the `outputStream`.
+     */
+    void writeTo(OutputStream outputStream) throws IOException {
+        if (this.source.hasArray()) {
+            outputStream.write(this.source.array(), this.source.arrayOffset() + this.offset, this.length);
+        } else {
+            outputStream.write(this.getBytes());
+        }
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(this.bytes);
+        // Same hash as `Arrays.hashCode(this.getBytes())` without copying the bytes.
+        int h = this.hash;
+        if (h == 0) {
+            h = 1;
+            for (int i = 0; i < this.length; i++)
+                h = 31 * h + this.byteAt(i);
+            this.hash = h;
+        }
+        return h;
+    }
+
+    /**
+     * @return the amount of bytes in this string.
+     */
+    public int length() {
+        return this.length;
     }
 
+    /**
+     * Returns the bytes of this string. If this string is a view into a
+     * larger buffer, the bytes are copied on the first call and the copy is
+     * reused for later calls.
+     *
+     * @return the bytes of this string.
+     */
     public byte[] getBytes() {
+        if (this.bytes == null) {
+            byte[] copy = new byte[this.length];
+            slice(this.source, this.offset, this.length).get(copy);
+            this.bytes = copy;
+        }
         return this.bytes;
     }
 
+    /**
+     * Returns a read-only buffer containing the bytes of this string without
+     * copying them. The returned buffer has position 0 and limit `length()`.
+     *
+     * @return a read-only view of the bytes of this string.
+     */
+    public ByteBuffer getBuffer() {
+        return slice(this.source, this.offset, this.length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the bytes of this string decoded as a String. The String is
+     * created on the first call and reused for later calls.
+     *
+     * @return the bytes of this string decoded as a String.
+     */
     public String getString() {
+        if (this.string == null) {
+            if (this.source.hasArray()) {
+                int start = this.source.arrayOffset() + this.offset;
+                this.string = new String(this.source.array(), start, this.length, this.charset);
+            } else {
+                this.string = this.charset.decode(slice(this.source, this.offset, this.length)).toString();
+            }
+        }
         return this.string;
     }
 }
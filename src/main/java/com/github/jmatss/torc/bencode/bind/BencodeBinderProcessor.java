@@ -0,0 +1,527 @@
+package com.github.jmatss.torc.bencode.bind;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Annotation processor that generates a binder for every class annotated with
+ * BencodeBound. The generated binder reads a dictionary with a BencodeReader
+ * and assigns the values straight into the fields of a new instance of the
+ * class, keys that aren't bound are skipped without being converted.
+ *
+ * Example of a generated binder for a class "Example" with the field
+ * `@BencodeField("interval") long interval`:
+ *     final class ExampleBinder {
+ *         private static final BencodeString KEY_INTERVAL = BencodeKey.of("interval");
+ *
+ *         static Example decode(ByteBuffer buffer) {...}     // reads from a buffer
+ *         static Example read(BencodeReader reader) {...}    // reads the next value
+ *         static Example readValue(BencodeReader reader) {   // reads the current value
+ *             check(reader, BencodeEvent.START_DICT, "Example");
+ *             var result = new Example();
+ *             boolean seenInterval = false;
+ *             while (reader.next() != BencodeEvent.END) {
+ *                 if (reader.keyEquals(KEY_INTERVAL)) {
+ *                     reader.next();
+ *                     check(reader, BencodeEvent.NUMBER, "interval");
+ *                     result.interval = reader.getNumber();
+ *                     seenInterval = true;
+ *                 } else {
+ *                     reader.skip();
+ *                 }
+ *             }
+ *             if (!seenInterval)
+ *                 throw new BencodeException("\"interval\" field is missing.");
+ *             return result;
+ *         }
+ *     }
+ */
+@SupportedAnnotationTypes({
+        "com.github.jmatss.torc.bencode.bind.BencodeBound",
+        "com.github.jmatss.torc.bencode.bind.BencodeField",
+        "com.github.jmatss.torc.bencode.bind.BencodeRaw"
+})
+public class BencodeBinderProcessor extends AbstractProcessor {
+    private static final String BINDER_SUFFIX = "Binder";
+    private static final String INDENT = "    ";
+
+    private static final String LIST = "java.util.List";
+    private static final String LONG = "java.lang.Long";
+    private static final String STRING = "java.lang.String";
+    private static final String BYTE_BUFFER = "java.nio.ByteBuffer";
+    private static final String BENCODE_STRING = "com.github.jmatss.torc.bencode.BencodeString";
+
+    /**
+     * The bencode value types that a field can be bound from. `event` is the
+     * BencodeEvent that the value must start with and `getter` is the
+     * expression used to fetch the value from the reader.
+     */
+    private enum ValueKind {
+        NUMBER("NUMBER", "reader.getNumber()"),
+        STRING("STRING", "reader.getString()"),
+        BENCODE_STRING("STRING", "reader.getBencodeString()"),
+        BYTES("STRING", "reader.getBytes()"),
+        BUFFER("STRING", "reader.getBuffer()"),
+        BOUND("START_DICT", null);
+
+        private final String event;
+        private final String getter;
+
+        ValueKind(String event, String getter) {
+            this.event = event;
+            this.getter = getter;
+        }
+    }
+
+    /**
+     * A value bound from bencode. `typeName` is the Java type of the value
+     * and `binderName` is the qualified name of the binder if the value is
+     * of a BencodeBound type.
+     */
+    private static class Value {
+        private final ValueKind kind;
+        private final String typeName;
+        private final String binderName;
+
+        private Value(ValueKind kind, String typeName, String binderName) {
+            this.kind = kind;
+            this.typeName = typeName;
+            this.binderName = binderName;
+        }
+    }
+
+    /**
+     * A field annotated with BencodeField. If `list` is true, the field is a
+     * List and `value` is the value of the elements in the list. `value` is
+     * null for raw fields.
+     */
+    private static class BoundField {
+        private final String name;
+        private final String key;
+        private final boolean required;
+        private final boolean raw;
+        private final boolean list;
+        private final Value value;
+
+        private BoundField(String name, String key, boolean required, boolean raw, boolean list, Value value) {
+            this.name = name;
+            this.key = key;
+            this.required = required;
+            this.raw = raw;
+            this.list = list;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Thrown when a BencodeBound class or one of its fields can't be bound.
+     * Reported as a compile error on the `element`.
+     */
+    private static class BinderException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Element element;
+
+        private BinderException(String message, Element element) {
+            super(message);
+            this.element = element;
+        }
+    }
+
+    private Elements elements;
+    private Types types;
+    private Messager messager;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        this.elements = processingEnv.getElementUtils();
+        this.types = processingEnv.getTypeUtils();
+        this.messager = processingEnv.getMessager();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(BencodeBound.class)) {
+            try {
+                this.generateBinder(this.validateType(element));
+            } catch (BinderException e) {
+                this.messager.printMessage(Diagnostic.Kind.ERROR, e.getMessage(), e.element);
+            } catch (IOException e) {
+                String msg = "Unable to write binder: " + e.getMessage();
+                this.messager.printMessage(Diagnostic.Kind.ERROR, msg, element);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Validates that the annotated element is a class that the binder is able
+     * to instantiate.
+     *
+     * @param element the element annotated with BencodeBound.
+     * @return the element as a TypeElement.
+     * @throws BinderException if the element can't be bound.
+     */
+    private TypeElement validateType(Element element) throws BinderException {
+        if (element.getKind() != ElementKind.CLASS)
+            throw new BinderException("BencodeBound can only be used on classes.", element);
+
+        Set<Modifier> modifiers = element.getModifiers();
+        if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.ABSTRACT))
+            throw new BinderException("BencodeBound class can't be private or abstract.", element);
+        if (element.getEnclosingElement().getKind() != ElementKind.PACKAGE && !modifiers.contains(Modifier.STATIC))
+            throw new BinderException("Nested BencodeBound class must be static.", element);
+
+        // No declared constructors == implicit no-arg constructor.
+        List<ExecutableElement> constructors = ElementFilter.constructorsIn(element.getEnclosedElements());
+        boolean hasNoArgConstructor = constructors.isEmpty();
+        for (ExecutableElement constructor : constructors) {
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE))
+                hasNoArgConstructor = true;
+        }
+        if (!hasNoArgConstructor)
+            throw new BinderException("BencodeBound class must have a non-private no-arg constructor.", element);
+
+        return (TypeElement) element;
+    }
+
+    /**
+     * Generates and writes the binder of the given type.
+     *
+     * @param type the BencodeBound class.
+     * @throws BinderException if a field of the class can't be bound.
+     * @throws IOException     if unable to write the binder.
+     */
+    private void generateBinder(TypeElement type) throws BinderException, IOException {
+        var fields = new ArrayList<BoundField>();
+        String rawField = null;
+
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            BencodeField bencodeField = field.getAnnotation(BencodeField.class);
+            boolean isRaw = field.getAnnotation(BencodeRaw.class) != null;
+            if (bencodeField == null && !isRaw)
+                continue;
+
+            Set<Modifier> modifiers = field.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)
+                    || modifiers.contains(Modifier.STATIC))
+                throw new BinderException("Bound field can't be private, final or static.", field);
+
+            if (isRaw) {
+                if (bencodeField != null)
+                    throw new BinderException("Field can't be both BencodeRaw and BencodeField.", field);
+                if (!this.isType(field.asType(), BYTE_BUFFER))
+                    throw new BinderException("BencodeRaw field must be a ByteBuffer.", field);
+                if (rawField != null)
+                    throw new BinderException("Only one BencodeRaw field allowed per class.", field);
+                rawField = field.getSimpleName().toString();
+                continue;
+            }
+
+            fields.add(this.toBoundField(field, bencodeField));
+        }
+
+        String packageName = this.elements.getPackageOf(type).getQualifiedName().toString();
+        String binderName = binderSimpleName(type);
+        String qualifiedBinderName = packageName.isEmpty() ? binderName : packageName + "." + binderName;
+
+        String source = this.generateSource(type, packageName, binderName, fields, rawField);
+        var file = this.processingEnv.getFiler().createSourceFile(qualifiedBinderName, type);
+        try (Writer writer = file.openWriter()) {
+            writer.write(source);
+        }
+    }
+
+    private BoundField toBoundField(VariableElement field, BencodeField bencodeField) throws BinderException {
+        String name = field.getSimpleName().toString();
+        TypeMirror fieldType = field.asType();
+
+        if (bencodeField.raw()) {
+            if (!this.isType(fieldType, BYTE_BUFFER))
+                throw new BinderException("Raw BencodeField must be a ByteBuffer.", field);
+            return new BoundField(name, bencodeField.value(), bencodeField.required(), true, false, null);
+        }
+
+        if (this.isType(fieldType, LIST)) {
+            List<? extends TypeMirror> typeArguments = ((DeclaredType) fieldType).getTypeArguments();
+            if (typeArguments.size() != 1)
+                throw new BinderException("List field must have a type argument.", field);
+            Value element = this.toValue(typeArguments.get(0), field);
+            return new BoundField(name, bencodeField.value(), bencodeField.required(), false, true, element);
+        }
+
+        Value value = this.toValue(fieldType, field);
+        return new BoundField(name, bencodeField.value(), bencodeField.required(), false, false, value);
+    }
+
+    private Value toValue(TypeMirror type, VariableElement field) throws BinderException {
+        String typeName = type.toString();
+
+        if (type.getKind() == TypeKind.LONG || this.isType(type, LONG)) {
+            return new Value(ValueKind.NUMBER, typeName, null);
+        } else if (type.getKind() == TypeKind.ARRAY
+                && ((ArrayType) type).getComponentType().getKind() == TypeKind.BYTE) {
+            return new Value(ValueKind.BYTES, typeName, null);
+        } else if (this.isType(type, STRING)) {
+            return new Value(ValueKind.STRING, typeName, null);
+        } else if (this.isType(type, BENCODE_STRING)) {
+            return new Value(ValueKind.BENCODE_STRING, typeName, null);
+        } else if (this.isType(type, BYTE_BUFFER)) {
+            return new Value(ValueKind.BUFFER, typeName, null);
+        } else if (type.getKind() == TypeKind.DECLARED) {
+            var typeElement = (TypeElement) this.types.asElement(type);
+            if (typeElement.getAnnotation(BencodeBound.class) != null) {
+                String packageName = this.elements.getPackageOf(typeElement).getQualifiedName().toString();
+                String binderName = binderSimpleName(typeElement);
+                binderName = packageName.isEmpty() ? binderName : packageName + "." + binderName;
+                return new Value(ValueKind.BOUND, typeElement.getQualifiedName().toString(), binderName);
+            }
+        }
+
+        throw new BinderException("Unsupported type of BencodeField: " + typeName, field);
+    }
+
+    // Compares the erasure of `type` with the class with the given qualified name.
+    private boolean isType(TypeMirror type, String qualifiedName) {
+        if (type.getKind() != TypeKind.DECLARED)
+            return false;
+        var typeElement = (TypeElement) this.types.asElement(type);
+        return typeElement.getQualifiedName().contentEquals(qualifiedName);
+    }
+
+    // Nested classes are joined with "_", ex. "Metainfo.Info" => "Metainfo_InfoBinder".
+    private static String binderSimpleName(TypeElement type) {
+        String name = type.getSimpleName().toString();
+        Element enclosing = type.getEnclosingElement();
+        while (enclosing.getKind().isClass() || enclosing.getKind().isInterface()) {
+            name = enclosing.getSimpleName() + "_" + name;
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return name + BINDER_SUFFIX;
+    }
+
+    // Converts a field name to a constant name, ex. "pieceLength" => "KEY_PIECE_LENGTH".
+    private static String keyConstant(String fieldName) {
+        var sb = new StringBuilder("KEY_");
+        for (int i = 0; i < fieldName.length(); i++) {
+            char c = fieldName.charAt(i);
+            if (Character.isUpperCase(c) && i > 0)
+                sb.append('_');
+            sb.append(Character.toUpperCase(c));
+        }
+        return sb.toString();
+    }
+
+    private static String seenVariable(String fieldName) {
+        return "seen" + Character.toUpperCase(fieldName.charAt(0)) + fieldName.substring(1);
+    }
+
+    private String literal(String s) {
+        return this.elements.getConstantExpression(s);
+    }
+
+    /**
+     * Generates the source code of the binder.
+     *
+     * @param type        the BencodeBound class.
+     * @param packageName the package of the class.
+     * @param binderName  the simple name of the binder.
+     * @param fields      the bound fields of the class.
+     * @param rawField    the name of the BencodeRaw field or null if there are none.
+     * @return the source code of the binder.
+     */
+    private String generateSource(TypeElement type, String packageName, String binderName,
+                                  List<BoundField> fields, String rawField) {
+        String typeName = type.getQualifiedName().toString();
+        String access = type.getModifiers().contains(Modifier.PUBLIC) ? "public " : "";
+        var out = new SourceBuilder();
+
+        if (!packageName.isEmpty()) {
+            out.line(0, "package " + packageName + ";");
+            out.line(0, "");
+        }
+        out.line(0, "import com.github.jmatss.torc.bencode.BencodeEvent;");
+        out.line(0, "import com.github.jmatss.torc.bencode.BencodeException;");
+        out.line(0, "import com.github.jmatss.torc.bencode.BencodeKey;");
+        out.line(0, "import com.github.jmatss.torc.bencode.BencodeReader;");
+        out.line(0, "import com.github.jmatss.torc.bencode.BencodeString;");
+        out.line(0, "");
+        out.line(0, "import java.io.IOException;");
+        out.line(0, "import java.nio.ByteBuffer;");
+        out.line(0, "");
+        out.line(0, "/**");
+        out.line(0, " * Binds a bencoded dictionary into a new instance of " + type.getSimpleName() + ".");
+        out.line(0, " * Generated by BencodeBinderProcessor, don't edit.");
+        out.line(0, " */");
+        out.line(0, "@javax.annotation.processing.Generated(\"" + this.getClass().getName() + "\")");
+        out.line(0, access + "final class " + binderName + " {");
+
+        // KEYS
+        for (BoundField field : fields) {
+            out.line(1, "private static final BencodeString " + keyConstant(field.name)
+                    + " = BencodeKey.of(" + this.literal(field.key) + ");");
+        }
+        if (!fields.isEmpty())
+            out.line(0, "");
+
+        out.line(1, "private " + binderName + "() {}");
+        out.line(0, "");
+
+        // DECODE
+        out.line(1, "/**");
+        out.line(1, " * Binds the dictionary at the current position of the given buffer.");
+        out.line(1, " * The position of the buffer is moved past the dictionary.");
+        out.line(1, " */");
+        out.line(1, access + "static " + typeName + " decode(ByteBuffer buffer) throws IOException, BencodeException {");
+        out.line(2, "return read(new BencodeReader(buffer));");
+        out.line(1, "}");
+        out.line(0, "");
+
+        // READ
+        out.line(1, "/**");
+        out.line(1, " * Moves the reader to the next token and binds the dictionary starting at it.");
+        out.line(1, " */");
+        out.line(1, access + "static " + typeName + " read(BencodeReader reader) throws IOException, BencodeException {");
+        out.line(2, "reader.next();");
+        out.line(2, "return readValue(reader);");
+        out.line(1, "}");
+        out.line(0, "");
+
+        // READ VALUE
+        out.line(1, "/**");
+        out.line(1, " * Binds the dictionary starting at the current START_DICT token of the reader.");
+        out.line(1, " */");
+        out.line(1, access + "static " + typeName + " readValue(BencodeReader reader) throws IOException, BencodeException {");
+        out.line(2, "check(reader, BencodeEvent.START_DICT, " + this.literal(type.getSimpleName().toString()) + ");");
+        if (rawField != null)
+            out.line(2, "int start = reader.getTokenPosition();");
+        out.line(2, "var result = new " + typeName + "();");
+        for (BoundField field : fields) {
+            if (field.required)
+                out.line(2, "boolean " + seenVariable(field.name) + " = false;");
+        }
+        out.line(0, "");
+
+        out.line(2, "while (reader.next() != BencodeEvent.END) {");
+        String prefix = "if";
+        for (BoundField field : fields) {
+            out.line(3, prefix + " (reader.keyEquals(" + keyConstant(field.name) + ")) {");
+            this.generateField(out, field);
+            if (field.required)
+                out.line(4, seenVariable(field.name) + " = true;");
+            prefix = "} else if";
+        }
+        if (fields.isEmpty()) {
+            out.line(3, "reader.skip();");
+        } else {
+            out.line(3, "} else {");
+            out.line(4, "reader.skip();");
+            out.line(3, "}");
+        }
+        out.line(2, "}");
+        out.line(0, "");
+
+        for (BoundField field : fields) {
+            if (!field.required)
+                continue;
+            out.line(2, "if (!" + seenVariable(field.name) + ")");
+            out.line(3, "throw new BencodeException(" + this.literal("\"" + field.key + "\" field is missing.") + ");");
+        }
+        if (rawField != null)
+            out.line(2, "result." + rawField + " = reader.getRaw(start, reader.getPosition());");
+        out.line(2, "return result;");
+        out.line(1, "}");
+        out.line(0, "");
+
+        // CHECK
+        out.line(1, "private static void check(BencodeReader reader, BencodeEvent expected, String name)");
+        out.line(1, "throws BencodeException {");
+        out.line(2, "if (reader.getEvent() != expected) {");
+        out.line(3, "String msg = \"Bad BencodeEvent for \\\"\" + name + \"\\\". Expected: \" + expected;");
+        out.line(3, "msg += \", got: \" + reader.getEvent();");
+        out.line(3, "throw new BencodeException(msg);");
+        out.line(2, "}");
+        out.line(1, "}");
+        out.line(0, "}");
+
+        return out.toString();
+    }
+
+    /**
+     * Generates the statements that binds the value of a key. The reader is
+     * positioned at the KEY token when the statements are executed.
+     */
+    private void generateField(SourceBuilder out, BoundField field) {
+        String target = "result." + field.name;
+        String key = this.literal(field.key);
+
+        if (field.raw) {
+            out.line(4, "int valueStart = reader.getPosition();");
+            out.line(4, "reader.next();");
+            out.line(4, "reader.skip();");
+            out.line(4, target + " = reader.getRaw(valueStart, reader.getPosition());");
+        } else if (field.list) {
+            out.line(4, "reader.next();");
+            out.line(4, "check(reader, BencodeEvent.START_LIST, " + key + ");");
+            out.line(4, "var list = new java.util.ArrayList<" + field.value.typeName + ">();");
+            out.line(4, "while (reader.next() != BencodeEvent.END) {");
+            if (field.value.kind == ValueKind.BOUND) {
+                out.line(5, "list.add(" + field.value.binderName + ".readValue(reader));");
+            } else {
+                out.line(5, "check(reader, BencodeEvent." + field.value.kind.event + ", " + key + ");");
+                out.line(5, "list.add(" + field.value.kind.getter + ");");
+            }
+            out.line(4, "}");
+            out.line(4, target + " = list;");
+        } else if (field.value.kind == ValueKind.BOUND) {
+            out.line(4, "reader.next();");
+            out.line(4, target + " = " + field.value.binderName + ".readValue(reader);");
+        } else {
+            out.line(4, "reader.next();");
+            out.line(4, "check(reader, BencodeEvent." + field.value.kind.event + ", " + key + ");");
+            out.line(4, target + " = " + field.value.kind.getter + ";");
+        }
+    }
+
+    private static class SourceBuilder {
+        private final StringBuilder sb = new StringBuilder();
+
+        private void line(int indent, String line) {
+            if (!line.isEmpty()) {
+                for (int i = 0; i < indent; i++)
+                    this.sb.append(INDENT);
+                this.sb.append(line);
+            }
+            this.sb.append('\n');
+        }
+
+        @Override
+        public String toString() {
+            return this.sb.toString();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.github.jmatss.torc.bencode.bind;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class that a bencoded dictionary can be bound into. A binder
+ * named "{ClassName}Binder" (nested classes are joined with "_") is
+ * generated at compile time by the BencodeBinderProcessor. The binder reads
+ * the dictionary with a BencodeReader and assigns the fields annotated with
+ * BencodeField directly, no reflection or intermediate BencodeData tree is used.
+ *
+ * The class must have a non-private no-arg constructor and the bound fields
+ * must be non-private and non-final, since they are assigned by the binder
+ * which is generated into the same package.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface BencodeBound {
+}
@@ -0,0 +1,42 @@
+package com.github.jmatss.torc.bencode.bind;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Binds the value of a dictionary key to the annotated field of a class
+ * annotated with BencodeBound.
+ *
+ * Supported field types:
+ * long/Long       <= number
+ * String          <= string (utf-8)
+ * BencodeString   <= string (view into the decoded buffer)
+ * byte[]          <= string (copy)
+ * ByteBuffer      <= string (read-only view into the decoded buffer)
+ * List<T>         <= list where T is any of the types above except long
+ * BencodeBound    <= dictionary
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface BencodeField {
+    /**
+     * @return the key of the value in the dictionary.
+     */
+    String value();
+
+    /**
+     * @return true if a BencodeException should be thrown when the key is missing.
+     */
+    boolean required() default true;
+
+    /**
+     * If true, the field must be a ByteBuffer and it is set to a read-only
+     * view of the exact encoded bytes of the value. The value can be of any
+     * bencode type, it is validated but not converted.
+     *
+     * @return true if the raw encoded bytes of the value should be bound.
+     */
+    boolean raw() default false;
+}
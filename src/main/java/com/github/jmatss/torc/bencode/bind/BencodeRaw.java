@@ -0,0 +1,17 @@
+package com.github.jmatss.torc.bencode.bind;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Binds the exact encoded bytes of the whole dictionary to the annotated
+ * ByteBuffer field of a class annotated with BencodeBound. The bytes are a
+ * read-only view into the decoded buffer, ex. used to calculate the info hash
+ * of a torrent without re-encoding the info dictionary.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface BencodeRaw {
+}
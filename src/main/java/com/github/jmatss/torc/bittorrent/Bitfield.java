@@ -1,90 +1,293 @@
 package com.github.jmatss.torc.bittorrent;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bitfield with one bit per piece, stored in 64 bit words.
+ *
+ * The bits are ordered as in the BitTorrent protocol: piece `i` is bit
+ * `63 - (i % 64)` of word `i / 64`, i.e. the first piece is the high bit of
+ * the first word. So the big-endian bytes of the words are the BITFIELD
+ * message, see `toByteArray()`.
+ *
+ * The bitfield is lock free. Single bits are set and cleared with CAS on the
+ * word that contains them and the amount of set bits is tracked on every
+ * change, so `cardinality()` is constant time. The bulk operations (`and`,
+ * `andNot`, ...) work a word at a time. Every word is updated atomically, but
+ * a bulk operation as a whole isn't atomic relative to concurrent changes.
+ */
 public class Bitfield {
-    private final byte[] bitfield;
+    private static final int WORD_BITS = Long.SIZE;
+
+    private final AtomicLongArray words;
     private final int amountOfPieces;
+    private final AtomicInteger cardinality;
 
     public Bitfield(int amountOfPieces) {
-        this.bitfield = new byte[((amountOfPieces - 1) / 8) + 1];
+        if (amountOfPieces < 0)
+            throw new IllegalArgumentException("Negative amount of pieces: " + amountOfPieces);
+
+        this.words = new AtomicLongArray((amountOfPieces + WORD_BITS - 1) / WORD_BITS);
         this.amountOfPieces = amountOfPieces;
+        this.cardinality = new AtomicInteger(0);
     }
 
-    private void _set(int index) {
-        int byteIndex = this.byteIndex(index);
-        int shiftAmount = this.shiftAmount(index);
-        this.bitfield[byteIndex] |= (1 << shiftAmount);
-    }
+    /**
+     * Creates a bitfield from its byte representation, see `toByteArray()`.
+     *
+     * @param bytes          the bitfield where the first piece is the high bit of the first byte.
+     * @param amountOfPieces the amount of pieces.
+     * @throws IllegalArgumentException if the length of `bytes` doesn't match the amount of pieces
+     *                                  or if any of the spare bits at the end are set.
+     */
+    public Bitfield(byte[] bytes, int amountOfPieces) {
+        this(amountOfPieces);
+        int expectedLength = byteLength(amountOfPieces);
+        if (bytes.length != expectedLength) {
+            String msg = "Incorrect length of bitfield, expected: " + expectedLength;
+            msg += ", got: " + bytes.length;
+            throw new IllegalArgumentException(msg);
+        }
+
+        int spareBits = expectedLength * 8 - amountOfPieces;
+        if (spareBits > 0 && (bytes[bytes.length - 1] & ((1 << spareBits) - 1)) != 0)
+            throw new IllegalArgumentException("Spare bits at the end of the bitfield are set.");
 
-    private void _unSet(int index) {
-        int byteIndex = this.byteIndex(index);
-        int shiftAmount = this.shiftAmount(index);
-        this.bitfield[byteIndex] &= ~(1 << shiftAmount);
+        int cardinality = 0;
+        for (int wordIndex = 0; wordIndex < this.words.length(); wordIndex++) {
+            long word = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                int byteIndex = wordIndex * Long.BYTES + i;
+                long b = byteIndex < bytes.length ? bytes[byteIndex] & 0xFF : 0;
+                word |= b << (8 * (Long.BYTES - 1 - i));
+            }
+            this.words.set(wordIndex, word);
+            cardinality += Long.bitCount(word);
+        }
+        this.cardinality.set(cardinality);
     }
 
     /**
      * Sets the piece with index `index` to 1. Returns true if the value
      * was set to 1 or false if the value already is set to 1.
-     * 
+     *
      * @param index the index of the piece to set.
      */
-    public synchronized boolean set(int index) {
+    public boolean set(int index) {
         this.outOfBoundsGuard(index);
-        if (!this.isSet(index)) {
-            this._set(index);
-            return true;
-        } else {
-            return false;
-        }
+        int wordIndex = wordIndex(index);
+        long mask = mask(index);
+        long word;
+        do {
+            word = this.words.get(wordIndex);
+            if ((word & mask) != 0)
+                return false;
+        } while (!this.words.compareAndSet(wordIndex, word, word | mask));
+
+        this.cardinality.incrementAndGet();
+        return true;
     }
 
     /**
      * Sets the piece with index `index` to 0. Returns true if the value
      * was set to 0 or false if the value already is set to 0.
-     * 
+     *
      * @param index the index of the piece to set.
      */
-    public synchronized boolean unSet(int index) {
+    public boolean unSet(int index) {
         this.outOfBoundsGuard(index);
-        if (this.isSet(index)) {
-            this._unSet(index);
-            return true;
-        } else {
-            return false;
-        }
+        int wordIndex = wordIndex(index);
+        long mask = mask(index);
+        long word;
+        do {
+            word = this.words.get(wordIndex);
+            if ((word & mask) == 0)
+                return false;
+        } while (!this.words.compareAndSet(wordIndex, word, word & ~mask));
+
+        this.cardinality.decrementAndGet();
+        return true;
     }
 
     // Returns "true" if piece "index" contains a 1. Returns "false" if it contains a 0.
-    public synchronized boolean isSet(int index) {
+    public boolean isSet(int index) {
         this.outOfBoundsGuard(index);
-        int byteIndex = this.byteIndex(index);
-        int shiftAmount = this.shiftAmount(index);
-        return (this.bitfield[byteIndex] & (1 << shiftAmount)) > 0;
+        return (this.words.get(wordIndex(index)) & mask(index)) != 0;
     }
 
-    public int getAmountOfPieces() {
-        return this.amountOfPieces;
+    /**
+     * @return the amount of pieces that are set.
+     */
+    public int cardinality() {
+        return this.cardinality.get();
+    }
+
+    /**
+     * @return true if all pieces are set.
+     */
+    public boolean isFull() {
+        return this.cardinality.get() == this.amountOfPieces;
+    }
+
+    /**
+     * @return true if no piece is set.
+     */
+    public boolean isEmpty() {
+        return this.cardinality.get() == 0;
+    }
+
+    /**
+     * @param from the index to start searching from (inclusive).
+     * @return the index of the first piece at or after `from` that is set, or -1 if there is none.
+     */
+    public int nextSetBit(int from) {
+        return this.next(from, false);
+    }
+
+    /**
+     * @param from the index to start searching from (inclusive).
+     * @return the index of the first piece at or after `from` that isn't set, or -1 if there is none.
+     */
+    public int nextClearBit(int from) {
+        return this.next(from, true);
+    }
+
+    private int next(int from, boolean clear) {
+        if (from < 0)
+            throw new IndexOutOfBoundsException("from < 0 (" + from + " < 0)");
+        if (from >= this.amountOfPieces)
+            return -1;
+
+        int wordIndex = wordIndex(from);
+        // Only the bits at and after `from` of the first word are searched.
+        long word = (clear ? ~this.words.get(wordIndex) : this.words.get(wordIndex)) & (-1L >>> (from % WORD_BITS));
+        while (true) {
+            if (word != 0) {
+                int index = wordIndex * WORD_BITS + Long.numberOfLeadingZeros(word);
+                return index < this.amountOfPieces ? index : -1;
+            }
+            if (++wordIndex == this.words.length())
+                return -1;
+            word = clear ? ~this.words.get(wordIndex) : this.words.get(wordIndex);
+        }
+    }
+
+    /**
+     * Clears all pieces that aren't set in `other`, i.e. `this = this & other`.
+     *
+     * @param other a bitfield with the same amount of pieces.
+     */
+    public void and(Bitfield other) {
+        this.sizeGuard(other);
+        for (int i = 0; i < this.words.length(); i++)
+            this.update(i, other.words.get(i), false);
+    }
+
+    /**
+     * Clears all pieces that are set in `other`, i.e. `this = this & ~other`.
+     *
+     * @param other a bitfield with the same amount of pieces.
+     */
+    public void andNot(Bitfield other) {
+        this.sizeGuard(other);
+        for (int i = 0; i < this.words.length(); i++)
+            this.update(i, other.words.get(i), true);
+    }
+
+    // Atomically ands the word with `mask` (or with `~mask` if `invert`) and updates the cardinality.
+    private void update(int wordIndex, long mask, boolean invert) {
+        long word;
+        long updated;
+        do {
+            word = this.words.get(wordIndex);
+            updated = invert ? word & ~mask : word & mask;
+            if (updated == word)
+                return;
+        } while (!this.words.compareAndSet(wordIndex, word, updated));
+        this.cardinality.addAndGet(Long.bitCount(updated) - Long.bitCount(word));
+    }
+
+    /**
+     * @param other a bitfield with the same amount of pieces.
+     * @return true if any piece is set in both this and `other`.
+     */
+    public boolean intersects(Bitfield other) {
+        this.sizeGuard(other);
+        for (int i = 0; i < this.words.length(); i++) {
+            if ((this.words.get(i) & other.words.get(i)) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks if this bitfield has any piece that `other` is missing, ex. if
+     * the bitfield of a peer has a piece that we don't have, i.e. if we are
+     * interested in the peer.
+     *
+     * @param other a bitfield with the same amount of pieces.
+     * @return true if any piece is set in this but not in `other`.
+     */
+    public boolean hasPieceNotIn(Bitfield other) {
+        this.sizeGuard(other);
+        for (int i = 0; i < this.words.length(); i++) {
+            if ((this.words.get(i) & ~other.words.get(i)) != 0)
+                return true;
+        }
+        return false;
     }
 
     /**
-     * This function returns the byte index i.e. the position in the
-     * `bitField` array that corresponds to the given `index`.
-     * 
-     * @param index
-     * @return
+     * @return a new bitfield with the same pieces set as this.
      */
-    private int byteIndex(int index) {
-        return index / 8;
+    public Bitfield copy() {
+        var copy = new Bitfield(this.amountOfPieces);
+        int cardinality = 0;
+        for (int i = 0; i < this.words.length(); i++) {
+            long word = this.words.get(i);
+            copy.words.set(i, word);
+            cardinality += Long.bitCount(word);
+        }
+        copy.cardinality.set(cardinality);
+        return copy;
     }
 
     /**
-     * This function returns the amount that a bit needs to be shifted to line
-     * up inside a `bitField` byte corresponds to the given `index`.
-     * 
-     * @param index
-     * @return
+     * Returns a copy of this bitfield in the format used by the BitTorrent
+     * protocol, i.e. the first piece is the high bit of the first byte and the
+     * spare bits at the end are zero.
+     *
+     * @return the bitfield as bytes.
      */
-    private int shiftAmount(int index) {
-        return 7 - (index % 8);
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[byteLength(this.amountOfPieces)];
+        for (int wordIndex = 0; wordIndex < this.words.length(); wordIndex++) {
+            long word = this.words.get(wordIndex);
+            for (int i = 0; i < Long.BYTES; i++) {
+                int byteIndex = wordIndex * Long.BYTES + i;
+                if (byteIndex < bytes.length)
+                    bytes[byteIndex] = (byte) (word >>> (8 * (Long.BYTES - 1 - i)));
+            }
+        }
+        return bytes;
+    }
+
+    public int getAmountOfPieces() {
+        return this.amountOfPieces;
+    }
+
+    private static int byteLength(int amountOfPieces) {
+        return (amountOfPieces + 7) / 8;
+    }
+
+    private static int wordIndex(int index) {
+        return index / WORD_BITS;
+    }
+
+    // The first piece of a word is its high bit.
+    private static long mask(int index) {
+        return 1L << (WORD_BITS - 1 - (index % WORD_BITS));
     }
 
     private void outOfBoundsGuard(int index) {
@@ -94,14 +297,24 @@ public class Bitfield {
             throw new IndexOutOfBoundsException("index < 0 (" + index + " < 0)");
     }
 
+    private void sizeGuard(Bitfield other) {
+        if (other.amountOfPieces != this.amountOfPieces) {
+            String msg = "Bitfields have different amount of pieces (" + this.amountOfPieces;
+            msg += " != " + other.amountOfPieces + ")";
+            throw new IllegalArgumentException(msg);
+        }
+    }
+
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
+        StringBuilder sb = new StringBuilder(this.amountOfPieces + this.amountOfPieces / 8);
+        long word = 0;
         for (int i = 0; i < this.amountOfPieces; i++) {
-            sb.append(this.isSet(i) ? "1" : "0");
-            if (i > 0 && i % 8 == 0) {
+            if (i % WORD_BITS == 0)
+                word = this.words.get(wordIndex(i));
+            if (i > 0 && i % 8 == 0)
                 sb.append("_");
-            }
+            sb.append((word & mask(i)) != 0 ? "1" : "0");
         }
         return sb.toString();
     }
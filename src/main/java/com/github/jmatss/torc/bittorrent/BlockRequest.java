@@ -0,0 +1,48 @@
+package com.github.jmatss.torc.bittorrent;
+
+/**
+ * A block of a piece, as sent in REQUEST, PIECE and CANCEL messages.
+ */
+public class BlockRequest {
+    private final int piece;
+    private final int offset;
+    private final int length;
+
+    public BlockRequest(int piece, int offset, int length) {
+        this.piece = piece;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public int getPiece() {
+        return this.piece;
+    }
+
+    public int getOffset() {
+        return this.offset;
+    }
+
+    public int getLength() {
+        return this.length;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other == this)
+            return true;
+        if (!(other instanceof BlockRequest))
+            return false;
+        var request = (BlockRequest) other;
+        return this.piece == request.piece && this.offset == request.offset && this.length == request.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * this.piece + this.offset) + this.length;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockRequest(piece: " + this.piece + ", offset: " + this.offset + ", length: " + this.length + ")";
+    }
+}
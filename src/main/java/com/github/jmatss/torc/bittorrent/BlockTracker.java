@@ -0,0 +1,483 @@
+package com.github.jmatss.torc.bittorrent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the blocks of the pieces that are being downloaded, so that
+ * multiple peers can download blocks of the same piece.
+ *
+ * Every block of a piece in flight is either free, requested (by a specific
+ * peer) or received. Peers are identified by int ids. The pieces to download
+ * are picked with a PiecePicker, a piece is kept partial in the picker as long
+ * as it has free blocks. When a peer chokes us, disconnects or stalls, its
+ * requested blocks become free right away and are handed out to the next peer
+ * that asks for blocks. A block whose request timed out isn't requested from
+ * the same peer again, so a stalled peer can't keep a piece from completing.
+ *
+ * Endgame: when no peer has a piece left that hasn't been started and at most
+ * `endgameMaxBlocks` blocks are requested but not received, blocks that
+ * already are requested from other peers are requested again from the peers
+ * that asks for blocks. A block is requested from at most
+ * `maxRequestsPerBlock` peers at the same time, so the duplicate download in
+ * the endgame is at most (maxRequestsPerBlock - 1) * endgameMaxBlocks blocks.
+ * When the first copy of a block arrives, the peers that the other requests
+ * were sent to are returned by `received` so that CANCEL can be sent to them.
+ *
+ * The block state of a piece is stored in a byte array and an int array that
+ * are reused for the next piece when the piece is done.
+ *
+ * All methods are synchronized.
+ */
+public class BlockTracker {
+    public static final int BLOCK_LENGTH = Torrent.MAX_REQUEST_LENGTH;
+    public static final int NO_OWNER = -1;
+    public static final int DEFAULT_ENDGAME_MAX_BLOCKS = 64;    // 1 MiB
+    public static final int DEFAULT_MAX_REQUESTS_PER_BLOCK = 3;
+
+    private static final byte FREE = 0;
+    private static final byte REQUESTED = 1;
+    private static final byte RECEIVED = 2;
+
+    // The block state of a piece in flight.
+    private static class PieceBlocks {
+        private final byte[] states;
+        // owners[i] is the id of the peer that block `i` was requested from, NO_OWNER if free.
+        private final int[] owners;
+        // timedOut[i] is the id of the peer that the last timed out request of block `i` was sent to, NO_OWNER if none.
+        private final int[] timedOut;
+        private int piece;
+        private int amountOfBlocks;
+        private int free;
+        private int received;
+        // Block index -> the ids of the peers that a requested block also was requested from in the endgame.
+        private Map<Integer, List<Integer>> duplicates;
+
+        private PieceBlocks(int maxBlocks) {
+            this.states = new byte[maxBlocks];
+            this.owners = new int[maxBlocks];
+            this.timedOut = new int[maxBlocks];
+        }
+
+        private void reset(int piece, int amountOfBlocks) {
+            Arrays.fill(this.states, 0, amountOfBlocks, FREE);
+            Arrays.fill(this.owners, 0, amountOfBlocks, NO_OWNER);
+            Arrays.fill(this.timedOut, 0, amountOfBlocks, NO_OWNER);
+            this.piece = piece;
+            this.amountOfBlocks = amountOfBlocks;
+            this.free = amountOfBlocks;
+            this.received = 0;
+            this.duplicates = null;
+        }
+
+        private List<Integer> duplicatesOf(int block) {
+            return this.duplicates != null ? this.duplicates.get(block) : null;
+        }
+    }
+
+    private final PiecePicker picker;
+    private final long pieceLength;
+    private final long totalLength;
+    private final int maxBlocks;
+    private final int endgameMaxBlocks;
+    private final int maxRequestsPerBlock;
+
+    // The amount of blocks in flight that are requested but not received.
+    private int requestedBlocks;
+
+    private final Map<Integer, PieceBlocks> inFlight;
+    // Released PieceBlocks that are reused for the next pieces.
+    private final ArrayDeque<PieceBlocks> pool;
+
+    /**
+     * @param torrent the torrent to track the blocks of.
+     * @param picker  the picker of the pieces of the torrent.
+     */
+    public BlockTracker(Torrent torrent, PiecePicker picker) {
+        this(
+                picker,
+                torrent.getPieceLength(),
+                torrent.getTotalLength(),
+                DEFAULT_ENDGAME_MAX_BLOCKS,
+                DEFAULT_MAX_REQUESTS_PER_BLOCK
+        );
+    }
+
+    BlockTracker(PiecePicker picker, long pieceLength, long totalLength, int endgameMaxBlocks,
+                 int maxRequestsPerBlock) {
+        if (pieceLength <= 0)
+            throw new IllegalArgumentException("Piece length must be positive: " + pieceLength);
+        if (endgameMaxBlocks < 0 || maxRequestsPerBlock < 1)
+            throw new IllegalArgumentException("Incorrect endgame limits.");
+
+        this.picker = picker;
+        this.pieceLength = pieceLength;
+        this.totalLength = totalLength;
+        this.maxBlocks = (int) ((pieceLength + BLOCK_LENGTH - 1) / BLOCK_LENGTH);
+        this.inFlight = new HashMap<>();
+        this.pool = new ArrayDeque<>();
+        this.endgameMaxBlocks = endgameMaxBlocks;
+        this.maxRequestsPerBlock = maxRequestsPerBlock;
+        this.requestedBlocks = 0;
+    }
+
+    /**
+     * Picks blocks to request from a peer and marks them as requested by the
+     * peer. Blocks of pieces that already are in flight are picked first. In
+     * the endgame, blocks that are requested from other peers are picked if
+     * there aren't enough free blocks. Blocks whose request to the peer has
+     * timed out are never picked for the peer.
+     *
+     * @param peerId       the id of the peer.
+     * @param peerBitfield the bitfield of the peer.
+     * @param max          the max amount of blocks to pick.
+     * @return the picked blocks, empty if the peer has no block that should be requested.
+     */
+    public synchronized List<BlockRequest> request(int peerId, Bitfield peerBitfield, int max) {
+        List<BlockRequest> requests = new ArrayList<>();
+        // Partial pieces whose free blocks all have timed out for the peer.
+        Set<Integer> skipped = new HashSet<>();
+        while (requests.size() < max) {
+            int piece = this.picker.pick(peerBitfield, skipped);
+            if (piece == -1)
+                break;
+
+            PieceBlocks blocks = this.inFlight.get(piece);
+            if (blocks == null) {
+                blocks = this.acquire(piece);
+                this.inFlight.put(piece, blocks);
+            }
+
+            int before = requests.size();
+            for (int i = 0; i < blocks.amountOfBlocks && blocks.free > 0 && requests.size() < max; i++) {
+                if (blocks.states[i] == FREE && blocks.timedOut[i] != peerId) {
+                    blocks.states[i] = REQUESTED;
+                    blocks.owners[i] = peerId;
+                    blocks.free--;
+                    this.requestedBlocks++;
+                    requests.add(new BlockRequest(piece, i * BLOCK_LENGTH, this.blockLength(piece, i)));
+                }
+            }
+            if (blocks.free == 0)
+                this.picker.setRequested(piece);
+            else if (requests.size() == before)
+                skipped.add(piece);
+        }
+
+        if (requests.size() < max && this.isEndgame())
+            this.requestDuplicates(peerId, peerBitfield, max, requests);
+        return requests;
+    }
+
+    // Picks blocks that are requested from other peers, but from fewer than `maxRequestsPerBlock` peers.
+    private void requestDuplicates(int peerId, Bitfield peerBitfield, int max, List<BlockRequest> requests) {
+        for (PieceBlocks blocks : this.inFlight.values()) {
+            if (!peerBitfield.isSet(blocks.piece))
+                continue;
+
+            for (int i = 0; i < blocks.amountOfBlocks && requests.size() < max; i++) {
+                if (blocks.states[i] != REQUESTED || blocks.owners[i] == peerId || blocks.timedOut[i] == peerId)
+                    continue;
+
+                List<Integer> duplicates = blocks.duplicatesOf(i);
+                int owners = 1 + (duplicates != null ? duplicates.size() : 0);
+                if (owners >= this.maxRequestsPerBlock || (duplicates != null && duplicates.contains(peerId)))
+                    continue;
+
+                if (blocks.duplicates == null)
+                    blocks.duplicates = new HashMap<>();
+                blocks.duplicates.computeIfAbsent(i, k -> new ArrayList<>(1)).add(peerId);
+                requests.add(new BlockRequest(blocks.piece, i * BLOCK_LENGTH, this.blockLength(blocks.piece, i)));
+            }
+            if (requests.size() >= max)
+                return;
+        }
+    }
+
+    /**
+     * @return true if no peer has a piece left that hasn't been started and
+     * only a few blocks are left to receive.
+     */
+    public synchronized boolean isEndgame() {
+        return this.requestedBlocks > 0
+                && this.requestedBlocks <= this.endgameMaxBlocks
+                && !this.picker.hasAvailableFreePieces();
+    }
+
+    /**
+     * Marks a block as received. Blocks that arrive after their request was
+     * released, or from another peer than the one they were requested from,
+     * are also accepted. The ids of the other peers that the block was
+     * requested from are added to `cancel`, a CANCEL should be sent to them.
+     *
+     * @param peerId the id of the peer that sent the block.
+     * @param piece  the index of the piece.
+     * @param offset the offset of the block inside the piece.
+     * @param cancel the list that the ids of the peers to send CANCEL to are added to.
+     * @return true if the block was in flight and not received before, false if it should be discarded.
+     */
+    public synchronized boolean received(int peerId, int piece, int offset, List<Integer> cancel) {
+        PieceBlocks blocks = this.inFlight.get(piece);
+        if (blocks == null)
+            return false;
+
+        int block = this.blockIndex(blocks, offset);
+        if (blocks.states[block] == RECEIVED)
+            return false;
+
+        if (blocks.states[block] == FREE) {
+            blocks.free--;
+            if (blocks.free == 0)
+                this.picker.setRequested(piece);
+        } else {
+            this.requestedBlocks--;
+            if (blocks.owners[block] != peerId)
+                cancel.add(blocks.owners[block]);
+            List<Integer> duplicates = blocks.duplicates != null ? blocks.duplicates.remove(block) : null;
+            if (duplicates != null) {
+                for (int duplicate : duplicates) {
+                    if (duplicate != peerId)
+                        cancel.add(duplicate);
+                }
+            }
+        }
+        blocks.states[block] = RECEIVED;
+        blocks.owners[block] = NO_OWNER;
+        blocks.received++;
+        return true;
+    }
+
+    /**
+     * Marks blocks of a piece that isn't being downloaded as received, ex.
+     * blocks that were downloaded in a previous session and are restored from
+     * the resume data. Only the other blocks of the piece are requested.
+     * Does nothing if the piece already is started or downloaded.
+     *
+     * @param piece  the index of the piece.
+     * @param blocks the blocks of the piece that have been received.
+     */
+    public synchronized void restore(int piece, Bitfield blocks) {
+        if (this.inFlight.containsKey(piece))
+            return;
+
+        PieceBlocks pieceBlocks = this.acquire(piece);
+        if (blocks.getAmountOfPieces() != pieceBlocks.amountOfBlocks) {
+            this.pool.push(pieceBlocks);
+            String msg = "Incorrect amount of blocks of piece " + piece + ": " + blocks.getAmountOfPieces();
+            throw new IllegalArgumentException(msg);
+        }
+        // Complete pieces are verified when their last block is received, so they are downloaded again.
+        if (blocks.nextSetBit(0) == -1 || blocks.nextClearBit(0) == -1 || !this.picker.setStarted(piece)) {
+            this.pool.push(pieceBlocks);
+            return;
+        }
+
+        for (int block = blocks.nextSetBit(0); block != -1; block = blocks.nextSetBit(block + 1)) {
+            pieceBlocks.states[block] = RECEIVED;
+            pieceBlocks.free--;
+            pieceBlocks.received++;
+        }
+        this.inFlight.put(piece, pieceBlocks);
+    }
+
+    /**
+     * @param piece the index of the piece.
+     * @return true if all blocks of the piece have been received.
+     */
+    public synchronized boolean isComplete(int piece) {
+        PieceBlocks blocks = this.inFlight.get(piece);
+        return blocks != null && blocks.received == blocks.amountOfBlocks;
+    }
+
+    /**
+     * Drops the request of a single block from a peer, ex. when the request
+     * was rejected. The block becomes free if it isn't requested from any
+     * other peer. Timed out requests are dropped with `timedOut`.
+     *
+     * @param peerId the id of the peer.
+     * @param piece  the index of the piece.
+     * @param offset the offset of the block inside the piece.
+     * @return true if the block was requested from the peer.
+     */
+    public synchronized boolean cancel(int peerId, int piece, int offset) {
+        PieceBlocks blocks = this.inFlight.get(piece);
+        if (blocks == null)
+            return false;
+
+        return this.drop(blocks, this.blockIndex(blocks, offset), peerId);
+    }
+
+    /**
+     * Drops the request of a block that the peer didn't answer in time. The
+     * block becomes free like with `cancel`, but it isn't requested from the
+     * same peer again.
+     *
+     * @param peerId the id of the peer.
+     * @param piece  the index of the piece.
+     * @param offset the offset of the block inside the piece.
+     * @return true if the block was requested from the peer.
+     */
+    public synchronized boolean timedOut(int peerId, int piece, int offset) {
+        PieceBlocks blocks = this.inFlight.get(piece);
+        if (blocks == null)
+            return false;
+
+        int block = this.blockIndex(blocks, offset);
+        if (blocks.states[block] != RECEIVED)
+            blocks.timedOut[block] = peerId;
+        return this.drop(blocks, block, peerId);
+    }
+
+    /**
+     * Drops all requests of a peer, must be called when the peer chokes us or
+     * disconnects. The blocks that aren't requested from any other peer
+     * become free.
+     *
+     * @param peerId the id of the peer.
+     * @return the amount of requests that were dropped.
+     */
+    public synchronized int release(int peerId) {
+        int dropped = 0;
+        for (PieceBlocks blocks : this.inFlight.values()) {
+            for (int i = 0; i < blocks.amountOfBlocks; i++) {
+                if (this.drop(blocks, i, peerId))
+                    dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    // Drops the request of the block from the peer, another peer that the block is requested from becomes the owner.
+    private boolean drop(PieceBlocks blocks, int block, int peerId) {
+        if (blocks.states[block] != REQUESTED)
+            return false;
+
+        List<Integer> duplicates = blocks.duplicatesOf(block);
+        if (blocks.owners[block] != peerId)
+            return duplicates != null && duplicates.remove((Integer) peerId);
+
+        if (duplicates != null && !duplicates.isEmpty()) {
+            blocks.owners[block] = duplicates.remove(0);
+            return true;
+        }
+
+        blocks.states[block] = FREE;
+        blocks.owners[block] = NO_OWNER;
+        blocks.free++;
+        this.requestedBlocks--;
+        this.picker.setPartial(blocks.piece);
+        return true;
+    }
+
+    /**
+     * Stops tracking a piece that passed its hash check.
+     *
+     * @param piece the index of the piece.
+     */
+    public synchronized void pieceVerified(int piece) {
+        this.remove(piece);
+        this.picker.setHave(piece);
+    }
+
+    /**
+     * Stops tracking a piece that failed its hash check, so that it is picked
+     * and downloaded again from the start.
+     *
+     * @param piece the index of the piece.
+     */
+    public synchronized void pieceFailed(int piece) {
+        this.remove(piece);
+        this.picker.setFree(piece);
+    }
+
+    /**
+     * Stops tracking all pieces and resyncs the picker with `have`, ex. after
+     * a recheck of the downloaded data. The pieces that aren't in `have` are
+     * downloaded again from the start.
+     *
+     * @param have the pieces that have been downloaded and verified.
+     */
+    public synchronized void resync(Bitfield have) {
+        for (int piece : new ArrayList<>(this.inFlight.keySet()))
+            this.remove(piece);
+        this.picker.resync(have);
+    }
+
+    /**
+     * @param piece  the index of the piece.
+     * @param offset the offset of the block inside the piece.
+     * @return the id of the peer that the block is requested from, NO_OWNER if it isn't requested.
+     */
+    public synchronized int getOwner(int piece, int offset) {
+        PieceBlocks blocks = this.inFlight.get(piece);
+        if (blocks == null)
+            return NO_OWNER;
+        int block = this.blockIndex(blocks, offset);
+        return blocks.states[block] == REQUESTED ? blocks.owners[block] : NO_OWNER;
+    }
+
+    /**
+     * @param piece  the index of the piece.
+     * @param offset the offset of the block inside the piece.
+     * @return the amount of peers that the block is requested from.
+     */
+    public synchronized int getRequestCount(int piece, int offset) {
+        PieceBlocks blocks = this.inFlight.get(piece);
+        if (blocks == null)
+            return 0;
+        int block = this.blockIndex(blocks, offset);
+        if (blocks.states[block] != REQUESTED)
+            return 0;
+        List<Integer> duplicates = blocks.duplicatesOf(block);
+        return 1 + (duplicates != null ? duplicates.size() : 0);
+    }
+
+    /**
+     * @return the amount of pieces that have blocks being tracked.
+     */
+    public synchronized int getInFlightPieces() {
+        return this.inFlight.size();
+    }
+
+    private PieceBlocks acquire(int piece) {
+        PieceBlocks blocks = this.pool.poll();
+        if (blocks == null)
+            blocks = new PieceBlocks(this.maxBlocks);
+
+        long length = Math.min(this.pieceLength, this.totalLength - piece * this.pieceLength);
+        blocks.reset(piece, (int) ((length + BLOCK_LENGTH - 1) / BLOCK_LENGTH));
+        return blocks;
+    }
+
+    private void remove(int piece) {
+        PieceBlocks blocks = this.inFlight.remove(piece);
+        if (blocks == null)
+            return;
+
+        for (int i = 0; i < blocks.amountOfBlocks; i++) {
+            if (blocks.states[i] == REQUESTED)
+                this.requestedBlocks--;
+        }
+        this.pool.push(blocks);
+    }
+
+    private int blockLength(int piece, int block) {
+        long pieceEnd = Math.min((piece + 1) * this.pieceLength, this.totalLength);
+        long blockStart = piece * this.pieceLength + block * (long) BLOCK_LENGTH;
+        return (int) Math.min(BLOCK_LENGTH, pieceEnd - blockStart);
+    }
+
+    private int blockIndex(PieceBlocks blocks, int offset) {
+        if (offset < 0 || offset % BLOCK_LENGTH != 0 || offset / BLOCK_LENGTH >= blocks.amountOfBlocks) {
+            String msg = "Incorrect offset of block in piece " + blocks.piece + ": " + offset;
+            throw new IllegalArgumentException(msg);
+        }
+        return offset / BLOCK_LENGTH;
+    }
+}
@@ -1,5 +1,6 @@
 package com.github.jmatss.torc.bittorrent;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -17,6 +18,14 @@ public class InfoHash {
         this.infoHash = md.digest(infoDictionary);
     }
 
+    // Hashes the remaining bytes of the buffer without copying them.
+    // The position of the buffer is moved to its limit.
+    public InfoHash(ByteBuffer infoDictionary) throws NoSuchAlgorithmException {
+        var md = MessageDigest.getInstance(HASH_ALGORITHM);
+        md.update(infoDictionary);
+        this.infoHash = md.digest();
+    }
+
     public InfoHash(byte[] infoHash, boolean rawInfoHash) {
         this.infoHash = infoHash;
     }
@@ -0,0 +1,56 @@
+package com.github.jmatss.torc.bittorrent;
+
+import com.github.jmatss.torc.bencode.bind.BencodeBound;
+import com.github.jmatss.torc.bencode.bind.BencodeField;
+import com.github.jmatss.torc.bencode.bind.BencodeRaw;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The fields of a .torrent file (metainfo) that are used by this client.
+ * Bound by the generated MetainfoBinder, see BencodeBound.
+ * All buffers are read-only views into the decoded metainfo.
+ */
+@BencodeBound
+class Metainfo {
+    @BencodeField("announce")
+    String announce;
+
+    @BencodeField("info")
+    Info info;
+
+    @BencodeBound
+    static class Info {
+        // The exact bytes of the info dictionary, used to calculate the info hash.
+        @BencodeRaw
+        ByteBuffer raw;
+
+        @BencodeField("name")
+        String name;
+
+        @BencodeField("piece length")
+        long pieceLength;
+
+        // SHA1 hashes of all pieces concatenated.
+        @BencodeField("pieces")
+        ByteBuffer pieces;
+
+        // Only set for single-file torrents.
+        @BencodeField(value = "length", required = false)
+        Long length;
+
+        // Only set for multi-file torrents.
+        @BencodeField(value = "files", required = false)
+        List<File> files;
+    }
+
+    @BencodeBound
+    static class File {
+        @BencodeField("length")
+        long length;
+
+        @BencodeField("path")
+        List<String> path;
+    }
+}
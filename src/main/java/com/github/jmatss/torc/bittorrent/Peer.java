@@ -3,36 +3,20 @@ package com.github.jmatss.torc.bittorrent;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
+/**
+ * The address of a peer received from a tracker. The state of a connection
+ * to the peer is kept by its `PeerHandler`.
+ */
 public class Peer {
-    /*
-    private final Lock mutex;
-*/
     private final InetAddress ip;
-    private final int port; /*
-    private final String hostAndPort;
-
-    private Socket connection;
-    private byte[] remoteBitfield;
-
-    private boolean amChoking;
-    private boolean amInterested;
-    private boolean peerChoking;
-    private boolean peerInterested;
-
-     */
+    private final int port;
 
     Peer(InetAddress host, int port) throws UnknownHostException {
         if (port >= (1 << 16) || port <= 0)
             throw new IllegalArgumentException("Received a invalid port number: " + port);
 
         this.ip = host;
-        this.port = port;   /*
-
-        this.amChoking = true;
-        this.amInterested = false;
-        this.peerChoking = true;
-        this.peerInterested = false;
-         */
+        this.port = port;
     }
 
     Peer(String host, int port) throws UnknownHostException {
@@ -0,0 +1,152 @@
+package com.github.jmatss.torc.bittorrent;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static com.github.jmatss.torc.TMP_CONST.SHA1_HASH_LENGTH;
+
+/**
+ * Encoding of the messages of the peer wire protocol. Every message, except
+ * the handshake, is a 4 byte big-endian length prefix followed by a 1 byte
+ * message id and the payload of the message.
+ */
+public class PeerMessage {
+    public static final byte[] PROTOCOL = "BitTorrent protocol".getBytes(StandardCharsets.US_ASCII);
+    public static final int RESERVED_LENGTH = 8;
+    public static final int PEER_ID_LENGTH = 20;
+    // <pstrlen=19><pstr><reserved><info_hash><peer_id>
+    public static final int HANDSHAKE_LENGTH = 1 + PROTOCOL.length + RESERVED_LENGTH + SHA1_HASH_LENGTH
+            + PEER_ID_LENGTH;
+
+    public static final int LENGTH_PREFIX_LENGTH = 4;
+    public static final int ID_LENGTH = 1;
+    // <len=0009+X><id=7><index><begin>, followed by the X bytes of the block.
+    public static final int PIECE_HEADER_LENGTH = LENGTH_PREFIX_LENGTH + ID_LENGTH + 2 * Integer.BYTES;
+
+    // <len=0013><id=6 or 8><index><begin><length>
+    public static final int REQUEST_LENGTH = LENGTH_PREFIX_LENGTH + ID_LENGTH + 3 * Integer.BYTES;
+
+    private PeerMessage() {
+    }
+
+    /**
+     * @param infoHash the info hash of the torrent.
+     * @param peerId   the peer id of this client.
+     * @return a new flipped buffer containing the handshake.
+     */
+    public static ByteBuffer handshake(InfoHash infoHash, byte[] peerId) {
+        if (peerId.length != PEER_ID_LENGTH)
+            throw new IllegalArgumentException("Incorrect length of peer id: " + peerId.length);
+
+        return ByteBuffer.allocate(HANDSHAKE_LENGTH)
+                .put((byte) PROTOCOL.length)
+                .put(PROTOCOL)
+                .put(new byte[RESERVED_LENGTH])
+                .put(infoHash.getBytes())
+                .put(peerId)
+                .flip();
+    }
+
+    /**
+     * @return a new flipped buffer containing a KEEP_ALIVE message (a zero length prefix).
+     */
+    public static ByteBuffer keepAlive() {
+        return ByteBuffer.allocate(LENGTH_PREFIX_LENGTH).putInt(0).flip();
+    }
+
+    /**
+     * Encodes a message without payload, i.e. CHOKE, UNCHOKE, INTERESTED or
+     * NOT_INTERESTED.
+     *
+     * @param type the type of the message.
+     * @return a new flipped buffer containing the message.
+     */
+    public static ByteBuffer message(MessageType type) {
+        return ByteBuffer.allocate(LENGTH_PREFIX_LENGTH + ID_LENGTH)
+                .putInt(ID_LENGTH)
+                .put((byte) type.getValue())
+                .flip();
+    }
+
+    /**
+     * @param piece the index of the piece that has been downloaded and verified.
+     * @return a new flipped buffer containing a HAVE message.
+     */
+    public static ByteBuffer have(int piece) {
+        return ByteBuffer.allocate(LENGTH_PREFIX_LENGTH + ID_LENGTH + Integer.BYTES)
+                .putInt(ID_LENGTH + Integer.BYTES)
+                .put((byte) MessageType.HAVE.getValue())
+                .putInt(piece)
+                .flip();
+    }
+
+    /**
+     * @param bitfield the pieces that have been downloaded and verified.
+     * @return a new flipped buffer containing a BITFIELD message.
+     */
+    public static ByteBuffer bitfield(Bitfield bitfield) {
+        byte[] bytes = bitfield.toByteArray();
+        return ByteBuffer.allocate(LENGTH_PREFIX_LENGTH + ID_LENGTH + bytes.length)
+                .putInt(ID_LENGTH + bytes.length)
+                .put((byte) MessageType.BITFIELD.getValue())
+                .put(bytes)
+                .flip();
+    }
+
+    /**
+     * Puts the header of a PIECE message, i.e. everything except the bytes of
+     * the block, into the `destination`.
+     *
+     * @param destination the buffer to put the header into.
+     * @param piece       the index of the piece.
+     * @param offset      the offset of the block inside the piece.
+     * @param length      the length of the block.
+     * @return the `destination`.
+     */
+    public static ByteBuffer putPieceHeader(ByteBuffer destination, int piece, int offset, int length) {
+        if (length < 0)
+            throw new IllegalArgumentException("Negative block length: " + length);
+
+        return destination
+                .putInt(PIECE_HEADER_LENGTH - LENGTH_PREFIX_LENGTH + length)
+                .put((byte) MessageType.PIECE.getValue())
+                .putInt(piece)
+                .putInt(offset);
+    }
+
+    /**
+     * @param piece  the index of the piece.
+     * @param offset the offset of the block inside the piece.
+     * @param length the length of the block.
+     * @return a new flipped buffer containing the header of a PIECE message.
+     */
+    public static ByteBuffer pieceHeader(int piece, int offset, int length) {
+        return putPieceHeader(ByteBuffer.allocate(PIECE_HEADER_LENGTH), piece, offset, length).flip();
+    }
+
+    /**
+     * @param request the block to request.
+     * @return a new flipped buffer containing a REQUEST message.
+     */
+    public static ByteBuffer request(BlockRequest request) {
+        return blockMessage(MessageType.REQUEST, request);
+    }
+
+    /**
+     * @param request the previously requested block.
+     * @return a new flipped buffer containing a CANCEL message.
+     */
+    public static ByteBuffer cancel(BlockRequest request) {
+        return blockMessage(MessageType.CANCEL, request);
+    }
+
+    private static ByteBuffer blockMessage(MessageType type, BlockRequest request) {
+        return ByteBuffer.allocate(REQUEST_LENGTH)
+                .putInt(REQUEST_LENGTH - LENGTH_PREFIX_LENGTH)
+                .put((byte) type.getValue())
+                .putInt(request.getPiece())
+                .putInt(request.getOffset())
+                .putInt(request.getLength())
+                .flip();
+    }
+}
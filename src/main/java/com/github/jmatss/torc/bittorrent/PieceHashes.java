@@ -0,0 +1,104 @@
+package com.github.jmatss.torc.bittorrent;
+
+import java.nio.ByteBuffer;
+
+import static com.github.jmatss.torc.TMP_CONST.SHA1_HASH_LENGTH;
+
+/**
+ * The SHA-1 hashes of all pieces of a torrent stored in a single contiguous
+ * buffer (the hash of piece `i` is at offset `i * 20`), instead of one array
+ * per piece. Hashes are compared in place without being copied.
+ *
+ * The buffer is either a heap copy of the "pieces" field or, for large
+ * torrents, a view of the field in the memory-mapped .torrent file. A view
+ * requires that the .torrent file isn't modified while the torrent is used.
+ */
+public class PieceHashes {
+    public static final int HASH_LENGTH = SHA1_HASH_LENGTH;
+
+    private final ByteBuffer hashes;
+    private final int size;
+
+    private PieceHashes(ByteBuffer hashes) {
+        if (hashes.remaining() % HASH_LENGTH != 0)
+            throw new IllegalArgumentException("Length of the hashes isn't divisible by the sha1 length.");
+
+        this.hashes = hashes.slice().asReadOnlyBuffer();
+        this.size = this.hashes.remaining() / HASH_LENGTH;
+    }
+
+    /**
+     * Copies the remaining bytes of the given buffer into a new heap buffer.
+     * The position of the given buffer isn't changed.
+     *
+     * @param hashes the concatenated hashes.
+     * @return the piece hashes.
+     */
+    public static PieceHashes copyOf(ByteBuffer hashes) {
+        ByteBuffer copy = ByteBuffer.allocate(hashes.remaining());
+        copy.put(hashes.duplicate()).flip();
+        return new PieceHashes(copy);
+    }
+
+    /**
+     * Uses the remaining bytes of the given buffer without copying them, ex.
+     * a view into a memory-mapped .torrent file.
+     *
+     * @param hashes the concatenated hashes.
+     * @return the piece hashes.
+     */
+    public static PieceHashes viewOf(ByteBuffer hashes) {
+        return new PieceHashes(hashes);
+    }
+
+    /**
+     * @return the amount of hashes, i.e. the amount of pieces.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @param index the index of the piece.
+     * @return a copy of the hash of the piece.
+     */
+    public byte[] get(int index) {
+        this.outOfBoundsGuard(index);
+        byte[] hash = new byte[HASH_LENGTH];
+        ByteBuffer view = this.hashes.duplicate();
+        view.position(index * HASH_LENGTH);
+        view.get(hash);
+        return hash;
+    }
+
+    /**
+     * Compares the hash of the piece with the given digest without copying the hash.
+     *
+     * @param index  the index of the piece.
+     * @param digest the SHA-1 digest of the downloaded piece.
+     * @return true if the digest is equal to the hash of the piece.
+     */
+    public boolean matches(int index, byte[] digest) {
+        this.outOfBoundsGuard(index);
+        if (digest.length != HASH_LENGTH)
+            return false;
+
+        int offset = index * HASH_LENGTH;
+        int difference = 0;
+        for (int i = 0; i < HASH_LENGTH; i++)
+            difference |= this.hashes.get(offset + i) ^ digest[i];
+        return difference == 0;
+    }
+
+    /**
+     * @return true if the hashes are stored off-heap, ex. in a memory-mapped .torrent file.
+     */
+    public boolean isDirect() {
+        return this.hashes.isDirect();
+    }
+
+    private void outOfBoundsGuard(int index) {
+        if (index < 0 || index >= this.size)
+            throw new IndexOutOfBoundsException("Piece index out of bounds: " + index);
+    }
+}
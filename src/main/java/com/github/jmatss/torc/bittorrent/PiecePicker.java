@@ -0,0 +1,337 @@
+package com.github.jmatss.torc.bittorrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Picks the next piece to download from a peer, rarest piece first.
+ *
+ * The availability of every piece (the amount of connected peers that have
+ * it) is counted from the BITFIELD and HAVE messages of the peers. Pieces that
+ * nobody has started downloading ("free" pieces) are kept in one bucket per
+ * availability, so moving a piece to another bucket when its availability
+ * changes is constant time and the rarest free pieces are found by looking at
+ * the lowest non-empty bucket first. Ties within a bucket are broken by
+ * starting the search at a random position of the bucket, so that clients
+ * that connect to the same peers don't all pick the same pieces.
+ *
+ * Partial pieces, i.e. pieces that have been picked but still have blocks
+ * that should be requested, are preferred over free pieces so that started
+ * pieces are finished (and can be shared) before new pieces are started.
+ *
+ * The state of a piece goes:
+ *     FREE -> PARTIAL (picked) <-> REQUESTED (all blocks requested) -> HAVE
+ * and back to FREE if the piece fails its hash check or is abandoned.
+ *
+ * All methods are synchronized.
+ */
+public class PiecePicker {
+    private enum State {
+        FREE,       // Not started, kept in the bucket of its availability.
+        PARTIAL,    // Started and has blocks that should be requested.
+        REQUESTED,  // All blocks have been requested, waiting for them to arrive.
+        HAVE        // Downloaded and verified.
+    }
+
+    // A set of pieces with constant time add and remove (by swapping with the last piece).
+    private static class Bucket {
+        private int[] pieces = new int[8];
+        private int size = 0;
+    }
+
+    private final Bitfield downloading;
+    private final Random random;
+
+    private final int[] availability;
+    private final State[] states;
+
+    // buckets.get(a) contains the free pieces with availability `a`.
+    private final List<Bucket> buckets;
+    // positions[p] is the index of the free piece `p` inside of its bucket.
+    private final int[] positions;
+
+    // The pieces in the states PARTIAL and REQUESTED.
+    private final List<Integer> started;
+
+    /**
+     * Creates a picker for the given torrent. Pieces that the torrent already
+     * have are never picked. Picked pieces are set in the "downloading"
+     * bitfield of the torrent.
+     *
+     * @param torrent the torrent to pick pieces for.
+     */
+    public PiecePicker(Torrent torrent) {
+        this(torrent.getBitfieldHave(), torrent.getBitfieldDownloading(), new Random());
+    }
+
+    PiecePicker(Bitfield have, Bitfield downloading, Random random) {
+        int amountOfPieces = have.getAmountOfPieces();
+        this.downloading = downloading;
+        this.random = random;
+        this.availability = new int[amountOfPieces];
+        this.states = new State[amountOfPieces];
+        this.buckets = new ArrayList<>();
+        this.buckets.add(new Bucket());
+        this.positions = new int[amountOfPieces];
+        this.started = new ArrayList<>();
+
+        for (int piece = 0; piece < amountOfPieces; piece++) {
+            if (have.isSet(piece)) {
+                this.states[piece] = State.HAVE;
+            } else {
+                this.states[piece] = State.FREE;
+                this.addToBucket(piece);
+            }
+        }
+    }
+
+    /**
+     * Counts the pieces of a peer that has sent its BITFIELD.
+     *
+     * @param peerBitfield the bitfield of the peer.
+     */
+    public synchronized void addPeer(Bitfield peerBitfield) {
+        this.sizeGuard(peerBitfield);
+        for (int piece = peerBitfield.nextSetBit(0); piece != -1; piece = peerBitfield.nextSetBit(piece + 1))
+            this.changeAvailability(piece, 1);
+    }
+
+    /**
+     * Stops counting the pieces of a peer that has disconnected.
+     *
+     * @param peerBitfield the bitfield of the peer, including the pieces from its HAVE messages.
+     */
+    public synchronized void removePeer(Bitfield peerBitfield) {
+        this.sizeGuard(peerBitfield);
+        for (int piece = peerBitfield.nextSetBit(0); piece != -1; piece = peerBitfield.nextSetBit(piece + 1))
+            this.changeAvailability(piece, -1);
+    }
+
+    /**
+     * Counts a piece that a peer has announced with a HAVE message.
+     *
+     * @param piece the index of the piece.
+     */
+    public synchronized void peerHave(int piece) {
+        this.changeAvailability(piece, 1);
+    }
+
+    /**
+     * Picks the piece to request blocks of from a peer. Partial pieces are
+     * picked before free pieces, the rarest piece is picked in both cases. A
+     * picked free piece becomes partial.
+     *
+     * @param peerBitfield the bitfield of the peer.
+     * @return the index of the picked piece, or -1 if the peer has no piece that should be requested.
+     */
+    public synchronized int pick(Bitfield peerBitfield) {
+        return this.pick(peerBitfield, Collections.emptySet());
+    }
+
+    /**
+     * Picks the piece to request blocks of from a peer, see `pick(Bitfield)`.
+     * The partial pieces in `skip` aren't picked, ex. if the blocks that are
+     * left of them shouldn't be requested from the peer.
+     *
+     * @param peerBitfield the bitfield of the peer.
+     * @param skip         the partial pieces that shouldn't be picked.
+     * @return the index of the picked piece, or -1 if the peer has no piece that should be requested.
+     */
+    public synchronized int pick(Bitfield peerBitfield, Set<Integer> skip) {
+        this.sizeGuard(peerBitfield);
+        int partial = -1;
+        for (int piece : this.started) {
+            if (this.states[piece] == State.PARTIAL && peerBitfield.isSet(piece) && !skip.contains(piece)
+                    && (partial == -1 || this.availability[piece] < this.availability[partial])) {
+                partial = piece;
+            }
+        }
+        if (partial != -1)
+            return partial;
+
+        // A piece that the peer has has an availability of at least one, so bucket 0 is skipped.
+        for (int a = 1; a < this.buckets.size(); a++) {
+            Bucket bucket = this.buckets.get(a);
+            if (bucket.size == 0)
+                continue;
+
+            int start = this.random.nextInt(bucket.size);
+            for (int i = 0; i < bucket.size; i++) {
+                int piece = bucket.pieces[(start + i) % bucket.size];
+                if (peerBitfield.isSet(piece)) {
+                    this.removeFromBucket(piece);
+                    this.states[piece] = State.PARTIAL;
+                    this.started.add(piece);
+                    this.downloading.set(piece);
+                    return piece;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Makes a free piece partial without picking it, ex. when blocks of the
+     * piece already have been downloaded in a previous session.
+     *
+     * @param piece the index of the piece.
+     * @return true if the piece was free.
+     */
+    public synchronized boolean setStarted(int piece) {
+        if (this.states[piece] != State.FREE)
+            return false;
+
+        this.removeFromBucket(piece);
+        this.states[piece] = State.PARTIAL;
+        this.started.add(piece);
+        this.downloading.set(piece);
+        return true;
+    }
+
+    /**
+     * Marks a partial piece as having all of its blocks requested, so it isn't picked again.
+     *
+     * @param piece the index of the piece.
+     */
+    public synchronized void setRequested(int piece) {
+        if (this.states[piece] == State.PARTIAL)
+            this.states[piece] = State.REQUESTED;
+    }
+
+    /**
+     * Marks a piece as having blocks that should be requested again, ex. if
+     * the requests of a choked or disconnected peer were dropped.
+     *
+     * @param piece the index of the piece.
+     */
+    public synchronized void setPartial(int piece) {
+        if (this.states[piece] == State.REQUESTED)
+            this.states[piece] = State.PARTIAL;
+    }
+
+    /**
+     * Marks a piece as downloaded and verified, it is never picked again.
+     *
+     * @param piece the index of the piece.
+     */
+    public synchronized void setHave(int piece) {
+        if (this.states[piece] == State.FREE)
+            this.removeFromBucket(piece);
+        else if (this.states[piece] != State.HAVE)
+            this.started.remove((Integer) piece);
+        this.states[piece] = State.HAVE;
+    }
+
+    /**
+     * Makes a started piece free again, ex. when it fails its hash check.
+     *
+     * @param piece the index of the piece.
+     */
+    public synchronized void setFree(int piece) {
+        if (this.states[piece] != State.PARTIAL && this.states[piece] != State.REQUESTED)
+            return;
+
+        this.started.remove((Integer) piece);
+        this.states[piece] = State.FREE;
+        this.downloading.unSet(piece);
+        this.addToBucket(piece);
+    }
+
+    /**
+     * Resets the state of every piece from `have`, ex. after a recheck of the
+     * downloaded data. Pieces in `have` are never picked again, all other
+     * pieces, including started ones, become free.
+     *
+     * @param have the pieces that have been downloaded and verified.
+     */
+    public synchronized void resync(Bitfield have) {
+        this.sizeGuard(have);
+        for (int piece = 0; piece < this.states.length; piece++) {
+            if (have.isSet(piece)) {
+                if (this.states[piece] == State.FREE)
+                    this.removeFromBucket(piece);
+                this.states[piece] = State.HAVE;
+            } else if (this.states[piece] != State.FREE) {
+                this.states[piece] = State.FREE;
+                this.downloading.unSet(piece);
+                this.addToBucket(piece);
+            }
+        }
+        this.started.clear();
+    }
+
+    /**
+     * @return true if any connected peer has a piece that hasn't been started.
+     */
+    public synchronized boolean hasAvailableFreePieces() {
+        for (int a = 1; a < this.buckets.size(); a++) {
+            if (this.buckets.get(a).size > 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param piece the index of the piece.
+     * @return the amount of connected peers that have the piece.
+     */
+    public synchronized int getAvailability(int piece) {
+        return this.availability[piece];
+    }
+
+    /**
+     * @return the amount of pieces that are partial or have all of their blocks requested.
+     */
+    public synchronized int getStartedPieces() {
+        return this.started.size();
+    }
+
+    private void changeAvailability(int piece, int delta) {
+        if (this.availability[piece] + delta < 0)
+            throw new IllegalStateException("Negative availability of piece " + piece);
+
+        if (this.states[piece] == State.FREE) {
+            this.removeFromBucket(piece);
+            this.availability[piece] += delta;
+            this.addToBucket(piece);
+        } else {
+            this.availability[piece] += delta;
+        }
+    }
+
+    private void addToBucket(int piece) {
+        int a = this.availability[piece];
+        while (this.buckets.size() <= a)
+            this.buckets.add(new Bucket());
+
+        Bucket bucket = this.buckets.get(a);
+        if (bucket.size == bucket.pieces.length) {
+            int[] grown = new int[bucket.pieces.length * 2];
+            System.arraycopy(bucket.pieces, 0, grown, 0, bucket.size);
+            bucket.pieces = grown;
+        }
+        bucket.pieces[bucket.size] = piece;
+        this.positions[piece] = bucket.size;
+        bucket.size++;
+    }
+
+    private void removeFromBucket(int piece) {
+        Bucket bucket = this.buckets.get(this.availability[piece]);
+        int position = this.positions[piece];
+        int last = bucket.pieces[bucket.size - 1];
+        bucket.pieces[position] = last;
+        this.positions[last] = position;
+        bucket.size--;
+    }
+
+    private void sizeGuard(Bitfield peerBitfield) {
+        if (peerBitfield.getAmountOfPieces() != this.states.length) {
+            String msg = "Bitfield of peer has incorrect amount of pieces (" + peerBitfield.getAmountOfPieces();
+            msg += " != " + this.states.length + ")";
+            throw new IllegalArgumentException(msg);
+        }
+    }
+}
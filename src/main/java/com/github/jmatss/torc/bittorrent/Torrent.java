@@ -26,6 +26,10 @@ public class Torrent {
     public static final long CONNECT_TIMEOUT = 5000;
     public static final long READ_TIMEOUT = 5000;
 
+    // Piece hashes of at least this size are kept as a view into a memory-mapped .torrent file
+    // instead of being copied onto the heap.
+    public static final int MAPPED_PIECES_THRESHOLD = 1 << 20;   // 1 MiB (~52k pieces)
+
     // Mutex used when changing filename or moving the file.
     private final Lock mutex;
 
@@ -55,127 +59,146 @@ public class Torrent {
     // Contains info regarding the files of the torrent.
     private final List<TorrentFile> files;
 
-    // SHA1 hashes of all pieces concatenated (pieces.length % 20 == 0).
-    private final byte[][] pieces;
+    // SHA1 hashes of all pieces concatenated.
+    private final PieceHashes pieces;
 
     // Length of a single piece in bytes.
     // All pieces have the same length expected the last one that will be less that pieceLength.
     private final long pieceLength;
 
-    // Indicate of downloading/uploading of this torrent is paused.
-    private boolean paused;
-
-    public Torrent(InputStream inputStream, byte[] peerId)
+    // Sum of the lengths of all files.
+    private final long totalLength;
+
+    // True if the metainfo contains a "files" list, the files are then stored inside the `name` directory.
+    private final boolean multiFile;
+
+    // Indicate of downloading/uploading of this torrent is paused, read by the peer event loops.
+    private volatile boolean paused;
+
+    // The .torrent file that this torrent was created from, null if it wasn't created from a file.
+    private Path metainfoPath;
+
+    /**
+     * Creates a torrent from the bencoded metainfo in the given buffer. The
+     * buffer is decoded without copying its strings, so the buffer can be a
+     * memory-mapped .torrent file.
+     *
+     * @param buffer the bencoded metainfo.
+     * @param peerId the peer id of this client.
+     * @throws BencodeException         if the metainfo is incorrectly formatted.
+     * @throws IOException              if the announce URL is malformed.
+     * @throws NoSuchAlgorithmException if SHA-1 isn't supported on this platform.
+     */
+    public Torrent(ByteBuffer buffer, byte[] peerId)
     throws BencodeException, IOException, NoSuchAlgorithmException {
-        if (inputStream == null)
-            throw new IllegalArgumentException("InputStream is null.");
+        if (buffer == null)
+            throw new IllegalArgumentException("ByteBuffer is null.");
 
-        var torrentDictionary = Bencode.decodeDictionary(inputStream);
+        var metainfo = MetainfoBinder.decode(buffer);
+        var info = metainfo.info;
 
         this.mutex = new ReentrantLock();
         this.peerId = peerId;
         this.tracker = null;
         this.paused = false;
+        this.metainfoPath = null;
 
         // ANNOUNCE
-        var announce = torrentDictionary.get(BencodeUtil.toBenString("announce"));
-        if (announce == null)
-            throw new BencodeException("\"announce\" field is null.");
-        this.announce = new URL(announce.getString());
-
-        // INFO
-        var infoResult = torrentDictionary.get(BencodeUtil.toBenString("info"));
-        if (infoResult == null)
-            throw new BencodeException("\"info\" field is null.");
-        var info = infoResult.getDictionary();
+        this.announce = new URL(metainfo.announce);
 
         // INFO_HASH
-        var content = Bencode.encode(infoResult);
-        this.infoHash = new InfoHash(content);
+        // Hash the exact bytes of the info dictionary found in the metainfo instead of
+        // re-encoding it, re-encoding would give the wrong hash for non-canonical files.
+        this.infoHash = new InfoHash(info.raw);
 
         // NAME
-        var name = info.get(BencodeUtil.toBenString("name"));
-        if (name == null)
-            throw new BencodeException("\"name\" field is null.");
-        this.name = Paths.get(name.getString());
+        // An empty name puts the files of a multi-file torrent directly in the download directory.
+        if (!info.name.isEmpty() || info.files == null)
+            checkPathComponent(info.name);
+        this.name = Paths.get(info.name);
 
         // PIECE LENGTH
-        var pieceLength = info.get(BencodeUtil.toBenString("piece length"));
-        if (pieceLength == null)
-            throw new BencodeException("\"piece length\" field is null.");
-        this.pieceLength = pieceLength.getNumber();
+        this.pieceLength = info.pieceLength;
 
         // PIECES
-        var pieces = info.get(BencodeUtil.toBenString("pieces"));
-        if (pieces == null)
-            throw new BencodeException("\"pieces\" field is null.");
-        var piecesBytes = pieces.getBytes();
-        if (piecesBytes.length % SHA1_HASH_LENGTH != 0)
+        if (info.pieces.remaining() % SHA1_HASH_LENGTH != 0)
             throw new BencodeException("Field \"pieces\" isn't divisible by sha1 length.");
 
-        ByteBuffer buffer = ByteBuffer.wrap(piecesBytes);
-        this.pieces = new byte[piecesBytes.length / SHA1_HASH_LENGTH][];
-        for (int i = 0; i < this.pieces.length; i++) {
-            byte[] currentDigest = new byte[SHA1_HASH_LENGTH];
-            buffer.get(currentDigest);
-            this.pieces[i] = currentDigest;
-        }
+        // The hashes of large torrents are used straight from a mapped .torrent file,
+        // so they don't have to be kept on the heap.
+        if (buffer.isDirect() && info.pieces.remaining() >= MAPPED_PIECES_THRESHOLD)
+            this.pieces = PieceHashes.viewOf(info.pieces);
+        else
+            this.pieces = PieceHashes.copyOf(info.pieces);
 
         // BITFIELDS
-        this.bitfieldHave = new Bitfield(this.pieces.length);
-        this.bitfieldDownloading = new Bitfield(this.pieces.length);
+        this.bitfieldHave = new Bitfield(this.pieces.size());
+        this.bitfieldDownloading = new Bitfield(this.pieces.size());
 
         // If true: this is a single-file torrent.
         // Else: this is a multi-file torrent.
-        if (!info.containsKey(BencodeUtil.toBenString("files"))) {
+        this.multiFile = info.files != null;
+        if (!this.multiFile) {
             // LENGTH
-            var length = info.get(BencodeUtil.toBenString("length"));
-            if (length == null)
+            if (info.length == null)
                 throw new BencodeException("\"length\" field is null.");
-            this.files = List.of(new TorrentFile(0, length.getNumber(), this.name));
+            this.files = List.of(new TorrentFile(0, info.length, this.name));
         } else {
             // FILES
-            var filesResult = info.get(BencodeUtil.toBenString("files"));
-            if (filesResult == null)
-                throw new BencodeException("\"files\" field is null.");
-            var files = filesResult.getList();
-
-            this.files = new ArrayList<>(files.size());
+            this.files = new ArrayList<>(info.files.size());
 
             int index = 0;
-            for (BencodeData<Object> fileResult : files) {
-                // FILE
-                if (fileResult == null)
-                    throw new BencodeException("File " + index + " inside \"files\" field is null.");
-                var file = fileResult.getDictionary();
-
-                // LENGTH
-                var lengthResult = file.get(BencodeUtil.toBenString("length"));
-                if (lengthResult == null)
-                    throw new BencodeException("null length in file " + index + " inside \"files\" field.");
-                long length = lengthResult.getNumber();
-
-                // PATH
-                var pathResult = file.get(BencodeUtil.toBenString("path"));
-                if (pathResult == null)
-                    throw new BencodeException("Incorrect path of file " + index + " inside \"files\" field.");
-                var path = pathResult.getList();
-                List<String> pathStrings = new ArrayList<>(path.size());
-
-                for (BencodeData<Object> pathPiece : path) {
-                    if (pathPiece == null)
-                        throw new BencodeException("null path of file " + index + " inside \"files\" field.");
-                    pathStrings.add(BencodeUtil.fromBenString(pathPiece));
-                }
-
-                this.files.add(new TorrentFile(index, length, String.join(File.separator, pathStrings)));
+            for (Metainfo.File file : info.files) {
+                if (file.path.isEmpty())
+                    throw new BencodeException("Empty \"path\" of file " + index + ".");
+                for (String component : file.path)
+                    checkPathComponent(component);
+                this.files.add(new TorrentFile(index, file.length, String.join(File.separator, file.path)));
                 index++;
             }
         }
+
+        long totalLength = 0;
+        for (TorrentFile file : this.files)
+            totalLength += file.getLength();
+        this.totalLength = totalLength;
+    }
+
+    public Torrent(InputStream inputStream, byte[] peerId)
+    throws BencodeException, IOException, NoSuchAlgorithmException {
+        this(readAll(inputStream), peerId);
     }
 
+    // Memory-maps the .torrent file instead of reading it onto the heap.
     public Torrent(String filename, byte[] peerId) throws IOException, BencodeException, NoSuchAlgorithmException {
-        this(new FileInputStream(filename), peerId);
+        this(Bencode.map(Paths.get(filename)), peerId);
+        this.metainfoPath = Paths.get(filename);
+    }
+
+    /**
+     * Makes sure that a component of a path from the metainfo can't point
+     * outside of the download directory, i.e. that it isn't empty, ".", ".."
+     * or contains a separator (which includes absolute paths).
+     *
+     * @param component the name of the torrent or a component of the path of a file.
+     * @return the `component`.
+     * @throws BencodeException if the component isn't allowed.
+     */
+    static String checkPathComponent(String component) throws BencodeException {
+        if (component.isEmpty() || component.equals(".") || component.equals(".."))
+            throw new BencodeException("Path component not allowed in metainfo: \"" + component + "\"");
+        for (int i = 0; i < component.length(); i++) {
+            char c = component.charAt(i);
+            if (c == '/' || c == '\\' || c == File.separatorChar || c == '\0')
+                throw new BencodeException("Path component not allowed in metainfo: \"" + component + "\"");
+        }
+        return component;
+    }
+
+    private static ByteBuffer readAll(InputStream inputStream) throws IOException {
+        if (inputStream == null)
+            throw new IllegalArgumentException("InputStream is null.");
+        return ByteBuffer.wrap(inputStream.readAllBytes());
     }
 
     public Torrent lock() {
@@ -217,6 +240,10 @@ public class Torrent {
         return this.infoHash;
     }
 
+    public byte[] getPeerId() {
+        return this.peerId;
+    }
+
     public Bitfield getBitfieldHave() {
         return this.bitfieldHave;
     }
@@ -233,7 +260,7 @@ public class Torrent {
         return this.files;
     }
 
-    public byte[][] getPieces() {
+    public PieceHashes getPieces() {
         return this.pieces;
     }
 
@@ -241,6 +268,37 @@ public class Torrent {
         return this.pieceLength;
     }
 
+    /**
+     * Returns the length of the piece with the given index. All pieces have
+     * the length `getPieceLength()` except the last one that might be shorter.
+     *
+     * @param index the index of the piece.
+     * @return the length of the piece in bytes.
+     */
+    public long getPieceLength(int index) {
+        if (index < 0 || index >= this.pieces.size())
+            throw new IndexOutOfBoundsException("Piece index out of bounds: " + index);
+        if (index < this.pieces.size() - 1)
+            return this.pieceLength;
+        return this.totalLength - this.pieceLength * (this.pieces.size() - 1);
+    }
+
+    public int getAmountOfPieces() {
+        return this.pieces.size();
+    }
+
+    public long getTotalLength() {
+        return this.totalLength;
+    }
+
+    public boolean isMultiFile() {
+        return this.multiFile;
+    }
+
+    public Path getMetainfoPath() {
+        return this.metainfoPath;
+    }
+
     public boolean isPaused() {
         return this.paused;
     }
@@ -1,6 +1,7 @@
 package com.github.jmatss.torc.bittorrent;
 
 import com.github.jmatss.torc.bencode.*;
+import com.github.jmatss.torc.util.DynamicByteBuffer;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -19,6 +20,10 @@ import static com.github.jmatss.torc.TMP_CONST.ENCODING;
 public class Tracker {
     public static long DEFAULT_INTERVAL = 10; // seconds
 
+    // Keys of a peer in the dictionary model.
+    private static final BencodeString IP = BencodeKey.of("ip");
+    private static final BencodeString PORT = BencodeKey.of("port");
+
     private final Lock mutex;
 
     private final InfoHash infoHash;
@@ -130,115 +135,58 @@ public class Tracker {
         return URLEncode(String.valueOf(l));
     }
 
+    /**
+     * Parses a tracker response and updates this tracker with its contents.
+     * The response is bound by the generated TrackerResponseBinder, so no
+     * intermediate tree is created.
+     *
+     * @param inputStream the bencoded tracker response.
+     * @throws IOException      if unable to read the response or if the tracker responded with a failure.
+     * @throws BencodeException if the response is incorrectly formatted.
+     */
     public void updateFromResponse(InputStream inputStream)
     throws IOException, BencodeException {
-        var responseDictionary = Bencode.decodeDictionary(inputStream);
-
-        // FAILURE REASON
-        // If (failure reason is empty): the request went as expected, else: something failed.
-        var failureReasonResult = responseDictionary.get(BencodeUtil.toBenString("failure reason"));
-        if (failureReasonResult == null)
-            throw new BencodeException("\"failure reason\" field is null.");
-        String failureReason = BencodeUtil.fromBenString(failureReasonResult);
-        if (!failureReason.isEmpty())
-            throw new IOException("Received failure from tracker: " + failureReason);
-
-        this.mutex.lock();
-        try {
+        // The response is read into a pooled buffer. The bound response contains
+        // views into that buffer, so they must not be used after it is closed.
+        TrackerResponse response;
+        List<Peer> newPeers;
+        try (var content = new DynamicByteBuffer()) {
+            content.readFrom(inputStream);
+            response = TrackerResponseBinder.decode(content.getBuffer());
+
+            // FAILURE REASON
+            // If (failure reason is empty): the request went as expected, else: something failed.
+            if (!response.failureReason.isEmpty())
+                throw new IOException("Received failure from tracker: " + response.failureReason);
 
             // INTERVAL
-            var intervalResult = responseDictionary.get(BencodeUtil.toBenString("interval"));
-            if (intervalResult == null)
+            if (response.interval == null)
                 throw new BencodeException("\"interval\" field is null.");
-            long interval = intervalResult.getNumber();
 
             // TRACKER ID
-            var trackerIdResult = responseDictionary.get(BencodeUtil.toBenString("tracker id"));
-            if (trackerIdResult == null)
+            if (response.trackerId == null)
                 throw new BencodeException("\"tracker id\" field is null.");
-            String trackerId = trackerIdResult.getString();
 
             // SEEDERS (complete)
-            var seedersResult = responseDictionary.get(BencodeUtil.toBenString("complete"));
-            if (seedersResult == null)
+            if (response.complete == null)
                 throw new BencodeException("\"complete\"(seeders) field is null.");
-            long seeders = seedersResult.getNumber();
 
             // LEECHERS (incomplete)
-            var leecehersResult = responseDictionary.get(BencodeUtil.toBenString("incomplete"));
-            if (leecehersResult == null)
+            if (response.incomplete == null)
                 throw new BencodeException("\"incomplete\"(leechers) field is null.");
-            long leechers = leecehersResult.getNumber();
 
             // PEERS
-            var peersResult = responseDictionary.get(BencodeUtil.toBenString("peers"));
-            if (peersResult == null)
+            if (response.peers == null)
                 throw new BencodeException("\"peers\" field is null.");
+            newPeers = this.readPeers(new BencodeReader(response.peers));
+        }
 
-            // If (LIST): The peer list is a "dictionary model".
-            // Else if (STRING): The peer list is a "binary model".
-            // Else: Something wrong.
-            var newPeers = new ArrayList<Peer>();
-            if (peersResult.getType() == BencodeType.LIST) {
-                /*
-                    DICTIONARY MODEL
-                 */
-                var peersList = peersResult.getList();
-                for (BencodeData<Object> peerResult : peersList) {
-
-                    if (peerResult.getType() != BencodeType.DICTIONARY)
-                        throw new BencodeException("Incorrect \"peers\" field, expected dictionary model.");
-                    var peerDictionary = peerResult.getDictionary();
-                    // (PEER ID is ignored)
-
-                    // IP
-                    var ipResult = peerDictionary.get(BencodeUtil.toBenString("ip"));
-                    if (ipResult == null) {
-                        throw new BencodeException("\"ip\" field of a peer is null.");
-                    }
-                    String ip = ipResult.getString();
-
-                    // PORT
-                    var portResult = peerDictionary.get(BencodeUtil.toBenString("port"));
-                    if (portResult == null) {
-                        throw new BencodeException("\"port\" field of a peer is null.");
-                    }
-                    long port = portResult.getNumber();
-
-                    // PEER
-                    newPeers.add(new Peer(ip, (int)port));
-                }
-            } else if (peersResult.getType() == BencodeType.STRING) {
-                /*
-                    BINARY MODEL
-                 */
-                var peersBytes = peersResult.getBytes();
-                if (peersBytes.length % 6 != 0) {
-                    throw new BencodeException("Binary model peers list not divisible by 6 (4 byte ip + 2 byte port).");
-                }
-
-                ByteBuffer buffer = ByteBuffer.wrap(peersBytes);
-
-                byte[] ipBuf = new byte[4];
-                byte[] portBuf = new byte[2];
-                while (buffer.hasRemaining()) {
-                    buffer.get(ipBuf);
-                    buffer.get(portBuf);
-
-                    InetAddress ip = InetAddress.getByAddress(ipBuf);
-                    int port = portBuf[0] << 8 | portBuf[1];
-
-                    // PEER
-                    newPeers.add(new Peer(ip, port));
-                }
-            } else {
-                throw new BencodeException("Incorrect format of peers. Peers where neither List or String.");
-            }
-
-            this.trackerId = trackerId;
-            this.interval = interval;
-            this.seeders = seeders;
-            this.leechers = leechers;
+        this.mutex.lock();
+        try {
+            this.trackerId = response.trackerId;
+            this.interval = response.interval;
+            this.seeders = response.complete;
+            this.leechers = response.incomplete;
 
             // TODO: Will need some sort of mechanism to remove old peers that might have exited or
             //  just doesn't have the pieces that this client needs.
@@ -252,6 +200,83 @@ public class Tracker {
         }
     }
 
+    /**
+     * Reads the value of the "peers" key. The next token of the reader is
+     * assumed to be the start of the value.
+     *
+     * @param reader the reader of the encoded "peers" value.
+     * @return the peers found in the response.
+     * @throws IOException      if unable to parse the address of a peer.
+     * @throws BencodeException if the peers are incorrectly formatted.
+     */
+    private List<Peer> readPeers(BencodeReader reader) throws IOException, BencodeException {
+        var newPeers = new ArrayList<Peer>();
+
+        // If (LIST): The peer list is a "dictionary model".
+        // Else if (STRING): The peer list is a "binary model".
+        // Else: Something wrong.
+        BencodeEvent event = reader.next();
+        if (event == BencodeEvent.START_LIST) {
+            /*
+                DICTIONARY MODEL
+             */
+            while (reader.next() != BencodeEvent.END) {
+                if (reader.getEvent() != BencodeEvent.START_DICT)
+                    throw new BencodeException("Incorrect \"peers\" field, expected dictionary model.");
+
+                String ip = null;
+                Long port = null;
+                while (reader.next() != BencodeEvent.END) {
+                    if (reader.keyEquals(IP)) {
+                        ip = reader.nextString();
+                    } else if (reader.keyEquals(PORT)) {
+                        port = reader.nextNumber();
+                    } else {
+                        // (PEER ID is ignored)
+                        reader.skip();
+                    }
+                }
+
+                // IP
+                if (ip == null) {
+                    throw new BencodeException("\"ip\" field of a peer is null.");
+                }
+
+                // PORT
+                if (port == null) {
+                    throw new BencodeException("\"port\" field of a peer is null.");
+                }
+
+                // PEER
+                newPeers.add(new Peer(ip, (int)(long)port));
+            }
+        } else if (event == BencodeEvent.STRING) {
+            /*
+                BINARY MODEL
+             */
+            if (reader.getStringLength() % 6 != 0) {
+                throw new BencodeException("Binary model peers list not divisible by 6 (4 byte ip + 2 byte port).");
+            }
+
+            ByteBuffer buffer = reader.getBuffer();
+
+            byte[] ipBuf = new byte[4];
+            while (buffer.hasRemaining()) {
+                buffer.get(ipBuf);
+                int port = buffer.getShort() & 0xffff;
+
+                InetAddress ip = InetAddress.getByAddress(ipBuf);
+
+                // PEER
+                newPeers.add(new Peer(ip, port));
+            }
+        } else {
+            throw new BencodeException("Incorrect format of peers. Peers where neither List or String.");
+        }
+
+        return newPeers;
+    }
+
     public String getTrackerId() {
         return this.trackerId;
     }
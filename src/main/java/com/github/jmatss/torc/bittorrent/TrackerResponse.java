@@ -0,0 +1,40 @@
+package com.github.jmatss.torc.bittorrent;
+
+import com.github.jmatss.torc.bencode.bind.BencodeBound;
+import com.github.jmatss.torc.bencode.bind.BencodeField;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The fields of a tracker response. Bound by the generated
+ * TrackerResponseBinder, see BencodeBound.
+ *
+ * A failure response only contains the "failure reason", so the rest of the
+ * fields are optional here and validated by the Tracker after it has made
+ * sure that the response isn't a failure.
+ */
+@BencodeBound
+class TrackerResponse {
+    // Empty if the request went as expected.
+    @BencodeField("failure reason")
+    String failureReason;
+
+    @BencodeField(value = "interval", required = false)
+    Long interval;
+
+    @BencodeField(value = "tracker id", required = false)
+    String trackerId;
+
+    // Seeders.
+    @BencodeField(value = "complete", required = false)
+    Long complete;
+
+    // Leechers.
+    @BencodeField(value = "incomplete", required = false)
+    Long incomplete;
+
+    // The peers are either a list of dictionaries (dictionary model) or a
+    // string (binary model), so the encoded bytes are kept and parsed by the Tracker.
+    @BencodeField(value = "peers", required = false, raw = true)
+    ByteBuffer peers;
+}
@@ -0,0 +1,392 @@
+package com.github.jmatss.torc.handler;
+
+import com.github.jmatss.torc.bittorrent.InfoHash;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the peer wire connections of all torrents on a few event-loop threads.
+ *
+ * Every event loop owns a Selector and a subset of the connections, the
+ * connections are non-blocking SocketChannels that are spread over the loops
+ * round-robin. A connection is only touched by the thread of its loop, work
+ * from other threads (ex. completed disk I/O) is handed to the loop with
+ * `EventLoop.execute`. Incoming connections are accepted by the first loop and
+ * are matched to a torrent, registered with `register`, by the info hash of
+ * their handshake.
+ *
+ * This class is thread safe.
+ */
+public class PeerEngine implements Closeable {
+    public static final Logger LOGGER = Logger.getLogger(PeerEngine.class.getName());
+
+    public static final int DEFAULT_EVENT_LOOPS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    public static final int DEFAULT_MAX_CONNECTIONS = 8192;
+    // Interval of the timeout and keep-alive checks of the connections.
+    public static final long TICK_MILLIS = 1000;
+
+    /**
+     * An event-loop thread with its own Selector.
+     */
+    class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks;
+        // Set when the selector has been woken up, prevents a wakeup per queued task.
+        private final AtomicBoolean wokenUp;
+        private final Thread thread;
+
+        private EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.wokenUp = new AtomicBoolean(false);
+            this.thread = new Thread(this, "torc-peer-loop-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * Runs the `task` on the thread of this loop. Tasks that are queued
+         * after the loop has stopped are never run.
+         *
+         * @param task the task to run.
+         */
+        void execute(Runnable task) {
+            this.tasks.add(task);
+            if (Thread.currentThread() != this.thread && this.wokenUp.compareAndSet(false, true))
+                this.selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == this.thread;
+        }
+
+        Selector getSelector() {
+            return this.selector;
+        }
+
+        @Override
+        public void run() {
+            long nextTick = System.currentTimeMillis() + TICK_MILLIS;
+            try {
+                while (!PeerEngine.this.closed.get()) {
+                    this.selector.select(TICK_MILLIS);
+                    this.wokenUp.set(false);
+
+                    this.runTasks();
+                    for (SelectionKey key : this.selector.selectedKeys())
+                        this.handle(key);
+                    this.selector.selectedKeys().clear();
+
+                    long now = System.currentTimeMillis();
+                    if (now >= nextTick) {
+                        for (SelectionKey key : this.selector.keys()) {
+                            if (key.attachment() instanceof PeerHandler)
+                                ((PeerHandler) key.attachment()).tick(now);
+                        }
+                        nextTick = now + TICK_MILLIS;
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                LOGGER.log(Level.SEVERE, "Event loop " + this.thread.getName() + " failed: " + e.getMessage());
+            } finally {
+                this.closeAll();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = this.tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "Task failed in " + this.thread.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            if (key.attachment() instanceof ServerSocketChannel) {
+                if (key.isValid() && key.isAcceptable())
+                    PeerEngine.this.accept((ServerSocketChannel) key.attachment());
+                return;
+            }
+
+            var handler = (PeerHandler) key.attachment();
+            try {
+                if (key.isValid() && key.isConnectable())
+                    handler.onConnectable();
+                if (key.isValid() && key.isReadable())
+                    handler.onReadable();
+                if (key.isValid() && key.isWritable())
+                    handler.onWritable();
+            } catch (IOException | RuntimeException e) {
+                handler.close(e);
+            }
+        }
+
+        private void closeAll() {
+            // Lets queued tasks register or release their resources before everything is closed.
+            this.runTasks();
+            try {
+                for (SelectionKey key : this.selector.keys()) {
+                    if (key.attachment() instanceof PeerHandler)
+                        ((PeerHandler) key.attachment()).close(null);
+                    else
+                        key.channel().close();
+                }
+                this.selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                LOGGER.log(Level.WARNING, "Unable to close " + this.thread.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop;
+    private final int maxConnections;
+    private final AtomicInteger connections;
+    private final AtomicBoolean closed;
+
+    // The torrents that connections can be made for, by info hash.
+    private final Map<InfoHash, PeerHandlerFactory> torrents;
+    private final List<ServerSocketChannel> servers;
+
+    public PeerEngine() throws IOException {
+        this(DEFAULT_EVENT_LOOPS, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param eventLoops     the amount of event-loop threads.
+     * @param maxConnections the max amount of open connections, incoming and outgoing.
+     * @throws IOException if unable to open the selectors.
+     */
+    public PeerEngine(int eventLoops, int maxConnections) throws IOException {
+        if (eventLoops < 1 || maxConnections < 1)
+            throw new IllegalArgumentException("The amount of event loops and connections must be positive.");
+
+        this.loops = new EventLoop[eventLoops];
+        this.nextLoop = new AtomicInteger(0);
+        this.maxConnections = maxConnections;
+        this.connections = new AtomicInteger(0);
+        this.closed = new AtomicBoolean(false);
+        this.torrents = new ConcurrentHashMap<>();
+        this.servers = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < eventLoops; i++)
+                this.loops[i] = new EventLoop(i);
+        } catch (IOException e) {
+            for (EventLoop loop : this.loops) {
+                if (loop != null)
+                    loop.selector.close();
+            }
+            throw e;
+        }
+        for (EventLoop loop : this.loops)
+            loop.thread.start();
+    }
+
+    /**
+     * Makes it possible to connect to, and accept connections from, the peers
+     * of the torrent of the `factory`.
+     *
+     * @param factory the factory of the peer handlers of the torrent.
+     */
+    public void register(PeerHandlerFactory factory) {
+        this.torrents.put(factory.getTorrent().getInfoHash(), factory);
+    }
+
+    /**
+     * Stops accepting connections for the torrent of the `factory` and closes
+     * its open connections.
+     *
+     * @param factory the factory of the peer handlers of the torrent.
+     */
+    public void unregister(PeerHandlerFactory factory) {
+        this.torrents.remove(factory.getTorrent().getInfoHash(), factory);
+        factory.closeAll();
+    }
+
+    /**
+     * Starts accepting incoming connections on the given address.
+     *
+     * @param address the local address to listen on, port 0 picks a free port.
+     * @return the port that is listened on.
+     * @throws IOException if unable to bind the address.
+     */
+    public int listen(InetSocketAddress address) throws IOException {
+        if (this.closed.get())
+            throw new IOException("The peer engine is closed.");
+
+        var server = ServerSocketChannel.open();
+        try {
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(address);
+            server.configureBlocking(false);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        synchronized (this.servers) {
+            this.servers.add(server);
+        }
+
+        EventLoop loop = this.loops[0];
+        loop.execute(() -> {
+            try {
+                server.register(loop.getSelector(), SelectionKey.OP_ACCEPT, server);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Unable to listen on " + address + ": " + e.getMessage());
+            }
+        });
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Starts connecting to a peer of a torrent. The connection is made
+     * asynchronously, failures are logged and the connection is discarded.
+     *
+     * @param address the address of the peer.
+     * @param factory the factory of the peer handlers of the torrent.
+     * @return false if the max amount of connections is reached or the engine is closed.
+     * @throws IOException if unable to open the socket.
+     */
+    public boolean connect(InetSocketAddress address, PeerHandlerFactory factory) throws IOException {
+        if (this.closed.get() || !this.reserveConnection())
+            return false;
+
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(address);
+        } catch (IOException | RuntimeException e) {
+            this.connections.decrementAndGet();
+            throw e;
+        }
+
+        EventLoop loop = this.nextLoop();
+        loop.execute(() -> factory.getPeerHandler(this, loop, channel).register());
+        return true;
+    }
+
+    // Called by the first event loop when a listening socket has pending connections.
+    private void accept(ServerSocketChannel server) {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                if (!this.reserveConnection()) {
+                    channel.close();
+                    continue;
+                }
+
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    channel.close();
+                    this.connections.decrementAndGet();
+                    continue;
+                }
+
+                // The torrent isn't known until the handshake of the peer has been received.
+                EventLoop loop = this.nextLoop();
+                SocketChannel accepted = channel;
+                loop.execute(() -> new PeerHandler(this, loop, accepted, null).register());
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to accept connection: " + e.getMessage());
+        }
+    }
+
+    private boolean reserveConnection() {
+        while (true) {
+            int current = this.connections.get();
+            if (current >= this.maxConnections)
+                return false;
+            if (this.connections.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    private EventLoop nextLoop() {
+        return this.loops[Math.floorMod(this.nextLoop.getAndIncrement(), this.loops.length)];
+    }
+
+    // Called by a handler when its connection has been closed.
+    void connectionClosed() {
+        this.connections.decrementAndGet();
+    }
+
+    /**
+     * @param infoHash the info hash from the handshake of a peer.
+     * @return the factory of the torrent, or null if the torrent isn't registered.
+     */
+    PeerHandlerFactory getFactory(InfoHash infoHash) {
+        return this.torrents.get(infoHash);
+    }
+
+    /**
+     * @return the amount of open connections, including connections that still are connecting.
+     */
+    public int getConnections() {
+        return this.connections.get();
+    }
+
+    public boolean isClosed() {
+        return this.closed.get();
+    }
+
+    /**
+     * Closes all connections and listening sockets and stops the event loops.
+     * Waits for the event loops to finish. Can be called multiple times.
+     */
+    @Override
+    public void close() {
+        if (!this.closed.compareAndSet(false, true))
+            return;
+
+        synchronized (this.servers) {
+            for (ServerSocketChannel server : this.servers) {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Unable to close listening socket: " + e.getMessage());
+                }
+            }
+            this.servers.clear();
+        }
+
+        for (EventLoop loop : this.loops)
+            loop.selector.wakeup();
+        for (EventLoop loop : this.loops) {
+            if (loop.inLoop())
+                continue;
+            try {
+                loop.thread.join(TICK_MILLIS * 5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -1,4 +1,915 @@
 package com.github.jmatss.torc.handler;
 
+import com.github.jmatss.torc.bittorrent.Bitfield;
+import com.github.jmatss.torc.bittorrent.BlockRequest;
+import com.github.jmatss.torc.bittorrent.BlockTracker;
+import com.github.jmatss.torc.bittorrent.IncorrectMessageTypeException;
+import com.github.jmatss.torc.bittorrent.InfoHash;
+import com.github.jmatss.torc.bittorrent.MessageType;
+import com.github.jmatss.torc.bittorrent.PeerMessage;
+import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.storage.DiskIoService;
+import com.github.jmatss.torc.util.BufferPool;
+import com.github.jmatss.torc.util.PooledBuffer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.github.jmatss.torc.TMP_CONST.SHA1_HASH_LENGTH;
+import static com.github.jmatss.torc.bittorrent.PeerMessage.ID_LENGTH;
+import static com.github.jmatss.torc.bittorrent.PeerMessage.LENGTH_PREFIX_LENGTH;
+import static com.github.jmatss.torc.bittorrent.PeerMessage.PIECE_HEADER_LENGTH;
+
+/**
+ * The connection to a single peer of a torrent.
+ *
+ * The handler is a state machine driven by the readiness events of its
+ * non-blocking channel: CONNECTING (outgoing connections only), HANDSHAKE,
+ * CONNECTED and CLOSED. All methods, except `execute` and `disconnect`, must
+ * be called on the thread of the event loop that the handler belongs to.
+ *
+ * Received messages are framed in a small read buffer. The payload of a
+ * PIECE message is instead read into a pooled buffer that is handed over to
+ * the disk I/O service without being copied. Control messages are queued in
+ * a write buffer that is written before the next PIECE message, so they
+ * never end up inside of an upload.
+ *
+ * While the torrent is paused, the peer is kept choked and no blocks are
+ * requested from it.
+ */
 public class PeerHandler {
+    public static final Logger LOGGER = Logger.getLogger(PeerHandler.class.getName());
+
+    // Max amount of blocks that are requested from the peer at the same time.
+    public static final int MAX_OUTSTANDING_REQUESTS = 16;
+    // Max amount of blocks requested by the peer that are queued, later requests are dropped.
+    public static final int MAX_QUEUED_UPLOADS = 32;
+    public static final long KEEP_ALIVE_MILLIS = 90_000;
+    public static final long IDLE_TIMEOUT_MILLIS = 180_000;
+
+    static final int READ_BUFFER_LENGTH = 4096;
+    static final int WRITE_BUFFER_LENGTH = 256;
+    // Max reads per readiness event, prevents a single fast peer from starving the other peers of the loop.
+    private static final int MAX_READS_PER_EVENT = 16;
+
+    public enum State {
+        CONNECTING,
+        HANDSHAKE,
+        CONNECTED,
+        CLOSED
+    }
+
+    // A task that is run on the event loop of the handler.
+    interface Task {
+        void run() throws IOException;
+    }
+
+    private final PeerEngine engine;
+    private final PeerEngine.EventLoop loop;
+    private final SocketChannel channel;
+    private SelectionKey key;
+
+    // Null for incoming connections until the handshake of the peer has been received.
+    private PeerHandlerFactory factory;
+    private int id;
+    private State state;
+    private byte[] remotePeerId;
+    // The pieces of the peer, including the pieces from its HAVE messages.
+    private Bitfield bitfield;
+
+    private boolean amChoking;
+    private boolean amInterested;
+    private boolean peerChoking;
+    private boolean peerInterested;
+    // True while the handler is queued in the factory for an upload slot.
+    private boolean waitingForSlot;
+
+    // In write mode, contains the start of the messages that haven't been handled yet.
+    private ByteBuffer readBuffer;
+    private int maxMessageLength;
+    // The payload of the PIECE message that is being received, null if no PIECE is being received.
+    private PooledBuffer block;
+    private int blockPiece;
+    private int blockOffset;
+    private int messagesReceived;
+
+    // In write mode, contains the control messages that haven't been written yet.
+    private ByteBuffer writeBuffer;
+    private final Deque<PieceUpload> uploads;
+    // The upload that is being written, null if none.
+    private PieceUpload upload;
+    // Blocks requested by the peer that are being prepared by the disk I/O service.
+    private final Set<BlockRequest> preparing;
+    // Blocks requested from the peer that haven't been received, oldest first, mapped to the time they were sent.
+    private final Map<BlockRequest, Long> requested;
+
+    private long lastReceived;
+    private long lastSent;
+    private long downloaded;
+    private long uploaded;
+
+    PeerHandler(PeerEngine engine, PeerEngine.EventLoop loop, SocketChannel channel, PeerHandlerFactory factory) {
+        this.engine = engine;
+        this.loop = loop;
+        this.channel = channel;
+        this.key = null;
+
+        this.factory = factory;
+        this.id = factory != null ? factory.add(this) : BlockTracker.NO_OWNER;
+        this.state = channel.isConnectionPending() ? State.CONNECTING : State.HANDSHAKE;
+        this.remotePeerId = null;
+        this.bitfield = null;
+
+        this.amChoking = true;
+        this.amInterested = false;
+        this.peerChoking = true;
+        this.peerInterested = false;
+        this.waitingForSlot = false;
+
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_LENGTH);
+        this.maxMessageLength = PeerMessage.HANDSHAKE_LENGTH;
+        this.block = null;
+        this.messagesReceived = 0;
+
+        this.writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_LENGTH);
+        this.uploads = new ArrayDeque<>();
+        this.upload = null;
+        this.preparing = new HashSet<>();
+        this.requested = new LinkedHashMap<>();
+
+        this.lastReceived = System.currentTimeMillis();
+        this.lastSent = this.lastReceived;
+        this.downloaded = 0;
+        this.uploaded = 0;
+    }
+
+    /**
+     * Registers the channel with the selector of the event loop.
+     */
+    void register() {
+        try {
+            this.key = this.channel.register(this.loop.getSelector(), 0, this);
+            if (this.state == State.CONNECTING && !this.channel.isConnected())
+                this.key.interestOps(SelectionKey.OP_CONNECT);
+            else
+                this.connected();
+        } catch (IOException | RuntimeException e) {
+            this.close(e);
+        }
+    }
+
+    void onConnectable() throws IOException {
+        if (this.channel.finishConnect())
+            this.connected();
+    }
+
+    // The handshake is sent directly on outgoing connections, incoming connections wait for the handshake of the peer.
+    private void connected() throws IOException {
+        this.state = State.HANDSHAKE;
+        this.lastReceived = System.currentTimeMillis();
+        this.key.interestOps(SelectionKey.OP_READ);
+        if (this.factory != null) {
+            Torrent torrent = this.factory.getTorrent();
+            this.send(PeerMessage.handshake(torrent.getInfoHash(), torrent.getPeerId()));
+            this.flush();
+        }
+    }
+
+    void onReadable() throws IOException {
+        for (int i = 0; i < MAX_READS_PER_EVENT && this.state != State.CLOSED; i++) {
+            ByteBuffer target = this.block != null ? this.block.buffer() : this.readBuffer;
+            int n = this.channel.read(target);
+            if (n < 0)
+                throw new EOFException("Connection closed by peer.");
+            if (n == 0)
+                break;
+
+            this.lastReceived = System.currentTimeMillis();
+            this.process();
+        }
+        this.flush();
+    }
+
+    void onWritable() throws IOException {
+        this.flush();
+    }
+
+    // Handles all complete messages in the read buffer.
+    private void process() throws IOException {
+        if (this.block != null) {
+            if (this.block.buffer().hasRemaining())
+                return;
+            this.blockReceived();
+        }
+
+        int required = 0;
+        this.readBuffer.flip();
+        try {
+            while (this.state != State.CLOSED && this.block == null) {
+                if (this.state == State.HANDSHAKE) {
+                    if (this.readBuffer.remaining() < PeerMessage.HANDSHAKE_LENGTH)
+                        break;
+                    this.handshake(this.readBuffer);
+                    continue;
+                }
+
+                if (this.readBuffer.remaining() < LENGTH_PREFIX_LENGTH)
+                    break;
+                int start = this.readBuffer.position();
+                int length = this.readBuffer.getInt(start);
+                if (length < 0 || length > this.maxMessageLength)
+                    throw new ProtocolException("Incorrect message length: " + length);
+                if (length == 0) {
+                    // KEEP_ALIVE
+                    this.readBuffer.position(start + LENGTH_PREFIX_LENGTH);
+                    continue;
+                }
+
+                if (this.readBuffer.remaining() < LENGTH_PREFIX_LENGTH + ID_LENGTH)
+                    break;
+                int id = this.readBuffer.get(start + LENGTH_PREFIX_LENGTH);
+                if (id == MessageType.PIECE.getValue()) {
+                    if (this.readBuffer.remaining() < PIECE_HEADER_LENGTH)
+                        break;
+                    if (length < PIECE_HEADER_LENGTH - LENGTH_PREFIX_LENGTH)
+                        throw new ProtocolException("Incorrect length of PIECE: " + length);
+                    this.readBuffer.position(start + LENGTH_PREFIX_LENGTH + ID_LENGTH);
+                    int piece = this.readBuffer.getInt();
+                    int offset = this.readBuffer.getInt();
+                    this.startBlock(piece, offset, length - (PIECE_HEADER_LENGTH - LENGTH_PREFIX_LENGTH));
+                    continue;
+                }
+
+                if (LENGTH_PREFIX_LENGTH + length > this.readBuffer.capacity()) {
+                    required = LENGTH_PREFIX_LENGTH + length;
+                    break;
+                }
+                if (this.readBuffer.remaining() < LENGTH_PREFIX_LENGTH + length)
+                    break;
+
+                this.readBuffer.position(start + LENGTH_PREFIX_LENGTH + ID_LENGTH);
+                ByteBuffer payload = this.readBuffer.slice();
+                payload.limit(length - ID_LENGTH);
+                this.readBuffer.position(start + LENGTH_PREFIX_LENGTH + length);
+                this.handle(id, payload);
+            }
+        } finally {
+            this.readBuffer.compact();
+        }
+
+        // Only messages larger than the read buffer that aren't PIECE, i.e. large BITFIELD messages, end up here.
+        if (required > this.readBuffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(required);
+            this.readBuffer.flip();
+            this.readBuffer = larger.put(this.readBuffer);
+        }
+    }
+
+    private void handshake(ByteBuffer buffer) throws IOException {
+        byte[] protocol = new byte[PeerMessage.PROTOCOL.length];
+        if (buffer.get() != PeerMessage.PROTOCOL.length)
+            throw new ProtocolException("Incorrect protocol length in handshake.");
+        buffer.get(protocol);
+        if (!Arrays.equals(protocol, PeerMessage.PROTOCOL))
+            throw new ProtocolException("Incorrect protocol in handshake.");
+        buffer.position(buffer.position() + PeerMessage.RESERVED_LENGTH);
+
+        byte[] hash = new byte[SHA1_HASH_LENGTH];
+        byte[] peerId = new byte[PeerMessage.PEER_ID_LENGTH];
+        buffer.get(hash);
+        buffer.get(peerId);
+        var infoHash = new InfoHash(hash, true);
+
+        if (this.factory == null) {
+            PeerHandlerFactory factory = this.engine.getFactory(infoHash);
+            if (factory == null)
+                throw new ProtocolException("Handshake for unknown torrent: " + infoHash);
+            this.factory = factory;
+            this.id = factory.add(this);
+            Torrent torrent = factory.getTorrent();
+            this.send(PeerMessage.handshake(torrent.getInfoHash(), torrent.getPeerId()));
+        } else if (!infoHash.equals(this.factory.getTorrent().getInfoHash())) {
+            throw new ProtocolException("Handshake with incorrect info hash: " + infoHash);
+        }
+
+        Torrent torrent = this.factory.getTorrent();
+        if (Arrays.equals(peerId, torrent.getPeerId()))
+            throw new ProtocolException("Connected to ourselves.");
+
+        this.remotePeerId = peerId;
+        this.bitfield = new Bitfield(torrent.getAmountOfPieces());
+        this.maxMessageLength = Math.max(
+                PIECE_HEADER_LENGTH - LENGTH_PREFIX_LENGTH + Torrent.MAX_REQUEST_LENGTH,
+                ID_LENGTH + (torrent.getAmountOfPieces() + 7) / 8
+        );
+        this.state = State.CONNECTED;
+
+        Bitfield have = torrent.getBitfieldHave();
+        if (!have.isEmpty())
+            this.send(PeerMessage.bitfield(have));
+    }
+
+    private void handle(int id, ByteBuffer payload) throws IOException {
+        MessageType type;
+        try {
+            type = MessageType.valueOf(id);
+        } catch (IncorrectMessageTypeException e) {
+            // Messages of extensions that haven't been announced in the handshake are ignored.
+            LOGGER.log(Level.FINE, e.getMessage());
+            return;
+        }
+
+        boolean first = this.messagesReceived++ == 0;
+        switch (type) {
+            case CHOKE:
+                this.peerChoking = true;
+                // The peer discards our requests when it chokes us, they are requested from other peers instead.
+                this.requested.clear();
+                this.factory.getTracker().release(this.id);
+                break;
+            case UNCHOKE:
+                this.peerChoking = false;
+                this.requestBlocks();
+                break;
+            case INTERESTED:
+                this.peerInterested = true;
+                this.unchoke();
+                break;
+            case NOT_INTERESTED:
+                this.peerInterested = false;
+                this.choke();
+                break;
+            case HAVE:
+                int piece = this.pieceIndex(payload);
+                if (this.bitfield.set(piece)) {
+                    this.factory.getPicker().peerHave(piece);
+                    this.updateInterest();
+                }
+                break;
+            case BITFIELD:
+                if (!first)
+                    throw new ProtocolException("BITFIELD received after other messages.");
+                byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                try {
+                    this.bitfield = new Bitfield(bytes, this.factory.getTorrent().getAmountOfPieces());
+                } catch (IllegalArgumentException e) {
+                    throw new ProtocolException(e.getMessage());
+                }
+                this.factory.getPicker().addPeer(this.bitfield);
+                this.updateInterest();
+                break;
+            case REQUEST:
+                this.requested(this.blockRequest(payload));
+                break;
+            case CANCEL:
+                this.cancelUpload(this.blockRequest(payload));
+                break;
+            default:
+                // PORT, DHT isn't supported.
+                break;
+        }
+    }
+
+    // Reads the payload of a HAVE message.
+    private int pieceIndex(ByteBuffer payload) throws ProtocolException {
+        if (payload.remaining() != Integer.BYTES)
+            throw new ProtocolException("Incorrect length of payload: " + payload.remaining());
+        int piece = payload.getInt();
+        if (piece < 0 || piece >= this.factory.getTorrent().getAmountOfPieces())
+            throw new ProtocolException("Piece index out of bounds: " + piece);
+        return piece;
+    }
+
+    private BlockRequest blockRequest(ByteBuffer payload) throws ProtocolException {
+        if (payload.remaining() != 3 * Integer.BYTES)
+            throw new ProtocolException("Incorrect length of payload: " + payload.remaining());
+        int piece = payload.getInt();
+        int offset = payload.getInt();
+        int length = payload.getInt();
+
+        Torrent torrent = this.factory.getTorrent();
+        if (piece < 0 || piece >= torrent.getAmountOfPieces())
+            throw new ProtocolException("Piece index out of bounds: " + piece);
+        if (offset < 0 || length <= 0 || length > Torrent.MAX_REQUEST_LENGTH
+                || offset + (long) length > torrent.getPieceLength(piece))
+            throw new ProtocolException("Incorrect block, offset: " + offset + ", length: " + length);
+        return new BlockRequest(piece, offset, length);
+    }
+
+    // Starts to receive the payload of a PIECE message, the bytes that already are in the read buffer are copied.
+    private void startBlock(int piece, int offset, int length) throws IOException {
+        // Only whole blocks of the tracker are requested, anything else can't be an answer to one of our requests.
+        Torrent torrent = this.factory.getTorrent();
+        if (piece < 0 || piece >= torrent.getAmountOfPieces())
+            throw new ProtocolException("Piece index out of bounds: " + piece);
+        long pieceLength = torrent.getPieceLength(piece);
+        if (offset < 0 || offset % BlockTracker.BLOCK_LENGTH != 0 || offset >= pieceLength)
+            throw new ProtocolException("Incorrect offset of block: " + offset);
+        long expected = Math.min(BlockTracker.BLOCK_LENGTH, pieceLength - offset);
+        if (length != expected)
+            throw new ProtocolException("Incorrect length of block: " + length + " != " + expected);
+
+        this.block = BufferPool.DIRECT.acquire(length);
+        this.blockPiece = piece;
+        this.blockOffset = offset;
+
+        int available = Math.min(this.readBuffer.remaining(), length);
+        ByteBuffer source = this.readBuffer.slice();
+        source.limit(available);
+        this.block.buffer().put(source);
+        this.readBuffer.position(this.readBuffer.position() + available);
+
+        if (!this.block.buffer().hasRemaining())
+            this.blockReceived();
+    }
+
+    private void blockReceived() throws IOException {
+        PooledBuffer block = this.block;
+        this.block = null;
+        block.buffer().flip();
+
+        int length = block.buffer().remaining();
+        var request = new BlockRequest(this.blockPiece, this.blockOffset, length);
+        this.messagesReceived++;
+        this.downloaded += length;
+        // Blocks that weren't requested, or whose request has timed out or been released, are only accepted by the
+        // tracker if the piece still is in flight.
+        this.requested.remove(request);
+
+        var tracker = this.factory.getTracker();
+        List<Integer> cancel = new ArrayList<>();
+        boolean accepted;
+        try {
+            accepted = tracker.received(this.id, request.getPiece(), request.getOffset(), cancel);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            block.release();
+            throw new ProtocolException(e.getMessage());
+        }
+
+        if (!accepted) {
+            block.release();
+        } else {
+            for (int peerId : cancel)
+                this.factory.cancel(peerId, request);
+            this.write(request, block, tracker.isComplete(request.getPiece()));
+        }
+        this.requestBlocks();
+    }
+
+    // Writes a received block, the reference of `block` is handed over to the disk I/O service.
+    private void write(BlockRequest request, PooledBuffer block, boolean lastBlock) {
+        var factory = this.factory;
+        int piece = request.getPiece();
+        var priority = lastBlock ? DiskIoService.Priority.HIGH : DiskIoService.Priority.NORMAL;
+        try {
+            factory.getDiskIo()
+                    .write(factory.getTorrent(), factory.getStore(), piece, request.getOffset(), block, priority)
+                    .whenComplete((result, e) -> factory.written(piece, result, e));
+        } catch (RejectedExecutionException e) {
+            factory.written(piece, null, e);
+        }
+    }
+
+    // Requests blocks from the peer until the pipeline is full.
+    private void requestBlocks() {
+        if (this.state != State.CONNECTED || this.peerChoking || !this.amInterested)
+            return;
+        if (this.factory.getTorrent().isPaused())
+            return;
+        // Stop reading from the network while the disk can't keep up, the requests are sent on a later tick.
+        if (this.factory.getDiskIo().isSaturated())
+            return;
+
+        int missing = MAX_OUTSTANDING_REQUESTS - this.requested.size();
+        if (missing <= 0)
+            return;
+        long now = System.currentTimeMillis();
+        for (BlockRequest request : this.factory.getTracker().request(this.id, this.bitfield, missing)) {
+            if (this.requested.putIfAbsent(request, now) == null)
+                this.send(PeerMessage.request(request));
+        }
+    }
+
+    private void updateInterest() {
+        boolean interested = this.bitfield.hasPieceNotIn(this.factory.getTorrent().getBitfieldHave());
+        if (interested == this.amInterested)
+            return;
+
+        this.amInterested = interested;
+        this.send(PeerMessage.message(interested ? MessageType.INTERESTED : MessageType.NOT_INTERESTED));
+        if (interested)
+            this.requestBlocks();
+    }
+
+    // Unchokes an interested peer if the torrent isn't paused, waits for an upload slot if all are taken.
+    private void unchoke() {
+        if (!this.wantsSlot())
+            return;
+        if (this.factory.tryUnchoke()) {
+            this.amChoking = false;
+            this.send(PeerMessage.message(MessageType.UNCHOKE));
+        } else if (!this.waitingForSlot) {
+            this.waitingForSlot = true;
+            this.factory.waitForSlot(this);
+        }
+    }
+
+    private boolean wantsSlot() {
+        return this.state == State.CONNECTED && this.amChoking && this.peerInterested
+                && !this.factory.getTorrent().isPaused();
+    }
+
+    /**
+     * Called when an upload slot has been freed while this handler was
+     * waiting for one. The slot is passed on to the next waiting handler if
+     * the peer no longer is interested.
+     */
+    void slotAvailable() {
+        this.waitingForSlot = false;
+        if (this.wantsSlot())
+            this.unchoke();
+        else
+            this.factory.handOff();
+    }
+
+    private void choke() {
+        if (this.amChoking)
+            return;
+
+        this.amChoking = true;
+        this.factory.choked();
+        this.send(PeerMessage.message(MessageType.CHOKE));
+        // The upload that is being written is finished, the queued ones are discarded.
+        for (PieceUpload upload : this.uploads)
+            upload.close();
+        this.uploads.clear();
+        this.preparing.clear();
+    }
+
+    // Called when the peer requests a block from us.
+    private void requested(BlockRequest request) {
+        Torrent torrent = this.factory.getTorrent();
+        if (this.amChoking || torrent.isPaused() || !torrent.getBitfieldHave().isSet(request.getPiece()))
+            return;
+        if (this.preparing.size() + this.uploads.size() >= MAX_QUEUED_UPLOADS || !this.preparing.add(request))
+            return;
+
+        var factory = this.factory;
+        try {
+            PieceUpload.prepare(
+                    factory.getTorrent(),
+                    factory.getStore(),
+                    factory.getDiskIo(),
+                    request.getPiece(),
+                    request.getOffset(),
+                    request.getLength()
+            ).whenComplete((upload, e) -> this.loop.execute(() -> this.prepared(request, upload, e)));
+        } catch (RejectedExecutionException e) {
+            // The peer requests the block again if it still wants it.
+            this.preparing.remove(request);
+        }
+    }
+
+    private void prepared(BlockRequest request, PieceUpload upload, Throwable error) {
+        if (error != null) {
+            LOGGER.log(Level.WARNING, "Unable to read " + request + ": " + error.getMessage());
+            this.preparing.remove(request);
+            return;
+        }
+        // Choked, cancelled or closed while it was being read.
+        if (this.state == State.CLOSED || !this.preparing.remove(request)) {
+            upload.close();
+            return;
+        }
+
+        this.uploads.add(upload);
+        try {
+            this.flush();
+        } catch (IOException | RuntimeException e) {
+            this.close(e);
+        }
+    }
+
+    private void cancelUpload(BlockRequest request) {
+        if (this.preparing.remove(request))
+            return;
+
+        Iterator<PieceUpload> iterator = this.uploads.iterator();
+        while (iterator.hasNext()) {
+            PieceUpload upload = iterator.next();
+            if (upload.getPiece() == request.getPiece() && upload.getOffset() == request.getOffset()
+                    && upload.getLength() == request.getLength()) {
+                iterator.remove();
+                upload.close();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends HAVE for a piece that has been verified and stops being
+     * interested in the peer if it has no other piece that we need.
+     *
+     * @param piece the index of the piece.
+     */
+    void sendHave(int piece) {
+        if (this.state != State.CONNECTED)
+            return;
+        this.send(PeerMessage.have(piece));
+        this.updateInterest();
+    }
+
+    /**
+     * Called when the torrent has been paused or resumed. A paused handler
+     * chokes the peer and cancels its requests, the blocks are requested from
+     * the peers again when the torrent is resumed.
+     */
+    void pauseChanged() {
+        if (this.state != State.CONNECTED)
+            return;
+
+        if (this.factory.getTorrent().isPaused()) {
+            this.choke();
+            for (BlockRequest request : this.requested.keySet())
+                this.send(PeerMessage.cancel(request));
+            this.requested.clear();
+            this.factory.getTracker().release(this.id);
+        } else {
+            this.unchoke();
+            this.requestBlocks();
+        }
+    }
+
+    /**
+     * Sends HAVE for the pieces that a recheck found and updates the interest
+     * in the peer, since pieces that were lost might be needed from it again.
+     *
+     * @param found the pieces that were found by the recheck.
+     */
+    void rechecked(Bitfield found) {
+        if (this.state != State.CONNECTED)
+            return;
+        for (int piece = found.nextSetBit(0); piece != -1; piece = found.nextSetBit(piece + 1))
+            this.send(PeerMessage.have(piece));
+        this.updateInterest();
+        this.requestBlocks();
+    }
+
+    /**
+     * Sends CANCEL for a block that was requested from the peer but has been
+     * received from another peer, and refills the request pipeline.
+     *
+     * @param request the block.
+     */
+    void sendCancel(BlockRequest request) {
+        if (this.state == State.CONNECTED && this.requested.remove(request) != null) {
+            this.send(PeerMessage.cancel(request));
+            this.requestBlocks();
+        }
+    }
+
+    // Queues a control message, it is written by the next `flush`.
+    private void send(ByteBuffer message) {
+        if (this.writeBuffer.remaining() < message.remaining()) {
+            int required = this.writeBuffer.position() + message.remaining();
+            int capacity = Math.max(this.writeBuffer.capacity() * 2, required);
+            ByteBuffer larger = ByteBuffer.allocate(capacity);
+            this.writeBuffer.flip();
+            this.writeBuffer = larger.put(this.writeBuffer);
+        }
+        this.writeBuffer.put(message);
+    }
+
+    // Writes as much as possible and only waits for OP_WRITE when the socket buffer is full.
+    private void flush() throws IOException {
+        if (this.state == State.CLOSED || this.state == State.CONNECTING)
+            return;
+
+        boolean done = this.write();
+        int ops = this.key.interestOps();
+        int newOps = done ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE;
+        if (newOps != ops)
+            this.key.interestOps(newOps);
+    }
+
+    private boolean write() throws IOException {
+        while (true) {
+            if (this.upload == null) {
+                if (this.writeBuffer.position() > 0) {
+                    this.writeBuffer.flip();
+                    int n = this.channel.write(this.writeBuffer);
+                    boolean written = !this.writeBuffer.hasRemaining();
+                    this.writeBuffer.compact();
+                    if (n > 0)
+                        this.lastSent = System.currentTimeMillis();
+                    if (!written)
+                        return false;
+                }
+
+                this.upload = this.uploads.poll();
+                if (this.upload == null)
+                    return true;
+            }
+
+            if (!this.upload.writeTo(this.channel))
+                return false;
+            this.uploaded += this.upload.getLength();
+            this.lastSent = System.currentTimeMillis();
+            this.upload.close();
+            this.upload = null;
+        }
+    }
+
+    // Cancels the requests that the peer hasn't answered in time, so that the blocks can be requested from other peers.
+    private void cancelTimedOutRequests(long now) {
+        long timeout = this.factory.getRequestTimeoutMillis();
+        var tracker = this.factory.getTracker();
+        Iterator<Map.Entry<BlockRequest, Long>> iterator = this.requested.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            // The requests are ordered by the time they were sent.
+            if (now - entry.getValue() < timeout)
+                break;
+
+            BlockRequest request = entry.getKey();
+            iterator.remove();
+            tracker.timedOut(this.id, request.getPiece(), request.getOffset());
+            this.send(PeerMessage.cancel(request));
+        }
+    }
+
+    /**
+     * Closes idle connections and connections that haven't finished the
+     * handshake in time, sends KEEP_ALIVE, cancels requests that have timed
+     * out, refills the request pipeline and unchokes the peer if an upload
+     * slot is free. Called periodically by the event loop.
+     *
+     * @param now the current time in milliseconds.
+     */
+    void tick(long now) {
+        try {
+            switch (this.state) {
+                case CONNECTING:
+                    if (now - this.lastReceived > Torrent.CONNECT_TIMEOUT)
+                        throw new SocketTimeoutException("Connect timed out.");
+                    break;
+                case HANDSHAKE:
+                    if (now - this.lastReceived > Torrent.READ_TIMEOUT)
+                        throw new SocketTimeoutException("Handshake timed out.");
+                    break;
+                case CONNECTED:
+                    if (now - this.lastReceived > IDLE_TIMEOUT_MILLIS)
+                        throw new SocketTimeoutException("Connection idle.");
+                    if (now - this.lastSent > KEEP_ALIVE_MILLIS)
+                        this.send(PeerMessage.keepAlive());
+                    this.cancelTimedOutRequests(now);
+                    this.requestBlocks();
+                    // Picks up upload slots whose hand-off was lost, ex. to a handler that closed at the same time.
+                    this.unchoke();
+                    this.flush();
+                    break;
+                default:
+                    break;
+            }
+        } catch (IOException | RuntimeException e) {
+            this.close(e);
+        }
+    }
+
+    /**
+     * Runs the `task` on the event loop of this handler, unless the handler
+     * has been closed. Can be called from any thread.
+     *
+     * @param task the task to run.
+     */
+    void execute(Task task) {
+        this.loop.execute(() -> {
+            if (this.state == State.CLOSED)
+                return;
+            try {
+                task.run();
+                this.flush();
+            } catch (IOException | RuntimeException e) {
+                this.close(e);
+            }
+        });
+    }
+
+    /**
+     * Closes the connection on the event loop of this handler. Can be called
+     * from any thread.
+     */
+    void disconnect() {
+        this.loop.execute(() -> this.close(null));
+    }
+
+    /**
+     * Closes the connection and gives back the requests, upload slot and
+     * buffers of the handler. Can be called multiple times.
+     *
+     * @param cause the reason that the connection is closed, or null.
+     */
+    void close(Throwable cause) {
+        if (this.state == State.CLOSED)
+            return;
+        this.state = State.CLOSED;
+        if (cause != null)
+            LOGGER.log(Level.FINE, "Closing connection to " + this.getRemoteAddress() + ": " + cause.getMessage());
+
+        if (this.factory != null) {
+            this.factory.remove(this.id);
+            this.factory.getTracker().release(this.id);
+            if (this.bitfield != null)
+                this.factory.getPicker().removePeer(this.bitfield);
+            if (!this.amChoking)
+                this.factory.choked();
+        }
+
+        if (this.block != null) {
+            this.block.release();
+            this.block = null;
+        }
+        if (this.upload != null) {
+            this.upload.close();
+            this.upload = null;
+        }
+        for (PieceUpload upload : this.uploads)
+            upload.close();
+        this.uploads.clear();
+        this.preparing.clear();
+        this.requested.clear();
+
+        if (this.key != null)
+            this.key.cancel();
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to close connection: " + e.getMessage());
+        }
+        this.engine.connectionClosed();
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return this.channel.socket().getRemoteSocketAddress();
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public byte[] getRemotePeerId() {
+        return this.remotePeerId;
+    }
+
+    public Bitfield getBitfield() {
+        return this.bitfield;
+    }
+
+    public boolean isAmChoking() {
+        return this.amChoking;
+    }
+
+    public boolean isAmInterested() {
+        return this.amInterested;
+    }
+
+    public boolean isPeerChoking() {
+        return this.peerChoking;
+    }
+
+    public boolean isPeerInterested() {
+        return this.peerInterested;
+    }
+
+    public long getDownloaded() {
+        return this.downloaded;
+    }
+
+    public long getUploaded() {
+        return this.uploaded;
+    }
 }
@@ -1,4 +1,286 @@
 package com.github.jmatss.torc.handler;
 
+import com.github.jmatss.torc.bittorrent.Bitfield;
+import com.github.jmatss.torc.bittorrent.BlockRequest;
+import com.github.jmatss.torc.bittorrent.BlockTracker;
+import com.github.jmatss.torc.bittorrent.PiecePicker;
+import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.storage.DiskIoService;
+import com.github.jmatss.torc.storage.PieceStore;
+import com.github.jmatss.torc.storage.WriteCache;
+
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the peer handlers of a torrent and holds the state that they
+ * share: the piece picker, the block tracker and the upload slots. Every
+ * handler gets an id that identifies it in the block tracker. While the
+ * torrent is paused, the handlers stay connected but choke their peers and
+ * don't request any blocks.
+ *
+ * The handlers run on the event loops of a PeerEngine, messages between
+ * handlers are handed to the loop of the receiving handler.
+ *
+ * This class is thread safe.
+ */
 public class PeerHandlerFactory {
+    public static final Logger LOGGER = Logger.getLogger(PeerHandlerFactory.class.getName());
+
+    // Max amount of peers that are unchoked, i.e. that are allowed to download from us, at the same time.
+    public static final int DEFAULT_UPLOAD_SLOTS = 4;
+    // Requests that haven't been answered in this time are cancelled and handed out to the peers again.
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 60_000;
+
+    private final Torrent torrent;
+    private final PieceStore store;
+    private final DiskIoService diskIo;
+    private final PiecePicker picker;
+    private final BlockTracker tracker;
+
+    private final AtomicInteger nextPeerId;
+    private final Map<Integer, PeerHandler> handlers;
+    private final int uploadSlots;
+    private final AtomicInteger unchoked;
+    // Interested peers that are choked because all upload slots were taken, a freed slot is handed to the first one.
+    private final Queue<PeerHandler> waiting;
+    private final long requestTimeoutMillis;
+
+    /**
+     * The piece picker is created from the bitfields of the torrent and the
+     * partial pieces of the write cache, so the factory should be created
+     * after the resume data has been restored.
+     *
+     * @param torrent the torrent.
+     * @param store   the store of the torrent.
+     * @param diskIo  the service used to read and write the blocks of the torrent.
+     */
+    public PeerHandlerFactory(Torrent torrent, PieceStore store, DiskIoService diskIo) {
+        this(torrent, store, diskIo, new PiecePicker(torrent), DEFAULT_UPLOAD_SLOTS, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+    }
+
+    PeerHandlerFactory(Torrent torrent, PieceStore store, DiskIoService diskIo, PiecePicker picker,
+                       int uploadSlots, long requestTimeoutMillis) {
+        if (uploadSlots < 0)
+            throw new IllegalArgumentException("Negative amount of upload slots: " + uploadSlots);
+        if (requestTimeoutMillis <= 0)
+            throw new IllegalArgumentException("Request timeout must be positive: " + requestTimeoutMillis);
+
+        this.torrent = torrent;
+        this.store = store;
+        this.diskIo = diskIo;
+        this.picker = picker;
+        this.tracker = new BlockTracker(torrent, picker);
+        this.restorePartialPieces();
+        this.nextPeerId = new AtomicInteger(0);
+        this.handlers = new ConcurrentHashMap<>();
+        this.uploadSlots = uploadSlots;
+        this.unchoked = new AtomicInteger(0);
+        this.waiting = new ConcurrentLinkedQueue<>();
+        this.requestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    /**
+     * Creates the handler of an outgoing connection. Must be called on the
+     * thread of `loop`.
+     *
+     * @param engine  the engine that the connection belongs to.
+     * @param loop    the event loop that will run the handler.
+     * @param channel the connecting channel.
+     * @return the new handler.
+     */
+    PeerHandler getPeerHandler(PeerEngine engine, PeerEngine.EventLoop loop, SocketChannel channel) {
+        return new PeerHandler(engine, loop, channel, this);
+    }
+
+    // Adds a handler to this torrent and returns its id.
+    int add(PeerHandler handler) {
+        int id = this.nextPeerId.getAndIncrement();
+        this.handlers.put(id, handler);
+        return id;
+    }
+
+    void remove(int id) {
+        PeerHandler handler = this.handlers.remove(id);
+        if (handler != null)
+            this.waiting.remove(handler);
+    }
+
+    /**
+     * Takes an upload slot if there is one free.
+     *
+     * @return true if the peer can be unchoked.
+     */
+    boolean tryUnchoke() {
+        while (true) {
+            int current = this.unchoked.get();
+            if (current >= this.uploadSlots)
+                return false;
+            if (this.unchoked.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Queues a handler whose peer is interested but couldn't be unchoked, the
+     * next freed upload slot is offered to it with `slotAvailable`.
+     *
+     * @param handler the handler that waits for an upload slot.
+     */
+    void waitForSlot(PeerHandler handler) {
+        this.waiting.add(handler);
+        // The slot might have been freed before the handler was queued.
+        if (this.unchoked.get() < this.uploadSlots)
+            this.handOff();
+    }
+
+    // Returns the upload slot of a peer that has been choked or disconnected.
+    void choked() {
+        this.unchoked.decrementAndGet();
+        this.handOff();
+    }
+
+    // Offers a free upload slot to the handler that has waited the longest, it passes it on if it no longer wants it.
+    void handOff() {
+        PeerHandler next = this.waiting.poll();
+        if (next != null)
+            next.execute(next::slotAvailable);
+    }
+
+    /**
+     * Sends a CANCEL to a peer that a block was requested from, since the
+     * block has been received from another peer.
+     *
+     * @param peerId  the id of the peer.
+     * @param request the block.
+     */
+    void cancel(int peerId, BlockRequest request) {
+        PeerHandler handler = this.handlers.get(peerId);
+        if (handler != null)
+            handler.execute(() -> handler.sendCancel(request));
+    }
+
+    /**
+     * Called, on a disk I/O thread, when a received block has been written
+     * through the write cache. HAVE is sent to all connected peers when the
+     * piece has been verified, a piece with an incorrect hash is downloaded
+     * again.
+     *
+     * @param piece  the index of the piece.
+     * @param result the result of the write cache, null if the write failed.
+     * @param error  the reason that the write failed, or null.
+     */
+    void written(int piece, WriteCache.Result result, Throwable error) {
+        if (error != null) {
+            // The block is lost, the piece is requested again and the blocks that are cached become duplicates.
+            LOGGER.log(Level.WARNING, "Unable to write block of piece " + piece + ": " + error.getMessage());
+            this.tracker.pieceFailed(piece);
+            return;
+        }
+
+        switch (result) {
+            case VERIFIED:
+                this.tracker.pieceVerified(piece);
+                for (PeerHandler handler : this.handlers.values())
+                    handler.execute(() -> handler.sendHave(piece));
+                break;
+            case HASH_FAILED:
+                LOGGER.log(Level.WARNING, "Incorrect hash of piece " + piece + " of " + this.torrent.getName());
+                this.tracker.pieceFailed(piece);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Pauses or resumes the downloading and uploading of the torrent. Paused
+     * handlers choke their peers and cancel their outstanding requests,
+     * resumed handlers unchoke interested peers and start requesting again.
+     *
+     * @param paused true to pause the torrent.
+     */
+    public void setPaused(boolean paused) {
+        this.torrent.setPaused(paused);
+        for (PeerHandler handler : this.handlers.values())
+            handler.execute(handler::pauseChanged);
+    }
+
+    /**
+     * Called when a recheck of the torrent has finished. The picker and the
+     * tracker are resynced with the verified pieces of the torrent and HAVE is
+     * sent to all connected peers for the pieces that the recheck found.
+     *
+     * @param before the "have" bitfield of the torrent from before the recheck.
+     */
+    public void rechecked(Bitfield before) {
+        Bitfield found = this.torrent.getBitfieldHave().copy();
+        found.andNot(before);
+        this.tracker.resync(this.torrent.getBitfieldHave());
+        this.restorePartialPieces();
+        for (PeerHandler handler : this.handlers.values())
+            handler.execute(() -> handler.rechecked(found));
+    }
+
+    // The blocks of partially downloaded pieces that are on disk, ex. restored from the resume data, aren't requested.
+    private void restorePartialPieces() {
+        var partialPieces = this.diskIo.getWriteCache().getPartialPieces(this.torrent.getInfoHash());
+        for (var partialPiece : partialPieces.entrySet())
+            this.tracker.restore(partialPiece.getKey(), partialPiece.getValue());
+    }
+
+    /**
+     * Closes the connections of all handlers of this torrent.
+     */
+    void closeAll() {
+        for (PeerHandler handler : this.handlers.values())
+            handler.disconnect();
+    }
+
+    public Torrent getTorrent() {
+        return this.torrent;
+    }
+
+    public PieceStore getStore() {
+        return this.store;
+    }
+
+    public DiskIoService getDiskIo() {
+        return this.diskIo;
+    }
+
+    public PiecePicker getPicker() {
+        return this.picker;
+    }
+
+    public BlockTracker getTracker() {
+        return this.tracker;
+    }
+
+    /**
+     * @return the amount of handlers of this torrent, including handlers that haven't finished the handshake.
+     */
+    public int getPeers() {
+        return this.handlers.size();
+    }
+
+    /**
+     * @return the time in milliseconds after which an unanswered request is cancelled.
+     */
+    public long getRequestTimeoutMillis() {
+        return this.requestTimeoutMillis;
+    }
+
+    /**
+     * @return the amount of peers that currently are unchoked.
+     */
+    public int getUnchoked() {
+        return this.unchoked.get();
+    }
 }
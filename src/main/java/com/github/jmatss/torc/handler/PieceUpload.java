@@ -0,0 +1,146 @@
+package com.github.jmatss.torc.handler;
+
+import com.github.jmatss.torc.bittorrent.PeerMessage;
+import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.storage.DiskIoService;
+import com.github.jmatss.torc.storage.PieceStore;
+import com.github.jmatss.torc.util.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A PIECE message that is being uploaded to a peer.
+ *
+ * Blocks are uploaded without being copied into JVM memory: the 13 byte
+ * header is written to the socket and then the block is sent directly from
+ * its file with `PieceStore.transferTo` (sendfile). Blocks that span two files,
+ * or that already are in the read cache, are instead read through the disk
+ * I/O service and written from the read buffer.
+ *
+ * The upload is written with `writeTo` which can be called repeatedly on a
+ * non-blocking channel until it returns true. It must be closed (once) when
+ * it is done or discarded.
+ */
+public class PieceUpload implements AutoCloseable {
+    private final int piece;
+    private final int offset;
+    private final int length;
+    private final ByteBuffer header;
+
+    // Set when the block is sent from its file, null when it is sent from `block`.
+    private final PieceStore store;
+    private final PooledBuffer block;
+
+    // Amount of bytes of the block that have been sent.
+    private int sent;
+
+    private PieceUpload(int piece, int offset, int length, PieceStore store, PooledBuffer block) {
+        this.piece = piece;
+        this.offset = offset;
+        this.length = length;
+        this.header = PeerMessage.pieceHeader(piece, offset, length);
+        this.store = store;
+        this.block = block;
+        this.sent = 0;
+    }
+
+    /**
+     * Prepares the upload of a block. The returned future is completed
+     * directly if the block can be sent from its file, otherwise it is
+     * completed when the block has been read by the disk I/O service.
+     *
+     * @param torrent the torrent that the block belongs to.
+     * @param store   the store of the torrent.
+     * @param diskIo  the service used to read blocks that can't be sent from their file.
+     * @param piece   the index of the piece.
+     * @param offset  the offset of the block inside the piece.
+     * @param length  the length of the block.
+     * @return a future that is completed with the upload.
+     * @throws java.util.concurrent.RejectedExecutionException if the block must be read and the service is saturated.
+     */
+    public static CompletableFuture<PieceUpload> prepare(Torrent torrent, PieceStore store, DiskIoService diskIo,
+                                                         int piece, int offset, int length) {
+        boolean cached = diskIo.getReadCache().isCached(torrent, piece, offset, length);
+        if (!cached && store.isInSingleFile(piece, offset, length))
+            return CompletableFuture.completedFuture(new PieceUpload(piece, offset, length, store, null));
+
+        return diskIo.read(torrent, store, piece, offset, length, DiskIoService.Priority.HIGH)
+                .thenApply(block -> new PieceUpload(piece, offset, length, null, block));
+    }
+
+    /**
+     * Writes as much of the message as possible to the `channel`.
+     *
+     * @param channel the channel of the peer.
+     * @return true if the whole message has been written.
+     * @throws IOException if unable to read the block or write to the channel.
+     */
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        if (this.block != null) {
+            ByteBuffer body = this.block.buffer();
+            if (channel instanceof GatheringByteChannel) {
+                ((GatheringByteChannel) channel).write(new ByteBuffer[]{this.header, body});
+            } else {
+                if (this.header.hasRemaining())
+                    channel.write(this.header);
+                if (!this.header.hasRemaining())
+                    channel.write(body);
+            }
+            this.sent = body.position();
+            return this.isDone();
+        }
+
+        if (this.header.hasRemaining()) {
+            channel.write(this.header);
+            if (this.header.hasRemaining())
+                return false;
+        }
+
+        while (this.sent < this.length) {
+            long n = this.store.transferTo(this.piece, this.offset + this.sent, this.length - this.sent, channel);
+            if (n == 0)
+                return false;
+            this.sent += (int) n;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the whole message has been written.
+     */
+    public boolean isDone() {
+        return !this.header.hasRemaining() && this.sent == this.length;
+    }
+
+    /**
+     * @return true if the block is sent directly from its file.
+     */
+    public boolean isZeroCopy() {
+        return this.store != null;
+    }
+
+    public int getPiece() {
+        return this.piece;
+    }
+
+    public int getOffset() {
+        return this.offset;
+    }
+
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Returns the read buffer of the block to its pool, if it has one.
+     */
+    @Override
+    public void close() {
+        if (this.block != null)
+            this.block.release();
+    }
+}
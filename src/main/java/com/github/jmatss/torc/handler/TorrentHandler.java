@@ -1,13 +1,22 @@
 package com.github.jmatss.torc.handler;
 
-import com.github.jmatss.torc.bittorrent.InfoHash;
+import com.github.jmatss.torc.bittorrent.Bitfield;
+import com.github.jmatss.torc.bittorrent.Peer;
 import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.storage.DiskIoService;
+import com.github.jmatss.torc.storage.PieceStore;
+import com.github.jmatss.torc.storage.Recheck;
 import com.github.jmatss.torc.util.com.ComMessage;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,49 +26,78 @@ public class TorrentHandler {
     public static final Logger LOGGER = Logger.getLogger(TorrentHandler.class.getName());
 
     private final Torrent torrent;
-    private final Map<InfoHash, PeerHandler> peers;
     private final BlockingQueue<ComMessage> messageBuffer;
 
-    TorrentHandler(Torrent torrent, BlockingQueue<ComMessage> a) {
+    // Messages sent from this handler to the controller.
+    private final BlockingQueue<ComMessage> parent;
+
+    private final Path directory;
+    private final PieceStore store;
+    // All reads and writes of the blocks of the torrent are done through this service.
+    private final DiskIoService diskIo;
+    // The connections to the peers are run by this engine, shared by all torrents.
+    private final PeerEngine peerEngine;
+    // Creates the connections of this torrent, null until the handler is started.
+    private volatile PeerHandlerFactory peers;
+
+    // The ongoing recheck of the downloaded data, null if no recheck is running.
+    private Recheck recheck;
+    private CompletableFuture<Integer> recheckTask;
+
+    TorrentHandler(Torrent torrent, Path directory, BlockingQueue<ComMessage> parent, DiskIoService diskIo,
+                   PeerEngine peerEngine) {
         this.torrent = torrent;
-        this.peers = new HashMap<>();
         this.messageBuffer = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        this.parent = parent;
+        this.directory = directory;
+        this.store = new PieceStore(torrent, directory);
+        this.diskIo = diskIo;
+        this.peerEngine = peerEngine;
+        this.peers = null;
+        this.recheck = null;
+        this.recheckTask = null;
     }
 
     public void run() {
         try {
             this.torrent.sendTrackerRequest();
-            this.torrent.getTracker().getPeers();
+            this.connectToPeers();
 
             while (true) {
                 ComMessage message = this.messageBuffer.remove();
                 switch (message.getType()) {
                     case REMOVE:
                         // TODO: Remove torrent from disk(meta-data, not file) before exiting.
+                        this.shutdown();
                         return;
                     case START:
                         if (!this.torrent.isPaused()) {
                             // TODO: tell controller that this torrent isn't paused, so nothing to do.
                         } else {
-                            this.torrent.setPaused(false);
+                            this.setPaused(false);
                         }
                         break;
                     case STOP:
                         // The pause boolean probably doesn't need to be atomic(?)
+                        this.cancelRecheck();
                         if (this.torrent.isPaused()) {
                             // TODO: tell controller that this torrent is already paused.
                         } else {
-                            this.torrent.setPaused(true);
+                            this.setPaused(true);
                         }
                         break;
                     case SHUTDOWN:
                         // TODO: tell controller that this handler is shutting down.
+                        this.shutdown();
                         return;
                     case MOVE:
                         // TODO: lock something and wait until the pieces that are being downloaded/uploaded
                         //  finishes before moving/renaming the file. When finished, unlock and resume as before.
                         //  Might be able to use the "paused"/"stopped" boolean to do this.
                         break;
+                    case RECHECK:
+                        this.startRecheck();
+                        break;
                 }
             }
         } catch (Exception e) {
@@ -67,11 +105,153 @@ public class TorrentHandler {
         }
     }
 
-    private void sendMessage(ComMessage message) {
+    /**
+     * Registers the torrent with the peer engine and starts connecting to the
+     * peers received from the tracker.
+     */
+    private void connectToPeers() {
+        PeerHandlerFactory peers = this.registerPeers();
+        for (Peer peer : this.torrent.getTracker().getPeers().values()) {
+            try {
+                this.peerEngine.connect(new InetSocketAddress(peer.getIp(), peer.getPort()), peers);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to connect to " + peer.getIp() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates the factory of the connections of this torrent and registers it
+     * with the peer engine, if it hasn't been done before.
+     *
+     * @return the factory of the connections of this torrent.
+     */
+    PeerHandlerFactory registerPeers() {
+        if (this.peers == null) {
+            this.peers = new PeerHandlerFactory(this.torrent, this.store, this.diskIo);
+            this.peerEngine.register(this.peers);
+        }
+        return this.peers;
+    }
+
+    /**
+     * Queues a message to this handler, it is handled by the thread running the handler.
+     *
+     * @param message the message.
+     * @throws IllegalStateException if the queue of the handler is full.
+     */
+    public void sendMessage(ComMessage message) {
         this.messageBuffer.add(message);
     }
 
-    private void shutdown() {
+    /**
+     * Starts a recheck of the downloaded data on the pool of Recheck. The
+     * torrent is paused while the recheck is running, its progress is sent to
+     * the controller as progress messages. When the recheck finishes, the
+     * previous pause state is restored and a RECHECKED or ERROR message is
+     * sent to the controller. Does nothing if a recheck already is running,
+     * waits for a cancelled recheck to stop before starting a new one.
+     *
+     * @return the ongoing recheck, completed after the picker has been resynced.
+     */
+    CompletableFuture<Integer> startRecheck() {
+        if (this.recheckTask != null && !this.recheckTask.isDone()) {
+            if (!this.recheck.isCancelled())
+                return this.recheckTask;
+            this.awaitRecheck();
+        }
+
+        boolean wasPaused = this.torrent.isPaused();
+        this.setPaused(true);
+        Bitfield before = this.torrent.getBitfieldHave().copy();
+        var recheck = new Recheck(this.torrent, this.store, this.parent);
+        this.recheck = recheck;
+        this.recheckTask = recheck.start(Recheck.POOL).whenComplete((validPieces, error) -> {
+            // The picker and tracker are resynced even if the recheck failed or was cancelled, the pieces that
+            // were checked might have been removed from the bitfields.
+            PeerHandlerFactory peers = this.peers;
+            if (peers != null)
+                peers.rechecked(before);
+            // A cancelled recheck is stopped by STOP or a shutdown, so the torrent stays paused.
+            if (recheck.isCancelled())
+                return;
+            if (!wasPaused)
+                this.setPaused(false);
+
+            if (error == null) {
+                this.parent.offer(ComMessage.rechecked(this.torrent.getInfoHash(), validPieces));
+            } else {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                LOGGER.log(Level.SEVERE, "Recheck of " + this.torrent.getName() + " failed: " + cause.getMessage());
+                Exception exception = cause instanceof Exception ? (Exception) cause : new Exception(cause);
+                this.parent.offer(ComMessage.error(this.torrent.getInfoHash(), exception));
+            }
+        });
+        return this.recheckTask;
+    }
+
+    // Pauses or resumes the torrent and its connections to the peers.
+    private void setPaused(boolean paused) {
+        if (this.peers != null)
+            this.peers.setPaused(paused);
+        else
+            this.torrent.setPaused(paused);
+    }
+
+    // Stops the ongoing recheck, the picker is resynced when its workers have stopped.
+    void cancelRecheck() {
+        if (this.recheck != null)
+            this.recheck.cancel();
+    }
+
+    // Waits for the recheck to stop, a cancelled recheck finishes the pieces that are being hashed.
+    private void awaitRecheck() {
+        if (this.recheckTask != null)
+            this.recheckTask.handle((validPieces, error) -> null).join();
+    }
+
+    public Torrent getTorrent() {
+        return this.torrent;
+    }
 
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    public PieceStore getStore() {
+        return this.store;
+    }
+
+    public DiskIoService getDiskIo() {
+        return this.diskIo;
+    }
+
+    public PeerHandlerFactory getPeers() {
+        return this.peers;
+    }
+
+    /**
+     * Closes the connections to the peers, cancels any ongoing recheck, writes
+     * the cached blocks of the torrent to disk and closes the files of the
+     * torrent. Can be called multiple times.
+     */
+    public void shutdown() {
+        if (this.peers != null)
+            this.peerEngine.unregister(this.peers);
+        this.cancelRecheck();
+        this.awaitRecheck();
+        try {
+            this.diskIo.flush(this.torrent, this.store, DiskIoService.Priority.LOW).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            LOGGER.log(Level.SEVERE, "Unable to flush " + this.torrent.getName() + ": " + e.getMessage());
+        }
+
+        try {
+            this.store.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, e.getMessage());
+        }
     }
 }
@@ -1,10 +1,26 @@
 package com.github.jmatss.torc.handler;
 
 import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.storage.DiskIoService;
+import com.github.jmatss.torc.util.com.ComMessage;
 
-public class TorrentHandlerFactory {/*
-    public TorrentHandler getTorrentHandler(Torrent torrent) {
-        return new TorrentHandler(torrent);
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+
+public class TorrentHandlerFactory {
+    private final DiskIoService diskIo;
+    private final PeerEngine peerEngine;
+
+    /**
+     * @param diskIo     the disk I/O service shared by all created handlers.
+     * @param peerEngine the engine that runs the peer connections of all created handlers.
+     */
+    public TorrentHandlerFactory(DiskIoService diskIo, PeerEngine peerEngine) {
+        this.diskIo = diskIo;
+        this.peerEngine = peerEngine;
+    }
+
+    public TorrentHandler getTorrentHandler(Torrent torrent, Path directory, BlockingQueue<ComMessage> parent) {
+        return new TorrentHandler(torrent, directory, parent, this.diskIo, this.peerEngine);
     }
-    */
 }
@@ -0,0 +1,59 @@
+package com.github.jmatss.torc.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A file that is accessed with positional I/O on a FileChannel. Used for
+ * files that are too large to be memory-mapped.
+ */
+class ChannelFileStorage implements FileStorage {
+    private final FileChannel channel;
+
+    ChannelFileStorage(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void read(long position, ByteBuffer destination) throws IOException {
+        while (destination.hasRemaining()) {
+            int n = this.channel.read(destination, position);
+            if (n == -1) {
+                // Reading a part of the file that hasn't been written yet, it is all zeros.
+                while (destination.hasRemaining())
+                    destination.put((byte) 0);
+                return;
+            }
+            position += n;
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            position += this.channel.write(source, position);
+        }
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long n = this.channel.transferTo(position, count, target);
+        // Nothing is transferred both if the target is full and if the position is past the end of the file.
+        if (n == 0 && count > 0 && position >= this.channel.size())
+            throw new EOFException("Transfer from position " + position + " past the end of the file.");
+        return n;
+    }
+
+    @Override
+    public void force() throws IOException {
+        this.channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
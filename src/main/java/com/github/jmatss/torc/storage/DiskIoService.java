@@ -0,0 +1,302 @@
+package com.github.jmatss.torc.storage;
+
+import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.util.BufferPool;
+import com.github.jmatss.torc.util.PooledBuffer;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs all disk I/O of torc on its own threads, so that the network threads
+ * never block on the disk.
+ *
+ * Jobs (read, write, hash and flush) are submitted from any thread and queued
+ * in a priority queue. Jobs with a higher priority are run first, jobs with
+ * the same priority are run in the order that they were submitted. Reads of
+ * blocks that are uploaded to peers and writes of blocks that complete pieces
+ * should be submitted with HIGH priority. The result of a job is delivered
+ * through a CompletableFuture that is completed on a disk I/O thread, so
+ * callbacks registered on the future must not block.
+ *
+ * The amount of pending (queued or running) jobs is bounded. When the disk
+ * can't keep up and the limit is reached, new jobs are rejected with a RejectedExecutionException
+ * instead of blocking the caller. The caller should then stop requesting
+ * blocks from (or serving blocks to) peers until `isSaturated()` is false.
+ *
+ * Writes go through a WriteCache and reads through a ReadCache that are
+ * shared by all torrents.
+ */
+public class DiskIoService implements Closeable {
+    public static final Logger LOGGER = Logger.getLogger(DiskIoService.class.getName());
+
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_MAX_PENDING_JOBS = 1024;
+    // Time that `close()` waits for the queued jobs to finish.
+    public static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    public enum Priority {
+        HIGH,   // Reads for uploads and writes that complete pieces.
+        NORMAL, // Other writes.
+        LOW     // Hashes and flushes.
+    }
+
+    /**
+     * The work done by a job on a disk I/O thread.
+     */
+    @FunctionalInterface
+    interface Work<T> {
+        T run() throws Exception;
+    }
+
+    private static class Job<T> implements Runnable, Comparable<Job<?>> {
+        private final Priority priority;
+        private final long sequence;
+        private final Work<T> work;
+        private final CompletableFuture<T> future;
+        private final DiskIoService service;
+
+        private Job(Priority priority, long sequence, Work<T> work, DiskIoService service) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.work = work;
+            this.future = new CompletableFuture<>();
+            this.service = service;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!this.future.isDone())
+                    this.future.complete(this.work.run());
+            } catch (Throwable e) {
+                this.future.completeExceptionally(e);
+            } finally {
+                this.service.pendingJobs.decrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(Job<?> other) {
+            int cmp = this.priority.compareTo(other.priority);
+            return cmp != 0 ? cmp : Long.compare(this.sequence, other.sequence);
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final int maxPendingJobs;
+    private final WriteCache writeCache;
+    private final ReadCache readCache;
+
+    private final AtomicInteger pendingJobs;
+    private final AtomicLong sequence;
+
+    public DiskIoService() {
+        this(DEFAULT_THREADS, DEFAULT_MAX_PENDING_JOBS, new WriteCache(), new ReadCache());
+    }
+
+    /**
+     * @param threads        the amount of disk I/O threads.
+     * @param maxPendingJobs the max amount of queued or running jobs before new jobs are rejected.
+     * @param writeCache     the cache that all writes go through.
+     * @param readCache      the cache that all reads go through.
+     */
+    public DiskIoService(int threads, int maxPendingJobs, WriteCache writeCache, ReadCache readCache) {
+        if (threads <= 0 || maxPendingJobs <= 0)
+            throw new IllegalArgumentException("Threads and max pending jobs must be positive.");
+
+        this.maxPendingJobs = maxPendingJobs;
+        this.writeCache = writeCache;
+        this.readCache = readCache;
+        this.pendingJobs = new AtomicInteger(0);
+        this.sequence = new AtomicLong(0);
+
+        var threadNumber = new AtomicInteger(0);
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0,
+                TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(),
+                runnable -> {
+                    var thread = new Thread(runnable, "torc-disk-io-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+    }
+
+    /**
+     * Reads a block of a piece, ex. to upload it to a peer. The returned
+     * buffer is flipped and ready to be written to a socket, the caller must
+     * release it.
+     *
+     * @param torrent  the torrent that the block belongs to.
+     * @param store    the store of the torrent.
+     * @param piece    the index of the piece.
+     * @param offset   the offset of the block inside the piece.
+     * @param length   the length of the block.
+     * @param priority the priority of the job.
+     * @return a future that is completed with the bytes of the block.
+     * @throws RejectedExecutionException if the service is saturated or closed.
+     */
+    public CompletableFuture<PooledBuffer> read(Torrent torrent, PieceStore store, int piece, int offset, int length,
+                                                Priority priority) {
+        return this.submit(priority, () -> {
+            PooledBuffer pooled = BufferPool.DIRECT.acquire(length);
+            try {
+                this.readCache.read(torrent, store, piece, offset, pooled.buffer());
+                pooled.buffer().flip();
+                return pooled;
+            } catch (Exception e) {
+                pooled.release();
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Writes a received block through the write cache. The reference of
+     * `block` is owned by the job and released when the job is done, so the
+     * caller can hand over its receive buffer without copying it. The bytes
+     * of the block are the remaining bytes of the buffer.
+     *
+     * @param torrent  the torrent that the block belongs to.
+     * @param store    the store of the torrent.
+     * @param piece    the index of the piece.
+     * @param offset   the offset of the block inside the piece.
+     * @param block    the block, released by the job.
+     * @param priority the priority of the job, HIGH if the block is the last missing block of the piece.
+     * @return a future that is completed with the result of the write cache.
+     * @throws RejectedExecutionException if the service is saturated or closed.
+     */
+    public CompletableFuture<WriteCache.Result> write(Torrent torrent, PieceStore store, int piece, int offset,
+                                                      PooledBuffer block, Priority priority) {
+        CompletableFuture<WriteCache.Result> future;
+        try {
+            future = this.submit(priority, () -> {
+                var result = this.writeCache.put(torrent, store, piece, offset, block.buffer());
+                if (result == WriteCache.Result.VERIFIED)
+                    this.readCache.invalidate(torrent.getInfoHash(), piece);
+                return result;
+            });
+        } catch (RejectedExecutionException e) {
+            block.release();
+            throw e;
+        }
+        // Released when the job is done, failed or cancelled.
+        future.whenComplete((result, e) -> block.release());
+        return future;
+    }
+
+    /**
+     * Reads a piece that is stored on disk and checks its hash.
+     *
+     * @param torrent  the torrent that the piece belongs to.
+     * @param store    the store of the torrent.
+     * @param piece    the index of the piece.
+     * @param priority the priority of the job.
+     * @return a future that is completed with true if the piece has the correct hash.
+     * @throws RejectedExecutionException if the service is saturated or closed.
+     */
+    public CompletableFuture<Boolean> hash(Torrent torrent, PieceStore store, int piece, Priority priority) {
+        return this.submit(priority, () -> {
+            int pieceLength = (int) store.getPieceLength(piece);
+            int readLength = Math.min(pieceLength, Recheck.MAX_READ_LENGTH);
+            try (var hasher = new PieceHasher(pieceLength); var pooled = BufferPool.HEAP.acquire(readLength)) {
+                ByteBuffer buffer = pooled.buffer();
+                for (int offset = 0; offset < pieceLength; offset += readLength) {
+                    buffer.clear().limit(Math.min(readLength, pieceLength - offset));
+                    store.read(piece, offset, buffer);
+                    buffer.flip();
+                    hasher.update(offset, buffer);
+                }
+                return torrent.getPieces().matches(piece, hasher.digest());
+            }
+        });
+    }
+
+    /**
+     * Writes the cached blocks of the incomplete pieces of the torrent to its
+     * store and forces the files of the store to disk.
+     *
+     * @param torrent  the torrent.
+     * @param store    the store of the torrent.
+     * @param priority the priority of the job.
+     * @return a future that is completed when the torrent has been flushed.
+     * @throws RejectedExecutionException if the service is saturated or closed.
+     */
+    public CompletableFuture<Void> flush(Torrent torrent, PieceStore store, Priority priority) {
+        return this.submit(priority, () -> {
+            this.writeCache.flush(torrent.getInfoHash());
+            store.flush();
+            return null;
+        });
+    }
+
+    <T> CompletableFuture<T> submit(Priority priority, Work<T> work) {
+        if (this.pendingJobs.incrementAndGet() > this.maxPendingJobs) {
+            this.pendingJobs.decrementAndGet();
+            throw new RejectedExecutionException("Disk I/O is saturated (" + this.maxPendingJobs + " pending jobs).");
+        }
+
+        var job = new Job<>(priority, this.sequence.getAndIncrement(), work, this);
+        try {
+            this.executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            this.pendingJobs.decrementAndGet();
+            throw e;
+        }
+        return job.future;
+    }
+
+    /**
+     * @return true if the max amount of pending jobs is reached, i.e. new jobs will be rejected.
+     */
+    public boolean isSaturated() {
+        return this.pendingJobs.get() >= this.maxPendingJobs;
+    }
+
+    public int getPendingJobs() {
+        return this.pendingJobs.get();
+    }
+
+    public WriteCache getWriteCache() {
+        return this.writeCache;
+    }
+
+    public ReadCache getReadCache() {
+        return this.readCache;
+    }
+
+    /**
+     * Stops accepting new jobs and waits for the queued jobs to finish. Jobs
+     * that haven't been run when the timeout expires are cancelled.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdown();
+        try {
+            if (this.executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Runnable runnable : this.executor.shutdownNow()) {
+            this.pendingJobs.decrementAndGet();
+            ((Job<?>) runnable).future.completeExceptionally(new CancellationException("Disk I/O service closed."));
+        }
+        LOGGER.log(Level.WARNING, "Disk I/O service closed before all jobs were done.");
+    }
+}
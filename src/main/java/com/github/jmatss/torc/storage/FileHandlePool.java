@@ -0,0 +1,343 @@
+package com.github.jmatss.torc.storage;
+
+import com.github.jmatss.torc.util.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of open files shared by the PieceStores of all torrents, so that
+ * torrents with a huge amount of files don't exceed the limit of open file
+ * descriptors.
+ *
+ * At most `maxOpenFiles` files are kept open, the least recently used file is
+ * closed when a new file is opened. A file is pinned from that it is acquired
+ * until it is released, a pinned file is never closed by the pool. If all open
+ * files are pinned, the pool opens more files than the max temporarily and
+ * closes them as soon as they are released.
+ *
+ * Files are opened, mapped, forced and closed without holding the monitor of
+ * the pool, the monitor only guards the map of the open files. A closed file
+ * stays mapped until its mapping is garbage collected, so the mapped bytes,
+ * including those of closed files that haven't been collected yet, are
+ * bounded by `maxMappedBytes`. Files that don't fit are accessed through
+ * their channel instead.
+ */
+public class FileHandlePool {
+    public static final int DEFAULT_MAX_OPEN_FILES = 512;
+    public static final long DEFAULT_MAX_MAPPED_BYTES = 1L << 33;  // 8 GiB
+
+    // Pool shared by all of torc.
+    public static final FileHandlePool SHARED = new FileHandlePool(DEFAULT_MAX_OPEN_FILES);
+
+    // Size of the zero buffer used when preallocating files with FULL.
+    private static final int ZERO_BUFFER_LENGTH = 1 << 20;  // 1 MiB
+
+    /**
+     * How the files of a torrent are allocated when the torrent is added.
+     */
+    public enum Preallocation {
+        NONE,   // The files are created when they are first written to.
+        SPARSE, // The files are created with their full length without allocating any disk space.
+        FULL    // The files are filled with zeros so that the disk space is allocated (less fragmentation).
+    }
+
+    /**
+     * An open file. Must be released with `release(Handle)` after use.
+     */
+    static class Handle {
+        private final FileStorage storage;
+        private int pins;
+        private boolean closed;
+
+        private Handle(FileStorage storage) {
+            this.storage = storage;
+            this.pins = 0;
+            this.closed = false;
+        }
+
+        FileStorage storage() {
+            return this.storage;
+        }
+    }
+
+    private final int maxOpenFiles;
+    private final long maxMappedBytes;
+    // The bytes of the mappings that haven't been garbage collected, decremented by the cleaner of the mappings.
+    private final AtomicLong mappedBytes;
+
+    // Access ordered, i.e. ordered from least recently used to most recently used.
+    private final LinkedHashMap<Path, Handle> handles;
+
+    public FileHandlePool(int maxOpenFiles) {
+        this(maxOpenFiles, DEFAULT_MAX_MAPPED_BYTES);
+    }
+
+    /**
+     * @param maxOpenFiles   the max amount of files that are kept open.
+     * @param maxMappedBytes the max total length of the memory-mapped files.
+     */
+    public FileHandlePool(int maxOpenFiles, long maxMappedBytes) {
+        if (maxOpenFiles <= 0)
+            throw new IllegalArgumentException("Max open files must be positive: " + maxOpenFiles);
+        if (maxMappedBytes < 0)
+            throw new IllegalArgumentException("Negative max mapped bytes: " + maxMappedBytes);
+
+        this.maxOpenFiles = maxOpenFiles;
+        this.maxMappedBytes = maxMappedBytes;
+        this.mappedBytes = new AtomicLong(0);
+        this.handles = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Acquires and pins the file with the given path, the file is opened (and
+     * created) if it isn't open already.
+     *
+     * @param path              the path of the file.
+     * @param length            the length of the file in the torrent.
+     * @param maxMappedFileSize files up to this length are memory-mapped, if they fit in `maxMappedBytes`.
+     * @return the pinned handle.
+     * @throws IOException if unable to open the file.
+     */
+    Handle acquire(Path path, long length, long maxMappedFileSize) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        synchronized (this) {
+            Handle handle = this.handles.get(key);
+            if (handle != null) {
+                handle.pins++;
+                return handle;
+            }
+        }
+
+        // Another thread might open the same file at the same time, the file that is put in the pool first is used.
+        var opened = new Handle(this.open(key, length, maxMappedFileSize));
+        Handle handle;
+        List<Handle> unused;
+        synchronized (this) {
+            handle = this.handles.get(key);
+            if (handle == null) {
+                unused = this.evict(this.maxOpenFiles - 1);
+                handle = opened;
+                this.handles.put(key, handle);
+            } else {
+                unused = List.of(opened);
+            }
+            handle.pins++;
+        }
+
+        try {
+            closeAll(unused);
+        } catch (IOException e) {
+            this.release(handle);
+            throw e;
+        }
+        return handle;
+    }
+
+    /**
+     * Unpins a handle acquired with `acquire(...)`.
+     *
+     * @param handle the handle to release.
+     * @throws IOException if the file had to be closed and it failed.
+     */
+    void release(Handle handle) throws IOException {
+        List<Handle> unused;
+        synchronized (this) {
+            if (handle.pins <= 0)
+                throw new IllegalStateException("Handle released more times than it was acquired.");
+
+            handle.pins--;
+            if (handle.pins == 0 && handle.closed)
+                unused = List.of(handle);
+            else if (this.handles.size() > this.maxOpenFiles)
+                unused = this.evict(this.maxOpenFiles);
+            else
+                return;
+        }
+        closeAll(unused);
+    }
+
+    // Removes the least recently used unpinned files until at most `max` files are open, they are closed by the caller.
+    private List<Handle> evict(int max) {
+        List<Handle> evicted = new ArrayList<>();
+        Iterator<Handle> iterator = this.handles.values().iterator();
+        while (this.handles.size() > max && iterator.hasNext()) {
+            Handle handle = iterator.next();
+            if (handle.pins == 0) {
+                iterator.remove();
+                handle.closed = true;
+                evicted.add(handle);
+            }
+        }
+        return evicted;
+    }
+
+    // Closes handles that have been removed from the pool, must be called without holding the monitor of the pool.
+    private static void closeAll(List<Handle> handles) throws IOException {
+        IOException error = null;
+        for (Handle handle : handles) {
+            try {
+                handle.storage.close();
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+    private FileStorage open(Path path, long length, long maxMappedFileSize) throws IOException {
+        Path parent = path.getParent();
+        if (parent != null)
+            Files.createDirectories(parent);
+
+        var channel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        );
+        try {
+            if (length <= maxMappedFileSize && this.reserveMapped(length)) {
+                try {
+                    return new MappedFileStorage(channel, length, () -> this.mappedBytes.addAndGet(-length));
+                } catch (IOException | RuntimeException e) {
+                    this.mappedBytes.addAndGet(-length);
+                    throw e;
+                }
+            }
+            return new ChannelFileStorage(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private boolean reserveMapped(long length) {
+        while (true) {
+            long current = this.mappedBytes.get();
+            if (current + length > this.maxMappedBytes)
+                return false;
+            if (this.mappedBytes.compareAndSet(current, current + length))
+                return true;
+        }
+    }
+
+    /**
+     * Forces the written bytes of the file to the storage device if the file is open.
+     *
+     * @param path the path of the file.
+     * @throws IOException if unable to force the file.
+     */
+    public void force(Path path) throws IOException {
+        Handle handle;
+        synchronized (this) {
+            handle = this.handles.get(path.toAbsolutePath().normalize());
+            if (handle == null)
+                return;
+            handle.pins++;
+        }
+
+        try {
+            handle.storage.force();
+        } finally {
+            this.release(handle);
+        }
+    }
+
+    /**
+     * Closes the file if it is open. If the file is pinned, it is closed when
+     * it is released.
+     *
+     * @param path the path of the file.
+     * @throws IOException if unable to close the file.
+     */
+    public void close(Path path) throws IOException {
+        Handle handle;
+        synchronized (this) {
+            handle = this.handles.remove(path.toAbsolutePath().normalize());
+            if (handle == null)
+                return;
+
+            handle.closed = true;
+            if (handle.pins > 0)
+                return;
+        }
+        handle.storage.close();
+    }
+
+    /**
+     * Allocates the file according to the given mode. Files that already are
+     * larger than `length` are left as is.
+     *
+     * @param path   the path of the file.
+     * @param length the length of the file in the torrent.
+     * @param mode   how to allocate the file.
+     * @throws IOException if unable to create or write to the file.
+     */
+    public static void preallocate(Path path, long length, Preallocation mode) throws IOException {
+        if (mode == Preallocation.NONE)
+            return;
+
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null)
+            Files.createDirectories(parent);
+
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size >= length)
+                return;
+
+            if (mode == Preallocation.SPARSE) {
+                // Writing the last byte sets the length without allocating the blocks before it.
+                channel.write(ByteBuffer.allocate(1), length - 1);
+                return;
+            }
+
+            try (var pooled = BufferPool.DIRECT.acquire(ZERO_BUFFER_LENGTH)) {
+                ByteBuffer zeros = pooled.buffer();
+                while (zeros.hasRemaining())
+                    zeros.put((byte) 0);
+
+                long position = size;
+                while (position < length) {
+                    zeros.clear().limit((int) Math.min(ZERO_BUFFER_LENGTH, length - position));
+                    position += channel.write(zeros, position);
+                }
+            }
+        }
+    }
+
+    public synchronized int getOpenFiles() {
+        return this.handles.size();
+    }
+
+    synchronized boolean isOpen(Path path) {
+        return this.handles.containsKey(path.toAbsolutePath().normalize());
+    }
+
+    public int getMaxOpenFiles() {
+        return this.maxOpenFiles;
+    }
+
+    /**
+     * @return the bytes of the mappings of the open files and of the closed files that haven't been collected.
+     */
+    public long getMappedBytes() {
+        return this.mappedBytes.get();
+    }
+
+    public long getMaxMappedBytes() {
+        return this.maxMappedBytes;
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.jmatss.torc.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The storage of a single file of a torrent. All operations are positional,
+ * so a FileStorage can be used by multiple threads at the same time.
+ */
+interface FileStorage extends Closeable {
+    /**
+     * Reads bytes starting at `position` of the file into `destination`
+     * until the destination is full.
+     *
+     * @param position    the position in the file to start reading from.
+     * @param destination the buffer to read into.
+     * @throws IOException if unable to read from the file.
+     */
+    void read(long position, ByteBuffer destination) throws IOException;
+
+    /**
+     * Writes all remaining bytes of `source` starting at `position` of the file.
+     *
+     * @param position the position in the file to start writing at.
+     * @param source   the bytes to write.
+     * @throws IOException if unable to write to the file.
+     */
+    void write(long position, ByteBuffer source) throws IOException;
+
+    /**
+     * Writes `count` bytes starting at `position` of the file to `target`
+     * without copying them into JVM memory. Fewer bytes might be written if
+     * the target is non-blocking.
+     *
+     * @param position the position in the file to start reading from.
+     * @param count    the max amount of bytes to write.
+     * @param target   the channel to write to.
+     * @return the amount of bytes written.
+     * @throws IOException if unable to read from the file or write to the target.
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+    /**
+     * Forces all written bytes to be written to the storage device.
+     *
+     * @throws IOException if unable to force the file.
+     */
+    void force() throws IOException;
+}
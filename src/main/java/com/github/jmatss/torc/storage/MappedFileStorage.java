@@ -0,0 +1,77 @@
+package com.github.jmatss.torc.storage;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A file that is memory-mapped in its whole. Reading and writing is a copy
+ * to/from the mapping, no system calls are made.
+ *
+ * There is no way to unmap a MappedByteBuffer explicitly, the mapping is
+ * released when the buffer is garbage collected after `close()`. The
+ * `unmapped` action given to the constructor is run when that happens.
+ */
+class MappedFileStorage implements FileStorage {
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final FileChannel channel;
+    private MappedByteBuffer mapped;
+
+    /**
+     * @param channel  the channel of the file.
+     * @param length   the length to map, the file is extended if it is shorter.
+     * @param unmapped run when the mapping has been garbage collected, must not reference this storage.
+     * @throws IOException if unable to map the file.
+     */
+    MappedFileStorage(FileChannel channel, long length, Runnable unmapped) throws IOException {
+        if (length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("File too large to be mapped: " + length);
+
+        this.channel = channel;
+        // Mapping a region larger than the file extends the file to `length`.
+        this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        // The views returned by `region` reference the mapping, so it is only collected when they are gone as well.
+        CLEANER.register(this.mapped, unmapped);
+    }
+
+    // Returns a view of [position, position + length) of the mapping. A view
+    // is used so that concurrent operations doesn't share position/limit.
+    private ByteBuffer region(long position, int length) {
+        ByteBuffer region = this.mapped.duplicate();
+        region.limit((int) position + length);
+        region.position((int) position);
+        return region;
+    }
+
+    @Override
+    public void read(long position, ByteBuffer destination) throws IOException {
+        destination.put(this.region(position, destination.remaining()));
+    }
+
+    @Override
+    public void write(long position, ByteBuffer source) throws IOException {
+        this.region(position, source.remaining()).put(source);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        // The mapping is off-heap, so the bytes are written to the target straight from the page cache.
+        return target.write(this.region(position, (int) count));
+    }
+
+    @Override
+    public void force() {
+        this.mapped.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.mapped.force();
+        this.mapped = null;
+        this.channel.close();
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.jmatss.torc.storage;
+
+import com.github.jmatss.torc.util.BufferPool;
+import com.github.jmatss.torc.util.PooledBuffer;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Incremental SHA-1 hash of a single piece that is updated as the blocks of
+ * the piece arrive. Blocks that arrive in order are hashed immediately while
+ * they still are in the CPU cache. Blocks that arrive out of order are copied
+ * into pooled buffers and hashed as soon as all blocks before them have been
+ * hashed. The digest is available right after the last block, without a
+ * second pass over the piece.
+ *
+ * Not thread safe. Must be closed if it is discarded before it is complete,
+ * so that the buffered blocks are returned to their pool.
+ */
+public class PieceHasher implements AutoCloseable {
+    public static final String HASH_ALGORITHM = "SHA-1";
+
+    private final MessageDigest digest;
+    private final int pieceLength;
+
+    // Amount of bytes from the start of the piece that have been hashed.
+    private int hashedLength;
+
+    // Blocks that arrived out of order, keyed by their offset in the piece.
+    private final TreeMap<Integer, PooledBuffer> pending;
+
+    /**
+     * @param pieceLength the length of the piece in bytes.
+     */
+    public PieceHasher(int pieceLength) {
+        if (pieceLength < 0)
+            throw new IllegalArgumentException("Negative piece length: " + pieceLength);
+
+        try {
+            this.digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " isn't supported on this platform.", e);
+        }
+        this.pieceLength = pieceLength;
+        this.hashedLength = 0;
+        this.pending = new TreeMap<>();
+    }
+
+    /**
+     * Adds a block of the piece. The bytes of the block are hashed directly if
+     * all bytes before the block have been hashed, otherwise they are copied.
+     * The position of `block` isn't changed.
+     *
+     * @param offset the offset of the block in the piece.
+     * @param block  the bytes of the block.
+     * @return false if the block already have been added (or overlaps hashed bytes), true otherwise.
+     */
+    public boolean update(int offset, ByteBuffer block) {
+        int length = block.remaining();
+        if (offset < 0 || offset + (long) length > this.pieceLength) {
+            String msg = "Block outside of piece (offset: " + offset + ", length: " + length + ").";
+            throw new IndexOutOfBoundsException(msg);
+        }
+
+        if (offset < this.hashedLength || this.pending.containsKey(offset))
+            return false;
+
+        if (offset > this.hashedLength) {
+            PooledBuffer copy = BufferPool.HEAP.acquire(length);
+            copy.buffer().put(block.duplicate()).flip();
+            this.pending.put(offset, copy);
+            return true;
+        }
+
+        this.digest.update(block.duplicate());
+        this.hashedLength += length;
+
+        // Hash the buffered blocks that now are next in order.
+        Map.Entry<Integer, PooledBuffer> next;
+        while ((next = this.pending.firstEntry()) != null && next.getKey() <= this.hashedLength) {
+            this.pending.pollFirstEntry();
+            try {
+                ByteBuffer pendingBlock = next.getValue().buffer();
+                int overlap = this.hashedLength - next.getKey();
+                if (overlap < pendingBlock.remaining()) {
+                    pendingBlock.position(pendingBlock.position() + overlap);
+                    this.hashedLength += pendingBlock.remaining();
+                    this.digest.update(pendingBlock);
+                }
+            } finally {
+                next.getValue().release();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if all bytes of the piece have been hashed.
+     */
+    public boolean isComplete() {
+        return this.hashedLength == this.pieceLength;
+    }
+
+    /**
+     * @return the amount of bytes from the start of the piece that have been hashed.
+     */
+    public int getHashedLength() {
+        return this.hashedLength;
+    }
+
+    /**
+     * Completes the hash. Can only be called once, after all blocks have been added.
+     *
+     * @return the SHA-1 digest of the piece.
+     */
+    public byte[] digest() {
+        if (!this.isComplete())
+            throw new IllegalStateException("Piece not complete, hashed " + this.hashedLength + "/" + this.pieceLength);
+        return this.digest.digest();
+    }
+
+    /**
+     * Returns the buffered out of order blocks to their pool.
+     */
+    @Override
+    public void close() {
+        for (PooledBuffer buffer : this.pending.values())
+            buffer.release();
+        this.pending.clear();
+    }
+}
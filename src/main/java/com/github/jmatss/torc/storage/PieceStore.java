@@ -0,0 +1,347 @@
+package com.github.jmatss.torc.storage;
+
+import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.bittorrent.TorrentFile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Reads and writes blocks of pieces to the files of a torrent.
+ *
+ * The pieces of a torrent are laid out over the files as if all files were
+ * concatenated in order, so a single piece can span over multiple files. The
+ * start offset of every file and the first file of every piece are calculated
+ * when the store is created, so finding the file region(s) of a block is a
+ * constant time lookup.
+ *
+ * Files smaller than `maxMappedFileSize` are memory-mapped and read/written
+ * with a copy to/from the mapping, larger files are accessed with positional
+ * I/O on a FileChannel. Files are opened (and created) lazily the first time
+ * that they are accessed. The open files are kept in a FileHandlePool that
+ * limits the amount of open files, so files might be closed and reopened.
+ */
+public class PieceStore implements Closeable {
+    public static final long DEFAULT_MAX_MAPPED_FILE_SIZE = 1L << 30;   // 1 GiB
+
+    private final Path[] paths;
+    private final long pieceLength;
+    private final int amountOfPieces;
+    private final long maxMappedFileSize;
+    private final FileHandlePool pool;
+
+    // fileStarts[i] is the offset of file `i` in the concatenation of all files.
+    // Contains one extra element at the end which is the total length.
+    private final long[] fileStarts;
+
+    // pieceFirstFile[i] is the index of the file that contains the first byte of piece `i`.
+    private final int[] pieceFirstFile;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a store for the files of the given torrent. The files of a
+     * multi-file torrent are stored inside the directory `directory/name`,
+     * the file of a single-file torrent is stored directly in `directory`.
+     *
+     * @param torrent   the torrent.
+     * @param directory the download directory.
+     */
+    public PieceStore(Torrent torrent, Path directory) {
+        this(torrent, directory, DEFAULT_MAX_MAPPED_FILE_SIZE);
+    }
+
+    public PieceStore(Torrent torrent, Path directory, long maxMappedFileSize) {
+        this(torrent, directory, maxMappedFileSize, FileHandlePool.SHARED);
+    }
+
+    /**
+     * @param torrent           the torrent.
+     * @param directory         the download directory.
+     * @param maxMappedFileSize files up to this length are memory-mapped.
+     * @param pool              the pool that the files are opened in.
+     */
+    public PieceStore(Torrent torrent, Path directory, long maxMappedFileSize, FileHandlePool pool) {
+        this(
+                torrent.getFiles(),
+                rootOf(torrent, directory),
+                torrent.getPieceLength(),
+                torrent.getAmountOfPieces(),
+                maxMappedFileSize,
+                pool
+        );
+    }
+
+    PieceStore(List<TorrentFile> files, Path root, long pieceLength, int amountOfPieces, long maxMappedFileSize,
+               FileHandlePool pool) {
+        if (pieceLength <= 0)
+            throw new IllegalArgumentException("Piece length must be positive: " + pieceLength);
+        if (maxMappedFileSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Files larger than 2 GiB can't be mapped: " + maxMappedFileSize);
+
+        this.pieceLength = pieceLength;
+        this.amountOfPieces = amountOfPieces;
+        this.maxMappedFileSize = maxMappedFileSize;
+        this.pool = pool;
+
+        this.paths = new Path[files.size()];
+        this.fileStarts = new long[files.size() + 1];
+        for (int i = 0; i < files.size(); i++) {
+            this.paths[i] = resolveInside(root, files.get(i).getPath());
+            this.fileStarts[i + 1] = this.fileStarts[i] + files.get(i).getLength();
+        }
+
+        long totalLength = this.fileStarts[files.size()];
+        if (totalLength > pieceLength * amountOfPieces || totalLength <= pieceLength * (amountOfPieces - 1))
+            throw new IllegalArgumentException("Total length of files doesn't match the amount of pieces.");
+
+        // Files are walked in order together with the pieces, zero length files are skipped.
+        this.pieceFirstFile = new int[amountOfPieces];
+        int file = 0;
+        for (int piece = 0; piece < amountOfPieces; piece++) {
+            long pieceStart = piece * pieceLength;
+            while (this.fileStarts[file + 1] <= pieceStart)
+                file++;
+            this.pieceFirstFile[piece] = file;
+        }
+
+        this.closed = false;
+    }
+
+    /**
+     * Returns the directory that the paths of the files of the torrent are
+     * relative to, i.e. `directory/name` for multi-file torrents and
+     * `directory` for single-file torrents.
+     *
+     * @param torrent   the torrent.
+     * @param directory the download directory.
+     * @return the root directory of the files.
+     * @throws IllegalArgumentException if the name of the torrent points outside of `directory`.
+     */
+    public static Path rootOf(Torrent torrent, Path directory) {
+        if (!torrent.isMultiFile() || torrent.getName().toString().isEmpty())
+            return directory;
+        return resolveInside(directory, torrent.getName());
+    }
+
+    // Resolves a path from the metainfo and makes sure that it doesn't point outside of `directory`.
+    private static Path resolveInside(Path directory, Path path) {
+        Path normalized = directory.normalize();
+        Path resolved = normalized.resolve(path).normalize();
+        if (path.isAbsolute() || !resolved.startsWith(normalized) || resolved.equals(normalized))
+            throw new IllegalArgumentException("Path points outside of the download directory: " + path);
+        return resolved;
+    }
+
+    /**
+     * @param piece the index of the piece.
+     * @return the length of the piece in bytes, the last piece might be shorter than the others.
+     */
+    public long getPieceLength(int piece) {
+        this.pieceGuard(piece);
+        long pieceStart = piece * this.pieceLength;
+        return Math.min(this.pieceLength, this.fileStarts[this.fileStarts.length - 1] - pieceStart);
+    }
+
+    public int getAmountOfPieces() {
+        return this.amountOfPieces;
+    }
+
+    /**
+     * Reads a block of a piece into the `destination`. The length of the
+     * block is the remaining bytes of the `destination`. Parts of files that
+     * haven't been written are read as zeros.
+     *
+     * @param piece       the index of the piece.
+     * @param offset      the offset of the block inside the piece.
+     * @param destination the buffer to read the block into.
+     * @throws IOException if unable to read from one of the files.
+     */
+    public void read(int piece, int offset, ByteBuffer destination) throws IOException {
+        this.blockGuard(piece, offset, destination.remaining());
+
+        int limit = destination.limit();
+        long position = piece * this.pieceLength + offset;
+        int file = this.pieceFirstFile[piece];
+        try {
+            while (destination.hasRemaining()) {
+                while (this.fileStarts[file + 1] <= position)
+                    file++;
+
+                int amount = (int) Math.min(this.fileStarts[file + 1] - position, destination.remaining());
+                destination.limit(destination.position() + amount);
+                var handle = this.acquire(file);
+                try {
+                    handle.storage().read(position - this.fileStarts[file], destination);
+                } finally {
+                    this.pool.release(handle);
+                }
+                destination.limit(limit);
+                position += amount;
+            }
+        } finally {
+            destination.limit(limit);
+        }
+    }
+
+    /**
+     * Writes a block of a piece from the `source`. The length of the block
+     * is the remaining bytes of the `source`.
+     *
+     * @param piece  the index of the piece.
+     * @param offset the offset of the block inside the piece.
+     * @param source the block to write.
+     * @throws IOException if unable to write to one of the files.
+     */
+    public void write(int piece, int offset, ByteBuffer source) throws IOException {
+        this.blockGuard(piece, offset, source.remaining());
+
+        int limit = source.limit();
+        long position = piece * this.pieceLength + offset;
+        int file = this.pieceFirstFile[piece];
+        try {
+            while (source.hasRemaining()) {
+                while (this.fileStarts[file + 1] <= position)
+                    file++;
+
+                int amount = (int) Math.min(this.fileStarts[file + 1] - position, source.remaining());
+                source.limit(source.position() + amount);
+                var handle = this.acquire(file);
+                try {
+                    handle.storage().write(position - this.fileStarts[file], source);
+                } finally {
+                    this.pool.release(handle);
+                }
+                source.limit(limit);
+                position += amount;
+            }
+        } finally {
+            source.limit(limit);
+        }
+    }
+
+    /**
+     * @param piece  the index of the piece.
+     * @param offset the offset of the block inside the piece.
+     * @param length the length of the block.
+     * @return true if the whole block is stored in a single file, i.e. it can be sent with `transferTo`.
+     */
+    public boolean isInSingleFile(int piece, int offset, int length) {
+        this.blockGuard(piece, offset, length);
+        long position = piece * this.pieceLength + offset;
+        int file = this.fileOf(piece, position);
+        return position + length <= this.fileStarts[file + 1];
+    }
+
+    /**
+     * Sends (a part of) a block of a piece from its file directly to the
+     * `target` without copying it into JVM memory, i.e. with sendfile for
+     * files accessed with a FileChannel. The whole block must be stored in a
+     * single file, see `isInSingleFile`. If the target is non-blocking, fewer
+     * bytes than `length` might be sent and the caller should call this
+     * method again with the offset and length of the remaining bytes.
+     *
+     * @param piece  the index of the piece.
+     * @param offset the offset of the block inside the piece.
+     * @param length the length of the block.
+     * @param target the channel to send the block to, ex. the SocketChannel of a peer.
+     * @return the amount of bytes that were sent.
+     * @throws IOException if unable to read from the file or write to the target.
+     */
+    public long transferTo(int piece, int offset, int length, WritableByteChannel target) throws IOException {
+        if (!this.isInSingleFile(piece, offset, length))
+            throw new IllegalArgumentException("Block of piece " + piece + " at offset " + offset + " spans files.");
+
+        long position = piece * this.pieceLength + offset;
+        int file = this.fileOf(piece, position);
+        var handle = this.acquire(file);
+        try {
+            return handle.storage().transferTo(position - this.fileStarts[file], length, target);
+        } finally {
+            this.pool.release(handle);
+        }
+    }
+
+    /**
+     * Allocates all files of the torrent, ex. when the torrent is added.
+     *
+     * @param mode how to allocate the files.
+     * @throws IOException if unable to allocate one of the files.
+     */
+    public void preallocate(FileHandlePool.Preallocation mode) throws IOException {
+        for (int i = 0; i < this.paths.length; i++)
+            FileHandlePool.preallocate(this.paths[i], this.fileStarts[i + 1] - this.fileStarts[i], mode);
+    }
+
+    /**
+     * Forces all written blocks to be written to the storage device.
+     *
+     * @throws IOException if unable to force one of the files.
+     */
+    public void flush() throws IOException {
+        for (Path path : this.paths)
+            this.pool.force(path);
+    }
+
+    /**
+     * Flushes and closes all opened files.
+     *
+     * @throws IOException if unable to close one of the files.
+     */
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        IOException exception = null;
+        for (Path path : this.paths) {
+            try {
+                this.pool.close(path);
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        if (exception != null)
+            throw exception;
+    }
+
+    /**
+     * Acquires the file with the given index from the pool, the file is opened
+     * and created (with its full length if it is mapped) if it isn't open.
+     * The handle must be released to the pool after use.
+     *
+     * @param file the index of the file.
+     * @return the pinned handle of the file.
+     * @throws IOException if unable to open the file.
+     */
+    private FileHandlePool.Handle acquire(int file) throws IOException {
+        if (this.closed)
+            throw new IOException("PieceStore is closed.");
+
+        long length = this.fileStarts[file + 1] - this.fileStarts[file];
+        return this.pool.acquire(this.paths[file], length, this.maxMappedFileSize);
+    }
+
+    // Returns the index of the file that contains the byte at `position`, which is inside of `piece`.
+    private int fileOf(int piece, long position) {
+        int file = this.pieceFirstFile[piece];
+        while (this.fileStarts[file + 1] <= position)
+            file++;
+        return file;
+    }
+
+    private void pieceGuard(int piece) {
+        if (piece < 0 || piece >= this.amountOfPieces)
+            throw new IndexOutOfBoundsException("Piece index out of bounds: " + piece);
+    }
+
+    private void blockGuard(int piece, int offset, int length) {
+        if (offset < 0 || offset + (long) length > this.getPieceLength(piece)) {
+            String msg = "Block outside of piece " + piece + " (offset: " + offset;
+            msg += ", length: " + length + ").";
+            throw new IndexOutOfBoundsException(msg);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.github.jmatss.torc.storage;
+
+import com.github.jmatss.torc.bittorrent.InfoHash;
+import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.util.BufferPool;
+import com.github.jmatss.torc.util.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read cache used when seeding. Requested blocks are served from segments of
+ * pieces that are read from the PieceStore with a single read. A segment is
+ * either the whole piece or a configurable read-ahead window, so the requests
+ * for the following blocks of the same segment are served from memory.
+ *
+ * The cache is bounded by the total size of the cached segments and uses the
+ * 2Q replacement algorithm so that a single scan over a torrent (ex. a peer
+ * that downloads everything once) can't evict the popular segments:
+ *  - `recent` (A1in): FIFO of segments that have been read once.
+ *  - `ghosts` (A1out): FIFO of the keys of segments evicted from `recent`.
+ *  - `frequent` (Am): LRU of segments that were requested again after they
+ *    were evicted from `recent`, i.e. segments that are requested repeatedly.
+ *
+ * I/O is done without holding the lock of the cache. The buffers of the
+ * segments are reference counted, so a segment that is evicted while it is
+ * being copied is returned to its pool when the copy is done.
+ */
+public class ReadCache {
+    public static final long DEFAULT_MAX_BYTES = 1L << 26;  // 64 MiB
+
+    // Share of the max bytes that can be used by `recent`.
+    private static final int RECENT_SHARE_PERCENT = 25;
+    // Max "size" of the segments that `ghosts` remember, as share of the max bytes.
+    private static final int GHOSTS_SHARE_PERCENT = 50;
+
+    // Identifies a segment of a piece of a specific torrent.
+    private static class SegmentKey {
+        private final InfoHash infoHash;
+        private final int piece;
+        private final int segment;
+
+        private SegmentKey(InfoHash infoHash, int piece, int segment) {
+            this.infoHash = infoHash;
+            this.piece = piece;
+            this.segment = segment;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other == this)
+                return true;
+            if (!(other instanceof SegmentKey))
+                return false;
+            var key = (SegmentKey) other;
+            return this.piece == key.piece && this.segment == key.segment && this.infoHash.equals(key.infoHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * this.infoHash.hashCode() + this.piece) + this.segment;
+        }
+    }
+
+    // A cached segment, `buffer` contains `length` bytes.
+    private static class Segment {
+        private final PooledBuffer buffer;
+        private final int length;
+
+        private Segment(PooledBuffer buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxRecentBytes;
+    private final long maxGhostBytes;
+    private final int segmentLength;
+
+    // Insertion ordered (FIFO).
+    private final LinkedHashMap<SegmentKey, Segment> recent;
+    // Value is the length of the evicted segment. Insertion ordered (FIFO).
+    private final LinkedHashMap<SegmentKey, Integer> ghosts;
+    // Access ordered (LRU).
+    private final LinkedHashMap<SegmentKey, Segment> frequent;
+
+    private long recentBytes;
+    private long ghostBytes;
+    private long frequentBytes;
+
+    private long hits;
+    private long misses;
+
+    public ReadCache() {
+        this(DEFAULT_MAX_BYTES, 0);
+    }
+
+    /**
+     * @param maxBytes      the max total size of the cached segments.
+     * @param segmentLength the amount of bytes that are read at once, 0 reads whole pieces.
+     */
+    public ReadCache(long maxBytes, int segmentLength) {
+        if (maxBytes < 0 || segmentLength < 0)
+            throw new IllegalArgumentException("Negative cache limits.");
+
+        this.maxBytes = maxBytes;
+        this.maxRecentBytes = maxBytes * RECENT_SHARE_PERCENT / 100;
+        this.maxGhostBytes = maxBytes * GHOSTS_SHARE_PERCENT / 100;
+        this.segmentLength = segmentLength;
+
+        this.recent = new LinkedHashMap<>();
+        this.ghosts = new LinkedHashMap<>();
+        this.frequent = new LinkedHashMap<>(16, 0.75f, true);
+        this.recentBytes = 0;
+        this.ghostBytes = 0;
+        this.frequentBytes = 0;
+        this.hits = 0;
+        this.misses = 0;
+    }
+
+    /**
+     * Reads a block of a piece into the `destination`. The length of the block
+     * is the remaining bytes of the `destination`. The segments containing the
+     * block are read from the `store` if they aren't cached.
+     *
+     * @param torrent     the torrent that the block belongs to.
+     * @param store       the store of the torrent.
+     * @param piece       the index of the piece.
+     * @param offset      the offset of the block inside the piece.
+     * @param destination the buffer to read the block into.
+     * @throws IOException if unable to read from the `store`.
+     */
+    public void read(Torrent torrent, PieceStore store, int piece, int offset, ByteBuffer destination)
+    throws IOException {
+        int pieceLength = (int) torrent.getPieceLength(piece);
+        if (offset < 0 || offset + (long) destination.remaining() > pieceLength) {
+            String msg = "Block outside of piece " + piece + " (offset: " + offset;
+            msg += ", length: " + destination.remaining() + ").";
+            throw new IndexOutOfBoundsException(msg);
+        }
+
+        int unit = this.segmentLength == 0 ? pieceLength : Math.min(this.segmentLength, pieceLength);
+        while (destination.hasRemaining()) {
+            int segment = offset / unit;
+            int segmentStart = segment * unit;
+            int length = Math.min(unit, pieceLength - segmentStart);
+            var key = new SegmentKey(torrent.getInfoHash(), piece, segment);
+
+            PooledBuffer pooled = this.get(key);
+            if (pooled == null)
+                pooled = this.load(key, store, segmentStart, length);
+
+            try {
+                ByteBuffer view = pooled.buffer().duplicate();
+                int amount = Math.min(destination.remaining(), length - (offset - segmentStart));
+                view.limit(offset - segmentStart + amount).position(offset - segmentStart);
+                destination.put(view);
+                offset += amount;
+            } finally {
+                pooled.release();
+            }
+        }
+    }
+
+    /**
+     * Checks if all segments containing a block are cached, without counting
+     * it as a lookup and without changing the order of the cached segments.
+     *
+     * @param torrent the torrent that the block belongs to.
+     * @param piece   the index of the piece.
+     * @param offset  the offset of the block inside the piece.
+     * @param length  the length of the block.
+     * @return true if the block can be read without reading from the store.
+     */
+    public synchronized boolean isCached(Torrent torrent, int piece, int offset, int length) {
+        int pieceLength = (int) torrent.getPieceLength(piece);
+        if (offset < 0 || length <= 0 || offset + (long) length > pieceLength)
+            return false;
+
+        int unit = this.segmentLength == 0 ? pieceLength : Math.min(this.segmentLength, pieceLength);
+        for (int segment = offset / unit; segment <= (offset + length - 1) / unit; segment++) {
+            var key = new SegmentKey(torrent.getInfoHash(), piece, segment);
+            // containsKey doesn't count as an access in the access ordered `frequent`.
+            if (!this.frequent.containsKey(key) && !this.recent.containsKey(key))
+                return false;
+        }
+        return true;
+    }
+
+    // Returns the cached segment with an extra reference that the caller must release, or null on a miss.
+    private synchronized PooledBuffer get(SegmentKey key) {
+        Segment segment = this.frequent.get(key);
+        if (segment == null)
+            segment = this.recent.get(key);
+
+        if (segment == null) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return segment.buffer.retain();
+    }
+
+    // Reads the segment from the store and adds it to the cache.
+    private PooledBuffer load(SegmentKey key, PieceStore store, int segmentStart, int length) throws IOException {
+        PooledBuffer pooled = BufferPool.HEAP.acquire(length);
+        try {
+            store.read(key.piece, segmentStart, pooled.buffer());
+        } catch (IOException | RuntimeException e) {
+            pooled.release();
+            throw e;
+        }
+        return this.insert(key, pooled, length);
+    }
+
+    // Adds the loaded segment to the cache and returns the buffer that the caller should read from.
+    private synchronized PooledBuffer insert(SegmentKey key, PooledBuffer pooled, int length) {
+        // Another thread might have loaded the same segment while this thread was reading it.
+        Segment existing = this.frequent.get(key);
+        if (existing == null)
+            existing = this.recent.get(key);
+        if (existing != null) {
+            pooled.release();
+            return existing.buffer.retain();
+        }
+
+        if (length > this.maxBytes)
+            return pooled;
+
+        // Segments that were requested again after being evicted from `recent` are hot.
+        if (this.ghosts.remove(key) != null) {
+            this.ghostBytes -= length;
+            this.frequent.put(key, new Segment(pooled.retain(), length));
+            this.frequentBytes += length;
+        } else {
+            this.recent.put(key, new Segment(pooled.retain(), length));
+            this.recentBytes += length;
+        }
+        this.evict();
+        return pooled;
+    }
+
+    private void evict() {
+        while (this.recentBytes + this.frequentBytes > this.maxBytes) {
+            if (this.recentBytes > this.maxRecentBytes || this.frequent.isEmpty()) {
+                var oldest = this.recent.entrySet().iterator().next();
+                this.recent.remove(oldest.getKey());
+                this.recentBytes -= oldest.getValue().length;
+                oldest.getValue().buffer.release();
+                this.addGhost(oldest.getKey(), oldest.getValue().length);
+            } else {
+                var leastRecentlyUsed = this.frequent.entrySet().iterator().next();
+                this.frequent.remove(leastRecentlyUsed.getKey());
+                this.frequentBytes -= leastRecentlyUsed.getValue().length;
+                leastRecentlyUsed.getValue().buffer.release();
+            }
+        }
+    }
+
+    private void addGhost(SegmentKey key, int length) {
+        this.ghosts.put(key, length);
+        this.ghostBytes += length;
+        Iterator<Integer> iterator = this.ghosts.values().iterator();
+        while (this.ghostBytes > this.maxGhostBytes && iterator.hasNext()) {
+            this.ghostBytes -= iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes all cached segments of the given piece, must be called if the
+     * piece is written after it might have been read into the cache.
+     *
+     * @param infoHash the info hash of the torrent.
+     * @param piece    the index of the piece.
+     */
+    public synchronized void invalidate(InfoHash infoHash, int piece) {
+        this.removeIf(infoHash, piece);
+    }
+
+    /**
+     * Removes all cached segments of the given torrent.
+     *
+     * @param infoHash the info hash of the torrent.
+     */
+    public synchronized void invalidate(InfoHash infoHash) {
+        this.removeIf(infoHash, -1);
+    }
+
+    // Removes the segments of the torrent and piece, or of all pieces if `piece` is -1.
+    private void removeIf(InfoHash infoHash, int piece) {
+        this.recentBytes -= removeIf(this.recent, infoHash, piece);
+        this.frequentBytes -= removeIf(this.frequent, infoHash, piece);
+
+        Iterator<Map.Entry<SegmentKey, Integer>> iterator = this.ghosts.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var ghost = iterator.next();
+            if (ghost.getKey().infoHash.equals(infoHash) && (piece == -1 || ghost.getKey().piece == piece)) {
+                this.ghostBytes -= ghost.getValue();
+                iterator.remove();
+            }
+        }
+    }
+
+    private static long removeIf(Map<SegmentKey, Segment> segments, InfoHash infoHash, int piece) {
+        long removedBytes = 0;
+        Iterator<Map.Entry<SegmentKey, Segment>> iterator = segments.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var segment = iterator.next();
+            if (segment.getKey().infoHash.equals(infoHash) && (piece == -1 || segment.getKey().piece == piece)) {
+                removedBytes += segment.getValue().length;
+                segment.getValue().buffer.release();
+                iterator.remove();
+            }
+        }
+        return removedBytes;
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * @return the share of the segment lookups that were served from memory, between 0.0 and 1.0.
+     */
+    public synchronized double getHitRate() {
+        long lookups = this.hits + this.misses;
+        return lookups == 0 ? 0.0 : (double) this.hits / lookups;
+    }
+
+    public synchronized long getCachedBytes() {
+        return this.recentBytes + this.frequentBytes;
+    }
+}
@@ -0,0 +1,230 @@
+package com.github.jmatss.torc.storage;
+
+import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.util.BufferPool;
+import com.github.jmatss.torc.util.com.ComMessage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies the pieces stored on disk against the SHA-1 hashes of a torrent.
+ *
+ * The pieces are split into contiguous runs that are hashed in parallel on a
+ * ForkJoinPool, by default on the dedicated `POOL` since the workers block on
+ * disk reads and would starve other users of the common pool. Every worker reads its run from start to end, so the reads
+ * from the files are sequential. A run is only split further if the pool has
+ * idle workers that can steal the other half.
+ *
+ * The `bitfieldHave` (and `bitfieldDownloading`) of the torrent is updated as
+ * soon as a piece has been verified, so the recheck should be done while the
+ * torrent isn't downloading. Progress is reported as PROGRESS messages to the
+ * given queue every time that the percentage changes. Messages are dropped if
+ * the queue is full, the next message will contain the latest progress anyway.
+ */
+public class Recheck {
+    public static final String HASH_ALGORITHM = "SHA-1";
+
+    // Runs aren't split into smaller parts than this amount of pieces.
+    public static final int MIN_RUN_LENGTH = 4;
+
+    // Max size of the buffer used to read a piece, larger pieces are read in multiple parts.
+    public static final int MAX_READ_LENGTH = 1 << 20;   // 1 MiB
+
+    // Shared by all rechecks, the workers are daemon threads that are created on demand.
+    public static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final Torrent torrent;
+    private final PieceStore store;
+    private final BlockingQueue<ComMessage> progressQueue;
+
+    private final AtomicInteger checkedPieces;
+    private final AtomicInteger validPieces;
+    private final AtomicInteger reportedPercent;
+    private volatile boolean cancelled;
+
+    /**
+     * @param torrent       the torrent to verify.
+     * @param store         the store that contains the pieces of the torrent.
+     * @param progressQueue the queue that progress messages are sent to, or null to not report progress.
+     */
+    public Recheck(Torrent torrent, PieceStore store, BlockingQueue<ComMessage> progressQueue) {
+        if (torrent.getAmountOfPieces() != store.getAmountOfPieces())
+            throw new IllegalArgumentException("The store doesn't contain the pieces of the torrent.");
+
+        this.torrent = torrent;
+        this.store = store;
+        this.progressQueue = progressQueue;
+        this.checkedPieces = new AtomicInteger(0);
+        this.validPieces = new AtomicInteger(0);
+        this.reportedPercent = new AtomicInteger(-1);
+        this.cancelled = false;
+    }
+
+    /**
+     * Starts the recheck asynchronously on the given pool. The returned future
+     * is completed when all workers have stopped, also if the recheck is
+     * cancelled, so the bitfields aren't changed after that.
+     *
+     * @param pool the pool to hash the pieces on.
+     * @return a future that is completed with the amount of valid pieces, or
+     *         exceptionally with an IOException or a CancellationException.
+     */
+    public CompletableFuture<Integer> start(ForkJoinPool pool) {
+        var future = new CompletableFuture<Integer>();
+        var task = new RunTask(0, this.torrent.getAmountOfPieces());
+        pool.execute(ForkJoinTask.adapt(() -> {
+            try {
+                future.complete(task.invoke());
+            } catch (UncheckedIOException e) {
+                future.completeExceptionally(e.getCause());
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }));
+        return future;
+    }
+
+    /**
+     * Rechecks all pieces on `POOL` and waits for the result.
+     *
+     * @return the amount of valid pieces.
+     * @throws IOException           if unable to read the pieces from the store.
+     * @throws CancellationException if the recheck is cancelled.
+     */
+    public int run() throws IOException {
+        try {
+            return POOL.invoke(new RunTask(0, this.torrent.getAmountOfPieces()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Stops the recheck. Pieces that are being hashed are finished, but no new
+     * pieces are started. The bitfields of the unchecked pieces are left as is.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    public int getCheckedPieces() {
+        return this.checkedPieces.get();
+    }
+
+    public int getValidPieces() {
+        return this.validPieces.get();
+    }
+
+    /**
+     * Hashes the pieces with indices in [from, to). The run is split in halves
+     * while it is long enough and other workers are idle.
+     */
+    private class RunTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        private RunTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (this.to - this.from >= 2 * MIN_RUN_LENGTH && getSurplusQueuedTaskCount() <= 0) {
+                int middle = (this.from + this.to) >>> 1;
+                var second = new RunTask(middle, this.to);
+                second.fork();
+                int first;
+                try {
+                    first = new RunTask(this.from, middle).compute();
+                } catch (RuntimeException e) {
+                    // Waits for the other half, so that no worker is left updating the bitfields.
+                    second.quietlyJoin();
+                    throw e;
+                }
+                return first + second.join();
+            }
+
+            try {
+                return checkRun(this.from, this.to);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private int checkRun(int from, int to) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " isn't supported on this platform.", e);
+        }
+
+        int readLength = (int) Math.min(this.torrent.getPieceLength(), MAX_READ_LENGTH);
+        int valid = 0;
+        try (var pooled = BufferPool.HEAP.acquire(readLength)) {
+            ByteBuffer buffer = pooled.buffer();
+            var pieces = this.torrent.getPieces();
+
+            for (int piece = from; piece < to; piece++) {
+                if (this.cancelled)
+                    throw new CancellationException("Recheck cancelled.");
+
+                int pieceLength = (int) this.store.getPieceLength(piece);
+                for (int offset = 0; offset < pieceLength; offset += readLength) {
+                    buffer.clear().limit(Math.min(readLength, pieceLength - offset));
+                    this.store.read(piece, offset, buffer);
+                    buffer.flip();
+                    digest.update(buffer);
+                }
+
+                if (pieces.matches(piece, digest.digest())) {
+                    this.torrent.getBitfieldHave().set(piece);
+                    this.torrent.getBitfieldDownloading().set(piece);
+                    this.validPieces.incrementAndGet();
+                    valid++;
+                } else {
+                    this.torrent.getBitfieldHave().unSet(piece);
+                    this.torrent.getBitfieldDownloading().unSet(piece);
+                }
+
+                this.reportProgress(this.checkedPieces.incrementAndGet());
+            }
+        }
+        return valid;
+    }
+
+    private void reportProgress(int checked) {
+        if (this.progressQueue == null)
+            return;
+
+        int total = this.torrent.getAmountOfPieces();
+        int percent = (int) (100L * checked / total);
+        int reported;
+        do {
+            reported = this.reportedPercent.get();
+            if (percent <= reported)
+                return;
+        } while (!this.reportedPercent.compareAndSet(reported, percent));
+
+        this.progressQueue.offer(ComMessage.progress(this.torrent.getInfoHash(), (double) checked / total));
+    }
+}
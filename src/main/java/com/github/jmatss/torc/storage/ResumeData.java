@@ -0,0 +1,324 @@
+package com.github.jmatss.torc.storage;
+
+import com.github.jmatss.torc.bencode.Bencode;
+import com.github.jmatss.torc.bencode.BencodeData;
+import com.github.jmatss.torc.bencode.BencodeDictionary;
+import com.github.jmatss.torc.bencode.BencodeException;
+import com.github.jmatss.torc.bencode.BencodeKey;
+import com.github.jmatss.torc.bittorrent.Bitfield;
+import com.github.jmatss.torc.bittorrent.InfoHash;
+import com.github.jmatss.torc.bittorrent.Torrent;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Fast-resume data of a torrent that is saved between sessions, so that the
+ * downloaded data doesn't have to be rehashed when the client is restarted.
+ *
+ * Contains the bitfield of the verified pieces, the partially downloaded
+ * pieces and the size and last modified time of every file. If the sizes and
+ * times of the files are unchanged when the resume data is loaded, the files
+ * are assumed to contain the same data and the bitfield can be restored
+ * without a recheck.
+ *
+ * The resume data is stored as a bencoded dictionary:
+ *     d
+ *       9:info hash   20:<info hash>
+ *       8:metainfo    <path of the .torrent file>
+ *       9:directory   <download directory>
+ *       6:pieces      i<amount of pieces>e
+ *       8:bitfield    <bitfield of the verified pieces>
+ *       5:files       l d 6:length i<size>e 8:modified i<millis>e e ... e
+ *       7:partial     l d 5:piece i<index>e 6:blocks <bitfield> 11:block count i<amount>e e ... e
+ *     e
+ */
+public class ResumeData {
+    public static final String FILE_EXTENSION = ".resume";
+
+    private final InfoHash infoHash;
+    private final Path metainfoPath;
+    private final Path directory;
+    private final Bitfield bitfield;
+    private final long[] fileLengths;
+    private final long[] fileModifiedTimes;
+    private final Map<Integer, Bitfield> partialPieces;
+
+    private ResumeData(InfoHash infoHash, Path metainfoPath, Path directory, Bitfield bitfield,
+                       long[] fileLengths, long[] fileModifiedTimes, Map<Integer, Bitfield> partialPieces) {
+        this.infoHash = infoHash;
+        this.metainfoPath = metainfoPath;
+        this.directory = directory;
+        this.bitfield = bitfield;
+        this.fileLengths = fileLengths;
+        this.fileModifiedTimes = fileModifiedTimes;
+        this.partialPieces = partialPieces;
+    }
+
+    /**
+     * Creates resume data from the current state of the given torrent and its
+     * files. The data should be created after the files have been flushed,
+     * otherwise later writes might change the modified times of the files.
+     *
+     * @param torrent       the torrent, must have been created from a .torrent file.
+     * @param directory     the download directory of the torrent.
+     * @param partialPieces the downloaded blocks of the pieces that are partially downloaded.
+     * @return the resume data.
+     * @throws IOException if unable to read the attributes of the files.
+     */
+    public static ResumeData create(Torrent torrent, Path directory, Map<Integer, Bitfield> partialPieces)
+    throws IOException {
+        if (torrent.getMetainfoPath() == null)
+            throw new IllegalArgumentException("The torrent wasn't created from a .torrent file.");
+
+        var bitfieldHave = torrent.getBitfieldHave();
+        var bitfield = new Bitfield(bitfieldHave.toByteArray(), bitfieldHave.getAmountOfPieces());
+
+        long[][] fileStates = fileStates(torrent, directory);
+        return new ResumeData(
+                torrent.getInfoHash(),
+                torrent.getMetainfoPath(),
+                directory,
+                bitfield,
+                fileStates[0],
+                fileStates[1],
+                new TreeMap<>(partialPieces)
+        );
+    }
+
+    /**
+     * Reads the resume data from the given resume file.
+     *
+     * @param path the path of the resume file.
+     * @return the resume data.
+     * @throws IOException      if unable to read the file.
+     * @throws BencodeException if the file is incorrectly formatted.
+     */
+    public static ResumeData read(Path path) throws IOException, BencodeException {
+        ResumeFile file = ResumeFileBinder.decode(ByteBuffer.wrap(Files.readAllBytes(path)));
+
+        if (file.pieces < 0 || file.pieces > Integer.MAX_VALUE)
+            throw new BencodeException("Incorrect amount of pieces: " + file.pieces);
+        var bitfield = toBitfield(file.bitfield, file.pieces);
+
+        long[] fileLengths = new long[file.files.size()];
+        long[] fileModifiedTimes = new long[file.files.size()];
+        for (int i = 0; i < file.files.size(); i++) {
+            fileLengths[i] = file.files.get(i).length;
+            fileModifiedTimes[i] = file.files.get(i).modified;
+        }
+
+        Map<Integer, Bitfield> partialPieces = new TreeMap<>();
+        for (ResumeFile.Partial partial : file.partial) {
+            if (partial.piece < 0 || partial.piece >= file.pieces)
+                throw new BencodeException("Partial piece index out of bounds: " + partial.piece);
+            if (partial.blockCount < 0 || partial.blockCount > Integer.MAX_VALUE)
+                throw new BencodeException("Incorrect amount of blocks: " + partial.blockCount);
+            partialPieces.put((int) partial.piece, toBitfield(partial.blocks, partial.blockCount));
+        }
+
+        byte[] infoHash = new byte[file.infoHash.remaining()];
+        file.infoHash.get(infoHash);
+        return new ResumeData(
+                new InfoHash(infoHash, true),
+                Paths.get(file.metainfo),
+                Paths.get(file.directory),
+                bitfield,
+                fileLengths,
+                fileModifiedTimes,
+                partialPieces
+        );
+    }
+
+    private static Bitfield toBitfield(ByteBuffer buffer, long amount) throws BencodeException {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        try {
+            return new Bitfield(bytes, (int) amount);
+        } catch (IllegalArgumentException e) {
+            throw new BencodeException(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes this resume data to the given path. The data is written to a
+     * temporary file that is moved into place, so a crash while writing never
+     * leaves a half written resume file behind.
+     *
+     * @param path the path of the resume file.
+     * @throws IOException      if unable to write the file.
+     * @throws BencodeException if unable to encode the data.
+     */
+    public void write(Path path) throws IOException, BencodeException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null)
+            Files.createDirectories(parent);
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(
+                tmp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            Bencode.encode(this.toBencode(), channel);
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private BencodeData<Object> toBencode() throws UnsupportedEncodingException {
+        List<BencodeData<Object>> files = new ArrayList<>(this.fileLengths.length);
+        for (int i = 0; i < this.fileLengths.length; i++) {
+            var file = new BencodeDictionary(2);
+            file.put(BencodeKey.of(ResumeFile.LENGTH), BencodeData.ofNumber(this.fileLengths[i]));
+            file.put(BencodeKey.of(ResumeFile.MODIFIED), BencodeData.ofNumber(this.fileModifiedTimes[i]));
+            files.add(BencodeData.ofDictionary(file));
+        }
+
+        List<BencodeData<Object>> partial = new ArrayList<>(this.partialPieces.size());
+        for (var entry : this.partialPieces.entrySet()) {
+            var piece = new BencodeDictionary(3);
+            piece.put(BencodeKey.of(ResumeFile.PIECE), BencodeData.ofNumber(entry.getKey()));
+            piece.put(BencodeKey.of(ResumeFile.BLOCKS), BencodeData.ofBytes(entry.getValue().toByteArray()));
+            piece.put(BencodeKey.of(ResumeFile.BLOCK_COUNT), BencodeData.ofNumber(entry.getValue().getAmountOfPieces()));
+            partial.add(BencodeData.ofDictionary(piece));
+        }
+
+        var dictionary = new BencodeDictionary(7);
+        dictionary.put(BencodeKey.of(ResumeFile.INFO_HASH), BencodeData.ofBytes(this.infoHash.getBytes()));
+        dictionary.put(BencodeKey.of(ResumeFile.METAINFO), BencodeData.ofBytes(toBytes(this.metainfoPath)));
+        dictionary.put(BencodeKey.of(ResumeFile.DIRECTORY), BencodeData.ofBytes(toBytes(this.directory)));
+        dictionary.put(BencodeKey.of(ResumeFile.PIECES), BencodeData.ofNumber(this.bitfield.getAmountOfPieces()));
+        dictionary.put(BencodeKey.of(ResumeFile.BITFIELD), BencodeData.ofBytes(this.bitfield.toByteArray()));
+        dictionary.put(BencodeKey.of(ResumeFile.FILES), BencodeData.ofList(files));
+        dictionary.put(BencodeKey.of(ResumeFile.PARTIAL), BencodeData.ofList(partial));
+        return BencodeData.ofDictionary(dictionary);
+    }
+
+    private static byte[] toBytes(Path path) throws UnsupportedEncodingException {
+        return path.toString().getBytes(Bencode.ENCODING);
+    }
+
+    /**
+     * Checks if this resume data belongs to the given torrent and if its files
+     * still have the same sizes and modified times as when this resume data
+     * was created.
+     *
+     * @param torrent the torrent.
+     * @return true if the bitfield of this resume data can be trusted.
+     * @throws IOException if unable to read the attributes of the files.
+     */
+    public boolean isUnchanged(Torrent torrent) throws IOException {
+        if (!this.infoHash.equals(torrent.getInfoHash())
+                || this.bitfield.getAmountOfPieces() != torrent.getAmountOfPieces()
+                || this.fileLengths.length != torrent.getFiles().size()) {
+            return false;
+        }
+
+        long[][] fileStates = fileStates(torrent, this.directory);
+        for (int i = 0; i < this.fileLengths.length; i++) {
+            if (this.fileLengths[i] != fileStates[0][i] || this.fileModifiedTimes[i] != fileStates[1][i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Restores the bitfield of the given torrent from this resume data if the
+     * files of the torrent are unchanged, see `isUnchanged(Torrent)`.
+     *
+     * @param torrent the torrent to restore.
+     * @return true if the torrent was restored, false if it needs a recheck.
+     * @throws IOException if unable to read the attributes of the files.
+     */
+    public boolean restore(Torrent torrent) throws IOException {
+        if (!this.isUnchanged(torrent))
+            return false;
+
+        for (int i = 0; i < this.bitfield.getAmountOfPieces(); i++) {
+            if (this.bitfield.isSet(i)) {
+                torrent.getBitfieldHave().set(i);
+                torrent.getBitfieldDownloading().set(i);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Restores the bitfield of the given torrent, and the blocks on disk of its
+     * partially downloaded pieces, if the files of the torrent are unchanged.
+     * The partial pieces are handed to the write cache so that the blocks on
+     * disk are used when the pieces are completed, see `restore(Torrent)`.
+     *
+     * @param torrent    the torrent to restore.
+     * @param writeCache the write cache that the blocks of the torrent are written through.
+     * @return true if the torrent was restored, false if it needs a recheck.
+     * @throws IOException if unable to read the attributes of the files.
+     */
+    public boolean restore(Torrent torrent, WriteCache writeCache) throws IOException {
+        if (!this.restore(torrent))
+            return false;
+
+        Map<Integer, Bitfield> partialPieces = new HashMap<>();
+        for (var partialPiece : this.partialPieces.entrySet()) {
+            if (!this.bitfield.isSet(partialPiece.getKey()))
+                partialPieces.put(partialPiece.getKey(), partialPiece.getValue().copy());
+        }
+        writeCache.setPartialPieces(torrent.getInfoHash(), partialPieces);
+        return true;
+    }
+
+    // Returns the lengths (index 0) and modified times (index 1) of the files of the torrent.
+    private static long[][] fileStates(Torrent torrent, Path directory) throws IOException {
+        Path root = PieceStore.rootOf(torrent, directory);
+        var files = torrent.getFiles();
+        long[][] fileStates = new long[2][files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                var attributes = Files.readAttributes(root.resolve(files.get(i).getPath()), BasicFileAttributes.class);
+                fileStates[0][i] = attributes.size();
+                fileStates[1][i] = attributes.lastModifiedTime().toMillis();
+            } catch (NoSuchFileException e) {
+                fileStates[0][i] = -1;
+                fileStates[1][i] = 0;
+            }
+        }
+        return fileStates;
+    }
+
+    public InfoHash getInfoHash() {
+        return this.infoHash;
+    }
+
+    public Path getMetainfoPath() {
+        return this.metainfoPath;
+    }
+
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    public Bitfield getBitfield() {
+        return this.bitfield;
+    }
+
+    public Map<Integer, Bitfield> getPartialPieces() {
+        return Collections.unmodifiableMap(this.partialPieces);
+    }
+}
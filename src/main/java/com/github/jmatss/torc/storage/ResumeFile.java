@@ -0,0 +1,76 @@
+package com.github.jmatss.torc.storage;
+
+import com.github.jmatss.torc.bencode.bind.BencodeBound;
+import com.github.jmatss.torc.bencode.bind.BencodeField;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The fields of a resume file, see ResumeData.
+ * Bound by the generated ResumeFileBinder, see BencodeBound.
+ */
+@BencodeBound
+class ResumeFile {
+    static final String INFO_HASH = "info hash";
+    static final String METAINFO = "metainfo";
+    static final String DIRECTORY = "directory";
+    static final String PIECES = "pieces";
+    static final String BITFIELD = "bitfield";
+    static final String FILES = "files";
+    static final String PARTIAL = "partial";
+    static final String LENGTH = "length";
+    static final String MODIFIED = "modified";
+    static final String PIECE = "piece";
+    static final String BLOCKS = "blocks";
+    static final String BLOCK_COUNT = "block count";
+
+    @BencodeField(INFO_HASH)
+    ByteBuffer infoHash;
+
+    // Path of the .torrent file.
+    @BencodeField(METAINFO)
+    String metainfo;
+
+    // The download directory.
+    @BencodeField(DIRECTORY)
+    String directory;
+
+    // Amount of pieces, i.e. amount of bits in the bitfield.
+    @BencodeField(PIECES)
+    long pieces;
+
+    @BencodeField(BITFIELD)
+    ByteBuffer bitfield;
+
+    @BencodeField(FILES)
+    List<File> files;
+
+    @BencodeField(PARTIAL)
+    List<Partial> partial;
+
+    // The state of a file when the resume file was written.
+    @BencodeBound
+    static class File {
+        // Size of the file in bytes, -1 if the file didn't exist.
+        @BencodeField(LENGTH)
+        long length;
+
+        // Last modified time in milliseconds since the epoch.
+        @BencodeField(MODIFIED)
+        long modified;
+    }
+
+    // A piece where only some of the blocks have been downloaded.
+    @BencodeBound
+    static class Partial {
+        @BencodeField(PIECE)
+        long piece;
+
+        @BencodeField(BLOCKS)
+        ByteBuffer blocks;
+
+        @BencodeField(BLOCK_COUNT)
+        long blockCount;
+    }
+}
@@ -0,0 +1,476 @@
+package com.github.jmatss.torc.storage;
+
+import com.github.jmatss.torc.bittorrent.Bitfield;
+import com.github.jmatss.torc.bittorrent.InfoHash;
+import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.util.BufferPool;
+import com.github.jmatss.torc.util.PooledBuffer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Write-back cache that assembles the blocks of pieces in memory.
+ *
+ * Blocks (of length MAX_REQUEST_LENGTH, except the last block of the last
+ * piece) are copied into a buffer of the size of the whole piece. When all
+ * blocks of a piece have been received and, if the hash of the piece is
+ * correct, it is written to the PieceStore with a single sequential write. So
+ * the blocks are never written to disk one by one and a verified piece never
+ * has to be read back to check its hash.
+ *
+ * The piece is hashed incrementally with a PieceHasher: every block is hashed
+ * as soon as all blocks before it have been received, so the verdict is ready
+ * right after the last block without a second pass over the piece.
+ *
+ * The cache is bounded by the total size of the cached pieces. When a new
+ * piece doesn't fit, the least recently used pieces are evicted. The blocks of
+ * an evicted piece are written to the store and remembered as "spilled", the
+ * piece is then completed by reading those blocks back once all of its other
+ * blocks have been received.
+ *
+ * The monitor of the cache only guards the map of the pieces, their LRU order
+ * and the accounting, it is never held during I/O. The blocks of a piece are
+ * copied and hashed under the lock of its entry, so different pieces are
+ * assembled in parallel. A piece that is completed, evicted or flushed is
+ * first taken out of the cache and then hashed or written by the thread that
+ * took it. The callers are expected to be disk I/O threads.
+ */
+public class WriteCache {
+    public static final int BLOCK_LENGTH = Torrent.MAX_REQUEST_LENGTH;
+    public static final long DEFAULT_MAX_BYTES = 1L << 26;  // 64 MiB
+
+    public enum Result {
+        STORED,         // The block was added to the cache, the piece isn't complete yet.
+        DUPLICATE,      // The block already have been received, it was ignored.
+        VERIFIED,       // The block completed the piece, it had the correct hash and was written to disk.
+        HASH_FAILED     // The block completed the piece, but it had an incorrect hash and was discarded.
+    }
+
+    // Identifies a piece of a specific torrent.
+    private static class PieceKey {
+        private final InfoHash infoHash;
+        private final int piece;
+
+        private PieceKey(InfoHash infoHash, int piece) {
+            this.infoHash = infoHash;
+            this.piece = piece;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other == this)
+                return true;
+            if (!(other instanceof PieceKey))
+                return false;
+            var key = (PieceKey) other;
+            return this.piece == key.piece && this.infoHash.equals(key.infoHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.infoHash.hashCode() + this.piece;
+        }
+    }
+
+    // A piece that is being assembled in memory.
+    private static class Entry {
+        private final PieceKey key;
+        private final Torrent torrent;
+        private final PieceStore store;
+        private final int piece;
+        private final int length;
+        private final int amountOfBlocks;
+        private final PooledBuffer buffer;
+
+        // The blocks that have been received into `buffer`.
+        private final Bitfield blocks;
+        private int received;
+
+        // Hash of the blocks before block `nextHashed`, the blocks are given to the hasher in order.
+        private final PieceHasher hasher;
+        private int nextHashed;
+
+        // The blocks that were written to the store when this piece was evicted earlier, might be null.
+        private final Bitfield spilled;
+        private final int amountSpilled;
+
+        // Set, under the lock of the entry, by the thread that takes it out of the cache to complete or spill it.
+        private boolean removed;
+        // Counted down when the entry has been spilled, a new entry of the piece waits for it.
+        private final CountDownLatch spillDone;
+
+        private Entry(Torrent torrent, PieceStore store, int piece, Bitfield spilled) {
+            this.key = new PieceKey(torrent.getInfoHash(), piece);
+            this.torrent = torrent;
+            this.store = store;
+            this.piece = piece;
+            this.length = (int) torrent.getPieceLength(piece);
+            this.amountOfBlocks = (this.length + BLOCK_LENGTH - 1) / BLOCK_LENGTH;
+            this.buffer = BufferPool.HEAP.acquire(this.length);
+            this.blocks = new Bitfield(this.amountOfBlocks);
+            this.received = 0;
+            this.hasher = new PieceHasher(this.length);
+            this.nextHashed = 0;
+            // Spilled blocks restored from an incompatible source are ignored, they are downloaded again.
+            boolean validSpilled = spilled != null && spilled.getAmountOfPieces() == this.amountOfBlocks;
+            this.spilled = validSpilled ? spilled : null;
+            this.amountSpilled = this.spilled != null ? this.spilled.cardinality() : 0;
+            this.removed = false;
+            this.spillDone = new CountDownLatch(1);
+        }
+
+        private boolean hasBlock(int block) {
+            return this.blocks.isSet(block) || (this.spilled != null && this.spilled.isSet(block));
+        }
+
+        private boolean isComplete() {
+            return this.received + this.amountSpilled == this.amountOfBlocks;
+        }
+
+        // Hashes the received blocks that are next in order.
+        private void hashReceived() {
+            while (this.nextHashed < this.amountOfBlocks && this.blocks.isSet(this.nextHashed)) {
+                this.hasher.update(this.nextHashed * BLOCK_LENGTH, this.block(this.nextHashed));
+                this.nextHashed++;
+            }
+        }
+
+        private void release() {
+            this.hasher.close();
+            this.buffer.release();
+        }
+
+        // Returns a view of the bytes of the given block inside the piece buffer.
+        private ByteBuffer block(int block) {
+            ByteBuffer view = this.buffer.buffer().duplicate();
+            int offset = block * BLOCK_LENGTH;
+            view.limit(Math.min(offset + BLOCK_LENGTH, this.length)).position(offset);
+            return view;
+        }
+    }
+
+    private final long maxBytes;
+
+    // Ordered from least recently used to most recently used.
+    private final LinkedHashMap<PieceKey, Entry> entries;
+    private long cachedBytes;
+
+    // The blocks that have been written to disk by evicted pieces that aren't complete yet.
+    private final Map<PieceKey, Bitfield> spilled;
+    // Pieces that have been taken out of the cache and are being written to disk by `spill`.
+    private final Map<PieceKey, Entry> spilling;
+
+    public WriteCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes the max total size of the pieces in the cache. A single
+     *                 piece is always cached, even if it is larger than this.
+     */
+    public WriteCache(long maxBytes) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("Negative max bytes: " + maxBytes);
+
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.cachedBytes = 0;
+        this.spilled = new HashMap<>();
+        this.spilling = new HashMap<>();
+    }
+
+    /**
+     * Adds a received block to the cache. If the block completes its piece,
+     * the piece is verified and written to the `store`, and the bitfields of
+     * the torrent are updated.
+     *
+     * @param torrent the torrent that the block belongs to.
+     * @param store   the store of the torrent.
+     * @param piece   the index of the piece.
+     * @param offset  the offset of the block inside the piece, must be a multiple of BLOCK_LENGTH.
+     * @param block   the data of the block, the remaining bytes are consumed.
+     * @return the result of adding the block.
+     * @throws IOException if unable to write to or read from the `store`.
+     */
+    public Result put(Torrent torrent, PieceStore store, int piece, int offset, ByteBuffer block)
+    throws IOException {
+        long pieceLength = torrent.getPieceLength(piece);
+        int expectedLength = (int) Math.min(BLOCK_LENGTH, pieceLength - offset);
+        if (offset < 0 || offset >= pieceLength || offset % BLOCK_LENGTH != 0 || block.remaining() != expectedLength) {
+            String msg = "Incorrect block of piece " + piece + " (offset: " + offset;
+            msg += ", length: " + block.remaining() + ").";
+            throw new IllegalArgumentException(msg);
+        }
+
+        var key = new PieceKey(torrent.getInfoHash(), piece);
+        int blockIndex = offset / BLOCK_LENGTH;
+        while (true) {
+            Entry entry;
+            Entry beingSpilled = null;
+            List<Entry> evicted = null;
+            synchronized (this) {
+                entry = this.entries.get(key);
+                if (entry == null) {
+                    beingSpilled = this.spilling.get(key);
+                    if (beingSpilled == null) {
+                        evicted = this.evict(pieceLength);
+                        entry = new Entry(torrent, store, piece, this.spilled.remove(key));
+                        this.entries.put(key, entry);
+                        this.cachedBytes += entry.length;
+                    }
+                }
+            }
+            // A new entry must know about all blocks of the piece that are on disk, or it would never be completed.
+            if (beingSpilled != null) {
+                awaitSpill(beingSpilled);
+                continue;
+            }
+            if (evicted != null)
+                this.spill(evicted);
+
+            synchronized (entry) {
+                // Evicted or completed by another thread after it was looked up, the block is put in a new entry.
+                if (entry.removed)
+                    continue;
+                if (entry.hasBlock(blockIndex))
+                    return Result.DUPLICATE;
+
+                entry.block(blockIndex).put(block);
+                entry.blocks.set(blockIndex);
+                entry.received++;
+                entry.hashReceived();
+
+                if (!entry.isComplete())
+                    return Result.STORED;
+                entry.removed = true;
+            }
+
+            // The entry is owned by this thread from now on, the other threads see that it is removed.
+            synchronized (this) {
+                if (this.entries.remove(key, entry))
+                    this.cachedBytes -= entry.length;
+                // Blocks restored with `setPartialPieces` after the entry was created belong to a completed piece.
+                this.spilled.remove(key);
+            }
+            try {
+                return this.complete(entry);
+            } finally {
+                entry.release();
+            }
+        }
+    }
+
+    // Hashes a complete piece and writes it to disk if the hash is correct.
+    private Result complete(Entry entry) throws IOException {
+        // Read back the blocks that were written to disk when the piece was evicted
+        // and hash them together with the blocks after them.
+        if (entry.spilled != null) {
+            for (int i = entry.nextHashed; i < entry.amountOfBlocks; i++) {
+                if (entry.spilled.isSet(i)) {
+                    entry.store.read(entry.piece, i * BLOCK_LENGTH, entry.block(i));
+                    entry.blocks.set(i);
+                }
+            }
+            entry.hashReceived();
+        }
+
+        if (!entry.torrent.getPieces().matches(entry.piece, entry.hasher.digest()))
+            return Result.HASH_FAILED;
+
+        ByteBuffer piece = entry.buffer.buffer().duplicate();
+        piece.clear().limit(entry.length);
+        entry.store.write(entry.piece, 0, piece);
+        entry.torrent.getBitfieldHave().set(entry.piece);
+        entry.torrent.getBitfieldDownloading().set(entry.piece);
+        return Result.VERIFIED;
+    }
+
+    // Removes the least recently used pieces until a piece of the given length fits, they are spilled by the caller.
+    private List<Entry> evict(long length) {
+        List<Entry> evicted = new ArrayList<>();
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (this.cachedBytes + length > this.maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            this.cachedBytes -= entry.length;
+            this.spilling.put(entry.key, entry);
+            evicted.add(entry);
+        }
+        return evicted;
+    }
+
+    private static void awaitSpill(Entry entry) throws IOException {
+        try {
+            entry.spillDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for piece " + entry.piece + " to be spilled.");
+        }
+    }
+
+    // Spills entries that have been removed from the cache, must be called without holding the monitor of the cache.
+    private void spill(List<Entry> entries) throws IOException {
+        IOException error = null;
+        for (Entry entry : entries) {
+            try {
+                this.spill(entry);
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+    // Writes the received blocks of the entry to its store, contiguous blocks are written with a single write.
+    private void spill(Entry entry) throws IOException {
+        Bitfield blocks = null;
+        try {
+            synchronized (entry) {
+                // Already completed by the thread that added its last block.
+                if (entry.removed)
+                    return;
+                entry.removed = true;
+
+                try {
+                    int i = 0;
+                    while (i < entry.amountOfBlocks) {
+                        if (!entry.blocks.isSet(i)) {
+                            i++;
+                            continue;
+                        }
+
+                        int start = i;
+                        while (i < entry.amountOfBlocks && entry.blocks.isSet(i))
+                            i++;
+
+                        ByteBuffer run = entry.buffer.buffer().duplicate();
+                        run.limit(Math.min(i * BLOCK_LENGTH, entry.length)).position(start * BLOCK_LENGTH);
+                        entry.store.write(entry.piece, start * BLOCK_LENGTH, run);
+                    }
+
+                    blocks = new Bitfield(entry.amountOfBlocks);
+                    for (int j = 0; j < entry.amountOfBlocks; j++) {
+                        if (entry.hasBlock(j))
+                            blocks.set(j);
+                    }
+                } finally {
+                    entry.release();
+                }
+            }
+        } finally {
+            // The blocks are only announced as spilled once they are on disk, a new entry of the piece reads them back.
+            synchronized (this) {
+                if (blocks != null)
+                    this.spilled.put(entry.key, blocks);
+                this.spilling.remove(entry.key, entry);
+            }
+            entry.spillDone.countDown();
+        }
+    }
+
+    /**
+     * Writes the received blocks of all incomplete pieces of the given torrent
+     * to its store and removes them from the cache, ex. before the torrent is
+     * stopped. The written blocks are available through `getPartialPieces`.
+     *
+     * @param infoHash the info hash of the torrent.
+     * @throws IOException if unable to write to the store.
+     */
+    public void flush(InfoHash infoHash) throws IOException {
+        List<Entry> removed;
+        synchronized (this) {
+            removed = this.removeEntries(infoHash);
+            for (Entry entry : removed)
+                this.spilling.put(entry.key, entry);
+        }
+        this.spill(removed);
+    }
+
+    // Removes the entries of the given torrent from the cache and returns them.
+    private synchronized List<Entry> removeEntries(InfoHash infoHash) {
+        List<Entry> removed = new ArrayList<>();
+        Iterator<Map.Entry<PieceKey, Entry>> iterator = this.entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var cached = iterator.next();
+            if (cached.getKey().infoHash.equals(infoHash)) {
+                iterator.remove();
+                this.cachedBytes -= cached.getValue().length;
+                removed.add(cached.getValue());
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the blocks that have been written to disk for the incomplete
+     * pieces of the given torrent. Blocks that only are cached in memory
+     * aren't included, see `flush(InfoHash)`.
+     *
+     * @param infoHash the info hash of the torrent.
+     * @return a map from piece index to the bitfield of the blocks on disk.
+     */
+    public synchronized Map<Integer, Bitfield> getPartialPieces(InfoHash infoHash) {
+        Map<Integer, Bitfield> partialPieces = new HashMap<>();
+        for (var spilledPiece : this.spilled.entrySet()) {
+            if (spilledPiece.getKey().infoHash.equals(infoHash)) {
+                Bitfield blocks = spilledPiece.getValue();
+                var copy = new Bitfield(blocks.toByteArray(), blocks.getAmountOfPieces());
+                partialPieces.put(spilledPiece.getKey().piece, copy);
+            }
+        }
+        return partialPieces;
+    }
+
+    /**
+     * Restores the blocks on disk of the incomplete pieces of a torrent, ex.
+     * from ResumeData.
+     *
+     * @param infoHash      the info hash of the torrent.
+     * @param partialPieces a map from piece index to the bitfield of the blocks on disk.
+     */
+    public synchronized void setPartialPieces(InfoHash infoHash, Map<Integer, Bitfield> partialPieces) {
+        for (var partialPiece : partialPieces.entrySet())
+            this.spilled.put(new PieceKey(infoHash, partialPiece.getKey()), partialPiece.getValue());
+    }
+
+    /**
+     * Discards everything cached for the given torrent without writing it, ex.
+     * when the torrent is removed.
+     *
+     * @param infoHash the info hash of the torrent.
+     */
+    public void remove(InfoHash infoHash) {
+        List<Entry> removed;
+        synchronized (this) {
+            removed = this.removeEntries(infoHash);
+            this.spilled.keySet().removeIf(key -> key.infoHash.equals(infoHash));
+        }
+        for (Entry entry : removed) {
+            synchronized (entry) {
+                if (!entry.removed) {
+                    entry.removed = true;
+                    entry.release();
+                }
+            }
+        }
+    }
+
+    public synchronized long getCachedBytes() {
+        return this.cachedBytes;
+    }
+
+    public synchronized int getCachedPieces() {
+        return this.entries.size();
+    }
+}
@@ -0,0 +1,194 @@
+package com.github.jmatss.torc.util;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of heap or direct ByteBuffers divided into size classes that are
+ * powers of two between 2^MIN_SIZE_CLASS and 2^MAX_SIZE_CLASS bytes. A
+ * request is served by the smallest size class that fits it, larger requests
+ * are allocated without being pooled.
+ *
+ * Buffers are acquired wrapped in a reference counted PooledBuffer and are
+ * returned to the pool when the reference count reaches zero. Every size class
+ * keeps a bounded amount of free buffers, so buffers released when the class
+ * is full are left to the GC.
+ *
+ * Leak detection: a sample of the acquired buffers are registered with a
+ * Cleaner. If such a buffer becomes unreachable without having been released,
+ * a leak is logged and counted, see `getLeaked()`. The buffer itself is never
+ * reused after a leak since it might still be referenced through a view.
+ */
+public class BufferPool {
+    public static final Logger LOGGER = Logger.getLogger(BufferPool.class.getName());
+
+    public static final int MIN_SIZE_CLASS = 6;     // 64 B
+    public static final int MAX_SIZE_CLASS = 22;    // 4 MiB
+
+    public static final int DEFAULT_MAX_FREE_BUFFERS = 256;     // per size class
+    public static final long DEFAULT_MAX_FREE_BYTES = 1 << 24;  // 16 MiB per size class
+    public static final int DEFAULT_LEAK_SAMPLE_INTERVAL = 128;
+
+    // Pools shared by all of torc.
+    public static final BufferPool HEAP = new BufferPool(false);
+    public static final BufferPool DIRECT = new BufferPool(true);
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final boolean direct;
+    private final int leakSampleInterval;
+
+    // Index `i` contains the free buffers of size class `i + MIN_SIZE_CLASS`.
+    // Used as stacks so that the most recently used (cache-warm) buffer is reused first.
+    private final List<ConcurrentLinkedDeque<ByteBuffer>> freeBuffers;
+    private final AtomicInteger[] freeCounts;
+    private final int[] maxFreeCounts;
+
+    private final AtomicLong acquireCount;
+    private final AtomicLong allocatedCount;
+    private final AtomicLong leakedCount;
+
+    public BufferPool(boolean direct) {
+        this(direct, DEFAULT_MAX_FREE_BUFFERS, DEFAULT_MAX_FREE_BYTES, DEFAULT_LEAK_SAMPLE_INTERVAL);
+    }
+
+    /**
+     * @param direct             true if direct buffers should be allocated, false for heap buffers.
+     * @param maxFreeBuffers     max amount of free buffers kept in a size class.
+     * @param maxFreeBytes       max amount of bytes kept in the free buffers of a size class.
+     * @param leakSampleInterval every `leakSampleInterval`:th acquired buffer is tracked for leaks,
+     *                           1 tracks all buffers and 0 disables leak detection.
+     */
+    public BufferPool(boolean direct, int maxFreeBuffers, long maxFreeBytes, int leakSampleInterval) {
+        if (maxFreeBuffers < 0 || maxFreeBytes < 0 || leakSampleInterval < 0)
+            throw new IllegalArgumentException("Negative pool limits.");
+
+        this.direct = direct;
+        this.leakSampleInterval = leakSampleInterval;
+
+        int amountOfClasses = MAX_SIZE_CLASS - MIN_SIZE_CLASS + 1;
+        this.freeBuffers = new ArrayList<>(amountOfClasses);
+        this.freeCounts = new AtomicInteger[amountOfClasses];
+        this.maxFreeCounts = new int[amountOfClasses];
+        for (int i = 0; i < amountOfClasses; i++) {
+            this.freeBuffers.add(new ConcurrentLinkedDeque<>());
+            this.freeCounts[i] = new AtomicInteger(0);
+            long bufferSize = 1L << (i + MIN_SIZE_CLASS);
+            this.maxFreeCounts[i] = (int) Math.min(maxFreeBuffers, maxFreeBytes / bufferSize);
+        }
+
+        this.acquireCount = new AtomicLong(0);
+        this.allocatedCount = new AtomicLong(0);
+        this.leakedCount = new AtomicLong(0);
+    }
+
+    /**
+     * Acquires a buffer that can hold at least `capacity` bytes. The returned
+     * buffer has position 0, limit `capacity` and big-endian byte order. Its
+     * contents are undefined. The buffer must be released when it no longer
+     * is used, see PooledBuffer.
+     *
+     * @param capacity the minimum capacity of the buffer.
+     * @return a pooled buffer with a reference count of one.
+     */
+    public PooledBuffer acquire(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Negative capacity: " + capacity);
+
+        int sizeClass = sizeClassOf(capacity);
+        ByteBuffer buffer = null;
+        if (sizeClass != -1) {
+            buffer = this.freeBuffers.get(sizeClass - MIN_SIZE_CLASS).pollFirst();
+            if (buffer != null)
+                this.freeCounts[sizeClass - MIN_SIZE_CLASS].decrementAndGet();
+        }
+
+        if (buffer == null) {
+            int allocateCapacity = sizeClass == -1 ? capacity : 1 << sizeClass;
+            buffer = this.direct
+                    ? ByteBuffer.allocateDirect(allocateCapacity)
+                    : ByteBuffer.allocate(allocateCapacity);
+            this.allocatedCount.incrementAndGet();
+        }
+
+        buffer.clear().limit(capacity);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+
+        long count = this.acquireCount.incrementAndGet();
+        boolean track = this.leakSampleInterval > 0 && count % this.leakSampleInterval == 0;
+        return new PooledBuffer(this, buffer, sizeClass, track);
+    }
+
+    /**
+     * Returns the size class that a buffer with the given capacity belongs to.
+     *
+     * @param capacity the capacity of the buffer.
+     * @return the size class (log2 of the pooled capacity) or -1 if the capacity is too large to be pooled.
+     */
+    static int sizeClassOf(int capacity) {
+        if (capacity > (1 << MAX_SIZE_CLASS))
+            return -1;
+        int sizeClass = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1);
+        return Math.max(sizeClass, MIN_SIZE_CLASS);
+    }
+
+    // Called by PooledBuffer when its reference count reaches zero.
+    void release(ByteBuffer buffer, int sizeClass) {
+        if (sizeClass == -1)
+            return;
+
+        int index = sizeClass - MIN_SIZE_CLASS;
+        if (this.freeCounts[index].incrementAndGet() <= this.maxFreeCounts[index]) {
+            this.freeBuffers.get(index).offerFirst(buffer);
+        } else {
+            // The size class is full, leave the buffer to the GC.
+            this.freeCounts[index].decrementAndGet();
+        }
+    }
+
+    // Called by the Cleaner when a tracked buffer became unreachable without being released.
+    void leaked(int capacity) {
+        this.leakedCount.incrementAndGet();
+        LOGGER.log(Level.WARNING, "Pooled buffer with capacity " + capacity + " was never released.");
+    }
+
+    Cleaner getCleaner() {
+        return CLEANER;
+    }
+
+    public boolean isDirect() {
+        return this.direct;
+    }
+
+    /**
+     * @return the amount of buffers that this pool have allocated, i.e. acquires not served by a free buffer.
+     */
+    public long getAllocated() {
+        return this.allocatedCount.get();
+    }
+
+    /**
+     * @return the amount of tracked buffers that have been leaked.
+     */
+    public long getLeaked() {
+        return this.leakedCount.get();
+    }
+
+    /**
+     * @return the amount of free buffers currently kept in this pool.
+     */
+    public int getFree() {
+        int free = 0;
+        for (AtomicInteger freeCount : this.freeCounts)
+            free += freeCount.get();
+        return free;
+    }
+}
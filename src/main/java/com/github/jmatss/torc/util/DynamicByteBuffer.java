@@ -1,38 +1,99 @@
 package com.github.jmatss.torc.util;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
 /**
- * A wrapper around a ByteBuffer with dynamic size.
+ * A wrapper around a ByteBuffer with dynamic size. The underlying buffers
+ * are acquired from a BufferPool, the capacity is doubled (i.e. moved to the
+ * next size class) when the buffer is full. The buffer must be closed when it
+ * no longer is used so that it is returned to its pool.
  */
-public class DynamicByteBuffer {
-    public static final int DEFAULT_CAPACITY = 10;
+public class DynamicByteBuffer implements AutoCloseable {
+    public static final int DEFAULT_CAPACITY = 1 << BufferPool.MIN_SIZE_CLASS;
+
+    // Max amount of characters needed to format a long (19 digits + sign).
+    private static final int MAX_NUMBER_LENGTH = 20;
+
+    private final BufferPool pool;
+    private PooledBuffer pooled;
     private ByteBuffer buffer;
 
     public DynamicByteBuffer() {
-        this.buffer = ByteBuffer.allocate(DEFAULT_CAPACITY);
+        this(BufferPool.HEAP, DEFAULT_CAPACITY);
     }
 
-    public DynamicByteBuffer put(byte b) {
-        if (!this.buffer.hasRemaining()) {
-            var oldBuffer = this.buffer;
-            this.buffer = ByteBuffer.allocate(this.buffer.capacity() + (this.buffer.capacity() / 2));
-            this.buffer.put(oldBuffer.array(), 0, oldBuffer.position());
+    public DynamicByteBuffer(BufferPool pool, int initialCapacity) {
+        this.pool = pool;
+        this.pooled = pool.acquire(initialCapacity);
+        this.buffer = this.pooled.buffer();
+        this.buffer.limit(this.buffer.capacity());
+    }
+
+    // Makes sure that there are room for at least `amount` more bytes in the buffer.
+    private void ensureRemaining(int amount) {
+        if (this.buffer.remaining() >= amount) {
+            return;
         }
+
+        int minCapacity = this.buffer.position() + amount;
+        if (minCapacity < 0)
+            throw new BufferOverflowException();
+        int newCapacity = Math.max(this.buffer.capacity() * 2, minCapacity);
+        if (newCapacity < 0)
+            newCapacity = minCapacity;
+
+        var oldPooled = this.pooled;
+        var oldBuffer = this.buffer;
+        this.pooled = this.pool.acquire(newCapacity);
+        this.buffer = this.pooled.buffer();
+        this.buffer.limit(this.buffer.capacity());
+
+        oldBuffer.flip();
+        this.buffer.put(oldBuffer);
+        oldPooled.release();
+    }
+
+    public DynamicByteBuffer put(byte b) {
+        ensureRemaining(1);
         this.buffer.put(b);
         return this;
     }
 
-    // TODO: more effective puts
     public DynamicByteBuffer put(byte[] bytes) {
-        for (byte b : bytes) {
-            put(b);
-        }
+        return put(bytes, 0, bytes.length);
+    }
+
+    public DynamicByteBuffer put(byte[] bytes, int offset, int length) {
+        ensureRemaining(length);
+        this.buffer.put(bytes, offset, length);
         return this;
     }
 
+    // Writes the number as ASCII digits without creating any intermediate String.
     public DynamicByteBuffer putLongBytes(long number) {
-        put(String.valueOf(number).getBytes());
+        ensureRemaining(MAX_NUMBER_LENGTH);
+
+        // Use a negative value so that Long.MIN_VALUE is handled correctly.
+        long value = number < 0 ? number : -number;
+        int start = this.buffer.position();
+        do {
+            this.buffer.put((byte)('0' - (value % 10)));
+            value /= 10;
+        } while (value != 0);
+        if (number < 0) {
+            this.buffer.put((byte)'-');
+        }
+
+        // The digits were written in reverse order.
+        for (int i = start, j = this.buffer.position() - 1; i < j; i++, j--) {
+            byte tmp = this.buffer.get(i);
+            this.buffer.put(i, this.buffer.get(j));
+            this.buffer.put(j, tmp);
+        }
         return this;
     }
 
@@ -40,11 +101,56 @@ public class DynamicByteBuffer {
         return putLongBytes(number);
     }
 
+    /**
+     * Reads everything from the given InputStream into this buffer.
+     *
+     * @param inputStream the stream to read until EOF.
+     * @return this buffer.
+     * @throws IOException if unable to read from the `inputStream`.
+     */
+    public DynamicByteBuffer readFrom(InputStream inputStream) throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(inputStream);
+        while (true) {
+            ensureRemaining(1);
+            if (channel.read(this.buffer) == -1)
+                return this;
+        }
+    }
+
+    public int length() {
+        return this.buffer.position();
+    }
+
     // Return the buffer with the excess byte removed.
     public byte[] getBytes() {
-        int newCapacity = this.buffer.position();
-        var newBuffer = ByteBuffer.allocate(newCapacity)
-                .put(this.buffer.array(), 0, newCapacity);
-        return newBuffer.array();
+        byte[] bytes = new byte[this.buffer.position()];
+        this.getBuffer().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns a read-only view of the bytes written to this buffer without
+     * copying them. The view is only valid until the next write to this
+     * buffer or until this buffer is closed.
+     *
+     * @return a view of the written bytes with position 0 and limit `length()`.
+     */
+    public ByteBuffer getBuffer() {
+        ByteBuffer view = this.buffer.duplicate();
+        view.flip();
+        return view.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the underlying buffer to its pool. This buffer must not be used
+     * after it has been closed.
+     */
+    @Override
+    public void close() {
+        if (this.pooled != null) {
+            this.pooled.release();
+            this.pooled = null;
+            this.buffer = null;
+        }
     }
 }
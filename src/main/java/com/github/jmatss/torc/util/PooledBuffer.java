@@ -0,0 +1,122 @@
+package com.github.jmatss.torc.util;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted ByteBuffer acquired from a BufferPool. The buffer is
+ * returned to its pool when the reference count reaches zero. `retain()`
+ * increments the count and `release()`/`close()` decrements it, so a single
+ * owner can use the buffer with try-with-resources:
+ *     try (var pooled = BufferPool.HEAP.acquire(length)) {
+ *         ByteBuffer buffer = pooled.buffer();
+ *         ...
+ *     }
+ *
+ * The ByteBuffer (and any view created from it) must not be used after the
+ * last reference has been released.
+ */
+public class PooledBuffer implements AutoCloseable {
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final int sizeClass;
+    private final AtomicInteger referenceCount;
+
+    // Only set if this buffer is tracked for leaks.
+    private final LeakState leakState;
+    private final Cleaner.Cleanable cleanable;
+
+    /**
+     * The state shared with the Cleaner. Must not reference the PooledBuffer,
+     * otherwise the PooledBuffer would never become unreachable.
+     */
+    private static class LeakState implements Runnable {
+        private final BufferPool pool;
+        private final int capacity;
+        private volatile boolean released;
+
+        private LeakState(BufferPool pool, int capacity) {
+            this.pool = pool;
+            this.capacity = capacity;
+            this.released = false;
+        }
+
+        @Override
+        public void run() {
+            if (!this.released)
+                this.pool.leaked(this.capacity);
+        }
+    }
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass, boolean trackLeaks) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+        this.referenceCount = new AtomicInteger(1);
+
+        if (trackLeaks) {
+            this.leakState = new LeakState(pool, buffer.capacity());
+            this.cleanable = pool.getCleaner().register(this, this.leakState);
+        } else {
+            this.leakState = null;
+            this.cleanable = null;
+        }
+    }
+
+    /**
+     * @return the pooled ByteBuffer.
+     */
+    public ByteBuffer buffer() {
+        if (this.referenceCount.get() <= 0)
+            throw new IllegalStateException("Buffer used after it was released.");
+        return this.buffer;
+    }
+
+    public int capacity() {
+        return this.buffer.capacity();
+    }
+
+    /**
+     * Increments the reference count, ex. when the buffer is handed over to
+     * another thread that will release it independently.
+     *
+     * @return this buffer.
+     */
+    public PooledBuffer retain() {
+        int count;
+        do {
+            count = this.referenceCount.get();
+            if (count <= 0)
+                throw new IllegalStateException("Retaining a buffer that already is released.");
+        } while (!this.referenceCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * Decrements the reference count and returns the buffer to its pool if
+     * the count reaches zero.
+     *
+     * @return true if the buffer was returned to the pool by this call.
+     */
+    public boolean release() {
+        int count = this.referenceCount.decrementAndGet();
+        if (count > 0) {
+            return false;
+        } else if (count < 0) {
+            throw new IllegalStateException("Buffer released more times than it was retained.");
+        }
+
+        if (this.leakState != null) {
+            this.leakState.released = true;
+            this.cleanable.clean();
+        }
+        this.pool.release(this.buffer, this.sizeClass);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        this.release();
+    }
+}
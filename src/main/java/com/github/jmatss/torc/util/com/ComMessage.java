@@ -68,6 +68,11 @@ public class ComMessage {
         return new ComMessage(ComMessageType.ERROR, exception);
     }
 
+    // Sent from a child to a parent to indicate that something have gone wrong with a specific torrent.
+    public static ComMessage error(InfoHash infoHash, Exception exception) {
+        return new ComMessage(ComMessageType.ERROR, infoHash, exception);
+    }
+
     // Sent from a child to a parent to indicate that something have gone terrible wrong
     // and that the child will terminate itself after sending this message.
     public static ComMessage fatalError(InfoHash infoHash, Exception exception) {
@@ -81,6 +86,27 @@ public class ComMessage {
         return new ComMessage(ComMessageType.MOVE, infoHash, filename);
     }
 
+    // Sent from a parent to a child to verify the downloaded data against the piece hashes.
+    // An ongoing recheck is cancelled with a STOP message.
+    public static ComMessage recheck(InfoHash infoHash) {
+        return new ComMessage(ComMessageType.RECHECK, infoHash);
+    }
+
+    // Sent from a child to a parent when a recheck has finished, contains the amount of valid pieces.
+    public static ComMessage rechecked(InfoHash infoHash, int validPieces) {
+        var message = new ComMessage(ComMessageType.RECHECKED, infoHash);
+        message.properties.put(ComPropertyType.VALID_PIECES.toString(), validPieces);
+        return message;
+    }
+
+    // Sent from a child to a parent to report the progress of a long running
+    // operation (ex. a recheck) as a fraction between 0.0 and 1.0.
+    public static ComMessage progress(InfoHash infoHash, double progress) {
+        var message = new ComMessage(ComMessageType.PROGRESS, infoHash);
+        message.properties.put(ComPropertyType.PROGRESS.toString(), progress);
+        return message;
+    }
+
     public static ComMessage list() {
         return new ComMessage(ComMessageType.LIST);
     }
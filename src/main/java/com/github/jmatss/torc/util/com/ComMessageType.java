@@ -1,5 +1,5 @@
 package com.github.jmatss.torc.util.com;
 
 public enum ComMessageType {
-    ADD, REMOVE, START, STOP, SHUTDOWN, ERROR, FATAL_ERROR, MOVE, LIST;
+    ADD, REMOVE, START, STOP, SHUTDOWN, ERROR, FATAL_ERROR, MOVE, LIST, RECHECK, RECHECKED, PROGRESS;
 }
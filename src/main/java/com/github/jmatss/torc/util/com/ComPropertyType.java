@@ -1,7 +1,8 @@
 package com.github.jmatss.torc.util.com;
 
 public enum ComPropertyType {
-    INFO_HASH("infoHash"), FILENAME("filename"), EXCEPTION("exception");
+    INFO_HASH("infoHash"), FILENAME("filename"), EXCEPTION("exception"), PROGRESS("progress"),
+    VALID_PIECES("validPieces");
     private final String s;
 
     private ComPropertyType(String s) {
@@ -0,0 +1,97 @@
+package com.github.jmatss.torc;
+
+import com.github.jmatss.torc.bencode.BencodeException;
+import com.github.jmatss.torc.bittorrent.InfoHash;
+import com.github.jmatss.torc.bittorrent.Torrent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Torrents with real piece hashes, shared by the tests that need a torrent
+ * whose pieces can be written, read and verified.
+ */
+public final class TestTorrents {
+    // 20 'A's.
+    public static final byte[] PEER_ID = new byte[20];
+
+    static {
+        Arrays.fill(PEER_ID, (byte) 'A');
+    }
+
+    private TestTorrents() {}
+
+    /**
+     * @param length the amount of bytes.
+     * @return pseudo-random bytes, the same bytes are returned for the same `length`.
+     */
+    public static byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * @param name        the name of the file.
+     * @param content     the bytes of the file.
+     * @param pieceLength the length of the pieces, the last piece might be shorter.
+     * @return the bencoded metainfo of a single-file torrent containing `content`.
+     */
+    public static byte[] singleFileMetainfo(String name, byte[] content, int pieceLength) {
+        try {
+            var digest = MessageDigest.getInstance(InfoHash.HASH_ALGORITHM);
+            var pieces = new ByteArrayOutputStream();
+            for (int offset = 0; offset < content.length; offset += pieceLength) {
+                digest.update(content, offset, Math.min(pieceLength, content.length - offset));
+                pieces.write(digest.digest());
+            }
+
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            var metainfo = new ByteArrayOutputStream();
+            String start = "d8:announce22:https://www.testURL.se4:infod6:lengthi" + content.length + "e" +
+                    "4:name" + nameBytes.length + ":" + name + "12:piece lengthi" + pieceLength + "e" +
+                    "6:pieces" + pieces.size() + ":";
+            metainfo.write(start.getBytes(StandardCharsets.UTF_8));
+            pieces.writeTo(metainfo);
+            metainfo.write("ee".getBytes(StandardCharsets.UTF_8));
+            return metainfo.toByteArray();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param name        the name of the file.
+     * @param content     the bytes of the file.
+     * @param pieceLength the length of the pieces, the last piece might be shorter.
+     * @return a single-file torrent containing `content` with the peer id `PEER_ID`.
+     * @throws BencodeException         if the metainfo is incorrectly formatted.
+     * @throws IOException              if the announce URL is malformed.
+     * @throws NoSuchAlgorithmException if SHA-1 isn't supported on this platform.
+     */
+    public static Torrent singleFile(String name, byte[] content, int pieceLength)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        return singleFile(name, content, pieceLength, PEER_ID);
+    }
+
+    /**
+     * @param name        the name of the file.
+     * @param content     the bytes of the file.
+     * @param pieceLength the length of the pieces, the last piece might be shorter.
+     * @param peerId      the peer id of the client of the torrent.
+     * @return a single-file torrent containing `content`.
+     * @throws BencodeException         if the metainfo is incorrectly formatted.
+     * @throws IOException              if the announce URL is malformed.
+     * @throws NoSuchAlgorithmException if SHA-1 isn't supported on this platform.
+     */
+    public static Torrent singleFile(String name, byte[] content, int pieceLength, byte[] peerId)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        return new Torrent(ByteBuffer.wrap(singleFileMetainfo(name, content, pieceLength)), peerId);
+    }
+}
@@ -2,7 +2,9 @@ package com.github.jmatss.torc.bencode;
 
 import org.junit.jupiter.api.Test;
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -96,4 +98,106 @@ public class TestBencodeDecode {
         assertEquals(expectedOutputType, actualOutput.getType());
         assertEquals(expectedMapSize, actualOutput.getDictionary().size());
     }
+
+    @Test
+    public void TestDecodeNegativeNumberCorrectly() throws Exception {
+        // ARRANGE
+        InputStream inputStream = new ByteArrayInputStream("i-42e".getBytes());
+        long expectedOutput = -42;
+
+        // ACT
+        BencodeData<Object> actualOutput = Bencode.decode(inputStream);
+
+        // ASSERT
+        assertEquals(expectedOutput, actualOutput.getNumber());
+    }
+
+    @Test
+    public void TestDecodeStringFromByteBufferIsViewIntoBuffer() throws Exception {
+        // ARRANGE
+        ByteBuffer buffer = ByteBuffer.wrap(("d" + "3:key" + "5:value" + "e").getBytes());
+        BencodeString key = BencodeUtil.toBenString("key");
+        String expectedOutput = "value";
+
+        // ACT
+        var actualOutput = Bencode.decodeDictionary(buffer).get(key).getBencodeString();
+        buffer.put(buffer.limit() - 2, (byte)'X');
+
+        // ASSERT
+        assertFalse(buffer.hasRemaining());
+        assertEquals(expectedOutput.length(), actualOutput.length());
+        assertEquals("valuX", new String(actualOutput.getBytes()));
+    }
+
+    @Test
+    public void TestDecodeFromDirectByteBufferCorrectly() throws Exception {
+        // ARRANGE
+        byte[] data = ("l" + "4:test" + "i7e" + "e").getBytes();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length).put(data).flip();
+        String expectedString = "test";
+        long expectedNumber = 7;
+
+        // ACT
+        var actualOutput = Bencode.decode(buffer).getList();
+
+        // ASSERT
+        assertEquals(expectedString, actualOutput.get(0).getString());
+        assertArrayEquals(expectedString.getBytes(), actualOutput.get(0).getBytes());
+        assertEquals(expectedNumber, actualOutput.get(1).getNumber());
+    }
+
+    @Test
+    public void TestDecodeTruncatedStringThrowsEOFException() {
+        // ARRANGE
+        InputStream inputStream = new ByteArrayInputStream("10:short".getBytes());
+
+        // ACT & ASSERT
+        assertThrows(EOFException.class, () -> Bencode.decode(inputStream));
+    }
+
+    @Test
+    public void TestDecodeNestedDictionaryKeepsRawBytes() throws Exception {
+        // ARRANGE
+        String nested = "d" + "1:b" + "i1e" + "1:a" + "i2e" + "e";
+        ByteBuffer buffer = ByteBuffer.wrap(("d" + "4:info" + nested + "e").getBytes());
+        BencodeString key = BencodeUtil.toBenString("info");
+        byte[] expectedOutput = nested.getBytes();
+
+        // ACT
+        ByteBuffer raw = Bencode.decodeDictionary(buffer, true).get(key).getRaw();
+        byte[] actualOutput = new byte[raw.remaining()];
+        raw.get(actualOutput);
+
+        // ASSERT
+        assertArrayEquals(expectedOutput, actualOutput);
+    }
+
+    @Test
+    public void TestDecodeDictionaryDoesntKeepRawBytesByDefault() throws Exception {
+        // ARRANGE
+        ByteBuffer buffer = ByteBuffer.wrap(("d" + "4:info" + "d" + "1:a" + "i2e" + "e" + "e").getBytes());
+        BencodeString key = BencodeUtil.toBenString("info");
+
+        // ACT
+        ByteBuffer raw = Bencode.decodeDictionary(buffer).get(key).getRaw();
+
+        // ASSERT
+        assertNull(raw);
+    }
+
+    @Test
+    public void TestDecodedStringsAreEqualToCreatedStrings() throws Exception {
+        // ARRANGE
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16).put("5:value".getBytes()).flip();
+        BencodeString expectedOutput = BencodeUtil.toBenString("value");
+
+        // ACT
+        BencodeString actualOutput = Bencode.decode(buffer).getBencodeString();
+
+        // ASSERT
+        assertEquals(expectedOutput, actualOutput);
+        assertEquals(expectedOutput.hashCode(), actualOutput.hashCode());
+        assertEquals(0, expectedOutput.compareTo(actualOutput));
+        assertEquals(expectedOutput.getString(), actualOutput.getString());
+    }
 }
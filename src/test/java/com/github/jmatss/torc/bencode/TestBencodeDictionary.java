@@ -0,0 +1,52 @@
+package com.github.jmatss.torc.bencode;
+
+import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestBencodeDictionary {
+    @Test
+    public void TestPutUnsortedKeysIteratesInSortedOrder() {
+        // ARRANGE
+        var dictionary = new BencodeDictionary(1);
+        List<String> expectedKeys = List.of("a", "b", "c", "d");
+
+        // ACT
+        for (String key : List.of("c", "a", "d", "b"))
+            dictionary.put(BencodeKey.of(key), number(1));
+        List<String> actualKeys = new ArrayList<>();
+        for (BencodeString key : dictionary.keySet())
+            actualKeys.add(key.getString());
+
+        // ASSERT
+        assertEquals(expectedKeys, actualKeys);
+    }
+
+    @Test
+    public void TestGetPutAndRemoveCorrectly() throws Exception {
+        // ARRANGE
+        var dictionary = new BencodeDictionary();
+        var key = BencodeKey.of("key");
+
+        // ACT & ASSERT
+        assertNull(dictionary.put(key, number(1)));
+        assertEquals(1, dictionary.put(key, number(2)).getNumber());
+        assertEquals(2, dictionary.get(BencodeUtil.toBenString("key")).getNumber());
+        assertTrue(dictionary.containsKey(key));
+        assertEquals(1, dictionary.size());
+        assertEquals(2, dictionary.remove(key).getNumber());
+        assertNull(dictionary.get(key));
+        assertTrue(dictionary.isEmpty());
+    }
+
+    @Test
+    public void TestKeysAreInterned() {
+        assertSame(BencodeKey.of("announce"), BencodeKey.of("announce"));
+    }
+
+    private static BencodeData<Object> number(long value) {
+        return new BencodeData<>(BencodeType.NUMBER, value);
+    }
+}
@@ -1,6 +1,9 @@
 package com.github.jmatss.torc.bencode;
 
 import org.junit.jupiter.api.Test;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
 import java.util.*;
 import com.github.jmatss.torc.TMP_CONST;
 import static org.junit.jupiter.api.Assertions.*;
@@ -103,4 +106,86 @@ public class TestBencodeEncode {
         // ASSERT
         assertArrayEquals(expectedOutput, actualOutput);
     }
+
+    @Test
+    public void TestEncodeNegativeNumberCorrectly() throws Exception {
+        // ARRANGE
+        byte[] expectedOutput = ("i" + Long.MIN_VALUE + "e").getBytes();
+        var data = new BencodeData<Object>(BencodeType.NUMBER, Long.MIN_VALUE);
+
+        // ACT
+        byte[] actualOutput = Bencode.encode(data);
+
+        // ASSERT
+        assertArrayEquals(expectedOutput, actualOutput);
+    }
+
+    @Test
+    public void TestEncodeToOutputStreamCorrectly() throws Exception {
+        // ARRANGE
+        byte[] expectedOutput = ("d" + "3:key" + "l" + "i-1e" + "4:test" + "e" + "e").getBytes();
+        var list = List.of(
+                new BencodeData<Object>(BencodeType.NUMBER, -1L),
+                new BencodeData<Object>(BencodeType.STRING, new BencodeString("test", TMP_CONST.ENCODING))
+        );
+        var bencodeString = new BencodeString("key", TMP_CONST.ENCODING);
+        var data = new BencodeData<Object>(BencodeType.DICTIONARY,
+                Map.of(bencodeString, new BencodeData<Object>(BencodeType.LIST, list)));
+        var outputStream = new ByteArrayOutputStream();
+
+        // ACT
+        Bencode.encode(data, outputStream);
+
+        // ASSERT
+        assertArrayEquals(expectedOutput, outputStream.toByteArray());
+        assertEquals(expectedOutput.length, Bencode.encodedLength(data));
+    }
+
+    @Test
+    public void TestEncodeStringLargerThanBufferToChannelCorrectly() throws Exception {
+        // ARRANGE
+        byte[] content = new byte[3 * BencodeEncode.BUFFER_SIZE + 1];
+        Arrays.fill(content, (byte)'x');
+        String prefix = content.length + ":";
+        byte[] expectedOutput = new byte[prefix.length() + content.length];
+        System.arraycopy(prefix.getBytes(), 0, expectedOutput, 0, prefix.length());
+        System.arraycopy(content, 0, expectedOutput, prefix.length(), content.length);
+        var data = new BencodeData<Object>(BencodeType.STRING, new BencodeString(content, TMP_CONST.ENCODING));
+        var outputStream = new ByteArrayOutputStream();
+
+        // ACT
+        Bencode.encode(data, Channels.newChannel(outputStream));
+
+        // ASSERT
+        assertArrayEquals(expectedOutput, outputStream.toByteArray());
+    }
+
+    @Test
+    public void TestEncodeToNonBlockingChannelThrowsIllegalArgumentException() throws Exception {
+        // ARRANGE
+        var data = new BencodeData<Object>(BencodeType.NUMBER, 1L);
+        Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+
+        // ACT & ASSERT
+        try {
+            assertThrows(IllegalArgumentException.class, () -> Bencode.encode(data, pipe.sink()));
+        } finally {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+
+    @Test
+    public void TestEncodeDecodedDataRoundTripsCorrectly() throws Exception {
+        // ARRANGE
+        byte[] expectedOutput = ("d" + "1:a" + "l" + "i1e" + "e" + "1:b" + "d" + "1:c" + "0:" + "e" + "e").getBytes();
+        var data = Bencode.decode(java.nio.ByteBuffer.wrap(expectedOutput.clone()));
+
+        // ACT
+        byte[] actualOutput = Bencode.encode(data);
+
+        // ASSERT
+        assertArrayEquals(expectedOutput, actualOutput);
+    }
 }
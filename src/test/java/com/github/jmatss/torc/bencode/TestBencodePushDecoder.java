@@ -0,0 +1,72 @@
+package com.github.jmatss.torc.bencode;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestBencodePushDecoder {
+    private static ByteBuffer toBuffer(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testDecodeDictionaryFedOneByteAtATime() throws BencodeException, UnsupportedEncodingException {
+        // ARRANGE
+        String input = "d4:spaml1:a2:bci-42eee";
+        var decoder = new BencodePushDecoder();
+        byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+
+        // ACT
+        boolean done = false;
+        for (int i = 0; i < bytes.length; i++) {
+            assertFalse(done);
+            done = decoder.feed(ByteBuffer.wrap(bytes, i, 1));
+        }
+        var actual = decoder.getResult().getDictionary();
+
+        // ASSERT
+        assertTrue(done);
+        var list = actual.get(BencodeKey.of("spam")).getList();
+        assertEquals(3, list.size());
+        assertEquals("a", list.get(0).getString());
+        assertEquals("bc", list.get(1).getString());
+        assertEquals(-42, list.get(2).getNumber());
+    }
+
+    @Test
+    public void testFeedLeavesBytesAfterValueAndCanBeReset() throws BencodeException, UnsupportedEncodingException {
+        // ARRANGE
+        ByteBuffer buffer = toBuffer("i7e3:abcrest");
+        var decoder = new BencodePushDecoder();
+
+        // ACT
+        assertTrue(decoder.feed(buffer));
+        long actualNumber = decoder.getResult().getNumber();
+        decoder.reset();
+        assertTrue(decoder.feed(buffer));
+        String actualString = decoder.getResult().getString();
+
+        // ASSERT
+        assertEquals(7, actualNumber);
+        assertEquals("abc", actualString);
+        assertEquals(4, buffer.remaining());
+    }
+
+    @Test
+    public void testLimitsThrowsBencodeException() {
+        // ARRANGE
+        var limits = new BencodeLimits(2, 8, 4);
+
+        // ACT & ASSERT
+        // The string length is rejected before any bytes of the string have been received.
+        assertThrows(BencodeException.class, () -> new BencodePushDecoder(limits).feed(toBuffer("2147483648:")));
+        assertThrows(BencodeException.class, () -> new BencodePushDecoder(limits).feed(toBuffer("9:")));
+        assertThrows(BencodeException.class, () -> new BencodePushDecoder(limits).feed(toBuffer("lllee")));
+        assertThrows(BencodeException.class, () -> new BencodePushDecoder(limits).feed(toBuffer("li1ei2ei3ei4ee")));
+        assertDoesNotThrow(() -> new BencodePushDecoder(limits).feed(toBuffer("l8:12345678li1eee")));
+    }
+}
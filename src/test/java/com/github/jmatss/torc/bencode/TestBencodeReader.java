@@ -0,0 +1,88 @@
+package com.github.jmatss.torc.bencode;
+
+import org.junit.jupiter.api.Test;
+import java.io.EOFException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestBencodeReader {
+    @Test
+    public void TestReadEventsOfNestedStructureCorrectly() throws Exception {
+        // ARRANGE
+        var reader = new BencodeReader(("d" + "3:key" + "l" + "i1e" + "4:test" + "e" + "e").getBytes());
+        BencodeEvent[] expectedEvents = {
+                BencodeEvent.START_DICT,
+                BencodeEvent.KEY,
+                BencodeEvent.START_LIST,
+                BencodeEvent.NUMBER,
+                BencodeEvent.STRING,
+                BencodeEvent.END,
+                BencodeEvent.END
+        };
+
+        // ACT & ASSERT
+        for (BencodeEvent expectedEvent : expectedEvents)
+            assertEquals(expectedEvent, reader.next());
+        assertFalse(reader.hasNext());
+        assertEquals(0, reader.getDepth());
+    }
+
+    @Test
+    public void TestReadValuesCorrectly() throws Exception {
+        // ARRANGE
+        var reader = new BencodeReader(("d" + "1:a" + "i-5e" + "1:b" + "5:hello" + "e").getBytes());
+        var keyA = new BencodeString("a", StandardCharsets.UTF_8);
+        var keyB = new BencodeString("b", StandardCharsets.UTF_8);
+
+        // ACT & ASSERT
+        reader.expect(BencodeEvent.START_DICT);
+        reader.expect(BencodeEvent.KEY);
+        assertTrue(reader.keyEquals(keyA));
+        assertFalse(reader.keyEquals(keyB));
+        assertEquals(-5, reader.nextNumber());
+        reader.expect(BencodeEvent.KEY);
+        assertTrue(reader.keyEquals(keyB));
+        assertEquals("hello", reader.nextString());
+        assertArrayEquals("hello".getBytes(), reader.getBytes());
+        reader.expect(BencodeEvent.END);
+    }
+
+    @Test
+    public void TestSkipValueOfKeyCorrectly() throws Exception {
+        // ARRANGE
+        var reader = new BencodeReader(("d" + "4:skip" + "d" + "1:x" + "l" + "i1e" + "e" + "e" + "4:keep" + "i2e" + "e").getBytes());
+        var keyKeep = new BencodeString("keep", StandardCharsets.UTF_8);
+
+        // ACT
+        reader.expect(BencodeEvent.START_DICT);
+        reader.expect(BencodeEvent.KEY);
+        reader.skip();
+        reader.expect(BencodeEvent.KEY);
+
+        // ASSERT
+        assertTrue(reader.keyEquals(keyKeep));
+        assertEquals(2, reader.nextNumber());
+        assertEquals(BencodeEvent.END, reader.next());
+    }
+
+    @Test
+    public void TestReadNonStringKeyThrowsBencodeException() throws Exception {
+        // ARRANGE
+        var reader = new BencodeReader(("d" + "i1e" + "i2e" + "e").getBytes());
+
+        // ACT & ASSERT
+        reader.expect(BencodeEvent.START_DICT);
+        assertThrows(BencodeException.class, reader::next);
+    }
+
+    @Test
+    public void TestReadTruncatedDataThrowsEOFException() throws Exception {
+        // ARRANGE
+        var reader = new BencodeReader(("l" + "i12").getBytes());
+
+        // ACT & ASSERT
+        reader.expect(BencodeEvent.START_LIST);
+        assertThrows(EOFException.class, reader::next);
+    }
+}
@@ -68,4 +68,81 @@ public class BitfieldTest {
         int index = 8;
         assertFalse(bitfield.unSet(index));
     }
+
+    @Test
+    public void testBitfieldCreatedFromByteArrayOfAnotherBitfieldIsEqual() {
+        bitfield.set(0);
+        bitfield.set(9);
+
+        var actual = new Bitfield(bitfield.toByteArray(), AMOUNT_OF_PIECES);
+
+        assertArrayEquals(new byte[]{(byte) 0x80, 0x40}, actual.toByteArray());
+        assertTrue(actual.isSet(0));
+        assertTrue(actual.isSet(9));
+        assertThrows(IllegalArgumentException.class, () -> new Bitfield(new byte[]{0, 0x20}, AMOUNT_OF_PIECES));
+        assertThrows(IllegalArgumentException.class, () -> new Bitfield(new byte[1], AMOUNT_OF_PIECES));
+    }
+
+    @Test
+    public void testCardinalityIsTrackedBySetAndUnSet() {
+        bitfield.set(1);
+        bitfield.set(1);
+        bitfield.set(9);
+        bitfield.unSet(1);
+        bitfield.unSet(2);
+
+        assertEquals(1, bitfield.cardinality());
+        assertFalse(bitfield.isEmpty());
+        assertFalse(bitfield.isFull());
+    }
+
+    @Test
+    public void testNextSetBitAndNextClearBitCrossWordBoundaries() {
+        var large = new Bitfield(130);
+        for (int i = 0; i < 129; i++)
+            large.set(i);
+        large.unSet(70);
+
+        assertEquals(70, large.nextClearBit(0));
+        assertEquals(129, large.nextClearBit(71));
+        assertEquals(71, large.nextSetBit(70));
+        assertEquals(-1, large.nextSetBit(129));
+        assertEquals(-1, new Bitfield(64).nextSetBit(0));
+        assertEquals(-1, large.nextClearBit(130));
+
+        large.set(70);
+        large.set(129);
+        assertTrue(large.isFull());
+        assertEquals(-1, large.nextClearBit(0));
+    }
+
+    @Test
+    public void testBulkOperations() {
+        // ARRANGE
+        var other = new Bitfield(AMOUNT_OF_PIECES);
+        bitfield.set(0);
+        bitfield.set(5);
+        bitfield.set(9);
+        other.set(5);
+        other.set(7);
+
+        // ACT
+        boolean intersects = bitfield.intersects(other);
+        boolean hasPieceNotIn = other.hasPieceNotIn(bitfield);
+        var and = bitfield.copy();
+        and.and(other);
+        var andNot = bitfield.copy();
+        andNot.andNot(other);
+
+        // ASSERT
+        assertTrue(intersects);
+        assertTrue(hasPieceNotIn);
+        assertFalse(and.hasPieceNotIn(bitfield));
+        assertArrayEquals(new byte[]{0x04, 0x00}, and.toByteArray());
+        assertEquals(1, and.cardinality());
+        assertArrayEquals(new byte[]{(byte) 0x80, 0x40}, andNot.toByteArray());
+        assertEquals(2, andNot.cardinality());
+        assertFalse(andNot.intersects(other));
+        assertThrows(IllegalArgumentException.class, () -> bitfield.and(new Bitfield(AMOUNT_OF_PIECES + 1)));
+    }
 }
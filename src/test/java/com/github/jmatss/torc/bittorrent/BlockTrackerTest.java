@@ -0,0 +1,218 @@
+package com.github.jmatss.torc.bittorrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.github.jmatss.torc.bittorrent.BlockTracker.BLOCK_LENGTH;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlockTrackerTest {
+    // Three blocks per piece, the last piece is one and a half block.
+    private static final int PIECE_LENGTH = 3 * BLOCK_LENGTH;
+    private static final int AMOUNT_OF_PIECES = 2;
+    private static final long TOTAL_LENGTH = PIECE_LENGTH + BLOCK_LENGTH + BLOCK_LENGTH / 2;
+
+    private static final int ENDGAME_MAX_BLOCKS = 2;
+
+    private static final int SLOW_PEER = 1;
+    private static final int FAST_PEER = 2;
+
+    private static Bitfield bitfield(int... pieces) {
+        var bitfield = new Bitfield(AMOUNT_OF_PIECES);
+        for (int piece : pieces)
+            bitfield.set(piece);
+        return bitfield;
+    }
+
+    private static BlockTracker tracker(PiecePicker picker) {
+        return new BlockTracker(picker, PIECE_LENGTH, TOTAL_LENGTH, ENDGAME_MAX_BLOCKS, 2);
+    }
+
+    @Test
+    public void testPeersShareTheBlocksOfAPiece() {
+        // ARRANGE
+        var picker = new PiecePicker(bitfield(), bitfield(), new Random(1));
+        var tracker = tracker(picker);
+        picker.addPeer(bitfield(0));
+        picker.addPeer(bitfield(0));
+
+        // ACT
+        List<BlockRequest> slow = tracker.request(SLOW_PEER, bitfield(0), 1);
+        List<BlockRequest> fast = tracker.request(FAST_PEER, bitfield(0), 5);
+        List<BlockRequest> none = tracker.request(FAST_PEER, bitfield(0), 5);
+
+        // ASSERT
+        assertEquals(List.of(new BlockRequest(0, 0, BLOCK_LENGTH)), slow);
+        assertEquals(List.of(
+                new BlockRequest(0, BLOCK_LENGTH, BLOCK_LENGTH),
+                new BlockRequest(0, 2 * BLOCK_LENGTH, BLOCK_LENGTH)
+        ), fast);
+        assertTrue(none.isEmpty());
+        assertEquals(SLOW_PEER, tracker.getOwner(0, 0));
+        assertEquals(FAST_PEER, tracker.getOwner(0, BLOCK_LENGTH));
+        assertEquals(1, tracker.getInFlightPieces());
+    }
+
+    @Test
+    public void testBlocksOfChokedPeerAreHandedOutAgain() {
+        // ARRANGE
+        var picker = new PiecePicker(bitfield(), bitfield(), new Random(1));
+        var tracker = tracker(picker);
+        picker.addPeer(bitfield(0, 1));
+        tracker.request(SLOW_PEER, bitfield(0, 1), 10);
+
+        // ACT
+        boolean firstReceived = tracker.received(SLOW_PEER, 1, 0, new ArrayList<>());
+        int freed = tracker.release(SLOW_PEER);
+        List<BlockRequest> fast = tracker.request(FAST_PEER, bitfield(0, 1), 10);
+        // A block from the slow peer that arrives after its request was released is still accepted.
+        var cancel = new ArrayList<Integer>();
+        boolean lateReceived = tracker.received(SLOW_PEER, 0, 0, cancel);
+        boolean duplicate = tracker.received(FAST_PEER, 0, 0, cancel);
+
+        // ASSERT
+        assertTrue(firstReceived);
+        assertEquals(4, freed);
+        assertEquals(4, fast.size());
+        assertTrue(fast.contains(new BlockRequest(1, BLOCK_LENGTH, BLOCK_LENGTH / 2)));
+        assertFalse(fast.contains(new BlockRequest(1, 0, BLOCK_LENGTH)));
+        assertTrue(lateReceived);
+        assertFalse(duplicate);
+        assertEquals(List.of(FAST_PEER), cancel);
+        assertTrue(tracker.cancel(FAST_PEER, 0, BLOCK_LENGTH));
+        assertFalse(tracker.cancel(SLOW_PEER, 0, 2 * BLOCK_LENGTH));
+        assertEquals(BlockTracker.NO_OWNER, tracker.getOwner(0, BLOCK_LENGTH));
+        assertThrows(IllegalArgumentException.class, () -> tracker.received(FAST_PEER, 0, 1, cancel));
+    }
+
+    @Test
+    public void testTimedOutBlocksAreNotRequestedFromTheSamePeerAgain() {
+        // ARRANGE
+        var picker = new PiecePicker(bitfield(), bitfield(), new Random(1));
+        var tracker = tracker(picker);
+        picker.addPeer(bitfield(0));
+        picker.addPeer(bitfield(0));
+        List<BlockRequest> slow = tracker.request(SLOW_PEER, bitfield(0), 10);
+
+        // ACT
+        for (var request : slow)
+            tracker.timedOut(SLOW_PEER, request.getPiece(), request.getOffset());
+        List<BlockRequest> slowAgain = tracker.request(SLOW_PEER, bitfield(0), 10);
+        List<BlockRequest> fast = tracker.request(FAST_PEER, bitfield(0), 10);
+
+        // ASSERT
+        assertEquals(3, slow.size());
+        assertTrue(slowAgain.isEmpty());
+        assertEquals(slow, fast);
+        assertEquals(FAST_PEER, tracker.getOwner(0, 0));
+        assertFalse(tracker.timedOut(SLOW_PEER, 0, 0));
+    }
+
+    @Test
+    public void testVerifiedAndFailedPieces() {
+        // ARRANGE
+        var downloading = bitfield();
+        var picker = new PiecePicker(bitfield(), downloading, new Random(1));
+        var tracker = tracker(picker);
+        picker.addPeer(bitfield(1));
+
+        // ACT
+        for (var request : tracker.request(FAST_PEER, bitfield(1), 10))
+            tracker.received(FAST_PEER, request.getPiece(), request.getOffset(), new ArrayList<>());
+        boolean complete = tracker.isComplete(1);
+        tracker.pieceFailed(1);
+        boolean downloadingAfterFailure = downloading.isSet(1);
+        List<BlockRequest> again = tracker.request(FAST_PEER, bitfield(1), 10);
+        for (var request : again)
+            tracker.received(FAST_PEER, request.getPiece(), request.getOffset(), new ArrayList<>());
+        tracker.pieceVerified(1);
+
+        // ASSERT
+        assertTrue(complete);
+        assertFalse(downloadingAfterFailure);
+        assertEquals(2, again.size());
+        assertEquals(0, tracker.getInFlightPieces());
+        assertTrue(tracker.request(FAST_PEER, bitfield(1), 10).isEmpty());
+        assertFalse(tracker.received(FAST_PEER, 1, 0, new ArrayList<>()));
+    }
+
+    @Test
+    public void testEndgameRequestsLastBlocksFromMultiplePeersAndCancelsTheOthers() {
+        // ARRANGE
+        var picker = new PiecePicker(bitfield(0), bitfield(0), new Random(1));
+        var tracker = tracker(picker);
+        var seed = bitfield(0, 1);
+        picker.addPeer(seed);
+        picker.addPeer(seed);
+        picker.addPeer(seed);
+        int thirdPeer = 3;
+
+        // ACT
+        // Piece 1 has two blocks, both are requested from the slow peer.
+        List<BlockRequest> slow = tracker.request(SLOW_PEER, seed, 10);
+        boolean endgame = tracker.isEndgame();
+        List<BlockRequest> fast = tracker.request(FAST_PEER, seed, 10);
+        // Every block already is requested from two peers.
+        List<BlockRequest> third = tracker.request(thirdPeer, seed, 10);
+        var cancel = new ArrayList<Integer>();
+        boolean received = tracker.received(FAST_PEER, 1, 0, cancel);
+        tracker.release(SLOW_PEER);
+
+        // ASSERT
+        assertEquals(2, slow.size());
+        assertTrue(endgame);
+        assertEquals(slow, fast);
+        assertTrue(third.isEmpty());
+        assertTrue(received);
+        assertEquals(List.of(SLOW_PEER), cancel);
+        // The second block is still requested from the fast peer after the slow peer was released.
+        assertEquals(FAST_PEER, tracker.getOwner(1, BLOCK_LENGTH));
+        assertEquals(1, tracker.getRequestCount(1, BLOCK_LENGTH));
+        assertEquals(0, tracker.getRequestCount(1, 0));
+    }
+
+    @Test
+    public void testResyncAfterRecheck() {
+        // ARRANGE
+        var downloading = bitfield(0);
+        var picker = new PiecePicker(bitfield(0), downloading, new Random(1));
+        var tracker = tracker(picker);
+        picker.addPeer(bitfield(0, 1));
+        List<BlockRequest> before = tracker.request(SLOW_PEER, bitfield(0, 1), 10);
+
+        // ACT
+        // The recheck found piece 1 on disk and piece 0 to be incorrect.
+        tracker.resync(bitfield(1));
+        boolean lateReceived = tracker.received(SLOW_PEER, 1, 0, new ArrayList<>());
+        boolean downloadingAfterResync = downloading.isSet(0);
+        List<BlockRequest> after = tracker.request(FAST_PEER, bitfield(0, 1), 10);
+
+        // ASSERT
+        assertEquals(2, before.size());
+        assertFalse(lateReceived);
+        assertFalse(downloadingAfterResync);
+        assertEquals(List.of(
+                new BlockRequest(0, 0, BLOCK_LENGTH),
+                new BlockRequest(0, BLOCK_LENGTH, BLOCK_LENGTH),
+                new BlockRequest(0, 2 * BLOCK_LENGTH, BLOCK_LENGTH)
+        ), after);
+        assertEquals(BlockTracker.NO_OWNER, tracker.getOwner(1, 0));
+        assertEquals(1, tracker.getInFlightPieces());
+    }
+
+    @Test
+    public void testCancelAndRequestMessages() {
+        var request = new BlockRequest(1, BLOCK_LENGTH, BLOCK_LENGTH / 2);
+
+        var cancel = PeerMessage.cancel(request);
+        var expected = ByteBuffer.allocate(17).putInt(13).put((byte) 8).putInt(1).putInt(BLOCK_LENGTH)
+                .putInt(BLOCK_LENGTH / 2).flip();
+
+        assertEquals(expected, cancel);
+        assertEquals(6, PeerMessage.request(request).get(4));
+    }
+}
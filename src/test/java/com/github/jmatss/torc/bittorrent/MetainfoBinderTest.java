@@ -0,0 +1,55 @@
+package com.github.jmatss.torc.bittorrent;
+
+import com.github.jmatss.torc.bencode.BencodeException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetainfoBinderTest {
+    private static ByteBuffer toBuffer(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testBindMultiFileMetainfoAndSkipUnknownKeys() throws IOException, BencodeException {
+        // ARRANGE
+        String info = "d" + "5:filesl" +
+                "d6:lengthi3e4:pathl1:a1:bee" +
+                "d6:lengthi5e7:unknowni1e4:pathl1:cee" + "e" +
+                "4:name3:dir" + "12:piece lengthi4e" + "6:pieces0:" + "e";
+        String metainfo = "d" + "8:announce13:http://a.b/an" + "7:comment3:abc" + "4:info" + info + "e";
+
+        // ACT
+        Metainfo actual = MetainfoBinder.decode(toBuffer(metainfo));
+
+        // ASSERT
+        assertEquals("http://a.b/an", actual.announce);
+        assertEquals("dir", actual.info.name);
+        assertEquals(4, actual.info.pieceLength);
+        assertEquals(0, actual.info.pieces.remaining());
+        assertNull(actual.info.length);
+        assertEquals(2, actual.info.files.size());
+        assertEquals(3, actual.info.files.get(0).length);
+        assertEquals(List.of("a", "b"), actual.info.files.get(0).path);
+        assertEquals(5, actual.info.files.get(1).length);
+        assertEquals(List.of("c"), actual.info.files.get(1).path);
+        assertEquals(toBuffer(info), actual.info.raw);
+    }
+
+    @Test
+    public void testBindMetainfoWithMissingOrIncorrectFieldThrowsBencodeException() {
+        // ARRANGE
+        String missingPieces = "d8:announce1:a4:infod4:name1:n12:piece lengthi4e6:lengthi1eee";
+        String incorrectPieceLength = "d8:announce1:a4:infod4:name1:n12:piece length1:46:pieces0:ee";
+
+        // ACT & ASSERT
+        var e = assertThrows(BencodeException.class, () -> MetainfoBinder.decode(toBuffer(missingPieces)));
+        assertTrue(e.getMessage().contains("\"pieces\""));
+        assertThrows(BencodeException.class, () -> MetainfoBinder.decode(toBuffer(incorrectPieceLength)));
+    }
+}
@@ -0,0 +1,97 @@
+package com.github.jmatss.torc.bittorrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiecePickerTest {
+    private static final int AMOUNT_OF_PIECES = 8;
+
+    private static Bitfield bitfield(int... pieces) {
+        var bitfield = new Bitfield(AMOUNT_OF_PIECES);
+        for (int piece : pieces)
+            bitfield.set(piece);
+        return bitfield;
+    }
+
+    @Test
+    public void testRarestPieceIsPickedFirst() {
+        // ARRANGE
+        var have = bitfield(0);
+        var downloading = bitfield(0);
+        var picker = new PiecePicker(have, downloading, new Random(1));
+        picker.addPeer(bitfield(0, 1, 2, 3));
+        picker.addPeer(bitfield(0, 1, 2));
+        picker.addPeer(bitfield(1, 2));
+        picker.peerHave(1);
+
+        // ACT
+        var seed = bitfield(0, 1, 2, 3, 4, 5, 6, 7);
+        int first = picker.pick(seed);
+        picker.setRequested(first);
+        int second = picker.pick(seed);
+        picker.setRequested(second);
+        int third = picker.pick(seed);
+        picker.setRequested(third);
+        int none = picker.pick(seed);
+
+        // ASSERT
+        // Availability: 1 => 4, 2 => 3, 3 => 1 and 4-7 => 0 (not counted, so never picked).
+        assertEquals(3, first);
+        assertEquals(2, second);
+        assertEquals(1, third);
+        assertEquals(-1, none);
+        assertTrue(downloading.isSet(3));
+        assertEquals(4, picker.getAvailability(1));
+    }
+
+    @Test
+    public void testPartialPiecesArePickedBeforeFreePieces() {
+        var picker = new PiecePicker(bitfield(), bitfield(), new Random(1));
+        picker.addPeer(bitfield(0, 1, 2, 3, 4, 5, 6, 7));
+        picker.addPeer(bitfield(5));
+
+        int partial = picker.pick(bitfield(5));
+        // The rarer pieces 0-4, 6 and 7 are free, but the partial piece 5 is picked first.
+        assertEquals(5, picker.pick(bitfield(0, 1, 5)));
+        assertEquals(5, partial);
+
+        picker.setRequested(5);
+        int free = picker.pick(bitfield(0, 1, 5));
+        assertTrue(free == 0 || free == 1);
+
+        picker.setPartial(5);
+        assertEquals(5, picker.pick(bitfield(5)));
+        assertEquals(2, picker.getStartedPieces());
+    }
+
+    @Test
+    public void testTiesAreBrokenRandomlyAndFreedPiecesCanBePickedAgain() {
+        // ARRANGE
+        var downloading = bitfield();
+        var picker = new PiecePicker(bitfield(), downloading, new Random(7));
+        var seed = bitfield(0, 1, 2, 3, 4, 5, 6, 7);
+        picker.addPeer(seed);
+        var picked = new HashSet<Integer>();
+
+        // ACT
+        for (int i = 0; i < AMOUNT_OF_PIECES; i++) {
+            int piece = picker.pick(seed);
+            picker.setRequested(piece);
+            picked.add(piece);
+        }
+        picker.setHave(3);
+        picker.setFree(4);
+
+        // ASSERT
+        assertEquals(AMOUNT_OF_PIECES, picked.size());
+        assertFalse(downloading.isSet(4));
+        assertEquals(4, picker.pick(seed));
+        picker.setRequested(4);
+        assertEquals(-1, picker.pick(seed));
+        assertThrows(IllegalArgumentException.class, () -> picker.pick(new Bitfield(AMOUNT_OF_PIECES + 1)));
+    }
+}
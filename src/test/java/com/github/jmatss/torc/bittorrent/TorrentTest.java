@@ -3,17 +3,23 @@ package com.github.jmatss.torc.bittorrent;
 import com.github.jmatss.torc.bencode.BencodeException;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.Random;
 
 import static com.github.jmatss.torc.TMP_CONST.ENCODING;
 import static org.junit.jupiter.api.Assertions.*;
@@ -52,12 +58,12 @@ public class TorrentTest {
         long actualIndex = torrent.getFiles().get(0).getIndex();
         Path actualPath = torrent.getFiles().get(0).getPath();
         var actualInfoHash = torrent.getInfoHash();
-        byte[] actualPiece = torrent.getPieces()[0];
+        byte[] actualPiece = torrent.getPieces().get(0);
 
         // ASSERT
         assertEquals(expectedAnnounce, actualAnnounce);
         assertEquals(expectedName, actualName);
-        assertEquals(1, torrent.getPieces().length);
+        assertEquals(1, torrent.getPieces().size());
         assertArrayEquals(expectedPiece, actualPiece);
         assertEquals(expectedPieceLength, actualPieceLength);
         assertEquals(expectedLength, actualLength);
@@ -94,9 +100,9 @@ public class TorrentTest {
         long actualIndex = torrent.getFiles().get(0).getIndex();
         Path actualPath = torrent.getFiles().get(0).getPath();
         var actualInfoHash = torrent.getInfoHash();
-        byte[][] actualPieces = new byte[torrent.getPieces().length][];
-        for (int i = 0; i < torrent.getPieces().length; i++)
-            actualPieces[i] = torrent.getPieces()[i];
+        byte[][] actualPieces = new byte[torrent.getPieces().size()][];
+        for (int i = 0; i < torrent.getPieces().size(); i++)
+            actualPieces[i] = torrent.getPieces().get(i);
 
         // ASSERT
         assertEquals(expectedAnnounce, actualAnnounce);
@@ -107,8 +113,11 @@ public class TorrentTest {
         assertEquals(expectedPath, actualPath);
         assertArrayEquals(expectedInfoHash.getBytes(), actualInfoHash.getBytes());
         assertEquals(expectedPieces.length, actualPieces.length);
-        for (int i = 0; i < expectedPieces.length; i++)
+        for (int i = 0; i < expectedPieces.length; i++) {
             assertArrayEquals(expectedPieces[i], actualPieces[i]);
+            assertTrue(torrent.getPieces().matches(i, expectedPieces[i]));
+        }
+        assertFalse(torrent.getPieces().matches(0, expectedPieces[1]));
     }
 
     @Test
@@ -139,14 +148,14 @@ public class TorrentTest {
         URL actualAnnounce = torrent.getAnnounce();
         Path actualName = torrent.getName();
         long actualPieceLength = torrent.getPieceLength();
-        byte[] actualPiece = torrent.getPieces()[0];
+        byte[] actualPiece = torrent.getPieces().get(0);
         var actualInfoHash = torrent.getInfoHash();
         List<TorrentFile> actualTorrentFiles = torrent.getFiles();
 
         // ASSERT
         assertEquals(expectedAnnounce, actualAnnounce);
         assertEquals(expectedName, actualName);
-        assertEquals(1, torrent.getPieces().length);
+        assertEquals(1, torrent.getPieces().size());
         assertArrayEquals(expectedPiece, actualPiece);
         assertEquals(expectedPieceLength, actualPieceLength);
         assertArrayEquals(expectedInfoHash.getBytes(), actualInfoHash.getBytes());
@@ -159,6 +168,68 @@ public class TorrentTest {
         }
     }
 
+    @Test
+    public void testInfoHashOfNonCanonicalTorrentIsHashOfOriginalBytes()
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        // The keys of the info dictionary are not sorted, so re-encoding
+        // the dictionary would give different bytes and a different hash.
+        String info = "d" +
+                "6:pieces" + "20:AAAAAAAAAAAAAAAAAAAA" +
+                "4:name" + "9:test.data" +
+                "12:piece length" + "i4e" +
+                "6:length" + "i4e" +
+                "e";
+        String metainfo = "d" + "8:announce" + "22:https://www.testURL.se" + "4:info" + info + "e";
+        Torrent torrent = new Torrent(ByteBuffer.wrap(metainfo.getBytes(ENCODING)), peerId);
+
+        // EXPECTED
+        byte[] expectedInfoHash = MessageDigest.getInstance(InfoHash.HASH_ALGORITHM).digest(info.getBytes(ENCODING));
+
+        // ACTUAL
+        byte[] actualInfoHash = torrent.getInfoHash().getBytes();
+
+        // ASSERT
+        assertArrayEquals(expectedInfoHash, actualInfoHash);
+    }
+
+    @Test
+    public void testPiecesOfLargeMappedTorrentAreUsedFromTheMapping(@TempDir Path directory)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        // ARRANGE
+        // One hash more than fits in the threshold, so that the "pieces" field is larger than it.
+        int amountOfPieces = Torrent.MAPPED_PIECES_THRESHOLD / PieceHashes.HASH_LENGTH + 1;
+        int pieceLength = 1 << 14;
+        byte[] hashes = new byte[amountOfPieces * PieceHashes.HASH_LENGTH];
+        new Random(17).nextBytes(hashes);
+
+        var out = new ByteArrayOutputStream();
+        out.write(("d" + "8:announce" + "22:https://www.testURL.se" + "4:info" + "d" +
+                "6:length" + "i" + (long) amountOfPieces * pieceLength + "e" +
+                "4:name" + "9:test.data" +
+                "12:piece length" + "i" + pieceLength + "e" +
+                "6:pieces" + hashes.length + ":").getBytes(ENCODING));
+        out.write(hashes);
+        out.write("ee".getBytes(ENCODING));
+        Path path = directory.resolve("large.torrent");
+        Files.write(path, out.toByteArray());
+
+        // ACT
+        Torrent torrent = new Torrent(path.toString(), peerId);
+        PieceHashes pieces = torrent.getPieces();
+
+        // ASSERT
+        assertTrue(pieces.isDirect());
+        assertEquals(amountOfPieces, pieces.size());
+        for (int i : new int[]{0, amountOfPieces / 2, amountOfPieces - 1}) {
+            int offset = i * PieceHashes.HASH_LENGTH;
+            byte[] expected = Arrays.copyOfRange(hashes, offset, offset + PieceHashes.HASH_LENGTH);
+            assertArrayEquals(expected, pieces.get(i));
+            assertTrue(pieces.matches(i, expected));
+            expected[0] ^= 1;
+            assertFalse(pieces.matches(i, expected));
+        }
+    }
+
     private byte[] toDigest(String s) {
         byte[] res = new byte[s.length() / 2];
         for (int i = 0; i < s.length(); i += 2) {
@@ -5,6 +5,7 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -79,10 +80,13 @@ public class TrackerTest {
         var infoHash = new InfoHash("".getBytes());
         var tracker = new Tracker(files, infoHash, peerId);
         var headers = new TreeMap<String, String>();
+        // Bind the server socket before starting the thread so that the request
+        // can't be sent before the server is listening.
+        var serverSocket = new ServerSocket(listenPort);
         Thread serverThread = new Thread(
                 () -> {
                     try (
-                            var serverSocket = new ServerSocket(listenPort);
+                            serverSocket;
                             var conn = serverSocket.accept();
                             var in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
                     ) {
@@ -102,9 +106,10 @@ public class TrackerTest {
         serverThread.start();
         try {
             tracker.sendRequest(new URL("http://127.0.0.1:" + listenPort));
-        } catch (ConnectException e) {
+        } catch (SocketException e) {
             // The serverThread will cancel the socket connection after it receives the
-            // request from the tracker object. So a ConnectionException will be thrown.
+            // request from the tracker object. So a ConnectException (connection reset)
+            // or a SocketException (unexpected end of file) will be thrown.
         }
         serverThread.join();
 
@@ -176,10 +181,13 @@ public class TrackerTest {
         // This test will only test if the Tracker object receives the response correctly.
         var infoHash = new InfoHash("".getBytes());
         var tracker = new Tracker(files, infoHash, peerId);
+        // Bind the server socket before starting the thread so that the request
+        // can't be sent before the server is listening.
+        var serverSocket = new ServerSocket(listenPort);
         Thread serverThread = new Thread(
                 () -> {
                     try (
-                            var serverSocket = new ServerSocket(listenPort);
+                            serverSocket;
                             var conn = serverSocket.accept();
                             var in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
                             var out = conn.getOutputStream();
@@ -234,5 +242,57 @@ public class TrackerTest {
         }
     }
 
-    // TODO: test dictionary model
+    @Test
+    public void testUpdateFromDictionaryModelResponseCorrectly() throws IOException, BencodeException {
+        var infoHash = new InfoHash("01234567890123456789".getBytes(), true);
+        var tracker = new Tracker(new ArrayList<>(0), infoHash, peerId);
+        String response = "d" +
+                "8:complete" + "i3e" +
+                "14:failure reason" + "0:" +
+                "10:incomplete" + "i4e" +
+                "8:interval" + "i60e" +
+                "5:peers" + "l" +
+                    "d" + "2:ip" + "9:127.0.0.1" + "7:peer id" + "20:BBBBBBBBBBBBBBBBBBBB" + "4:port" + "i6881e" + "e" +
+                    "d" + "2:ip" + "9:127.0.0.2" + "4:port" + "i6882e" + "e" +
+                "e" +
+                "10:tracker id" + "2:id" +
+                "e";
+
+        tracker.updateFromResponse(new ByteArrayInputStream(response.getBytes()));
+
+        // EXPECTED
+        long expectedInterval = 60;
+        String expectedTrackerId = "id";
+        long expectedAmountOfSeeders = 3;
+        long expectedAmountOfLeechers = 4;
+        Peer[] expectedPeers = {
+                new Peer("127.0.0.1", 6881),
+                new Peer("127.0.0.2", 6882)
+        };
+
+        // ACTUAL
+        Map<String, Peer> actualPeers = tracker.getPeers();
+
+        // ASSERT
+        assertEquals(expectedInterval, tracker.getInterval());
+        assertEquals(expectedTrackerId, tracker.getTrackerId());
+        assertEquals(expectedAmountOfSeeders, tracker.getSeeders());
+        assertEquals(expectedAmountOfLeechers, tracker.getLeechers());
+        assertEquals(expectedPeers.length, actualPeers.size());
+        for (Peer expectedPeer : expectedPeers) {
+            Peer actualPeer = actualPeers.get(expectedPeer.getIp().getHostAddress());
+            assertNotNull(actualPeer);
+            assertEquals(expectedPeer.getPort(), actualPeer.getPort());
+        }
+    }
+
+    @Test
+    public void testUpdateFromFailureResponseThrowsIOException() {
+        var infoHash = new InfoHash("01234567890123456789".getBytes(), true);
+        var tracker = new Tracker(new ArrayList<>(0), infoHash, peerId);
+        String response = "d" + "14:failure reason" + "5:error" + "e";
+
+        assertThrows(IOException.class,
+                () -> tracker.updateFromResponse(new ByteArrayInputStream(response.getBytes())));
+    }
 }
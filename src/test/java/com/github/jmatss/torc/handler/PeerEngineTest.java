@@ -0,0 +1,398 @@
+package com.github.jmatss.torc.handler;
+
+import com.github.jmatss.torc.TestTorrents;
+import com.github.jmatss.torc.bittorrent.BlockTracker;
+import com.github.jmatss.torc.bittorrent.InfoHash;
+import com.github.jmatss.torc.bittorrent.MessageType;
+import com.github.jmatss.torc.bittorrent.PeerMessage;
+import com.github.jmatss.torc.bittorrent.PiecePicker;
+import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.storage.DiskIoService;
+import com.github.jmatss.torc.storage.PieceStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PeerEngineTest {
+    private static final byte[] SEED_PEER_ID = "SSSSSSSSSSSSSSSSSSSS".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LEECH_PEER_ID = "LLLLLLLLLLLLLLLLLLLL".getBytes(StandardCharsets.UTF_8);
+
+    // Two blocks per piece, the last of the four pieces is shorter than a block.
+    private static final int PIECE_LENGTH = 2 * Torrent.MAX_REQUEST_LENGTH;
+    private static final byte[] CONTENT = TestTorrents.content(3 * PIECE_LENGTH + 1000);
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    // Single-file torrent "file" containing CONTENT.
+    private static Torrent torrent(byte[] peerId) throws Exception {
+        return TestTorrents.singleFile("file", CONTENT, PIECE_LENGTH, peerId);
+    }
+
+    private static PieceStore seedStore(Torrent torrent, Path directory) throws IOException {
+        var store = new PieceStore(torrent, directory);
+        for (int piece = 0; piece < torrent.getAmountOfPieces(); piece++) {
+            int length = (int) torrent.getPieceLength(piece);
+            store.write(piece, 0, ByteBuffer.wrap(CONTENT, piece * PIECE_LENGTH, length));
+            torrent.getBitfieldHave().set(piece);
+            torrent.getBitfieldDownloading().set(piece);
+        }
+        return store;
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out.");
+            Thread.sleep(10);
+        }
+    }
+
+    // Reads the id and payload of the next message that isn't a KEEP_ALIVE.
+    private static ByteBuffer readMessage(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        while (length == 0)
+            length = in.readInt();
+        byte[] message = new byte[length];
+        in.readFully(message);
+        return ByteBuffer.wrap(message);
+    }
+
+    // Acts as a seed that has all pieces on an accepted connection: handshake, BITFIELD and UNCHOKE.
+    private static DataInputStream startSeed(Socket socket, Torrent leech) throws IOException {
+        socket.setSoTimeout((int) TIMEOUT_MILLIS);
+        OutputStream out = socket.getOutputStream();
+        var in = new DataInputStream(socket.getInputStream());
+        in.readFully(new byte[PeerMessage.HANDSHAKE_LENGTH]);
+        out.write(PeerMessage.handshake(leech.getInfoHash(), SEED_PEER_ID).array());
+        out.write(new byte[]{0, 0, 0, 2, 5, (byte) 0xF0});
+        out.write(PeerMessage.message(MessageType.UNCHOKE).array());
+        return in;
+    }
+
+    // Connects to a seed as a leecher without any pieces, reads the handshake and BITFIELD of the seed.
+    private static DataInputStream connectLeech(Socket socket, int port, Torrent seed) throws IOException {
+        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        socket.setSoTimeout((int) TIMEOUT_MILLIS);
+        socket.getOutputStream().write(PeerMessage.handshake(seed.getInfoHash(), LEECH_PEER_ID).array());
+        var in = new DataInputStream(socket.getInputStream());
+        in.readFully(new byte[PeerMessage.HANDSHAKE_LENGTH + 6]);
+        return in;
+    }
+
+    @Test
+    public void testLeecherDownloadsTheTorrentFromASeed(@TempDir Path directory) throws Exception {
+        // ARRANGE
+        var seed = torrent(SEED_PEER_ID);
+        var leech = torrent(LEECH_PEER_ID);
+        var seedDiskIo = new DiskIoService();
+        var leechDiskIo = new DiskIoService();
+        var seedEngine = new PeerEngine(1, 16);
+        var leechEngine = new PeerEngine(2, 16);
+
+        try (var seedStore = seedStore(seed, directory.resolve("seed"));
+             var leechStore = new PieceStore(leech, directory.resolve("leech"))) {
+            var seedPeers = new PeerHandlerFactory(seed, seedStore, seedDiskIo);
+            var leechPeers = new PeerHandlerFactory(leech, leechStore, leechDiskIo);
+            seedEngine.register(seedPeers);
+            leechEngine.register(leechPeers);
+            int port = seedEngine.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            // ACT
+            assertTrue(leechEngine.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), leechPeers));
+            waitUntil(() -> leech.getBitfieldHave().isFull());
+
+            // ASSERT
+            var actual = ByteBuffer.allocate(CONTENT.length);
+            for (int piece = 0; piece < leech.getAmountOfPieces(); piece++) {
+                actual.limit(actual.position() + (int) leech.getPieceLength(piece));
+                leechStore.read(piece, 0, actual);
+            }
+            assertArrayEquals(CONTENT, actual.array());
+            assertEquals(0, leechPeers.getTracker().getInFlightPieces());
+            assertEquals(1, seedEngine.getConnections());
+            // The leecher isn't interested when it has all pieces, so it is choked and its upload slot is freed.
+            waitUntil(() -> seedPeers.getUnchoked() == 0);
+
+            leechEngine.unregister(leechPeers);
+            waitUntil(() -> seedEngine.getConnections() == 0);
+            assertEquals(0, leechEngine.getConnections());
+        } finally {
+            leechEngine.close();
+            seedEngine.close();
+            leechDiskIo.close();
+            seedDiskIo.close();
+        }
+    }
+
+    @Test
+    public void testHandshakeInterestAndRequestFromPeer(@TempDir Path directory) throws Exception {
+        // ARRANGE
+        var seed = torrent(SEED_PEER_ID);
+        var diskIo = new DiskIoService();
+        var engine = new PeerEngine(1, 16);
+
+        try (var store = seedStore(seed, directory);
+             var socket = new Socket()) {
+            engine.register(new PeerHandlerFactory(seed, store, diskIo));
+            int port = engine.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            socket.setSoTimeout((int) TIMEOUT_MILLIS);
+            OutputStream out = socket.getOutputStream();
+            var in = new DataInputStream(socket.getInputStream());
+
+            // ACT
+            out.write(PeerMessage.handshake(seed.getInfoHash(), LEECH_PEER_ID).array());
+            byte[] handshake = new byte[PeerMessage.HANDSHAKE_LENGTH];
+            in.readFully(handshake);
+            byte[] bitfield = new byte[6];
+            in.readFully(bitfield);
+
+            out.write(PeerMessage.message(MessageType.INTERESTED).array());
+            byte[] unchoke = new byte[5];
+            in.readFully(unchoke);
+
+            out.write(ByteBuffer.allocate(17).putInt(13).put((byte) 6).putInt(3).putInt(10).putInt(100).array());
+            byte[] piece = new byte[13 + 100];
+            in.readFully(piece);
+
+            // ASSERT
+            assertArrayEquals(PeerMessage.handshake(seed.getInfoHash(), SEED_PEER_ID).array(), handshake);
+            // All four pieces: 0b1111_0000.
+            assertArrayEquals(new byte[]{0, 0, 0, 2, 5, (byte) 0xF0}, bitfield);
+            assertArrayEquals(new byte[]{0, 0, 0, 1, 1}, unchoke);
+            var expected = ByteBuffer.allocate(13 + 100).putInt(9 + 100).put((byte) 7).putInt(3).putInt(10)
+                    .put(CONTENT, 3 * PIECE_LENGTH + 10, 100);
+            assertArrayEquals(expected.array(), piece);
+        } finally {
+            engine.close();
+            diskIo.close();
+        }
+    }
+
+    @Test
+    public void testPausedTorrentDoesNotUnchokeOrUpload(@TempDir Path directory) throws Exception {
+        // ARRANGE
+        var seed = torrent(SEED_PEER_ID);
+        var diskIo = new DiskIoService();
+        var engine = new PeerEngine(1, 16);
+
+        try (var store = seedStore(seed, directory);
+             var socket = new Socket()) {
+            var peers = new PeerHandlerFactory(seed, store, diskIo);
+            engine.register(peers);
+            peers.setPaused(true);
+            int port = engine.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            var in = connectLeech(socket, port, seed);
+            OutputStream out = socket.getOutputStream();
+            var request = ByteBuffer.allocate(17).putInt(13).put((byte) 6).putInt(0).putInt(0).putInt(100).array();
+
+            // ACT
+            // The HAVE is handled after the INTERESTED and REQUEST, so they have been handled when it is counted.
+            out.write(PeerMessage.message(MessageType.INTERESTED).array());
+            out.write(request);
+            out.write(PeerMessage.have(1).array());
+            waitUntil(() -> peers.getPicker().getAvailability(1) == 1);
+            int unchokedWhilePaused = peers.getUnchoked();
+
+            peers.setPaused(false);
+            byte[] unchoke = new byte[5];
+            in.readFully(unchoke);
+            out.write(request);
+            byte[] piece = new byte[13 + 100];
+            in.readFully(piece);
+
+            // ASSERT
+            assertEquals(0, unchokedWhilePaused);
+            assertArrayEquals(new byte[]{0, 0, 0, 1, 1}, unchoke);
+            var expected = ByteBuffer.allocate(13 + 100).putInt(9 + 100).put((byte) 7).putInt(0).putInt(0)
+                    .put(CONTENT, 0, 100);
+            assertArrayEquals(expected.array(), piece);
+            assertEquals(1, peers.getUnchoked());
+        } finally {
+            engine.close();
+            diskIo.close();
+        }
+    }
+
+    @Test
+    public void testUnansweredRequestsAreCancelled(@TempDir Path directory) throws Exception {
+        // ARRANGE
+        var leech = torrent(LEECH_PEER_ID);
+        var diskIo = new DiskIoService();
+        var engine = new PeerEngine(1, 16);
+        long requestTimeout = PeerEngine.TICK_MILLIS;
+
+        try (var store = new PieceStore(leech, directory);
+             var server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            var peers = new PeerHandlerFactory(leech, store, diskIo, new PiecePicker(leech),
+                    PeerHandlerFactory.DEFAULT_UPLOAD_SLOTS, requestTimeout);
+            engine.register(peers);
+            assertTrue(engine.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()),
+                    peers));
+
+            try (var socket = server.accept()) {
+                var in = startSeed(socket, leech);
+
+                // ACT
+                // The blocks are never sent, so every request times out and is cancelled.
+                Set<List<Integer>> requests = new HashSet<>();
+                Set<List<Integer>> cancels = new HashSet<>();
+                while (cancels.isEmpty() || !cancels.containsAll(requests)) {
+                    ByteBuffer message = readMessage(in);
+                    byte id = message.get();
+                    if (id == MessageType.REQUEST.getValue() && cancels.isEmpty())
+                        requests.add(List.of(message.getInt(), message.getInt(), message.getInt()));
+                    else if (id == MessageType.CANCEL.getValue())
+                        cancels.add(List.of(message.getInt(), message.getInt(), message.getInt()));
+                }
+
+                // The cancelled blocks must not be requested from the stalled peer again, reads until a few ticks
+                // have passed without any message.
+                List<List<Integer>> requestedAgain = new ArrayList<>();
+                socket.setSoTimeout((int) (3 * PeerEngine.TICK_MILLIS));
+                try {
+                    while (requestedAgain.isEmpty()) {
+                        ByteBuffer message = readMessage(in);
+                        if (message.get() == MessageType.REQUEST.getValue())
+                            requestedAgain.add(List.of(message.getInt(), message.getInt(), message.getInt()));
+                    }
+                } catch (SocketTimeoutException e) {
+                    // No more messages.
+                }
+
+                // ASSERT
+                // Two blocks for each of the first three pieces and one for the last.
+                assertEquals(7, requests.size());
+                assertEquals(requests, cancels);
+                assertEquals(List.of(), requestedAgain);
+            }
+        } finally {
+            engine.close();
+            diskIo.close();
+        }
+    }
+
+    @Test
+    public void testBlockWithIncorrectLengthClosesTheConnection(@TempDir Path directory) throws Exception {
+        // ARRANGE
+        var leech = torrent(LEECH_PEER_ID);
+        var diskIo = new DiskIoService();
+        var engine = new PeerEngine(1, 16);
+
+        try (var store = new PieceStore(leech, directory);
+             var server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            var peers = new PeerHandlerFactory(leech, store, diskIo);
+            engine.register(peers);
+            assertTrue(engine.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()),
+                    peers));
+
+            try (var socket = server.accept()) {
+                var in = startSeed(socket, leech);
+                ByteBuffer request = readMessage(in);
+                while (request.get(0) != MessageType.REQUEST.getValue())
+                    request = readMessage(in);
+                int piece = request.getInt(1);
+                int offset = request.getInt(5);
+
+                // ACT
+                // Answers the request with a block that is shorter than the requested one.
+                var block = ByteBuffer.allocate(13 + 100).putInt(9 + 100).put((byte) 7).putInt(piece).putInt(offset);
+                socket.getOutputStream().write(block.array());
+
+                // ASSERT
+                assertThrows(EOFException.class, () -> {
+                    while (true)
+                        readMessage(in);
+                });
+                waitUntil(() -> engine.getConnections() == 0);
+                assertEquals(BlockTracker.NO_OWNER, peers.getTracker().getOwner(piece, offset));
+                assertFalse(leech.getBitfieldHave().isSet(piece));
+            }
+        } finally {
+            engine.close();
+            diskIo.close();
+        }
+    }
+
+    @Test
+    public void testFreedUploadSlotIsHandedToWaitingPeer(@TempDir Path directory) throws Exception {
+        // ARRANGE
+        var seed = torrent(SEED_PEER_ID);
+        var diskIo = new DiskIoService();
+        var engine = new PeerEngine(2, 16);
+
+        try (var store = seedStore(seed, directory);
+             var first = new Socket();
+             var second = new Socket()) {
+            // A single upload slot for two interested leechers.
+            var peers = new PeerHandlerFactory(seed, store, diskIo, new PiecePicker(seed), 1,
+                    PeerHandlerFactory.DEFAULT_REQUEST_TIMEOUT_MILLIS);
+            engine.register(peers);
+            int port = engine.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            var firstIn = connectLeech(first, port, seed);
+            var secondIn = connectLeech(second, port, seed);
+
+            first.getOutputStream().write(PeerMessage.message(MessageType.INTERESTED).array());
+            ByteBuffer firstUnchoke = readMessage(firstIn);
+            // The HAVE is handled after the INTERESTED, so the second peer is waiting when it has been counted.
+            second.getOutputStream().write(PeerMessage.message(MessageType.INTERESTED).array());
+            second.getOutputStream().write(PeerMessage.have(0).array());
+            waitUntil(() -> peers.getPicker().getAvailability(0) == 1);
+            int unchokedBefore = peers.getUnchoked();
+
+            // ACT
+            first.getOutputStream().write(PeerMessage.message(MessageType.NOT_INTERESTED).array());
+            ByteBuffer firstChoke = readMessage(firstIn);
+            ByteBuffer secondUnchoke = readMessage(secondIn);
+
+            // ASSERT
+            assertEquals(MessageType.UNCHOKE.getValue(), firstUnchoke.get(0));
+            assertEquals(1, unchokedBefore);
+            assertEquals(MessageType.CHOKE.getValue(), firstChoke.get(0));
+            assertEquals(MessageType.UNCHOKE.getValue(), secondUnchoke.get(0));
+            assertEquals(1, peers.getUnchoked());
+        } finally {
+            engine.close();
+            diskIo.close();
+        }
+    }
+
+    @Test
+    public void testHandshakeForUnknownTorrentIsClosed() throws Exception {
+        var engine = new PeerEngine(1, 16);
+        try (var socket = new Socket()) {
+            int port = engine.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            socket.setSoTimeout((int) TIMEOUT_MILLIS);
+
+            byte[] unknown = new byte[20];
+            Arrays.fill(unknown, (byte) 1);
+            socket.getOutputStream().write(PeerMessage.handshake(new InfoHash(unknown, true), LEECH_PEER_ID).array());
+
+            assertThrows(EOFException.class, () -> new DataInputStream(socket.getInputStream()).readFully(new byte[1]));
+            waitUntil(() -> engine.getConnections() == 0);
+        } finally {
+            engine.close();
+        }
+    }
+}
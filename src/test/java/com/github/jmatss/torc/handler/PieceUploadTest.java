@@ -0,0 +1,114 @@
+package com.github.jmatss.torc.handler;
+
+import com.github.jmatss.torc.bencode.BencodeException;
+import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.storage.DiskIoService;
+import com.github.jmatss.torc.storage.PieceStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PieceUploadTest {
+    private static final byte[] PEER_ID = "AAAAAAAAAAAAAAAAAAAA".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CONTENT = "0123456789abcde".getBytes(StandardCharsets.UTF_8);
+
+    // Multi-file torrent "dir" with the files a (3 bytes), c (10 bytes) and d (2 bytes).
+    // Piece length 4 => 4 pieces where the last piece is 3 bytes.
+    private static Torrent multiFileTorrent() throws IOException, BencodeException, NoSuchAlgorithmException {
+        String files = "l" +
+                "d6:lengthi3e4:pathl1:aee" +
+                "d6:lengthi10e4:pathl1:cee" +
+                "d6:lengthi2e4:pathl1:dee" +
+                "e";
+        char[] hashes = new char[80];
+        Arrays.fill(hashes, 'A');
+        String pieces = "80:" + new String(hashes);
+        String info = "d5:files" + files + "4:name3:dir12:piece lengthi4e6:pieces" + pieces + "e";
+        String metainfo = "d8:announce22:https://www.testURL.se4:info" + info + "e";
+        return new Torrent(ByteBuffer.wrap(metainfo.getBytes(StandardCharsets.UTF_8)), PEER_ID);
+    }
+
+    private static PieceStore store(Torrent torrent, Path directory) throws IOException {
+        // Files up to 4 bytes are mapped, "c" (10 bytes) uses a FileChannel.
+        var store = new PieceStore(torrent, directory, 4);
+        for (int piece = 0; piece < store.getAmountOfPieces(); piece++) {
+            int length = (int) store.getPieceLength(piece);
+            store.write(piece, 0, ByteBuffer.wrap(CONTENT, piece * 4, length));
+        }
+        return store;
+    }
+
+    // Writes the upload to a file and returns the bytes that were written.
+    private static byte[] upload(PieceUpload upload, Path output) throws IOException {
+        try (var channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            assertTrue(upload.writeTo(channel));
+        }
+        return Files.readAllBytes(output);
+    }
+
+    private static byte[] expected(int piece, int offset, int length) {
+        ByteBuffer expected = ByteBuffer.allocate(13 + length);
+        expected.putInt(9 + length).put((byte) 7).putInt(piece).putInt(offset);
+        expected.put(CONTENT, piece * 4 + offset, length);
+        return expected.array();
+    }
+
+    @Test
+    public void testBlockInSingleFileIsSentFromTheFile(@TempDir Path directory) throws Exception {
+        // ARRANGE
+        var torrent = multiFileTorrent();
+        var diskIo = new DiskIoService();
+
+        try (var store = store(torrent, directory)) {
+            // ACT
+            // Piece 1 (bytes 4-7) is stored in "c".
+            try (var upload = PieceUpload.prepare(torrent, store, diskIo, 1, 1, 3).get()) {
+                byte[] actual = upload(upload, directory.resolve("out"));
+
+                // ASSERT
+                assertTrue(upload.isZeroCopy());
+                assertTrue(upload.isDone());
+                assertArrayEquals(expected(1, 1, 3), actual);
+            }
+        } finally {
+            diskIo.close();
+        }
+    }
+
+    @Test
+    public void testBlockSpanningFilesIsRead(@TempDir Path directory) throws Exception {
+        // ARRANGE
+        var torrent = multiFileTorrent();
+        var diskIo = new DiskIoService();
+
+        try (var store = store(torrent, directory)) {
+            // ACT
+            // Piece 0 (bytes 0-3) spans the files "a" and "c".
+            try (var upload = PieceUpload.prepare(torrent, store, diskIo, 0, 1, 3).get()) {
+                byte[] actual = upload(upload, directory.resolve("out"));
+
+                // ASSERT
+                assertFalse(upload.isZeroCopy());
+                assertArrayEquals(expected(0, 1, 3), actual);
+            }
+
+            // The whole piece 0 is now in the read cache, so it is served from memory.
+            try (var upload = PieceUpload.prepare(torrent, store, diskIo, 0, 0, 2).get()) {
+                assertFalse(upload.isZeroCopy());
+            }
+        } finally {
+            diskIo.close();
+        }
+    }
+}
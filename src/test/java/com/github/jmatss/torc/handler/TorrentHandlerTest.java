@@ -0,0 +1,101 @@
+package com.github.jmatss.torc.handler;
+
+import com.github.jmatss.torc.TestTorrents;
+import com.github.jmatss.torc.bittorrent.Bitfield;
+import com.github.jmatss.torc.bittorrent.BlockRequest;
+import com.github.jmatss.torc.storage.DiskIoService;
+import com.github.jmatss.torc.util.com.ComMessage;
+import com.github.jmatss.torc.util.com.ComMessageType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TorrentHandlerTest {
+    private static final int PIECE_LENGTH = 16;
+    private static final int AMOUNT_OF_PIECES = 64;
+
+    @Test
+    public void testCancelledRecheckResyncsThePicker(@TempDir Path directory) throws Exception {
+        // ARRANGE
+        // The torrent is marked as complete, but none of the pieces on disk are valid.
+        byte[] content = TestTorrents.content(AMOUNT_OF_PIECES * PIECE_LENGTH);
+        var torrent = TestTorrents.singleFile("recheck.data", content, PIECE_LENGTH);
+        var all = new Bitfield(AMOUNT_OF_PIECES);
+        for (int piece = 0; piece < AMOUNT_OF_PIECES; piece++) {
+            all.set(piece);
+            torrent.getBitfieldHave().set(piece);
+            torrent.getBitfieldDownloading().set(piece);
+        }
+
+        // Blocks the recheck worker that reports the first progress until the recheck has been cancelled.
+        var progressed = new CountDownLatch(1);
+        var cancelled = new CountDownLatch(1);
+        var parent = new LinkedBlockingQueue<ComMessage>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public boolean offer(ComMessage message) {
+                if (message.getType() == ComMessageType.PROGRESS && progressed.getCount() > 0) {
+                    progressed.countDown();
+                    try {
+                        cancelled.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.offer(message);
+            }
+        };
+
+        var diskIo = new DiskIoService();
+        var engine = new PeerEngine(1, 16);
+        var handler = new TorrentHandler(torrent, directory, parent, diskIo, engine);
+        try {
+            handler.getStore().write(AMOUNT_OF_PIECES - 1, 0, ByteBuffer.allocate(PIECE_LENGTH));
+            var peers = handler.registerPeers();
+
+            // ACT
+            var task = handler.startRecheck();
+            assertTrue(progressed.await(10, TimeUnit.SECONDS));
+            handler.cancelRecheck();
+            cancelled.countDown();
+            var error = assertThrows(RuntimeException.class, task::join);
+
+            peers.getPicker().addPeer(all);
+            Set<Integer> requested = new HashSet<>();
+            for (BlockRequest request : peers.getTracker().request(1, all, AMOUNT_OF_PIECES))
+                requested.add(request.getPiece());
+
+            // ASSERT
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            assertTrue(cause instanceof CancellationException, cause.toString());
+            // Some, but not all, pieces were found to be invalid before the recheck was cancelled.
+            Set<Integer> missing = new HashSet<>();
+            for (int piece = 0; piece < AMOUNT_OF_PIECES; piece++) {
+                if (!torrent.getBitfieldHave().isSet(piece))
+                    missing.add(piece);
+            }
+            assertFalse(missing.isEmpty());
+            assertTrue(missing.size() < AMOUNT_OF_PIECES);
+            // The picker hands out exactly the pieces that are missing.
+            assertEquals(missing, requested);
+            assertTrue(torrent.isPaused());
+            assertTrue(parent.stream().noneMatch(m -> m.getType() == ComMessageType.RECHECKED));
+        } finally {
+            handler.shutdown();
+            engine.close();
+            diskIo.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.jmatss.torc.storage;
+
+import com.github.jmatss.torc.TestTorrents;
+import com.github.jmatss.torc.bencode.BencodeException;
+import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.util.BufferPool;
+import com.github.jmatss.torc.util.PooledBuffer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.jmatss.torc.storage.WriteCache.BLOCK_LENGTH;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DiskIoServiceTest {
+    private static final int PIECE_LENGTH = 2 * BLOCK_LENGTH;
+    private static final int LENGTH = 2 * PIECE_LENGTH;
+
+    private static byte[] content() {
+        return TestTorrents.content(LENGTH);
+    }
+
+    // Single-file torrent "disk.data" containing the bytes of `content()`.
+    private static Torrent torrent() throws IOException, BencodeException, NoSuchAlgorithmException {
+        return TestTorrents.singleFile("disk.data", content(), PIECE_LENGTH);
+    }
+
+    private static PooledBuffer block(byte[] content, int piece, int offset) {
+        PooledBuffer pooled = BufferPool.HEAP.acquire(BLOCK_LENGTH);
+        pooled.buffer().put(content, piece * PIECE_LENGTH + offset, BLOCK_LENGTH).flip();
+        return pooled;
+    }
+
+    @Test
+    public void testJobsAreRunInPriorityOrder() throws Exception {
+        // ARRANGE
+        var service = new DiskIoService(1, 16, new WriteCache(), new ReadCache());
+        var started = new CountDownLatch(1);
+        var blocker = new CountDownLatch(1);
+        List<DiskIoService.Priority> order = Collections.synchronizedList(new ArrayList<>());
+
+        // ACT
+        service.submit(DiskIoService.Priority.LOW, () -> {
+            started.countDown();
+            blocker.await();
+            return null;
+        });
+        started.await();
+        var futures = new ArrayList<CompletableFuture<Object>>();
+        for (var priority : new DiskIoService.Priority[]{
+                DiskIoService.Priority.LOW, DiskIoService.Priority.NORMAL, DiskIoService.Priority.HIGH,
+                DiskIoService.Priority.LOW, DiskIoService.Priority.HIGH}) {
+            futures.add(service.submit(priority, () -> order.add(priority)));
+        }
+        blocker.countDown();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        service.close();
+
+        // ASSERT
+        var expected = List.of(
+                DiskIoService.Priority.HIGH,
+                DiskIoService.Priority.HIGH,
+                DiskIoService.Priority.NORMAL,
+                DiskIoService.Priority.LOW,
+                DiskIoService.Priority.LOW
+        );
+        assertEquals(expected, order);
+    }
+
+    @Test
+    public void testJobsAreRejectedWhenSaturated() throws Exception {
+        var service = new DiskIoService(1, 2, new WriteCache(), new ReadCache());
+        var blocker = new CountDownLatch(1);
+
+        service.submit(DiskIoService.Priority.LOW, () -> blocker.await(10, TimeUnit.SECONDS));
+        service.submit(DiskIoService.Priority.LOW, () -> null);
+
+        assertTrue(service.isSaturated());
+        assertThrows(RejectedExecutionException.class, () -> service.submit(DiskIoService.Priority.HIGH, () -> null));
+
+        blocker.countDown();
+        service.close();
+        assertEquals(0, service.getPendingJobs());
+        assertThrows(RejectedExecutionException.class, () -> service.submit(DiskIoService.Priority.HIGH, () -> null));
+    }
+
+    @Test
+    public void testWrittenPieceCanBeHashedAndRead(@TempDir Path directory) throws Exception {
+        var torrent = torrent();
+        byte[] content = content();
+        var service = new DiskIoService();
+
+        try (var store = new PieceStore(torrent, directory)) {
+            // ACT
+            var firstResult = service.write(torrent, store, 1, 0, block(content, 1, 0),
+                    DiskIoService.Priority.NORMAL).get();
+            var lastResult = service.write(torrent, store, 1, BLOCK_LENGTH, block(content, 1, BLOCK_LENGTH),
+                    DiskIoService.Priority.HIGH).get();
+            boolean valid = service.hash(torrent, store, 1, DiskIoService.Priority.LOW).get();
+            byte[] actual = new byte[100];
+            try (var read = service.read(torrent, store, 1, 50, 100, DiskIoService.Priority.HIGH).get()) {
+                read.buffer().get(actual);
+            }
+            service.flush(torrent, store, DiskIoService.Priority.LOW).get();
+
+            // ASSERT
+            assertEquals(WriteCache.Result.STORED, firstResult);
+            assertEquals(WriteCache.Result.VERIFIED, lastResult);
+            assertTrue(valid);
+            assertTrue(torrent.getBitfieldHave().isSet(1));
+            int start = PIECE_LENGTH + 50;
+            assertArrayEquals(Arrays.copyOfRange(content, start, start + 100), actual);
+        } finally {
+            service.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.jmatss.torc.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileHandlePoolTest {
+    private static final long LENGTH = 8;
+
+    @Test
+    public void testLeastRecentlyUsedUnpinnedFileIsClosed(@TempDir Path directory) throws IOException {
+        // ARRANGE
+        var pool = new FileHandlePool(2);
+        Path a = directory.resolve("a");
+        Path b = directory.resolve("b");
+        Path c = directory.resolve("c");
+
+        // ACT
+        pool.release(pool.acquire(a, LENGTH, LENGTH));
+        pool.release(pool.acquire(b, LENGTH, 0));
+        pool.release(pool.acquire(a, LENGTH, LENGTH));
+        pool.release(pool.acquire(c, LENGTH, LENGTH));
+
+        // ASSERT
+        assertEquals(2, pool.getOpenFiles());
+        assertTrue(pool.isOpen(a));
+        assertFalse(pool.isOpen(b));
+        assertTrue(pool.isOpen(c));
+    }
+
+    @Test
+    public void testPinnedFilesAreNotClosedUntilReleased(@TempDir Path directory) throws IOException {
+        var pool = new FileHandlePool(1);
+        Path a = directory.resolve("a");
+        Path b = directory.resolve("sub").resolve("b");
+
+        var handleA = pool.acquire(a, LENGTH, LENGTH);
+        var handleB = pool.acquire(b, LENGTH, LENGTH);
+        assertEquals(2, pool.getOpenFiles());
+
+        pool.release(handleA);
+        assertFalse(pool.isOpen(a));
+        assertTrue(pool.isOpen(b));
+
+        // Closing a pinned file postpones the close until it is released.
+        pool.close(b);
+        assertFalse(pool.isOpen(b));
+        pool.release(handleB);
+        assertEquals(0, pool.getOpenFiles());
+        assertThrows(IllegalStateException.class, () -> pool.release(handleB));
+    }
+
+    @Test
+    public void testFilesThatDontFitInTheMappedBytesAreNotMapped(@TempDir Path directory) throws IOException {
+        // ARRANGE
+        var pool = new FileHandlePool(2, LENGTH);
+        Path a = directory.resolve("a");
+        Path b = directory.resolve("b");
+
+        // ACT
+        var handleA = pool.acquire(a, LENGTH, LENGTH);
+        var handleB = pool.acquire(b, LENGTH, LENGTH);
+        long mappedBytes = pool.getMappedBytes();
+        pool.release(handleA);
+        pool.release(handleB);
+
+        // ASSERT
+        assertTrue(handleA.storage() instanceof MappedFileStorage);
+        assertTrue(handleB.storage() instanceof ChannelFileStorage);
+        assertEquals(LENGTH, mappedBytes);
+    }
+
+    @Test
+    public void testPreallocationModesAllocateFullLength(@TempDir Path directory) throws IOException {
+        Path none = directory.resolve("none");
+        Path sparse = directory.resolve("sparse");
+        Path full = directory.resolve("dir").resolve("full");
+        long length = (1 << 20) + 3;
+
+        FileHandlePool.preallocate(none, length, FileHandlePool.Preallocation.NONE);
+        FileHandlePool.preallocate(sparse, length, FileHandlePool.Preallocation.SPARSE);
+        FileHandlePool.preallocate(full, length, FileHandlePool.Preallocation.FULL);
+
+        assertFalse(Files.exists(none));
+        assertEquals(length, Files.size(sparse));
+        assertEquals(length, Files.size(full));
+        for (byte b : Files.readAllBytes(full))
+            assertEquals(0, b);
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.jmatss.torc.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PieceHasherTest {
+    private static final int BLOCK_LENGTH = 10;
+    private static final int PIECE_LENGTH = 3 * BLOCK_LENGTH + 5;
+
+    private static byte[] piece() {
+        byte[] piece = new byte[PIECE_LENGTH];
+        for (int i = 0; i < piece.length; i++)
+            piece[i] = (byte) (i * 31);
+        return piece;
+    }
+
+    private static ByteBuffer block(byte[] piece, int offset) {
+        return ByteBuffer.wrap(piece, offset, Math.min(BLOCK_LENGTH, PIECE_LENGTH - offset));
+    }
+
+    @Test
+    public void testBlocksOutOfOrderGivesDigestOfWholePiece() throws NoSuchAlgorithmException {
+        // EXPECTED
+        byte[] piece = piece();
+        byte[] expected = MessageDigest.getInstance("SHA-1").digest(piece);
+
+        // ACTUAL
+        var hasher = new PieceHasher(PIECE_LENGTH);
+        hasher.update(2 * BLOCK_LENGTH, block(piece, 2 * BLOCK_LENGTH));
+        hasher.update(3 * BLOCK_LENGTH, block(piece, 3 * BLOCK_LENGTH));
+        int hashedBeforeFirst = hasher.getHashedLength();
+        hasher.update(0, block(piece, 0));
+        int hashedAfterFirst = hasher.getHashedLength();
+        hasher.update(BLOCK_LENGTH, block(piece, BLOCK_LENGTH));
+        byte[] actual = hasher.digest();
+
+        // ASSERT
+        assertEquals(0, hashedBeforeFirst);
+        assertEquals(BLOCK_LENGTH, hashedAfterFirst);
+        assertTrue(hasher.isComplete());
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testDuplicateBlocksAreIgnored() throws NoSuchAlgorithmException {
+        byte[] piece = piece();
+        byte[] expected = MessageDigest.getInstance("SHA-1").digest(piece);
+
+        try (var hasher = new PieceHasher(PIECE_LENGTH)) {
+            assertTrue(hasher.update(0, block(piece, 0)));
+            assertFalse(hasher.update(0, block(piece, 0)));
+            assertTrue(hasher.update(2 * BLOCK_LENGTH, block(piece, 2 * BLOCK_LENGTH)));
+            assertFalse(hasher.update(2 * BLOCK_LENGTH, block(piece, 2 * BLOCK_LENGTH)));
+            assertThrows(IllegalStateException.class, hasher::digest);
+            assertThrows(IndexOutOfBoundsException.class, () -> hasher.update(PIECE_LENGTH - 1, block(piece, 0)));
+
+            hasher.update(BLOCK_LENGTH, block(piece, BLOCK_LENGTH));
+            hasher.update(3 * BLOCK_LENGTH, block(piece, 3 * BLOCK_LENGTH));
+            assertArrayEquals(expected, hasher.digest());
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.github.jmatss.torc.storage;
+
+import com.github.jmatss.torc.bencode.BencodeException;
+import com.github.jmatss.torc.bittorrent.Torrent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PieceStoreTest {
+    private static final byte[] PEER_ID = "AAAAAAAAAAAAAAAAAAAA".getBytes(StandardCharsets.UTF_8);
+
+    // Multi-file torrent "dir" with the files a (3 bytes), b (0 bytes), c (10 bytes) and d (2 bytes).
+    // Piece length 4 => 4 pieces where the last piece is 3 bytes.
+    private static Torrent multiFileTorrent() throws IOException, BencodeException, NoSuchAlgorithmException {
+        String files = "l" +
+                "d6:lengthi3e4:pathl1:aee" +
+                "d6:lengthi0e4:pathl1:bee" +
+                "d6:lengthi10e4:pathl3:sub1:cee" +
+                "d6:lengthi2e4:pathl1:dee" +
+                "e";
+        char[] hashes = new char[80];
+        Arrays.fill(hashes, 'A');
+        String pieces = "80:" + new String(hashes);
+        String info = "d5:files" + files + "4:name3:dir12:piece lengthi4e6:pieces" + pieces + "e";
+        String metainfo = "d8:announce22:https://www.testURL.se4:info" + info + "e";
+        return new Torrent(ByteBuffer.wrap(metainfo.getBytes(StandardCharsets.UTF_8)), PEER_ID);
+    }
+
+    @Test
+    public void testWriteAndReadBlocksSpanningMultipleFiles(@TempDir Path directory)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        // ARRANGE
+        var torrent = multiFileTorrent();
+        byte[] content = "0123456789abcde".getBytes(StandardCharsets.UTF_8);
+
+        // ACT
+        // Files up to 4 bytes are mapped, "c" (10 bytes) uses positional I/O.
+        try (var store = new PieceStore(torrent, directory, 4)) {
+            for (int piece = 0; piece < store.getAmountOfPieces(); piece++) {
+                int length = (int) store.getPieceLength(piece);
+                store.write(piece, 0, ByteBuffer.wrap(content, piece * 4, length));
+            }
+            store.flush();
+
+            // Block in the middle of piece 0 that spans over the files "a", "b" and "c".
+            ByteBuffer block = ByteBuffer.allocate(2);
+            store.read(0, 2, block);
+            assertArrayEquals("23".getBytes(StandardCharsets.UTF_8), block.array());
+            assertEquals(2, block.position());
+        }
+
+        // ASSERT
+        Path root = directory.resolve("dir");
+        assertArrayEquals("012".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(root.resolve("a")));
+        assertArrayEquals("3456789abc".getBytes(StandardCharsets.UTF_8),
+                Files.readAllBytes(root.resolve("sub").resolve("c")));
+        assertArrayEquals("de".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(root.resolve("d")));
+        assertEquals(15, torrent.getTotalLength());
+        assertEquals(3, torrent.getPieceLength(3));
+        assertTrue(torrent.isMultiFile());
+    }
+
+    @Test
+    public void testReadUnwrittenBlockReturnsZerosAndBlockOutsidePieceThrows(@TempDir Path directory)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        try (var store = new PieceStore(multiFileTorrent(), directory, 0)) {
+            // ACT
+            ByteBuffer block = ByteBuffer.allocate(3);
+            store.read(3, 0, block);
+
+            // ASSERT
+            assertArrayEquals(new byte[3], block.array());
+            assertThrows(IndexOutOfBoundsException.class, () -> store.read(3, 1, ByteBuffer.allocate(3)));
+            assertThrows(IndexOutOfBoundsException.class, () -> store.write(4, 0, ByteBuffer.allocate(1)));
+        }
+    }
+
+    // Multi-file torrent with the name `name` and a single file of 4 bytes with the path `path`.
+    private static Torrent torrentWithPath(String name, String... path)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        var files = new StringBuilder("d6:lengthi4e4:pathl");
+        for (String component : path)
+            files.append(component.length()).append(':').append(component);
+        files.append("ee");
+        String pieces = "20:AAAAAAAAAAAAAAAAAAAA";
+        String info = "d5:filesl" + files + "e4:name" + name.length() + ":" + name
+                + "12:piece lengthi4e6:pieces" + pieces + "e";
+        String metainfo = "d8:announce22:https://www.testURL.se4:info" + info + "e";
+        return new Torrent(ByteBuffer.wrap(metainfo.getBytes(StandardCharsets.UTF_8)), PEER_ID);
+    }
+
+    @Test
+    public void testPathsOutsideOfTheDownloadDirectoryAreRejected(@TempDir Path directory) throws Exception {
+        Path download = directory.resolve("download");
+
+        assertThrows(BencodeException.class, () -> torrentWithPath("dir", "..", "..", "evil"));
+        assertThrows(BencodeException.class, () -> torrentWithPath("dir", "sub/../../../evil"));
+        assertThrows(BencodeException.class, () -> torrentWithPath("dir", "/tmp/evil"));
+        assertThrows(BencodeException.class, () -> torrentWithPath("dir", ""));
+        assertThrows(BencodeException.class, () -> torrentWithPath("dir"));
+        assertThrows(BencodeException.class, () -> torrentWithPath("..", "evil"));
+        assertThrows(BencodeException.class, () -> torrentWithPath("/tmp", "evil"));
+
+        try (var store = new PieceStore(torrentWithPath("dir", "sub", "file"), download)) {
+            store.write(0, 0, ByteBuffer.wrap(new byte[]{1, 2, 3, 4}));
+        }
+        assertTrue(Files.exists(download.resolve("dir").resolve("sub").resolve("file")));
+        try (var paths = Files.list(directory)) {
+            assertEquals(1, paths.count());
+        }
+    }
+}
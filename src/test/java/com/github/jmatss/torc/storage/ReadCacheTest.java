@@ -0,0 +1,109 @@
+package com.github.jmatss.torc.storage;
+
+import com.github.jmatss.torc.TestTorrents;
+import com.github.jmatss.torc.bencode.BencodeException;
+import com.github.jmatss.torc.bittorrent.Torrent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReadCacheTest {
+    private static final int PIECE_LENGTH = 16;
+    private static final int AMOUNT_OF_PIECES = 21;
+    private static final int LENGTH = PIECE_LENGTH * AMOUNT_OF_PIECES;
+
+    // Single-file torrent "read.data" containing the bytes of `TestTorrents.content(LENGTH)`.
+    private static Torrent torrent() throws IOException, BencodeException, NoSuchAlgorithmException {
+        return TestTorrents.singleFile("read.data", TestTorrents.content(LENGTH), PIECE_LENGTH);
+    }
+
+    private static byte[] writeContent(PieceStore store) throws IOException {
+        byte[] content = TestTorrents.content(LENGTH);
+        for (int piece = 0; piece < AMOUNT_OF_PIECES; piece++)
+            store.write(piece, 0, ByteBuffer.wrap(content, piece * PIECE_LENGTH, PIECE_LENGTH));
+        return content;
+    }
+
+    private static byte[] read(ReadCache cache, Torrent torrent, PieceStore store, int piece, int offset, int length)
+            throws IOException {
+        var block = ByteBuffer.allocate(length);
+        cache.read(torrent, store, piece, offset, block);
+        return block.array();
+    }
+
+    @Test
+    public void testBlocksOfTheSamePieceAreServedFromMemory(@TempDir Path directory)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        var torrent = torrent();
+        var cache = new ReadCache();
+        try (var store = new PieceStore(torrent, directory)) {
+            byte[] content = writeContent(store);
+
+            // ACT
+            byte[] first = read(cache, torrent, store, 3, 0, 8);
+            byte[] second = read(cache, torrent, store, 3, 8, 8);
+
+            // ASSERT
+            assertArrayEquals(Arrays.copyOfRange(content, 48, 56), first);
+            assertArrayEquals(Arrays.copyOfRange(content, 56, 64), second);
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.getHits());
+            assertEquals(0.5, cache.getHitRate());
+            assertEquals(PIECE_LENGTH, cache.getCachedBytes());
+            assertThrows(IndexOutOfBoundsException.class, () -> read(cache, torrent, store, 3, 9, 8));
+        }
+    }
+
+    @Test
+    public void testBlockSpanningReadAheadWindowsIsReadFromBoth(@TempDir Path directory)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        var torrent = torrent();
+        var cache = new ReadCache(1 << 10, 4);
+        try (var store = new PieceStore(torrent, directory)) {
+            byte[] content = writeContent(store);
+
+            byte[] actual = read(cache, torrent, store, 1, 2, 8);
+
+            assertArrayEquals(Arrays.copyOfRange(content, 18, 26), actual);
+            assertEquals(3, cache.getMisses());
+            assertEquals(12, cache.getCachedBytes());
+        }
+    }
+
+    @Test
+    public void testScanDoesNotEvictPieceThatIsRequestedRepeatedly(@TempDir Path directory)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        var torrent = torrent();
+        // Room for 4 pieces of which 1 can be used by pieces that only have been read once.
+        var cache = new ReadCache(4 * PIECE_LENGTH, 0);
+        try (var store = new PieceStore(torrent, directory)) {
+            writeContent(store);
+
+            // ARRANGE
+            // Piece 0 is evicted by pieces 1-4 but is requested again, so it is known to be hot.
+            read(cache, torrent, store, 0, 0, 1);
+            for (int piece = 1; piece <= 4; piece++)
+                read(cache, torrent, store, piece, 0, 1);
+            read(cache, torrent, store, 0, 0, 1);
+            long hits = cache.getHits();
+
+            // ACT
+            // A peer scans through all other pieces.
+            for (int piece = 5; piece < AMOUNT_OF_PIECES; piece++)
+                read(cache, torrent, store, piece, 0, 1);
+            read(cache, torrent, store, 0, 0, 1);
+
+            // ASSERT
+            assertEquals(0, hits);
+            assertEquals(1, cache.getHits());
+            assertTrue(cache.getCachedBytes() <= 4 * PIECE_LENGTH);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.jmatss.torc.storage;
+
+import com.github.jmatss.torc.TestTorrents;
+import com.github.jmatss.torc.bencode.BencodeException;
+import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.util.com.ComMessage;
+import com.github.jmatss.torc.util.com.ComMessageType;
+import com.github.jmatss.torc.util.com.ComPropertyType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecheckTest {
+    private static final int PIECE_LENGTH = 16;
+    private static final int AMOUNT_OF_PIECES = 37;
+    private static final int LENGTH = PIECE_LENGTH * (AMOUNT_OF_PIECES - 1) + 5;
+
+    private static byte[] content() {
+        return TestTorrents.content(LENGTH);
+    }
+
+    // Single-file torrent "recheck.data" containing the bytes of `content()`.
+    private static Torrent torrent() throws IOException, BencodeException, NoSuchAlgorithmException {
+        return TestTorrents.singleFile("recheck.data", content(), PIECE_LENGTH);
+    }
+
+    @Test
+    public void testRecheckFindsValidAndCorruptPieces(@TempDir Path directory)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        // ARRANGE
+        var torrent = torrent();
+        var progressQueue = new LinkedBlockingQueue<ComMessage>();
+        // Piece 3 is corrupt, piece 10 is missing (never written) and piece 4 is marked as had.
+        byte[] content = content();
+        content[3 * PIECE_LENGTH + 7] ^= 1;
+        torrent.getBitfieldHave().set(4);
+        torrent.getBitfieldHave().set(3);
+
+        try (var store = new PieceStore(torrent, directory)) {
+            for (int piece = 0; piece < AMOUNT_OF_PIECES; piece++) {
+                if (piece != 10) {
+                    int length = (int) store.getPieceLength(piece);
+                    store.write(piece, 0, ByteBuffer.wrap(content, piece * PIECE_LENGTH, length));
+                }
+            }
+
+            // ACT
+            var recheck = new Recheck(torrent, store, progressQueue);
+            int actualValid = recheck.run();
+
+            // ASSERT
+            assertEquals(AMOUNT_OF_PIECES - 2, actualValid);
+            assertEquals(AMOUNT_OF_PIECES, recheck.getCheckedPieces());
+            for (int piece = 0; piece < AMOUNT_OF_PIECES; piece++) {
+                boolean expected = piece != 3 && piece != 10;
+                assertEquals(expected, torrent.getBitfieldHave().isSet(piece), "piece " + piece);
+                assertEquals(expected, torrent.getBitfieldDownloading().isSet(piece), "piece " + piece);
+            }
+        }
+
+        var messages = new ArrayList<ComMessage>();
+        progressQueue.drainTo(messages);
+        assertFalse(messages.isEmpty());
+        var last = messages.get(messages.size() - 1);
+        assertEquals(ComMessageType.PROGRESS, last.getType());
+        assertEquals(torrent.getInfoHash(), last.getProperty(ComPropertyType.INFO_HASH.toString()));
+        assertEquals(1.0, last.getProperty(ComPropertyType.PROGRESS.toString()));
+    }
+
+    @Test
+    public void testCancelledRecheckThrowsCancellationException(@TempDir Path directory)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        var torrent = torrent();
+        try (var store = new PieceStore(torrent, directory)) {
+            var recheck = new Recheck(torrent, store, null);
+            recheck.cancel();
+
+            assertThrows(CancellationException.class, recheck::run);
+            assertEquals(0, recheck.getCheckedPieces());
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.jmatss.torc.storage;
+
+import com.github.jmatss.torc.TestTorrents;
+import com.github.jmatss.torc.bencode.BencodeException;
+import com.github.jmatss.torc.bittorrent.Bitfield;
+import com.github.jmatss.torc.bittorrent.BlockRequest;
+import com.github.jmatss.torc.bittorrent.Torrent;
+import com.github.jmatss.torc.handler.PeerHandlerFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResumeDataTest {
+    private static final byte[] PEER_ID = "AAAAAAAAAAAAAAAAAAAA".getBytes(StandardCharsets.UTF_8);
+
+    // Multi-file torrent "dir" with the files a (5 bytes) and b (7 bytes), piece length 4 => 3 pieces.
+    private static Torrent torrent(Path directory) throws IOException, BencodeException, NoSuchAlgorithmException {
+        char[] hashes = new char[60];
+        Arrays.fill(hashes, 'A');
+        String metainfo = "d8:announce22:https://www.testURL.se4:infod5:filesl" +
+                "d6:lengthi5e4:pathl1:aee" +
+                "d6:lengthi7e4:pathl1:bee" +
+                "e4:name3:dir12:piece lengthi4e6:pieces60:" + new String(hashes) + "ee";
+        Path path = directory.resolve("test.torrent");
+        Files.write(path, metainfo.getBytes(StandardCharsets.UTF_8));
+        return new Torrent(path.toString(), PEER_ID);
+    }
+
+    // Single-file torrent "partial.data" containing `content` as a single piece.
+    private static Torrent singlePieceTorrent(Path directory, byte[] content)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        Path path = directory.resolve("partial.torrent");
+        Files.write(path, TestTorrents.singleFileMetainfo("partial.data", content, content.length));
+        return new Torrent(path.toString(), PEER_ID);
+    }
+
+    @Test
+    public void testResumeDataWrittenAndReadRestoresUnchangedTorrent(@TempDir Path directory)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        // ARRANGE
+        var torrent = torrent(directory);
+        try (var store = new PieceStore(torrent, directory)) {
+            store.write(0, 0, ByteBuffer.wrap(new byte[]{1, 2, 3, 4}));
+            store.write(2, 0, ByteBuffer.wrap(new byte[]{5, 6, 7, 8}));
+        }
+        torrent.getBitfieldHave().set(0);
+        torrent.getBitfieldHave().set(2);
+        var blocks = new Bitfield(3);
+        blocks.set(1);
+        Path resumePath = directory.resolve("resume").resolve("test" + ResumeData.FILE_EXTENSION);
+
+        // ACT
+        ResumeData.create(torrent, directory, Map.of(1, blocks)).write(resumePath);
+        var actual = ResumeData.read(resumePath);
+        var restoredTorrent = torrent(directory);
+        boolean restored = actual.restore(restoredTorrent);
+
+        // ASSERT
+        assertTrue(restored);
+        assertEquals(torrent.getInfoHash(), actual.getInfoHash());
+        assertEquals(directory, actual.getDirectory());
+        assertEquals(directory.resolve("test.torrent"), actual.getMetainfoPath());
+        assertArrayEquals(torrent.getBitfieldHave().toByteArray(), restoredTorrent.getBitfieldHave().toByteArray());
+        assertTrue(restoredTorrent.getBitfieldDownloading().isSet(2));
+        assertEquals(1, actual.getPartialPieces().size());
+        assertArrayEquals(blocks.toByteArray(), actual.getPartialPieces().get(1).toByteArray());
+        assertEquals(3, actual.getPartialPieces().get(1).getAmountOfPieces());
+    }
+
+    @Test
+    public void testResumeDataNotRestoredWhenFileHasChanged(@TempDir Path directory)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        // ARRANGE
+        var torrent = torrent(directory);
+        try (var store = new PieceStore(torrent, directory)) {
+            store.write(0, 0, ByteBuffer.wrap(new byte[]{1, 2, 3, 4}));
+        }
+        torrent.getBitfieldHave().set(0);
+        var resumeData = ResumeData.create(torrent, directory, Map.of());
+
+        // ACT
+        Path file = directory.resolve("dir").resolve("a");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() - 10000));
+        var restoredTorrent = torrent(directory);
+        boolean restored = resumeData.restore(restoredTorrent);
+
+        // ASSERT
+        assertFalse(restored);
+        assertFalse(restoredTorrent.getBitfieldHave().isSet(0));
+    }
+
+    @Test
+    public void testPartialPiecesAreRestoredIntoTheWriteCache(@TempDir Path directory)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        // ARRANGE
+        byte[] content = new byte[2 * WriteCache.BLOCK_LENGTH];
+        new Random(1).nextBytes(content);
+        var torrent = singlePieceTorrent(directory, content);
+        var cache = new WriteCache();
+        try (var store = new PieceStore(torrent, directory)) {
+            cache.put(torrent, store, 0, 0, ByteBuffer.wrap(content, 0, WriteCache.BLOCK_LENGTH));
+            cache.flush(torrent.getInfoHash());
+        }
+        Path resumePath = directory.resolve("resume").resolve("partial" + ResumeData.FILE_EXTENSION);
+
+        // ACT
+        ResumeData.create(torrent, directory, cache.getPartialPieces(torrent.getInfoHash())).write(resumePath);
+        var restoredTorrent = singlePieceTorrent(directory, content);
+        var restoredCache = new WriteCache();
+        boolean restored = ResumeData.read(resumePath).restore(restoredTorrent, restoredCache);
+        var partialPieces = restoredCache.getPartialPieces(restoredTorrent.getInfoHash());
+        var diskIo = new DiskIoService(1, 16, restoredCache, new ReadCache());
+        List<BlockRequest> requests;
+        WriteCache.Result result;
+        try (var store = new PieceStore(restoredTorrent, directory)) {
+            var peers = new PeerHandlerFactory(restoredTorrent, store, diskIo);
+            var seed = new Bitfield(1);
+            seed.set(0);
+            peers.getPicker().addPeer(seed);
+            requests = peers.getTracker().request(1, seed, 10);
+
+            var lastBlock = ByteBuffer.wrap(content, WriteCache.BLOCK_LENGTH, WriteCache.BLOCK_LENGTH);
+            result = restoredCache.put(restoredTorrent, store, 0, WriteCache.BLOCK_LENGTH, lastBlock);
+        } finally {
+            diskIo.close();
+        }
+
+        // ASSERT
+        assertTrue(restored);
+        // Only the block that isn't on disk is requested from the peers.
+        assertEquals(List.of(new BlockRequest(0, WriteCache.BLOCK_LENGTH, WriteCache.BLOCK_LENGTH)), requests);
+        assertEquals(1, partialPieces.size());
+        assertTrue(partialPieces.get(0).isSet(0));
+        assertFalse(partialPieces.get(0).isSet(1));
+        // The first block is only on disk, the piece can only be verified if it is read back from there.
+        assertEquals(WriteCache.Result.VERIFIED, result);
+        assertTrue(restoredTorrent.getBitfieldHave().isSet(0));
+    }
+}
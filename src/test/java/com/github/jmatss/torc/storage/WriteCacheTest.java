@@ -0,0 +1,166 @@
+package com.github.jmatss.torc.storage;
+
+import com.github.jmatss.torc.TestTorrents;
+import com.github.jmatss.torc.bencode.BencodeException;
+import com.github.jmatss.torc.bittorrent.Torrent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.jmatss.torc.storage.WriteCache.BLOCK_LENGTH;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteCacheTest {
+    // Two blocks per piece, the last piece is shorter.
+    private static final int PIECE_LENGTH = 2 * BLOCK_LENGTH;
+    private static final int LENGTH = 2 * PIECE_LENGTH + BLOCK_LENGTH + 100;
+
+    private static byte[] content() {
+        return TestTorrents.content(LENGTH);
+    }
+
+    // Single-file torrent "cache.data" containing the bytes of `content()`.
+    private static Torrent torrent() throws IOException, BencodeException, NoSuchAlgorithmException {
+        return TestTorrents.singleFile("cache.data", content(), PIECE_LENGTH);
+    }
+
+    private static ByteBuffer block(byte[] content, int piece, int offset) {
+        int start = piece * PIECE_LENGTH + offset;
+        return ByteBuffer.wrap(content, start, Math.min(BLOCK_LENGTH, LENGTH - start));
+    }
+
+    @Test
+    public void testPieceIsVerifiedAndWrittenWhenAllBlocksAreReceived(@TempDir Path directory)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        var torrent = torrent();
+        var cache = new WriteCache();
+        byte[] content = content();
+
+        try (var store = new PieceStore(torrent, directory)) {
+            // ACT
+            var first = cache.put(torrent, store, 2, BLOCK_LENGTH, block(content, 2, BLOCK_LENGTH));
+            var duplicate = cache.put(torrent, store, 2, BLOCK_LENGTH, block(content, 2, BLOCK_LENGTH));
+            long cachedBytes = cache.getCachedBytes();
+            var last = cache.put(torrent, store, 2, 0, block(content, 2, 0));
+
+            // ASSERT
+            assertEquals(WriteCache.Result.STORED, first);
+            assertEquals(WriteCache.Result.DUPLICATE, duplicate);
+            assertEquals(BLOCK_LENGTH + 100, cachedBytes);
+            assertEquals(WriteCache.Result.VERIFIED, last);
+            assertEquals(0, cache.getCachedBytes());
+            assertTrue(torrent.getBitfieldHave().isSet(2));
+            assertThrows(IllegalArgumentException.class, () -> cache.put(torrent, store, 0, 1, block(content, 0, 1)));
+        }
+
+        byte[] file = Files.readAllBytes(directory.resolve("cache.data"));
+        int start = 2 * PIECE_LENGTH;
+        assertArrayEquals(Arrays.copyOfRange(content, start, LENGTH), Arrays.copyOfRange(file, start, LENGTH));
+    }
+
+    @Test
+    public void testPieceWithIncorrectHashIsDiscarded(@TempDir Path directory)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        var torrent = torrent();
+        var cache = new WriteCache();
+        byte[] content = content();
+        content[5] ^= 1;
+
+        try (var store = new PieceStore(torrent, directory)) {
+            cache.put(torrent, store, 0, 0, block(content, 0, 0));
+            var actual = cache.put(torrent, store, 0, BLOCK_LENGTH, block(content, 0, BLOCK_LENGTH));
+
+            assertEquals(WriteCache.Result.HASH_FAILED, actual);
+            assertFalse(torrent.getBitfieldHave().isSet(0));
+            assertEquals(0, cache.getCachedPieces());
+        }
+    }
+
+    @Test
+    public void testEvictedPieceIsSpilledToDiskAndCompletedLater(@TempDir Path directory)
+            throws IOException, BencodeException, NoSuchAlgorithmException {
+        var torrent = torrent();
+        // Only room for a single piece.
+        var cache = new WriteCache(PIECE_LENGTH);
+        byte[] content = content();
+
+        try (var store = new PieceStore(torrent, directory)) {
+            // ACT
+            cache.put(torrent, store, 0, 0, block(content, 0, 0));
+            cache.put(torrent, store, 1, BLOCK_LENGTH, block(content, 1, BLOCK_LENGTH));
+            var partialPieces = cache.getPartialPieces(torrent.getInfoHash());
+            var duplicate = cache.put(torrent, store, 0, 0, block(content, 0, 0));
+            var actual = cache.put(torrent, store, 0, BLOCK_LENGTH, block(content, 0, BLOCK_LENGTH));
+            cache.flush(torrent.getInfoHash());
+
+            // ASSERT
+            assertEquals(1, partialPieces.size());
+            assertTrue(partialPieces.get(0).isSet(0));
+            assertFalse(partialPieces.get(0).isSet(1));
+            assertEquals(WriteCache.Result.DUPLICATE, duplicate);
+            assertEquals(WriteCache.Result.VERIFIED, actual);
+            assertTrue(torrent.getBitfieldHave().isSet(0));
+            assertEquals(0, cache.getCachedPieces());
+            assertTrue(cache.getPartialPieces(torrent.getInfoHash()).get(1).isSet(1));
+        }
+
+        byte[] file = Files.readAllBytes(directory.resolve("cache.data"));
+        assertArrayEquals(Arrays.copyOfRange(content, 0, PIECE_LENGTH), Arrays.copyOfRange(file, 0, PIECE_LENGTH));
+    }
+
+    @Test
+    public void testBlocksPutConcurrentlyWithEvictionsCompleteAllPieces(@TempDir Path directory) throws Exception {
+        // ARRANGE
+        var torrent = torrent();
+        // Only room for a single piece, so the pieces keep evicting each other.
+        var cache = new WriteCache(PIECE_LENGTH);
+        byte[] content = content();
+        int amountOfPieces = torrent.getAmountOfPieces();
+        var executor = Executors.newFixedThreadPool(4);
+        var start = new CountDownLatch(1);
+
+        try (var store = new PieceStore(torrent, directory)) {
+            List<Future<WriteCache.Result>> results = new ArrayList<>();
+            for (int piece = 0; piece < amountOfPieces; piece++) {
+                for (int offset = 0; offset < torrent.getPieceLength(piece); offset += BLOCK_LENGTH) {
+                    int p = piece;
+                    int o = offset;
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        return cache.put(torrent, store, p, o, block(content, p, o));
+                    }));
+                }
+            }
+
+            // ACT
+            start.countDown();
+            int verified = 0;
+            for (Future<WriteCache.Result> result : results) {
+                if (result.get(10, TimeUnit.SECONDS) == WriteCache.Result.VERIFIED)
+                    verified++;
+            }
+
+            // ASSERT
+            assertEquals(amountOfPieces, verified);
+            assertTrue(torrent.getBitfieldHave().isFull());
+            assertEquals(0, cache.getCachedBytes());
+            assertTrue(cache.getPartialPieces(torrent.getInfoHash()).isEmpty());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertArrayEquals(content, Files.readAllBytes(directory.resolve("cache.data")));
+    }
+}
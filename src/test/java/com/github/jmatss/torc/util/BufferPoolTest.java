@@ -0,0 +1,95 @@
+package com.github.jmatss.torc.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BufferPoolTest {
+    @Test
+    public void testReleasedBufferIsReusedForSameSizeClass() {
+        var pool = new BufferPool(false);
+
+        // ACT
+        var first = pool.acquire(100);
+        ByteBuffer firstBuffer = first.buffer();
+        first.release();
+        var second = pool.acquire(128);
+
+        // ASSERT
+        assertSame(firstBuffer, second.buffer());
+        assertEquals(128, second.buffer().capacity());
+        assertEquals(128, second.buffer().limit());
+        assertEquals(1, pool.getAllocated());
+        second.release();
+        assertEquals(1, pool.getFree());
+    }
+
+    @Test
+    public void testBufferIsReturnedWhenLastReferenceIsReleased() {
+        var pool = new BufferPool(true);
+
+        // ACT & ASSERT
+        var pooled = pool.acquire(10).retain();
+        assertTrue(pooled.buffer().isDirect());
+        assertFalse(pooled.release());
+        assertEquals(0, pool.getFree());
+        assertTrue(pooled.release());
+        assertEquals(1, pool.getFree());
+        assertThrows(IllegalStateException.class, pooled::buffer);
+        assertThrows(IllegalStateException.class, pooled::retain);
+    }
+
+    @Test
+    public void testTooLargeBufferIsNotPooled() {
+        var pool = new BufferPool(false);
+        int capacity = (1 << BufferPool.MAX_SIZE_CLASS) + 1;
+
+        // ACT
+        var pooled = pool.acquire(capacity);
+        int actualCapacity = pooled.capacity();
+        pooled.release();
+
+        // ASSERT
+        assertEquals(capacity, actualCapacity);
+        assertEquals(0, pool.getFree());
+    }
+
+    @Test
+    public void testUnreleasedBufferIsDetectedAsLeak() throws InterruptedException {
+        var pool = new BufferPool(false, 1, 1 << 20, 1);
+
+        // ACT
+        pool.acquire(64);
+        for (int i = 0; i < 100 && pool.getLeaked() == 0; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        // ASSERT
+        assertEquals(1, pool.getLeaked());
+    }
+
+    @Test
+    public void testDynamicByteBufferGrowsAndReadsStream() throws IOException {
+        byte[] content = new byte[1000];
+        Arrays.fill(content, (byte) 'a');
+        var expected = new String(content, StandardCharsets.UTF_8) + "-1234";
+
+        // ACT
+        String actual;
+        try (var buffer = new DynamicByteBuffer()) {
+            buffer.readFrom(new ByteArrayInputStream(content));
+            buffer.putLongBytes(-1234);
+            actual = new String(buffer.getBytes(), StandardCharsets.UTF_8);
+        }
+
+        // ASSERT
+        assertEquals(expected, actual);
+    }
+}